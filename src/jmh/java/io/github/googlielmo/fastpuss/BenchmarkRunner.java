@@ -0,0 +1,24 @@
+package io.github.googlielmo.fastpuss;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of {@code benchmarks.jar}: runs JMH with the given command line, writing results as JSON to
+ * {@value #DEFAULT_RESULT} unless a result format or file is given, so that runs of different builds can be compared.
+ */
+public class BenchmarkRunner {
+
+    static final String DEFAULT_RESULT = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        if (!jmhArgs.contains("-rf") && !jmhArgs.contains("-rff")) {
+            jmhArgs.addAll(List.of("-rf", "json", "-rff", DEFAULT_RESULT));
+        }
+        Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
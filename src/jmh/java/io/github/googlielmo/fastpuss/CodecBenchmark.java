@@ -0,0 +1,44 @@
+package io.github.googlielmo.fastpuss;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of parsing an incoming PUB and of encoding the outgoing MSG.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final String TOPIC = "sensors/building1/room42/temperature";
+
+    @Param({"16", "1024"})
+    int bodySize;
+
+    byte[] body;
+    ByteBuffer pub;
+
+    @Setup
+    public void setUp() {
+        body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        pub = MessageCodec.encode(Verb.PUB, TOPIC, body);
+    }
+
+    @Benchmark
+    public Frame decode() {
+        return MessageCodec.decode(pub);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return MessageCodec.encode(Verb.MSG, TOPIC, body);
+    }
+}
@@ -0,0 +1,69 @@
+package io.github.googlielmo.fastpuss;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A burst of blocking clients on a fresh executor of each {@link ExecutionMode}: every task opens a UDP socket and
+ * blocks on a receive until its timeout expires, like a simulated subscriber waiting for messages. The time includes
+ * creating the threads, which is what makes bursts expensive with platform threads.
+ * <p>
+ * On a runtime older than Java 21 both modes run on platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExecutionModeBenchmark {
+
+    private static final int RECEIVE_TIMEOUT_MILLIS = 10;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    ExecutionMode mode;
+
+    @Param({"1000", "10000"})
+    int clients;
+
+    ExecutorService executor;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        executor = mode.newExecutor("bench-client-");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public void burst() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            executor.execute(() -> {
+                try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                    socket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+                    socket.receive(new DatagramPacket(new byte[64], 64));
+                } catch (SocketTimeoutException e) {
+                    // expected: nobody sends
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+}
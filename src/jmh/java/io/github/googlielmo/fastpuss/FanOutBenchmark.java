@@ -0,0 +1,59 @@
+package io.github.googlielmo.fastpuss;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The publish fan-out loop, sending one MSG datagram to each subscriber over loopback. Nobody listens on the
+ * subscriber ports, so the cost measured is the broker's side only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final String TOPIC = "bench/fanout";
+
+    @Param({"1", "100", "10000"})
+    int subscribers;
+
+    FanOutEngine engine;
+    DatagramChannel channel;
+    DatagramEndpoint endpoint;
+    SubscriberSet set;
+    ByteBuffer frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        ClientRegistry clients = new ClientRegistry();
+        set = new SubscriberSet();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < subscribers; i++) {
+            set.add(clients.intern(new InetSocketAddress(loopback, 20000 + i)));
+        }
+        engine = new FanOutEngine(clients, 1, Long.MAX_VALUE, new BrokerMetrics(0)); // always inline: measures the send loop itself
+        channel = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        endpoint = SocketTransport.endpoint(channel);
+        frame = MessageCodec.encode(Verb.MSG, TOPIC, new byte[64]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        engine.shutdown();
+        channel.close();
+    }
+
+    @Benchmark
+    public void fanOut() {
+        engine.fanOut(TOPIC, frame, set, endpoint);
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.googlielmo.fastpuss;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-state transfer throughput: {@code marshal} of a populated manager, {@code unmarshal} into an empty one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SnapshotBenchmark {
+
+    @Param({"1000000"})
+    int subscriptions;
+
+    @Param({"true", "false"})
+    boolean compress;
+
+    ThreadSafeSubscriberManager manager;
+    byte[] snapshot;
+    ExecutorService workers;
+    int parallelism = Runtime.getRuntime().availableProcessors();
+
+    @Setup
+    public void setUp() throws IOException {
+        manager = new ThreadSafeSubscriberManager();
+        for (int i = 0; i < subscriptions; i++) {
+            manager.addSubscription("bench/topic" + i / 100, "/10.0." + (i >> 8 & 0xff) + "." + (i & 0xff) + ":10000");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manager.marshal(bytes, compress);
+        snapshot = bytes.toByteArray();
+        workers = Executors.newFixedThreadPool(parallelism);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workers.shutdown();
+    }
+
+    @Benchmark
+    public void marshal() throws IOException {
+        manager.marshal(OutputStream.nullOutputStream(), compress);
+    }
+
+    @Benchmark
+    public ThreadSafeSubscriberManager unmarshal() throws IOException {
+        ThreadSafeSubscriberManager target = new ThreadSafeSubscriberManager();
+        target.unmarshal(new ByteArrayInputStream(snapshot), workers, parallelism);
+        return target;
+    }
+}
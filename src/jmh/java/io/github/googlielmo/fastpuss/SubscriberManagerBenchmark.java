@@ -0,0 +1,102 @@
+package io.github.googlielmo.fastpuss;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Subscription changes and lookups on a populated {@link ThreadSafeSubscriberManager}, from all cores at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class SubscriberManagerBenchmark {
+
+    private static final int CLIENTS = 100_000;
+
+    @Param({"1000000", "10000000"})
+    int subscriptions;
+
+    @Param({"100"})
+    int subscribersPerTopic;
+
+    ThreadSafeSubscriberManager manager;
+    String[] topics;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        manager = new ThreadSafeSubscriberManager();
+        int[] clients = new int[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) {
+            clients[c] = manager.clients().intern("/10.0." + (c >> 8 & 0xff) + "." + (c & 0xff) + ":" + (10000 + c / 65536));
+        }
+        topics = new String[subscriptions / subscribersPerTopic];
+        int[] subscribers = new int[subscribersPerTopic];
+        for (int t = 0; t < topics.length; t++) {
+            topics[t] = "bench/topic" + t;
+            for (int i = 0; i < subscribersPerTopic; i++) {
+                subscribers[i] = clients[(t * 7919 + i) % CLIENTS];
+            }
+            manager.addSubscriptions(topics[t], subscribers);
+        }
+    }
+
+    /**
+     * A client of its own for each thread, so that churn never touches the preloaded subscriptions.
+     */
+    @State(Scope.Thread)
+    public static class Churn {
+        int client;
+
+        @Setup
+        public void setUp(SubscriberManagerBenchmark benchmark) {
+            client = benchmark.manager.clients().intern("churn-" + benchmark.threads.incrementAndGet());
+        }
+    }
+
+    private String randomTopic() {
+        return topics[ThreadLocalRandom.current().nextInt(topics.length)];
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void subscribeUnsubscribe(Churn churn, Blackhole bh) {
+        String topic = randomTopic();
+        bh.consume(manager.addSubscription(topic, churn.client));
+        bh.consume(manager.removeSubscription(topic, churn.client));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Subscribers getSubscribers() {
+        return manager.getSubscribers(randomTopic());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Collection<String> getMatchingSubscribers() {
+        return manager.getMatchingSubscribers(randomTopic());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Subscribers mixedLookup() {
+        return manager.getSubscribers(randomTopic());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedChurn(Churn churn, Blackhole bh) {
+        subscribeUnsubscribe(churn, bh);
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Anti-entropy resync between two nodes, comparing their {@link SubscriptionDigest}s.
+ * <p>
+ * The initiating node walks the digest tree of the peer top-down, one round trip per level, asking only for the
+ * children of the nodes that differ from its own. Once at the leaves, it requests a
+ * {@link SubscriptionSnapshot snapshot} of just the divergent topic ranges:
+ * <pre>
+ * request  = "DIGEST\n", { count:int32, { index:int32 } }, -1:int32, ranges:int32, { range:int32 }, wildcards:int8,
+ *            tombstones ;
+ * response = { count * digest:int64 }, tombstones, snapshot ;
+ * </pre>
+ * where the n-th list of indices refers to the n-th level of the tree, starting from the root. When the
+ * {@code wildcards} flag is set, the snapshot also includes every wildcard filter, whatever its range: with
+ * {@link PartitionMap partitioning} wildcard filters are held by all nodes, while two nodes only compare the ranges
+ * they both own.
+ * <p>
+ * Both sides send their {@link Tombstones} in the divergent ranges before the snapshot, and apply the other's: a
+ * subscription removed on one node, whose REMOVE never reached the other, ends up removed on both.
+ * <p>
+ * In {@link Mode#REPLACE} the initiator drops its own subscriptions in the divergent ranges before applying the
+ * peer's, which is what a node that may have missed updates (e.g. after a restart) wants. In {@link Mode#MERGE} it
+ * only adds the peer's subscriptions, repairing updates lost on the sync links, and removes only what the tombstones
+ * say was removed.
+ */
+final class AntiEntropy {
+
+    static final String COMMAND = "DIGEST";
+    private static final int END_OF_LEVELS = -1;
+
+    enum Mode {REPLACE, MERGE}
+
+    private AntiEntropy() {
+    }
+
+    /**
+     * Bring the ranges that differ from the peer in line with it.
+     *
+     * @param scope     the ranges to compare, {@code null} for all
+     * @param wildcards whether to also fetch all the wildcard filters of the peer
+     * @return the number of divergent topic ranges
+     */
+    static int resync(@NotNull Transport transport, @NotNull InetSocketAddress peer,
+                      @NotNull ThreadSafeSubscriberManager manager, @NotNull Tombstones tombstones, @NotNull Mode mode,
+                      @Nullable BitSet scope, boolean wildcards, @NotNull ExecutorService workers, int parallelism)
+            throws IOException {
+        try (Transport.Stream stream = transport.connect(peer)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream.out()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream.in()));
+            out.write((COMMAND + "\n").getBytes(US_ASCII));
+
+            SubscriptionDigest digest = manager.digest();
+            int[] nodes = inScope(scope, 0, 0) ? new int[]{0} : new int[0];
+            BitSet divergent = new BitSet(TopicHash.RANGES);
+            for (int level = 0; level < SubscriptionDigest.LEVELS && nodes.length > 0; level++) {
+                out.writeInt(nodes.length);
+                for (int node : nodes) {
+                    out.writeInt(node);
+                }
+                out.flush();
+                int[] next = new int[nodes.length * SubscriptionDigest.FANOUT];
+                int n = 0;
+                for (int node : nodes) {
+                    if (in.readLong() == digest.node(level, node)) {
+                        continue;
+                    }
+                    if (level == SubscriptionDigest.LEVELS - 1) {
+                        divergent.set(node);
+                    } else {
+                        for (int c = node * SubscriptionDigest.FANOUT, end = c + SubscriptionDigest.FANOUT; c < end; c++) {
+                            if (inScope(scope, level + 1, c)) {
+                                next[n++] = c;
+                            }
+                        }
+                    }
+                }
+                nodes = Arrays.copyOf(next, n);
+            }
+
+            out.writeInt(END_OF_LEVELS);
+            out.writeInt(divergent.cardinality());
+            for (int r = divergent.nextSetBit(0); r >= 0; r = divergent.nextSetBit(r + 1)) {
+                out.writeInt(r);
+            }
+            out.writeBoolean(wildcards);
+            tombstones.write(out, inRanges(divergent, wildcards), System.currentTimeMillis());
+            out.flush();
+            if (mode == Mode.REPLACE && !divergent.isEmpty()) {
+                manager.clearRanges(divergent);
+            }
+            tombstones.apply(in, manager);
+            SubscriptionSnapshot.read(manager, in, workers, parallelism);
+            return divergent.cardinality();
+        }
+    }
+
+    /**
+     * @return whether any of the leaves under the node is in scope
+     */
+    private static boolean inScope(@Nullable BitSet scope, int level, int node) {
+        if (scope == null) {
+            return true;
+        }
+        int width = SubscriptionDigest.levelSize(SubscriptionDigest.LEVELS - 1 - level);
+        int first = scope.nextSetBit(node * width);
+        return first >= 0 && first < (node + 1) * width;
+    }
+
+    private static Predicate<String> inRanges(BitSet ranges, boolean wildcards) {
+        return topic -> ranges.get(TopicHash.range(topic)) || wildcards && TopicFilter.isWildcard(topic);
+    }
+
+    /**
+     * Answer a resync request, after the command line has been read.
+     */
+    static void serve(@NotNull InputStream is, @NotNull OutputStream os, @NotNull ThreadSafeSubscriberManager manager,
+                      @NotNull Tombstones tombstones, boolean compress) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        SubscriptionDigest digest = manager.digest();
+        int level = 0;
+        for (int count = in.readInt(); count != END_OF_LEVELS; count = in.readInt(), level++) {
+            if (level >= SubscriptionDigest.LEVELS || count < 0 || count > SubscriptionDigest.levelSize(level)) {
+                throw new IOException("malformed digest request");
+            }
+            for (int i = 0; i < count; i++) {
+                int node = in.readInt();
+                if (node < 0 || node >= SubscriptionDigest.levelSize(level)) {
+                    throw new IOException("malformed digest request");
+                }
+                out.writeLong(digest.node(level, node));
+            }
+            out.flush();
+        }
+        int count = in.readInt();
+        BitSet ranges = new BitSet(TopicHash.RANGES);
+        for (int i = 0; i < count; i++) {
+            ranges.set(in.readInt());
+        }
+        boolean wildcards = in.readBoolean();
+        tombstones.apply(in, manager); // before the snapshot, so that it doesn't send back what the peer removed
+        Predicate<String> topics = inRanges(ranges, wildcards);
+        tombstones.write(out, topics, System.currentTimeMillis());
+        SubscriptionSnapshot.write(manager, out, compress, topics);
+        out.flush();
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs several messages into one datagram of at most a given size, as a batch:
+ * <pre>
+ * BAT\n
+ * length\n message
+ * length\n message
+ * ...
+ * </pre>
+ * where {@code length} is the size in bytes of the {@code message} that follows, in decimal. A batch of a single
+ * message is sent as a plain message, so that it costs nothing to batch at low rates.
+ * <p>
+ * Not thread safe; the buffer is reused after {@link #clear()}.
+ */
+final class BatchEncoder {
+
+    /**
+     * The largest UDP payload that fits an Ethernet frame over IPv4 without fragmentation.
+     */
+    static final int ETHERNET_DATAGRAM_SIZE = 1500 - 20 - 8;
+
+    private final ByteBuffer buf;
+    private int count;
+    private int firstMessage;
+
+    /**
+     * @param maxDatagramSize max size of the datagrams produced, header included
+     */
+    BatchEncoder(int maxDatagramSize) {
+        if (maxDatagramSize <= MessageCodec.BATCH_HEADER.length) {
+            throw new IllegalArgumentException("datagram size too small: " + maxDatagramSize);
+        }
+        this.buf = ByteBuffer.allocate(maxDatagramSize);
+        clear();
+    }
+
+    /**
+     * Append the bytes between position and limit of an encoded message, leaving its position unchanged.
+     *
+     * @return {@code false} if the message doesn't fit in what is left of the datagram
+     */
+    boolean add(@NotNull ByteBuffer message) {
+        int length = message.remaining();
+        int digits = digits(length);
+        if (digits + 1 + length > buf.remaining()) {
+            return false;
+        }
+        for (int i = digits - 1, p = buf.position(); i >= 0; i--, length /= 10) {
+            buf.put(p + i, (byte) ('0' + length % 10));
+        }
+        buf.position(buf.position() + digits).put((byte) '\n');
+        if (count++ == 0) {
+            firstMessage = buf.position();
+        }
+        buf.put(message.duplicate());
+        return true;
+    }
+
+    /**
+     * @return {@code false} if the message doesn't fit in what is left of the datagram
+     */
+    boolean add(@NotNull Verb verb, @NotNull String topic, byte @NotNull [] body) {
+        return add(MessageCodec.encode(verb, topic, body));
+    }
+
+    private static int digits(int n) {
+        int digits = 1;
+        while (n >= 10) {
+            n /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return the datagram to send, a view of the internal buffer valid until the next {@link #clear()}
+     */
+    @NotNull
+    ByteBuffer datagram() {
+        ByteBuffer out = buf.duplicate().flip();
+        return count == 1 ? out.position(firstMessage) : out;
+    }
+
+    void clear() {
+        buf.clear();
+        buf.put(MessageCodec.BATCH_HEADER);
+        count = 0;
+    }
+}
@@ -0,0 +1,99 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer FIFO queue (Vyukov's array queue).
+ * <p>
+ * Each slot carries a sequence number that tells producers and consumers whether it is free for the current lap, so
+ * that a producer and a consumer only contend on a slot when the queue is full or empty. Neither {@link #offer} nor
+ * {@link #poll} ever blocks or allocates.
+ */
+class BoundedQueue<E> {
+
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next position to enqueue
+    private final AtomicLong head = new AtomicLong(); // next position to dequeue
+
+    /**
+     * @param capacity max number of elements, rounded up to a power of two
+     */
+    BoundedQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("invalid queue capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        size = size < capacity ? size << 1 : size;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return {@code true} if the element was added, {@code false} if the queue is full
+     */
+    boolean offer(@NotNull E e) {
+        while (true) {
+            long pos = tail.get();
+            int i = (int) pos & mask;
+            long diff = sequences.getAcquire(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.setPlain(i, e);
+                    sequences.setRelease(i, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // the slot still holds the element of the previous lap
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element, or {@code null} if the queue is empty
+     */
+    @Nullable
+    E poll() {
+        while (true) {
+            long pos = head.get();
+            int i = (int) pos & mask;
+            long diff = sequences.getAcquire(i) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E e = items.getPlain(i);
+                    items.setPlain(i, null);
+                    sequences.setRelease(i, pos + mask + 1);
+                    return e;
+                }
+            } else if (diff < 0) {
+                return null; // not yet written for this lap
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements, only approximate while other threads are using the queue
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,345 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Tunables for a {@link MessageBroker}.
+ * <p>
+ * The defaults reproduce the classic behaviour: a single blocking receive loop on one UDP socket.
+ */
+public class BrokerConfig {
+
+    static final int RCV_BUF_SIZE = 1024 * 64;
+    static final long RETRANSMIT_BUDGET = 256L * 1024 * 1024;
+
+    boolean nio; // N receive loops over DatagramChannels instead of a single blocking loop
+    int receivers = Runtime.getRuntime().availableProcessors();
+    int receiveBufferSize = RCV_BUF_SIZE; // SO_RCVBUF for each receiving socket
+    int fanOutThreads = Runtime.getRuntime().availableProcessors();
+    long fanOutInlineBudgetNanos = 200_000;
+    int metricsDumpSeconds = 60; // 0 to disable
+    int traceSampling = 1024; // 0 to disable
+    int ingestWorkers = Runtime.getRuntime().availableProcessors();
+    int ingestQueueCapacity = 1 << 16;
+    OverloadPolicy overloadPolicy = OverloadPolicy.DROP_NEWEST;
+    int rateLimitPerSecond; // per client, 0 for no limit
+    int rateLimitBurst;
+    long coalesceLingerNanos; // 0 to send each MSG on its own
+    int maxDatagramSize = BatchEncoder.ETHERNET_DATAGRAM_SIZE;
+    int retransmitSlots; // 0 for fire-and-forget delivery
+    int retransmitBytes;
+    long retransmitBudget;
+    int retainedPerTopic; // 0 for no retention
+    long retentionBytes;
+    int multicastThreshold; // 0 for unicast only
+    InetAddress multicastFirstGroup;
+    int multicastGroups;
+    int multicastPort;
+    NetworkInterface multicastInterface; // null for the system default
+    Path storeDirectory; // null to keep subscriptions in memory only
+    long storeCompactAfterBytes;
+    Path journalDirectory; // null for no journal
+    int journalSegmentBytes;
+    long journalRetentionBytes;
+    long journalRetentionMillis;
+    int replayPerSecond = 10_000;
+    int topicAliases = 64 * 1024; // 0 to disable
+    long leaseMillis; // 0 for no leases
+    Transport transport = new SocketTransport();
+
+    public BrokerConfig() {
+    }
+
+    /**
+     * Enable the NIO receive path with the given number of receive loops.
+     * Each loop owns a {@link java.nio.channels.DatagramChannel} bound to the broker port with SO_REUSEPORT, so that the
+     * kernel spreads incoming datagrams across loops.
+     *
+     * @param receivers number of receive loops (threads)
+     */
+    public BrokerConfig nio(int receivers) {
+        if (receivers < 1) {
+            throw new IllegalArgumentException("receivers must be positive: " + receivers);
+        }
+        this.nio = true;
+        this.receivers = receivers;
+        return this;
+    }
+
+    /**
+     * @param bytes kernel receive buffer size (SO_RCVBUF) requested for each receiving socket
+     */
+    public BrokerConfig receiveBufferSize(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("receive buffer size must be positive: " + bytes);
+        }
+        this.receiveBufferSize = bytes;
+        return this;
+    }
+
+    /**
+     * Configure the parallel fan-out of messages to topics with many subscribers.
+     * Parallel chunks are sent through different broker channels, so they only run truly in parallel in NIO mode with
+     * more than one receive loop.
+     *
+     * @param threads            max number of chunks a fan-out is split into, and size of the sender pool
+     * @param inlineBudgetMicros a fan-out expected to take less than this is sent inline by the publishing thread
+     */
+    public BrokerConfig fanOut(int threads, long inlineBudgetMicros) {
+        if (threads < 1 || inlineBudgetMicros < 0) {
+            throw new IllegalArgumentException("invalid fan-out settings: " + threads + ", " + inlineBudgetMicros);
+        }
+        this.fanOutThreads = threads;
+        this.fanOutInlineBudgetNanos = inlineBudgetMicros * 1000;
+        return this;
+    }
+
+    /**
+     * @param dumpIntervalSeconds how often a snapshot of the {@link BrokerMetrics} is logged, 0 to disable
+     * @param traceSampling       one message in {@code traceSampling} is traced on average, 0 to disable tracing
+     */
+    public BrokerConfig metrics(int dumpIntervalSeconds, int traceSampling) {
+        if (dumpIntervalSeconds < 0 || traceSampling < 0) {
+            throw new IllegalArgumentException("invalid metrics settings: " + dumpIntervalSeconds + ", " + traceSampling);
+        }
+        this.metricsDumpSeconds = dumpIntervalSeconds;
+        this.traceSampling = traceSampling;
+        return this;
+    }
+
+    /**
+     * Configure the bounded pipeline between the receive loops and the workers that match and send messages.
+     *
+     * @param workers       number of worker loops, run by the broker's {@link java.util.concurrent.ExecutorService}
+     * @param queueCapacity max number of messages waiting for a worker, rounded up to a power of two
+     * @param policy        what to drop when the queue is full
+     */
+    public BrokerConfig ingest(int workers, int queueCapacity, OverloadPolicy policy) {
+        if (workers < 1 || queueCapacity < 1 || policy == null) {
+            throw new IllegalArgumentException("invalid ingest settings: " + workers + ", " + queueCapacity + ", "
+                    + policy);
+        }
+        this.ingestWorkers = workers;
+        this.ingestQueueCapacity = queueCapacity;
+        this.overloadPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Limit the rate of messages (of any verb) accepted from each client; the excess is dropped on reception.
+     *
+     * @param perSecond sustained number of messages per second per client, 0 for no limit
+     * @param burst     number of messages a client may send at once after being idle
+     */
+    public BrokerConfig rateLimit(int perSecond, int burst) {
+        if (perSecond < 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid rate limit: " + perSecond + "/s, burst " + burst);
+        }
+        this.rateLimitPerSecond = perSecond;
+        this.rateLimitBurst = burst;
+        return this;
+    }
+
+    /**
+     * Coalesce the MSGs going to the same subscriber into batch datagrams. Each MSG may be delayed by up to the linger
+     * time, waiting for others; subscribers must understand batches, see the message format in the README.
+     *
+     * @param lingerMicros    max time a MSG waits for others to the same subscriber, 0 to disable coalescing
+     * @param maxDatagramSize max size of a coalesced datagram
+     */
+    public BrokerConfig coalesce(long lingerMicros, int maxDatagramSize) {
+        if (lingerMicros < 0 || maxDatagramSize <= MessageCodec.BATCH_HEADER.length || maxDatagramSize > 65507) {
+            throw new IllegalArgumentException("invalid coalescing settings: " + lingerMicros + ", " + maxDatagramSize);
+        }
+        this.coalesceLingerNanos = lingerMicros * 1000;
+        this.maxDatagramSize = maxDatagramSize;
+        return this;
+    }
+
+    /**
+     * Enable reliable mode with a budget of {@value #RETRANSMIT_BUDGET} bytes for all the rings.
+     *
+     * @see #reliable(int, int, long)
+     */
+    public BrokerConfig reliable(int messagesPerTopic, int bytesPerTopic) {
+        return reliable(messagesPerTopic, bytesPerTopic, RETRANSMIT_BUDGET);
+    }
+
+    /**
+     * Enable reliable mode: MSGs are sent as SEQ messages, stamped with a per-topic sequence number, and the recent ones
+     * are kept in an off-heap ring per topic, from which the gaps NACKed by subscribers are retransmitted.
+     * The rings of all topics share the {@code maxBytes} budget: the topics least recently published to lose theirs
+     * first.
+     *
+     * @param messagesPerTopic max number of messages kept per topic, 0 to disable reliable mode
+     * @param bytesPerTopic    size of the ring holding the messages of each topic
+     * @param maxBytes         memory budget of the rings, at least {@code bytesPerTopic}
+     */
+    public BrokerConfig reliable(int messagesPerTopic, int bytesPerTopic, long maxBytes) {
+        if (messagesPerTopic < 0 || bytesPerTopic < 1 || maxBytes < bytesPerTopic) {
+            throw new IllegalArgumentException("invalid reliable settings: " + messagesPerTopic + ", " + bytesPerTopic
+                    + ", " + maxBytes);
+        }
+        this.retransmitSlots = messagesPerTopic;
+        this.retransmitBytes = bytesPerTopic;
+        this.retransmitBudget = maxBytes;
+        return this;
+    }
+
+    /**
+     * Retain the last messages published to each topic and send them to each client subscribing to it, oldest first,
+     * before any new message. Only exact topics get them: a SUB with a wildcard filter starts with new messages.
+     * The retained messages of all topics share a memory budget; the topics least recently published to or subscribed
+     * to are evicted first.
+     *
+     * @param messagesPerTopic max number of messages retained per topic, 1 for a last-value cache, 0 to disable
+     * @param maxBytes         memory budget of the retained messages
+     */
+    public BrokerConfig retain(int messagesPerTopic, long maxBytes) {
+        if (messagesPerTopic < 0 || maxBytes < 1) {
+            throw new IllegalArgumentException("invalid retention settings: " + messagesPerTopic + ", " + maxBytes);
+        }
+        this.retainedPerTopic = messagesPerTopic;
+        this.retentionBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Deliver the messages of hot topics through IP multicast: once a topic has at least {@code subscriberThreshold}
+     * subscribers, each message is sent once to a multicast group that its subscribers are told to join, instead of once
+     * per subscriber. Topics are spread over {@code groups} consecutive IPv4 groups by hash. The subscribers of hot topics
+     * must be able to join the groups, see the README.
+     *
+     * @param subscriberThreshold number of subscribers from which a topic is multicast, 0 to disable multicast
+     * @param firstGroup          first IPv4 multicast group, e.g. {@code 239.255.0.1}
+     * @param groups              number of groups
+     * @param port                UDP port of the groups
+     * @param networkInterface    name of the interface to multicast from, {@code null} for the system default
+     */
+    public BrokerConfig multicast(int subscriberThreshold, String firstGroup, int groups, int port,
+                                  @Nullable String networkInterface) {
+        if (subscriberThreshold < 0 || groups < 1 || port < 1 || port > 65535 || firstGroup == null) {
+            throw new IllegalArgumentException("invalid multicast settings: " + subscriberThreshold + ", " + firstGroup
+                    + ", " + groups + ", " + port);
+        }
+        try {
+            InetAddress first = InetAddress.getByName(firstGroup);
+            long last = (ByteBuffer.wrap(first.getAddress()).getInt() & 0xffffffffL) + groups - 1;
+            if (!(first instanceof Inet4Address) || !first.isMulticastAddress() || last >>> 28 != 0xe) {
+                throw new IllegalArgumentException("not a range of IPv4 multicast groups: " + firstGroup + ", " + groups);
+            }
+            NetworkInterface nif = networkInterface == null ? null : NetworkInterface.getByName(networkInterface);
+            if (networkInterface != null && nif == null) {
+                throw new IllegalArgumentException("unknown network interface: " + networkInterface);
+            }
+            this.multicastFirstGroup = first;
+            this.multicastInterface = nif;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("invalid multicast settings: " + firstGroup + ", " + networkInterface, e);
+        }
+        this.multicastThreshold = subscriberThreshold;
+        this.multicastGroups = groups;
+        this.multicastPort = port;
+        return this;
+    }
+
+    /**
+     * Persist the subscriptions in a directory, so that the broker restarts with them: every change is appended to a
+     * memory-mapped log, compacted into a snapshot in the background once it reaches {@code compactAfterBytes}.
+     * A restarted {@link DistributedBroker} only fetches from its peers the ranges that differ.
+     *
+     * @param directory         where the snapshot and log are kept, one directory per broker
+     * @param compactAfterBytes size of the log that triggers a compaction
+     */
+    public BrokerConfig persist(Path directory, long compactAfterBytes) {
+        if (directory == null || compactAfterBytes < 1) {
+            throw new IllegalArgumentException("invalid persistence settings: " + directory + ", " + compactAfterBytes);
+        }
+        this.storeDirectory = directory;
+        this.storeCompactAfterBytes = compactAfterBytes;
+        return this;
+    }
+
+    /**
+     * Journal the published messages in memory-mapped segment files, so that the history of a topic can be replayed
+     * to a subscriber with a REPLAY message. Journaling is asynchronous and never delays delivery: messages published
+     * faster than the journal can write them are not journaled. The oldest segments are deleted once the journal exceeds
+     * {@code retentionBytes} or, if {@code retentionMillis} is not 0, once they are older than that.
+     *
+     * @param directory       where the segments are kept, one directory per broker
+     * @param segmentBytes    size of a segment file
+     * @param retentionBytes  max total size of the journal
+     * @param retentionMillis max age of the journaled messages, 0 for no limit
+     */
+    public BrokerConfig journal(Path directory, int segmentBytes, long retentionBytes, long retentionMillis) {
+        if (directory == null || segmentBytes < PublishJournal.MIN_SEGMENT_BYTES || retentionBytes < segmentBytes
+                || retentionMillis < 0) {
+            throw new IllegalArgumentException("invalid journal settings: " + directory + ", " + segmentBytes + ", "
+                    + retentionBytes + ", " + retentionMillis);
+        }
+        this.journalDirectory = directory;
+        this.journalSegmentBytes = segmentBytes;
+        this.journalRetentionBytes = retentionBytes;
+        this.journalRetentionMillis = retentionMillis;
+        return this;
+    }
+
+    /**
+     * @param messagesPerSecond rate at which journaled messages are replayed to a subscriber, 10000 by default
+     */
+    public BrokerConfig replayRate(int messagesPerSecond) {
+        if (messagesPerSecond < 1) {
+            throw new IllegalArgumentException("invalid replay rate: " + messagesPerSecond);
+        }
+        this.replayPerSecond = messagesPerSecond;
+        return this;
+    }
+
+    /**
+     * Assign numeric aliases to topics on request, so that clients can publish and receive messages without the topic
+     * name, see the README. Aliases are assigned to up to {@code maxAliases} topics and never reassigned.
+     *
+     * @param maxAliases max number of topics with an alias, 65536 by default, 0 to disable aliases
+     */
+    public BrokerConfig topicAliases(int maxAliases) {
+        if (maxAliases < 0 || maxAliases > 1 << 24) {
+            throw new IllegalArgumentException("invalid number of topic aliases: " + maxAliases);
+        }
+        this.topicAliases = maxAliases;
+        return this;
+    }
+
+    /**
+     * Drop the subscriptions of clients not heard from for {@code leaseMillis}, see the README. Any datagram from a
+     * client renews its lease, so clients that only subscribe must send heartbeats, such as the PINGs of
+     * {@link FastpussClient}, more often than that.
+     *
+     * @param leaseMillis lease of the subscriptions of a client, 0 (the default) for subscriptions that never expire
+     */
+    public BrokerConfig leases(long leaseMillis) {
+        if (leaseMillis < 0) {
+            throw new IllegalArgumentException("invalid lease: " + leaseMillis);
+        }
+        this.leaseMillis = leaseMillis;
+        return this;
+    }
+
+    /**
+     * Where the broker gets its sockets from, UDP and TCP by default. A {@link MemoryTransport} runs brokers and
+     * clients in one JVM; multicast then stays off, since it needs the network.
+     */
+    public BrokerConfig transport(Transport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("no transport");
+        }
+        this.transport = transport;
+        return this;
+    }
+}
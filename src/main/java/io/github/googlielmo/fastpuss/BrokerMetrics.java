@@ -0,0 +1,268 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Hot-path metrics of a broker: striped counters, {@link StripedHistogram histograms} of fan-out size and per-stage
+ * latency, and a sampled {@link TraceRing trace}. Recording never blocks and never allocates, unless the message is
+ * sampled for tracing.
+ * <p>
+ * Stages are: dispatch, from reception to the start of handling on a worker thread; match, the subscriber lookup;
+ * fan-out, sending to the subscribers (the inline part when the fan-out is parallel). Replication lag is the time an
+ * update spends queued on a sync link before being written to the peer.
+ * <p>
+ * Dispatch includes the time spent in the {@link IngestPipeline} queue. Messages dropped because the queue was full
+ * and messages rejected by the per-client rate limit are counted separately. In reliable mode, retransmissions are
+ * counted along with the NACKed messages that were no longer kept. Group commits of the {@link PublishJournal} are
+ * counted along with the messages journaled, and those not journaled because its queue was full. Expired
+ * {@link SubscriptionLeases leases} are counted along with the subscriptions they dropped.
+ */
+public class BrokerMetrics implements BrokerMetricsMBean {
+
+    private static final Logger logger = Logger.getLogger("BrokerMetrics");
+    static final String DOMAIN = "io.github.googlielmo.fastpuss";
+    private static final int TRACE_CAPACITY = 1024;
+
+    final LongAdder packetsIn = new LongAdder();
+    final LongAdder packetsOut = new LongAdder();
+    final LongAdder parseErrors = new LongAdder();
+    final LongAdder sendErrors = new LongAdder();
+    final LongAdder replicationDrops = new LongAdder();
+    final LongAdder overloadDrops = new LongAdder();
+    final LongAdder rateLimitDrops = new LongAdder();
+    final LongAdder retransmits = new LongAdder();
+    final LongAdder retransmitMisses = new LongAdder();
+    final LongAdder retransmitEvictions = new LongAdder();
+    final LongAdder catchUps = new LongAdder();
+    final LongAdder retentionEvictions = new LongAdder();
+    final LongAdder multicastSends = new LongAdder();
+    final LongAdder journalAppends = new LongAdder();
+    final LongAdder journalCommits = new LongAdder();
+    final LongAdder journalDrops = new LongAdder();
+    final LongAdder replayed = new LongAdder();
+    final LongAdder leaseExpiries = new LongAdder();
+    final LongAdder expiredSubscriptions = new LongAdder();
+    final LongAdder releasedClients = new LongAdder();
+    final StripedHistogram fanOutSize = new StripedHistogram();
+    final StripedHistogram dispatchNanos = new StripedHistogram();
+    final StripedHistogram matchNanos = new StripedHistogram();
+    final StripedHistogram fanOutNanos = new StripedHistogram();
+    final StripedHistogram replicationLagNanos = new StripedHistogram();
+    final TraceRing trace;
+
+    /**
+     * @param traceSampling one message in {@code traceSampling} is traced on average, 0 to disable tracing
+     */
+    BrokerMetrics(int traceSampling) {
+        this.trace = new TraceRing(TRACE_CAPACITY, traceSampling);
+    }
+
+    /**
+     * Register with the platform MBean server as {@code io.github.googlielmo.fastpuss:type=Broker,port=<port>}.
+     */
+    void register(int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(DOMAIN + ":type=Broker,port=" + port));
+        } catch (JMException e) {
+            logger.log(WARNING, "cannot register broker metrics", e);
+        }
+    }
+
+    /**
+     * Undo {@link #register}, if it succeeded.
+     */
+    void unregister(int port) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Broker,port=" + port);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.log(WARNING, "cannot unregister broker metrics", e);
+        }
+    }
+
+    @Override
+    public long getPacketsIn() {
+        return packetsIn.sum();
+    }
+
+    @Override
+    public long getPacketsOut() {
+        return packetsOut.sum();
+    }
+
+    @Override
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    @Override
+    public long getSendErrors() {
+        return sendErrors.sum();
+    }
+
+    @Override
+    public long getReplicationDrops() {
+        return replicationDrops.sum();
+    }
+
+    @Override
+    public long getOverloadDrops() {
+        return overloadDrops.sum();
+    }
+
+    @Override
+    public long getRateLimitDrops() {
+        return rateLimitDrops.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getRetransmitMisses() {
+        return retransmitMisses.sum();
+    }
+
+    @Override
+    public long getRetransmitEvictions() {
+        return retransmitEvictions.sum();
+    }
+
+    @Override
+    public long getCatchUps() {
+        return catchUps.sum();
+    }
+
+    @Override
+    public long getRetentionEvictions() {
+        return retentionEvictions.sum();
+    }
+
+    @Override
+    public long getMulticastSends() {
+        return multicastSends.sum();
+    }
+
+    @Override
+    public long getJournalAppends() {
+        return journalAppends.sum();
+    }
+
+    @Override
+    public long getJournalCommits() {
+        return journalCommits.sum();
+    }
+
+    @Override
+    public long getJournalDrops() {
+        return journalDrops.sum();
+    }
+
+    @Override
+    public long getReplayed() {
+        return replayed.sum();
+    }
+
+    @Override
+    public long getLeaseExpiries() {
+        return leaseExpiries.sum();
+    }
+
+    @Override
+    public long getExpiredSubscriptions() {
+        return expiredSubscriptions.sum();
+    }
+
+    @Override
+    public long getReleasedClients() {
+        return releasedClients.sum();
+    }
+
+    @Override
+    public double getFanOutSizeMean() {
+        return fanOutSize.snapshot().mean();
+    }
+
+    @Override
+    public long getFanOutSizeP99() {
+        return fanOutSize.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getFanOutSizeMax() {
+        return fanOutSize.snapshot().max();
+    }
+
+    @Override
+    public long getDispatchLatencyP99Nanos() {
+        return dispatchNanos.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getMatchLatencyP99Nanos() {
+        return matchNanos.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getFanOutLatencyP99Nanos() {
+        return fanOutNanos.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getReplicationLagP99Nanos() {
+        return replicationLagNanos.snapshot().percentile(99);
+    }
+
+    @Override
+    public String[] getRecentTraces() {
+        return trace.recent().toArray(new String[0]);
+    }
+
+    /**
+     * @return all the metrics as a few lines of text, latencies in microseconds
+     */
+    @NotNull
+    @Override
+    public String getSnapshot() {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("packets in %d, out %d; parse errors %d, send errors %d, replication drops %d%n",
+                getPacketsIn(), getPacketsOut(), getParseErrors(), getSendErrors(), getReplicationDrops()));
+        s.append(String.format("dropped on overload %d, rate limited %d; retransmitted %d, no longer kept %d, "
+                        + "topics evicted from retransmission %d%n", getOverloadDrops(), getRateLimitDrops(),
+                getRetransmits(), getRetransmitMisses(), getRetransmitEvictions()));
+        s.append(String.format("retained messages sent on SUB %d, topics evicted from retention %d; multicast %d%n",
+                getCatchUps(), getRetentionEvictions(), getMulticastSends()));
+        s.append(String.format("journaled %d in %d commits, not journaled %d; replayed %d%n",
+                getJournalAppends(), getJournalCommits(), getJournalDrops(), getReplayed()));
+        s.append(String.format("leases expired %d, subscriptions dropped on expiry %d, clients released %d%n",
+                getLeaseExpiries(), getExpiredSubscriptions(), getReleasedClients()));
+        LatencyHistogram size = fanOutSize.snapshot();
+        s.append(String.format("fan-out size: count %d, mean %.1f, p50 %d, p99 %d, max %d%n",
+                size.count(), size.mean(), size.percentile(50), size.percentile(99), size.max()));
+        appendLatency(s, "dispatch", dispatchNanos);
+        appendLatency(s, "match", matchNanos);
+        appendLatency(s, "fan-out", fanOutNanos);
+        appendLatency(s, "replication lag", replicationLagNanos);
+        return s.toString();
+    }
+
+    private static void appendLatency(StringBuilder s, String stage, StripedHistogram histogram) {
+        LatencyHistogram h = histogram.snapshot();
+        s.append(String.format("%s (us): mean %.1f, p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n", stage,
+                h.mean() / 1000, h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+                h.max() / 1000.0));
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.googlielmo.fastpuss;
+
+/**
+ * JMX view of {@link BrokerMetrics}. Counters and histograms are cumulative since the broker started.
+ */
+public interface BrokerMetricsMBean {
+
+    long getPacketsIn();
+
+    long getPacketsOut();
+
+    long getParseErrors();
+
+    long getSendErrors();
+
+    long getReplicationDrops();
+
+    long getOverloadDrops();
+
+    long getRateLimitDrops();
+
+    long getRetransmits();
+
+    long getRetransmitMisses();
+
+    long getRetransmitEvictions();
+
+    long getCatchUps();
+
+    long getRetentionEvictions();
+
+    long getMulticastSends();
+
+    long getJournalAppends();
+
+    long getJournalCommits();
+
+    long getJournalDrops();
+
+    long getReplayed();
+
+    long getLeaseExpiries();
+
+    long getExpiredSubscriptions();
+
+    long getReleasedClients();
+
+    double getFanOutSizeMean();
+
+    long getFanOutSizeP99();
+
+    long getFanOutSizeMax();
+
+    long getDispatchLatencyP99Nanos();
+
+    long getMatchLatencyP99Nanos();
+
+    long getFanOutLatencyP99Nanos();
+
+    long getReplicationLagP99Nanos();
+
+    String[] getRecentTraces();
+
+    String getSnapshot();
+}
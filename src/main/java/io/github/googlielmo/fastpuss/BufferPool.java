@@ -0,0 +1,46 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Free list of equally sized heap buffers, shared by any number of threads. A buffer is allocated when the pool is
+ * empty, and dropped when it is released to a full pool.
+ */
+final class BufferPool {
+
+    private final BoundedQueue<ByteBuffer> free;
+    private final int bufferSize;
+
+    /**
+     * @param capacity   max number of free buffers kept
+     * @param bufferSize size of each buffer
+     */
+    BufferPool(int capacity, int bufferSize) {
+        this.free = new BoundedQueue<>(capacity);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return an empty buffer of {@link #bufferSize()} bytes
+     */
+    @NotNull
+    ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        return buf != null ? buf : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Give back a buffer, which must no longer be used. Buffers of another size are not pooled.
+     */
+    void release(@NotNull ByteBuffer buf) {
+        if (buf.capacity() == bufferSize) {
+            free.offer(buf.clear());
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,195 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns client endpoints into compact {@code int} handles.
+ * <p>
+ * Each endpoint is resolved once, when first seen, and its {@link InetSocketAddress} is kept in a dense array indexed
+ * by handle, so that sending to a subscriber is an array read instead of parsing and resolving a client ID string.
+ * Handles are assigned sequentially starting from zero; a {@link #release released} handle is reused by the next new
+ * client, so that the tables indexed by handle stay as large as the number of clients at any one time.
+ * <p>
+ * Client IDs that are not in the "/host:port" form (e.g. in tests) are interned as well, but have no address.
+ */
+public class ClientRegistry {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Map<Object, Integer> handles = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    // each entry is either an InetSocketAddress or, for IDs that are not endpoints, a String
+    private volatile Object[] entries = new Object[INITIAL_CAPACITY];
+    private volatile int[] idHashes = new int[INITIAL_CAPACITY];
+    private volatile int size;
+    private int[] free = new int[16]; // released handles, guarded by lock
+    private int freeCount;
+
+    /**
+     * @return the handle for the given endpoint, allocating one on first use
+     */
+    public int intern(final @NotNull InetSocketAddress address) {
+        Integer handle = handles.get(address);
+        return handle != null ? handle : allocate(address);
+    }
+
+    /**
+     * @param clientId a client ID in the form "/host:port" (as given by {@link InetSocketAddress#toString()}), or any
+     *                 other unique string
+     * @return the handle for the given client ID, allocating one on first use
+     */
+    public int intern(final @NotNull String clientId) {
+        InetSocketAddress address = parse(clientId);
+        return address != null ? intern(address) : internId(clientId);
+    }
+
+    private int internId(String clientId) {
+        Integer handle = handles.get(clientId);
+        return handle != null ? handle : allocate(clientId);
+    }
+
+    private int allocate(Object key) {
+        synchronized (lock) {
+            Integer handle = handles.get(key);
+            if (handle != null) {
+                return handle;
+            }
+            Object[] e = entries;
+            int[] hashes = idHashes;
+            int h = freeCount > 0 ? free[--freeCount] : size;
+            if (h == e.length) {
+                e = Arrays.copyOf(e, e.length * 2);
+                hashes = Arrays.copyOf(hashes, e.length);
+                entries = e;
+                idHashes = hashes;
+            }
+            e[h] = key;
+            hashes[h] = key.toString().hashCode();
+            if (h == size) {
+                size = h + 1;
+            }
+            handles.put(key, h); // publishes the entry to threads that look up the handle
+            return h;
+        }
+    }
+
+    /**
+     * Make a handle available to the next new client. The caller must make sure that nothing refers to it any more:
+     * subscriptions, queued messages or per-client state. The client gets a new handle if it comes back.
+     */
+    public void release(int handle) {
+        synchronized (lock) {
+            Object key = entries[handle];
+            if (key == null || !handles.remove(key, handle)) {
+                return; // already released
+            }
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = handle;
+        }
+    }
+
+    /**
+     * @return the pre-resolved address for the handle, or {@code null} if the client ID is not an endpoint
+     */
+    @Nullable
+    public InetSocketAddress address(int handle) {
+        Object entry = entries[handle];
+        return entry instanceof InetSocketAddress ? (InetSocketAddress) entry : null;
+    }
+
+    /**
+     * @return the client ID for the handle, in the same form accepted by {@link #intern(String)}
+     */
+    @NotNull
+    public String id(int handle) {
+        return entries[handle].toString();
+    }
+
+    /**
+     * @return the hash code of {@link #id(int)}, computed once when the client was interned
+     */
+    public int idHash(int handle) {
+        return idHashes[handle];
+    }
+
+    /**
+     * @return the handle for the given client ID, or -1 if it was never interned
+     */
+    public int lookup(final @NotNull String clientId) {
+        InetSocketAddress address = parse(clientId);
+        Integer handle = handles.get(address != null ? address : clientId);
+        return handle != null ? handle : -1;
+    }
+
+    /**
+     * @return one more than the highest handle allocated so far, the size of the tables indexed by handle
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Parse client IDs of the form "/127.0.0.1:10002", "hostname/127.0.0.1:10002" or "/[::1]:10002". Only the address
+     * after the slash is used, and it must be a literal, so that no name lookup takes place: IDs with a host name there
+     * are not endpoints.
+     */
+    @Nullable
+    private static InetSocketAddress parse(String clientId) {
+        int slash = clientId.indexOf('/');
+        int sep = clientId.lastIndexOf(':');
+        if (slash < 0 || sep < slash) {
+            return null;
+        }
+        String host = clientId.substring(slash + 1, sep);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        if (!isLiteral(host)) {
+            return null;
+        }
+        try {
+            int port = Integer.parseInt(clientId.substring(sep + 1));
+            return new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (IllegalArgumentException | UnknownHostException e) { // a malformed or out of range port
+            return null;
+        }
+    }
+
+    /**
+     * @return whether {@link InetAddress#getByName} would take {@code host} as an IPv4 or IPv6 literal
+     */
+    private static boolean isLiteral(String host) {
+        if (host.indexOf(':') >= 0) { // IPv6, possibly with an embedded IPv4 address or a scope
+            int scope = host.indexOf('%');
+            String address = scope >= 0 ? host.substring(0, scope) : host;
+            return address.chars().allMatch(c -> c == ':' || c == '.' || Character.digit(c, 16) >= 0);
+        }
+        int dots = 0;
+        int digits = 0;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '.') {
+                if (digits == 0) {
+                    return false;
+                }
+                dots++;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3) {
+                digits++;
+            } else {
+                return false;
+            }
+        }
+        return dots == 3 && digits > 0;
+    }
+}
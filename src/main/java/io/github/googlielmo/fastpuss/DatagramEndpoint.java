@@ -0,0 +1,45 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A bound datagram socket of a {@link Transport}, with the semantics of a blocking
+ * {@link java.nio.channels.DatagramChannel}: sends may be lost, a datagram larger than the receive buffer is truncated,
+ * and the endpoint can be used by several threads at once.
+ */
+public interface DatagramEndpoint extends Closeable {
+
+    /**
+     * Send the remaining bytes of {@code src} as one datagram.
+     *
+     * @return the number of bytes sent, 0 if the datagram could not be queued
+     */
+    int send(@NotNull ByteBuffer src, @NotNull InetSocketAddress target) throws IOException;
+
+    /**
+     * Wait for a datagram and copy it into {@code dst}.
+     *
+     * @return the sender
+     * @throws java.nio.channels.ClosedChannelException if the endpoint is closed, or the thread interrupted
+     */
+    @NotNull
+    InetSocketAddress receive(@NotNull ByteBuffer dst) throws IOException;
+
+    /**
+     * Like {@link #receive(ByteBuffer)}, giving up after {@code timeoutMillis}; with 0, only takes a datagram already
+     * received, to poll many endpoints from one thread.
+     *
+     * @return the sender, or {@code null} if nothing was received in time
+     */
+    @Nullable
+    InetSocketAddress receive(@NotNull ByteBuffer dst, long timeoutMillis) throws IOException;
+
+    @NotNull
+    InetSocketAddress localAddress() throws IOException;
+}
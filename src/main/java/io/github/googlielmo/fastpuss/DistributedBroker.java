@@ -7,8 +7,14 @@ import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
 
@@ -19,6 +25,9 @@ public class DistributedBroker extends MessageBroker {
     public static class ClusterConfig {
         int syncPort; // for this node
         List<InetSocketAddress> nodes; // all nodes, including this one
+        boolean compressSnapshots = true;
+        long antiEntropyIntervalMillis = 30_000;
+        boolean partitioned;
 
         public ClusterConfig(int syncPort) {
             // one node (useful for local testing and debugging)
@@ -29,11 +38,57 @@ public class DistributedBroker extends MessageBroker {
             this.syncPort = syncPort;
             this.nodes = nodes;
         }
+
+        /**
+         * @param compress whether full-state transfers sent by this node are deflated
+         */
+        public ClusterConfig compressSnapshots(boolean compress) {
+            this.compressSnapshots = compress;
+            return this;
+        }
+
+        /**
+         * @param intervalMillis how often this node compares its subscriptions with a random peer, merging the ones
+         *                       it is missing and dropping the ones removed on either side, 0 to disable
+         */
+        public ClusterConfig antiEntropy(long intervalMillis) {
+            if (intervalMillis < 0) {
+                throw new IllegalArgumentException("intervalMillis: " + intervalMillis);
+            }
+            this.antiEntropyIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * @param partitioned whether each topic is only held by its primary and secondary owner, see
+         *                    {@link PartitionMap}, rather than by every node
+         */
+        public ClusterConfig partitioned(boolean partitioned) {
+            this.partitioned = partitioned;
+            return this;
+        }
     }
 
     static final int SYNC_PORT = 15000;
+    private static final int LINK_QUEUE_CAPACITY = 1 << 20;
+    private static final long TOMBSTONE_TTL_MILLIS = 10 * 60_000; // 20 rounds of anti-entropy at the default interval
 
     final ClusterConfig config;
+    private final List<PeerLink> links = new ArrayList<>();
+    private PeerLink[] linkByNode; // indexed like config.nodes, null for this node
+    private int self = -1; // index of this node in config.nodes, -1 if not listed
+    private PartitionMap partitions; // null unless partitioned
+    private final Tombstones tombstones = new Tombstones(TOMBSTONE_TTL_MILLIS);
+    // incoming updates are applied on one lane per topic hash: concurrent across topics, ordered within a topic
+    private final ExecutorService[] applyLanes = newApplyLanes(Runtime.getRuntime().availableProcessors());
+    // blocking replication I/O: the sync server, its connections and full-state transfers
+    private final ExecutorService syncExecutor = executionMode.newExecutor("fastpuss-sync-");
+    private volatile Transport.StreamListener syncListener; // null until listening
+    private final ScheduledExecutorService antiEntropyScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fastpuss-anti-entropy");
+        t.setDaemon(true);
+        return t;
+    });
 
     public DistributedBroker() {
         this.config = new ClusterConfig(SYNC_PORT);
@@ -53,91 +108,311 @@ public class DistributedBroker extends MessageBroker {
         this.config = config;
     }
 
+    public DistributedBroker(int port, ExecutorService executorService, ThreadSafeSubscriberManager subscriberManager,
+                             BrokerConfig brokerConfig, ClusterConfig config) {
+        super(port, executorService, subscriberManager, brokerConfig);
+        this.config = config;
+    }
+
+    /**
+     * @param executionMode whether the ingest workers, the sync server and its connections and the peer link writers
+     *                      run on platform or virtual threads
+     */
+    public DistributedBroker(int port, ExecutionMode executionMode, ThreadSafeSubscriberManager subscriberManager,
+                             BrokerConfig brokerConfig, ClusterConfig config) {
+        super(port, executionMode, subscriberManager, brokerConfig);
+        this.config = config;
+    }
+
     @Override
     public void broker() {
-        pullSyncData();
-        Executors.newSingleThreadExecutor().execute(this::keepInSync);
+        restoreSubscriptions(); // persisted state, if any, so that only the differences are fetched below
+        self = indexOfSelf();
+        partitions = config.partitioned ? new PartitionMap(config.nodes) : null;
+        if (partitions != null) {
+            restoreOwnedRanges();
+        } else if (subscriberManager.topicCount() == 0) {
+            pullSyncData();
+        } else {
+            // some state survived, only fetch the ranges that differ from the cluster
+            antiEntropy(AntiEntropy.Mode.REPLACE);
+        }
+        leaseRestored(); // including those just fetched from the peers
+        syncExecutor.execute(this::keepInSync);
+        openLinks();
+        long interval = config.antiEntropyIntervalMillis;
+        if (interval > 0) {
+            antiEntropyScheduler.scheduleWithFixedDelay(() -> antiEntropy(AntiEntropy.Mode.MERGE),
+                    interval, interval, TimeUnit.MILLISECONDS);
+        }
         super.broker();
     }
 
+    private void openLinks() {
+        linkByNode = new PeerLink[config.nodes.size()];
+        for (int node = 0; node < config.nodes.size(); node++) {
+            if (node != self) {
+                PeerLink link = new PeerLink(config.nodes.get(node), LINK_QUEUE_CAPACITY, transport(), metrics(),
+                        executionMode);
+                links.add(link);
+                linkByNode[node] = link;
+                link.start();
+            }
+        }
+    }
+
     @Override
-    protected void addSubscription(String topic, String clientId) {
-        super.addSubscription(topic, clientId);
-        pushSyncData(topic, clientId);
+    protected boolean addSubscription(String topic, int client) {
+        if (!isHeldLocally(topic)) {
+            // not an owner: only pass it on to the owners
+            replicate(new SyncUpdate(SyncUpdate.ADD, topic, subscriberManager.clients().id(client)));
+            return true;
+        }
+        if (!super.addSubscription(topic, client)) {
+            return false; // already subscribed, nothing to sync
+        }
+        String clientId = subscriberManager.clients().id(client);
+        tombstones.added(topic, clientId, System.currentTimeMillis());
+        replicate(new SyncUpdate(SyncUpdate.ADD, topic, clientId));
+        return true;
     }
 
-    private void pushSyncData(String topic, String clientId) {
-        Random rand = new Random();
-        int numNodes = config.nodes.size();
-        int startNode = rand.nextInt(numNodes);
+    @Override
+    protected boolean removeSubscription(String topic, int client) {
+        if (!isHeldLocally(topic)) {
+            replicate(new SyncUpdate(SyncUpdate.REMOVE, topic, subscriberManager.clients().id(client)));
+            return true;
+        }
+        if (!super.removeSubscription(topic, client)) {
+            return false;
+        }
+        String clientId = subscriberManager.clients().id(client);
+        tombstones.removed(topic, clientId, System.currentTimeMillis());
+        replicate(new SyncUpdate(SyncUpdate.REMOVE, topic, clientId));
+        return true;
+    }
 
-        for (int i = 0; i < numNodes; i++) {
-            try {
-                InetSocketAddress node = config.nodes.get((startNode + i) % numNodes);
-                if (isLocalAddress(node.getAddress())) {
-                    continue;
-                }
-                logger.info("sending sync data to node " + node);
-                Socket socket = new Socket();
-                socket.connect(node);
-                new OutputStreamWriter(socket.getOutputStream()).write("PUSH\n");
-                sendSyncDataUpdate(socket, topic, clientId);
-                socket.close();
-            } catch (IOException e) {
-                logger.log(SEVERE, "sync error", e);
+    /**
+     * Forward messages published to topics this node doesn't own to their primary owner, or to the secondary while
+     * the link to the primary is down.
+     */
+    @Override
+    protected void publish(String topic, byte[] body) {
+        if (isHeldLocally(topic)) {
+            super.publish(topic, body);
+            return;
+        }
+        int range = TopicHash.range(topic);
+        int primary = partitions.primary(range);
+        int secondary = partitions.secondary(range);
+        send(linkByNode[primary].isUp() || secondary < 0 ? primary : secondary, SyncUpdate.publish(topic, body));
+    }
+
+    /**
+     * Queue the update on the links to the nodes holding its topic: every peer, or only the other owners if the
+     * cluster is partitioned. The links send it asynchronously, batched with other updates.
+     */
+    private void replicate(SyncUpdate update) {
+        if (partitions == null || TopicFilter.isWildcard(update.topic)) {
+            for (PeerLink link : links) {
+                enqueue(link, update);
             }
+            return;
         }
+        int range = TopicHash.range(update.topic);
+        send(partitions.primary(range), update);
+        send(partitions.secondary(range), update);
+    }
+
+    private void send(int node, SyncUpdate update) {
+        if (node >= 0 && node != self) {
+            enqueue(linkByNode[node], update);
+        }
+    }
+
+    private static void enqueue(PeerLink link, SyncUpdate update) {
+        if (!link.enqueue(update)) {
+            logger.log(WARNING, "sync queue to " + link.peer() + " full, update dropped");
+        }
+    }
+
+    /**
+     * The clients of the subscriptions held may be talking to other nodes: those never heard of are left to the lease
+     * of the node they talk to.
+     */
+    @Override
+    protected boolean hearsFromAllClients() {
+        return false;
+    }
+
+    /**
+     * @return whether this node holds the subscriptions to the topic: always, unless the cluster is partitioned
+     */
+    private boolean isHeldLocally(String topic) {
+        return partitions == null || TopicFilter.isWildcard(topic) || partitions.owns(self, TopicHash.range(topic));
     }
 
     void keepInSync() {
-        ServerSocket serverSocket;
+        Transport.StreamListener listener;
 
-        int syncPort = SYNC_PORT;
+        int syncPort = config.syncPort;
         try {
-            serverSocket = new ServerSocket(syncPort);
+            listener = transport().listen(new InetSocketAddress(syncPort));
             logger.info("listening to sync port " + syncPort);
         } catch (IOException e) {
             logger.log(SEVERE, "cannot listen to sync port " + syncPort, e);
             return;
         }
+        syncListener = listener;
+        if (syncExecutor.isShutdown()) {
+            closeQuietly(listener); // closed while binding
+        }
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                Socket socket = serverSocket.accept();
-                logger.info("new sync request from " + socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
-                String cmd = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
-                switch (cmd) {
-                    case "PULL":
-                        sendSyncData(socket);
-                        break;
-
-                    case "PUSH":
-                        receiveSyncData(socket);
-                        break;
-
-                    default:
-                        logger.log(WARNING, "unknown verb " + cmd);
-                }
-                socket.close();
+                Transport.Stream stream = listener.accept();
+                syncExecutor.execute(() -> serveSyncRequest(stream));
+            } catch (RejectedExecutionException e) {
+                return; // closed
             } catch (IOException e) {
+                if (syncExecutor.isShutdown()) {
+                    return; // closed
+                }
                 logger.log(WARNING, "sync error", e);
             }
         }
     }
 
-    private void sendSyncData(Socket socket) throws IOException {
-        try (Writer w = new OutputStreamWriter(socket.getOutputStream())) {
-            subscriberManager.marshal(w);
-            w.flush();
+    /**
+     * Stop taking updates from the peers, stop the broker, then close the links to the peers.
+     */
+    @Override
+    public void close() {
+        antiEntropyScheduler.shutdownNow();
+        syncExecutor.shutdownNow();
+        Transport.StreamListener listener = syncListener;
+        if (listener != null) {
+            closeQuietly(listener);
         }
+        for (ExecutorService lane : applyLanes) {
+            lane.shutdown();
+        }
+        try {
+            for (ExecutorService lane : applyLanes) {
+                lane.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+        links.forEach(PeerLink::close);
     }
 
-    private void sendSyncDataUpdate(Socket socket, String topic, String clientId) throws IOException {
-        try (Writer w = new OutputStreamWriter(socket.getOutputStream())) {
-            w.write(topic);
-            w.write("\n");
-            w.write(clientId);
-            w.write("\n\n");
-            w.flush();
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.log(WARNING, "cannot close " + closeable, e);
+        }
+    }
+
+    private void serveSyncRequest(Transport.Stream stream) {
+        try (stream) {
+            InetSocketAddress from = stream.remoteAddress();
+            logger.info("new sync request from " + from.getAddress().getHostAddress() + ":" + from.getPort());
+            InputStream in = stream.in();
+            String cmd = readCommand(in);
+            switch (cmd) {
+                case "PULL":
+                    sendSyncData(stream);
+                    break;
+
+                case PeerLink.COMMAND:
+                    receiveLink(new DataInputStream(new BufferedInputStream(in)));
+                    break;
+
+                case AntiEntropy.COMMAND:
+                    AntiEntropy.serve(in, stream.out(), subscriberManager, tombstones, config.compressSnapshots);
+                    break;
+
+                case "PUSH": // single update, from nodes without sync links
+                    subscriberManager.unmarshal(new BufferedReader(new InputStreamReader(in, UTF_8)));
+                    break;
+
+                case "UNSUB":
+                    receiveSyncRemovals(new BufferedReader(new InputStreamReader(in, UTF_8)));
+                    break;
+
+                default:
+                    logger.log(WARNING, "unknown verb " + cmd);
+            }
+        } catch (IOException e) {
+            if (!syncExecutor.isShutdown()) { // otherwise interrupted by close()
+                logger.log(WARNING, "sync error", e);
+            }
+        }
+    }
+
+    /**
+     * Read the command line byte by byte, so that nothing following it is consumed.
+     */
+    private static String readCommand(InputStream in) throws IOException {
+        StringBuilder cmd = new StringBuilder(8);
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n' && cmd.length() < 64) {
+            cmd.append((char) b);
+        }
+        return cmd.toString();
+    }
+
+    /**
+     * Apply the batches received on a peer link until the peer disconnects. Forwarded messages are delivered on the
+     * lane of their topic too, after any subscription to it forwarded earlier.
+     */
+    private void receiveLink(DataInputStream in) throws IOException {
+        List<SyncUpdate> batch;
+        while ((batch = SyncUpdate.decodeBatch(in)) != null) {
+            for (SyncUpdate update : batch) {
+                applyLanes[(update.topic.hashCode() & 0x7fffffff) % applyLanes.length].execute(() -> apply(update));
+            }
+        }
+    }
+
+    private void apply(SyncUpdate update) {
+        try {
+            if (update.op == SyncUpdate.ADD) {
+                if (subscriberManager.addSubscription(update.topic, update.clientId)) {
+                    tombstones.added(update.topic, update.clientId, System.currentTimeMillis());
+                    leaseRestored(update.topic, subscriberManager.clients().lookup(update.clientId));
+                }
+            } else if (update.op == SyncUpdate.REMOVE) {
+                if (subscriberManager.removeSubscription(update.topic, update.clientId)) {
+                    tombstones.removed(update.topic, update.clientId, System.currentTimeMillis());
+                    unlease(update.topic, subscriberManager.clients().lookup(update.clientId));
+                }
+            } else if (update.op == SyncUpdate.PUBLISH) {
+                super.publish(update.topic, update.body); // never forwarded again
+            }
+        } catch (IllegalArgumentException e) {
+            logger.log(WARNING, "invalid sync update discarded: " + update.topic);
+        }
+    }
+
+    private static ExecutorService[] newApplyLanes(int n) {
+        ExecutorService[] lanes = new ExecutorService[n];
+        AtomicInteger count = new AtomicInteger();
+        for (int i = 0; i < n; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "fastpuss-sync-apply-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return lanes;
+    }
+
+    private void sendSyncData(Transport.Stream stream) throws IOException {
+        try (OutputStream out = stream.out()) {
+            subscriberManager.marshal(out, config.compressSnapshots);
         }
     }
 
@@ -149,15 +424,16 @@ public class DistributedBroker extends MessageBroker {
         for (int i = 0; i < numNodes; i++) {
             try {
                 InetSocketAddress node = config.nodes.get((startNode + i) % numNodes);
-                if (isLocalAddress(node.getAddress())) {
+                if (isSelf(node)) {
                     continue;
                 }
                 logger.info("requesting sync data from node " + node);
-                Socket socket = new Socket();
-                socket.connect(node);
-                new OutputStreamWriter(socket.getOutputStream()).write("PULL\n");
-                receiveSyncData(socket);
-                socket.close();
+                try (Transport.Stream stream = transport().connect(node)) {
+                    Writer w = new OutputStreamWriter(stream.out(), UTF_8);
+                    w.write("PULL\n");
+                    w.flush();
+                    receiveSyncData(stream);
+                }
                 return;
             } catch (IOException e) {
                 logger.log(SEVERE, "sync error", e);
@@ -165,10 +441,103 @@ public class DistributedBroker extends MessageBroker {
         }
     }
 
-    private void receiveSyncData(Socket socket) throws IOException {
-        try (BufferedReader r = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            subscriberManager.unmarshal(r);
+    /**
+     * Resync the ranges that differ from a random peer, trying the others if it cannot be reached.
+     *
+     * @return {@code true} if a peer was reached
+     */
+    boolean antiEntropy(AntiEntropy.Mode mode) {
+        int numNodes = config.nodes.size();
+        int startNode = ThreadLocalRandom.current().nextInt(numNodes);
+        for (int i = 0; i < numNodes; i++) {
+            int node = (startNode + i) % numNodes;
+            if (node == self || partitions != null && partitions.shared(self, node).isEmpty()) {
+                continue;
+            }
+            try {
+                resync(node, mode);
+                return true;
+            } catch (IOException e) {
+                logger.log(WARNING, "anti-entropy with node " + config.nodes.get(node) + " failed", e);
+            } catch (RuntimeException e) {
+                logger.log(SEVERE, "anti-entropy with node " + config.nodes.get(node) + " failed", e);
+                return false;
+            }
         }
+        return false;
+    }
+
+    /**
+     * Replace the state of each owned range with the one of the other owner, on restart of a partitioned node.
+     */
+    private void restoreOwnedRanges() {
+        for (int node = 0; node < config.nodes.size(); node++) {
+            if (node == self || partitions.shared(self, node).isEmpty()) {
+                continue;
+            }
+            try {
+                resync(node, AntiEntropy.Mode.REPLACE);
+            } catch (IOException e) {
+                logger.log(SEVERE, "cannot restore the ranges shared with node " + config.nodes.get(node), e);
+            }
+        }
+    }
+
+    private void resync(int node, AntiEntropy.Mode mode) throws IOException {
+        InetSocketAddress address = config.nodes.get(node);
+        long start = System.nanoTime();
+        int ranges = partitions == null
+                ? AntiEntropy.resync(transport(), address, subscriberManager, tombstones, mode, null, false,
+                syncExecutor, Runtime.getRuntime().availableProcessors())
+                // on restart also fetch the wildcard filters, which every node holds whatever their range
+                : AntiEntropy.resync(transport(), address, subscriberManager, tombstones, mode,
+                partitions.shared(self, node), mode == AntiEntropy.Mode.REPLACE, syncExecutor,
+                Runtime.getRuntime().availableProcessors());
+        if (ranges > 0) {
+            logger.info(String.format("%d topic ranges resynced from node %s in %d ms",
+                    ranges, address, (System.nanoTime() - start) / 1_000_000));
+        }
+    }
+
+    private void receiveSyncData(Transport.Stream stream) throws IOException {
+        long start = System.nanoTime();
+        try (InputStream in = stream.in()) {
+            subscriberManager.unmarshal(in, syncExecutor, Runtime.getRuntime().availableProcessors());
+        }
+        logger.info(String.format("sync data received in %d ms, %d topics",
+                (System.nanoTime() - start) / 1_000_000, subscriberManager.topicCount()));
+    }
+
+    /**
+     * Same format as the sync data, each client ID is removed from the topic preceding it.
+     */
+    private void receiveSyncRemovals(BufferedReader r) throws IOException {
+        String s, topic = null;
+        while ((s = r.readLine()) != null) {
+            if (s.isEmpty()) {
+                topic = null;
+            } else if (topic == null) {
+                topic = s;
+            } else {
+                subscriberManager.removeSubscription(topic, s);
+            }
+        }
+    }
+
+    private int indexOfSelf() {
+        for (int node = 0; node < config.nodes.size(); node++) {
+            if (isSelf(config.nodes.get(node))) {
+                return node;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return {@code true} if the node is this one: a local address with this node's sync port
+     */
+    private boolean isSelf(InetSocketAddress node) {
+        return node.getPort() == config.syncPort && isLocalAddress(node.getAddress());
     }
 
     /**
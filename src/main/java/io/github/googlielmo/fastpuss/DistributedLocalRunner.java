@@ -1,11 +1,17 @@
 package io.github.googlielmo.fastpuss;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.INFO;
 
+/**
+ * Runs a {@link DistributedBroker} with simulated subscribers and publishers, each a blocking client on its own thread.
+ * <p>
+ * Arguments, all optional: {@code [platform|virtual] [subscribers] [publishers]}. In virtual mode the clients run on
+ * virtual threads (Java 21), so that one machine can drive far more of them. Clients bind fixed ports as long as they
+ * fit the 10001-10999 (subscribers) and 11000-11999 (publishers) ranges, ephemeral ports otherwise.
+ */
 public class DistributedLocalRunner {
 
     public static final int NUM_PUBS = 20;
@@ -14,27 +20,30 @@ public class DistributedLocalRunner {
     private static final Logger logger = Logger.getLogger("DistributedLocalRunner");
 
     public static void main(String[] args) {
-        new DistributedLocalRunner().simulate();
+        ExecutionMode mode = args.length > 0 ? ExecutionMode.valueOf(args[0].toUpperCase()) : ExecutionMode.PLATFORM;
+        int subscribers = args.length > 1 ? Integer.parseInt(args[1]) : NUM_SUBS;
+        int publishers = args.length > 2 ? Integer.parseInt(args[2]) : NUM_PUBS;
+        new DistributedLocalRunner().simulate(mode, subscribers, publishers);
     }
 
-    private void simulate() {
-        ExecutorService executorService = Executors.newCachedThreadPool();
+    private void simulate(ExecutionMode mode, int subscribers, int publishers) {
+        ExecutorService executorService = mode.newExecutor("fastpuss-client-");
 
         executorService.execute(() -> {
-            MessageBroker messageBroker = new DistributedBroker();
+            MessageBroker messageBroker = new DistributedBroker(10000, mode, new ThreadSafeSubscriberManager(),
+                    new BrokerConfig(), new DistributedBroker.ClusterConfig(DistributedBroker.SYNC_PORT));
             messageBroker.broker();
         });
 
-        for (int i = 0; i < NUM_SUBS; i++) {
-            int port = 10001 + i;
-            logger.log(INFO, "starting subscriber on port " + port);
-            executorService.execute(new MessageSubscriber(port));
+        // beyond the fixed ranges (10001-10999 and 11000-...) clients bind ephemeral ports
+        boolean fixedPorts = subscribers <= 999 && publishers <= 1000;
+        logger.log(INFO, "starting " + subscribers + " subscribers and " + publishers + " publishers on " + mode
+                + " threads");
+        for (int i = 0; i < subscribers; i++) {
+            executorService.execute(new MessageSubscriber(fixedPorts ? 10001 + i : 0));
         }
-
-        for (int i = 0; i < NUM_PUBS; i++) {
-            int port = 11000 + i;
-            logger.log(INFO, "starting publisher on port " + port);
-            executorService.execute(new MessagePublisher(port));
+        for (int i = 0; i < publishers; i++) {
+            executorService.execute(new MessagePublisher(fixedPorts ? 11000 + i : 0));
         }
     }
 
@@ -0,0 +1,139 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * The kind of threads that run blocking work: broker workers, replication I/O and simulated clients.
+ * <p>
+ * {@link #VIRTUAL} needs Java 21. The code is compiled for Java 11, so virtual threads are created through reflection;
+ * on older runtimes a warning is logged and platform threads are used instead, so the same configuration runs
+ * everywhere.
+ */
+public enum ExecutionMode {
+    /**
+     * Platform (OS) threads, from cached pools.
+     */
+    PLATFORM,
+    /**
+     * A new virtual thread per task: cheap enough to have one per blocked client or connection, and no thread
+     * creation spikes under bursts.
+     */
+    VIRTUAL;
+
+    private static final Logger logger = Logger.getLogger("ExecutionMode");
+
+    /**
+     * @return whether the running JVM supports virtual threads
+     */
+    public static boolean virtualThreadsSupported() {
+        return VirtualThreads.OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param namePrefix threads are named {@code namePrefix} followed by a sequence number
+     * @return an unbounded executor; its platform threads are daemons, like all virtual threads
+     */
+    @NotNull
+    public ExecutorService newExecutor(@NotNull String namePrefix) {
+        if (isVirtual()) {
+            try {
+                return (ExecutorService) VirtualThreads.NEW_THREAD_PER_TASK_EXECUTOR.invoke(null,
+                        VirtualThreads.factory(namePrefix));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("cannot create virtual thread executor", e);
+            }
+        }
+        return Executors.newCachedThreadPool(platformFactory(namePrefix));
+    }
+
+    /**
+     * @return an unstarted (daemon) thread running {@code task}
+     */
+    @NotNull
+    public Thread newThread(@NotNull String name, @NotNull Runnable task) {
+        if (isVirtual()) {
+            try {
+                Object builder = VirtualThreads.NAME.invoke(VirtualThreads.OF_VIRTUAL.invoke(null), name);
+                return (Thread) VirtualThreads.UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("cannot create virtual thread", e);
+            }
+        }
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    private boolean isVirtual() {
+        if (this != VIRTUAL) {
+            return false;
+        }
+        if (!virtualThreadsSupported()) {
+            if (VirtualThreads.warned.compareAndSet(false, true)) {
+                logger.log(WARNING, "virtual threads need Java 21, running on " + System.getProperty("java.version")
+                        + ": falling back to platform threads");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static ThreadFactory platformFactory(String namePrefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, namePrefix + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Reflective handles to the Java 21 API, all {@code null} on older runtimes.
+     */
+    private static final class VirtualThreads {
+        static final Method OF_VIRTUAL; // Thread.ofVirtual()
+        static final Method NAME; // Thread.Builder.name(String)
+        static final Method NAME_WITH_COUNTER; // Thread.Builder.name(String, long)
+        static final Method UNSTARTED; // Thread.Builder.unstarted(Runnable)
+        static final Method FACTORY; // Thread.Builder.factory()
+        static final Method NEW_THREAD_PER_TASK_EXECUTOR; // Executors.newThreadPerTaskExecutor(ThreadFactory)
+        static final AtomicBoolean warned = new AtomicBoolean();
+
+        static {
+            Method ofVirtual = null, name = null, nameWithCounter = null, unstarted = null, factory = null,
+                    executor = null;
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builder.getMethod("name", String.class);
+                nameWithCounter = builder.getMethod("name", String.class, long.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                factory = builder.getMethod("factory");
+                executor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            } catch (ReflectiveOperationException e) {
+                ofVirtual = null; // before Java 21
+            }
+            OF_VIRTUAL = ofVirtual;
+            NAME = name;
+            NAME_WITH_COUNTER = nameWithCounter;
+            UNSTARTED = unstarted;
+            FACTORY = factory;
+            NEW_THREAD_PER_TASK_EXECUTOR = executor;
+        }
+
+        static ThreadFactory factory(String namePrefix) throws ReflectiveOperationException {
+            Object builder = NAME_WITH_COUNTER.invoke(OF_VIRTUAL.invoke(null), namePrefix, 1L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        }
+    }
+}
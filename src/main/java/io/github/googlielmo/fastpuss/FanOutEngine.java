@@ -0,0 +1,281 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Sends a published message to all the matching subscribers.
+ * <p>
+ * Small subscriber sets are sent inline by the publishing thread. Sets larger than an adaptive threshold are split
+ * into chunks along their {@link Subscribers#partitions() partitions} and the chunks are sent in parallel by a pool of
+ * sender threads, each through a different broker channel, while the publishing thread sends the first chunk itself.
+ * <p>
+ * The threshold follows the measured cost of a single send (an exponential moving average over inline fan-outs):
+ * a fan-out stays inline as long as it is expected to take less than the configured inline budget.
+ * <p>
+ * Fan-out times are recorded for the topics that most recently went through the parallel path, see
+ * {@link #topicStats()}.
+ * <p>
+ * With a {@link MessageCoalescer}, MSGs are appended to each subscriber's pending batch instead of being sent one
+ * datagram each.
+ */
+class FanOutEngine {
+
+    private static final Logger logger = Logger.getLogger("FanOutEngine");
+    private static final int MIN_THRESHOLD = 64;
+    private static final int MAX_THRESHOLD = 1 << 20;
+    private static final int MAX_TRACKED_TOPICS = 4096;
+    private static final int[] NO_CLIENTS = new int[0];
+
+    private final ClientRegistry clients;
+    private final ExecutorService senders;
+    private final int parallelism;
+    private final long inlineBudgetNanos;
+    private final AtomicLong sendNanosAvg = new AtomicLong(1000); // initial guess: 1us per send
+    private volatile int threshold;
+    // least recently sent topics first, guarded by itself
+    private final Map<String, FanOutStats> topicStats = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FanOutStats> eldest) {
+            return size() > MAX_TRACKED_TOPICS;
+        }
+    };
+    private final BrokerMetrics metrics;
+    private final MessageCoalescer coalescer; // null unless MSGs are coalesced
+    private volatile DatagramEndpoint[] channels = new DatagramEndpoint[0];
+
+    /**
+     * @param clients           registry to resolve client handles
+     * @param parallelism       max number of chunks a fan-out is split into, and size of the sender pool
+     * @param inlineBudgetNanos max expected time for a fan-out to be sent inline
+     * @param metrics           where datagrams sent and send errors are counted
+     */
+    FanOutEngine(ClientRegistry clients, int parallelism, long inlineBudgetNanos, BrokerMetrics metrics) {
+        this(clients, parallelism, inlineBudgetNanos, metrics, null);
+    }
+
+    /**
+     * @param coalescer where MSGs are queued per subscriber, {@code null} to send each MSG on its own
+     */
+    FanOutEngine(ClientRegistry clients, int parallelism, long inlineBudgetNanos, BrokerMetrics metrics,
+                 @Nullable MessageCoalescer coalescer) {
+        this.clients = clients;
+        this.metrics = metrics;
+        this.coalescer = coalescer;
+        this.parallelism = parallelism;
+        this.inlineBudgetNanos = inlineBudgetNanos;
+        AtomicInteger n = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "fastpuss-fanout-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        updateThreshold(sendNanosAvg.get());
+    }
+
+    /**
+     * Forget a client, whose handle may be reused.
+     */
+    void forget(int client) {
+        if (coalescer != null) {
+            coalescer.forget(client);
+        }
+    }
+
+    /**
+     * @param channels the broker channels to send from; parallel chunks are spread over them
+     */
+    void setChannels(@NotNull DatagramEndpoint[] channels) {
+        this.channels = channels;
+        if (coalescer != null && channels.length > 0) {
+            coalescer.setChannel(channels[0]);
+        }
+    }
+
+    /**
+     * Send {@code frame} to all subscribers. The frame must not be modified afterwards, as it may still be read by
+     * sender threads after this method returns.
+     *
+     * @param channel channel for the inline part of the fan-out
+     */
+    void fanOut(@NotNull String topic, @NotNull ByteBuffer frame, @NotNull Subscribers subscribers,
+                @NotNull DatagramEndpoint channel) {
+        fanOut(topic, frame, null, NO_CLIENTS, subscribers, channel);
+    }
+
+    /**
+     * Like {@link #fanOut(String, ByteBuffer, Subscribers, DatagramEndpoint)}, sending {@code aliasedFrame} instead to
+     * the subscribers in {@code aliasedClients}, see {@link TopicAliases}.
+     *
+     * @param aliasedClients sorted client handles
+     */
+    void fanOut(@NotNull String topic, @NotNull ByteBuffer frame, @Nullable ByteBuffer aliasedFrame,
+                int @NotNull [] aliasedClients, @NotNull Subscribers subscribers, @NotNull DatagramEndpoint channel) {
+        Frames frames = aliasedClients.length == 0 ? new Frames(frame) : new Frames(frame, aliasedFrame, aliasedClients);
+        int size = subscribers.size();
+        int partitions = subscribers.partitions();
+        DatagramEndpoint[] chans = channels;
+        if (size <= threshold || partitions == 1 || chans.length == 0) {
+            long start = System.nanoTime();
+            int sent = sendPartitions(frames, subscribers, 0, 1, partitions, channel);
+            if (sent > 0) {
+                sample((System.nanoTime() - start) / sent);
+            }
+            return;
+        }
+
+        int chunks = Math.min(parallelism, partitions);
+        long start = System.nanoTime();
+        AtomicInteger remaining = new AtomicInteger(chunks);
+        Runnable done = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                record(topic, size, System.nanoTime() - start);
+            }
+        };
+        for (int c = 1; c < chunks; c++) {
+            int chunk = c;
+            DatagramEndpoint chunkChannel = chans[c % chans.length];
+            try {
+                senders.execute(() -> {
+                    sendPartitions(frames, subscribers, chunk, chunks, partitions, chunkChannel);
+                    done.run();
+                });
+            } catch (RejectedExecutionException e) {
+                sendPartitions(frames, subscribers, chunk, chunks, partitions, chunkChannel);
+                done.run();
+            }
+        }
+        sendPartitions(frames, subscribers, 0, chunks, partitions, channel);
+        done.run();
+    }
+
+    /**
+     * Send the partitions {@code first, first + stride, first + 2 * stride...}
+     *
+     * @return number of messages sent (or queued, when coalescing)
+     */
+    private int sendPartitions(Frames frames, Subscribers subscribers, int first, int stride, int partitions,
+                               DatagramEndpoint channel) {
+        // private positions and limits for this thread
+        ByteBuffer plain = frames.plain.duplicate();
+        ByteBuffer aliased = frames.aliased == null ? null : frames.aliased.duplicate();
+        int[] sent = {0};
+        for (int p = first; p < partitions; p += stride) {
+            subscribers.forEach(p, client -> {
+                InetSocketAddress address = clients.address(client);
+                if (address == null) {
+                    return; // not an endpoint, e.g. replicated from a misconfigured peer
+                }
+                ByteBuffer view = aliased != null && Arrays.binarySearch(frames.aliasedClients, client) >= 0
+                        ? aliased
+                        : plain;
+                if (coalescer != null) {
+                    coalescer.add(client, address, view.rewind(), channel);
+                    sent[0]++;
+                    return;
+                }
+                try {
+                    channel.send(view.rewind(), address);
+                    sent[0]++;
+                } catch (IOException e) {
+                    // one unreachable subscriber must not abort the fan-out to the others
+                    metrics.sendErrors.increment();
+                    logger.log(FINE, "cannot send to " + address, e);
+                }
+            });
+        }
+        if (coalescer == null) {
+            metrics.packetsOut.add(sent[0]); // the coalescer counts the datagrams it sends
+        }
+        return sent[0];
+    }
+
+    /**
+     * The encodings of a message to send.
+     */
+    private static final class Frames {
+        final ByteBuffer plain;
+        final ByteBuffer aliased; // null if none
+        final int[] aliasedClients;
+
+        Frames(ByteBuffer plain) {
+            this(plain, null, NO_CLIENTS);
+        }
+
+        Frames(ByteBuffer plain, ByteBuffer aliased, int[] aliasedClients) {
+            this.plain = plain;
+            this.aliased = aliased;
+            this.aliasedClients = aliasedClients;
+        }
+    }
+
+    private void sample(long nanosPerSend) {
+        long avg = sendNanosAvg.get();
+        long next = avg + (nanosPerSend - avg) / 16;
+        if (sendNanosAvg.compareAndSet(avg, Math.max(1, next))) {
+            updateThreshold(next);
+        }
+    }
+
+    private void updateThreshold(long nanosPerSend) {
+        long t = inlineBudgetNanos / Math.max(1, nanosPerSend);
+        threshold = (int) Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, t));
+    }
+
+    private void record(String topic, int size, long nanos) {
+        FanOutStats stats;
+        synchronized (topicStats) { // only parallel fan-outs get here, a lock per fan-out is negligible
+            stats = topicStats.computeIfAbsent(topic, t -> new FanOutStats());
+        }
+        stats.record(size, nanos);
+    }
+
+    /**
+     * @return the current number of subscribers above which a fan-out is split and sent in parallel
+     */
+    int threshold() {
+        return threshold;
+    }
+
+    /**
+     * @return a copy of the fan-out statistics of the {@value #MAX_TRACKED_TOPICS} topics most recently sent through
+     * the parallel path; idle topics are forgotten as new ones come
+     */
+    Map<String, FanOutStats> topicStats() {
+        synchronized (topicStats) {
+            return new HashMap<>(topicStats);
+        }
+    }
+
+    /**
+     * Stop the sender threads and the coalescer, if any, once the broker stops receiving.
+     */
+    void shutdown() {
+        senders.shutdown();
+        if (coalescer != null) {
+            try {
+                senders.awaitTermination(1, TimeUnit.SECONDS); // they may still be adding to the batches
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            coalescer.shutdown();
+        }
+    }
+}
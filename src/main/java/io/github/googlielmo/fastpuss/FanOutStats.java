@@ -0,0 +1,52 @@
+package io.github.googlielmo.fastpuss;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fan-out timings for one topic: how many publishes, how long it took to send them to all subscribers.
+ */
+public final class FanOutStats {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private volatile int lastSize;
+
+    void record(int size, long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+        lastSize = size;
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long meanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / n;
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return number of subscribers at the last publish
+     */
+    public int lastSize() {
+        return lastSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dus max=%dus subscribers=%d",
+                count(), meanNanos() / 1000, maxNanos() / 1000, lastSize);
+    }
+}
@@ -0,0 +1,782 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * A non-blocking client of the broker: any number of subscriptions, each with any number of listeners, and
+ * asynchronous publishing, all served by one event loop thread over one {@link DatagramChannel}.
+ * <p>
+ * {@link #publish} encodes the message into a pooled buffer and queues it, without blocking; the event loop packs the
+ * queued messages into batch datagrams, so that a burst of publications costs a few datagrams. Received messages are
+ * decoded in place and the listeners get a read-only view of the body in the receive buffer, with no copy. SEQ
+ * messages are handled as in {@link MessageSubscriber}: gaps are NACKed to the node that sent them.
+ * <p>
+ * The client sends a PING to its broker every heartbeat interval; when nothing is heard from the broker for the
+ * failover timeout, it moves on to the next broker of the configured list, and subscribes again as soon as the new
+ * broker answers. The same happens with a single broker, e.g. after a restart.
+ * <p>
+ * When the broker multicasts a subscribed topic (see {@link BrokerConfig#multicast}), the client joins its group on a
+ * second channel, bound to the group port and served by the same event loop, answers the JOIN so that the broker stops
+ * unicasting the topic to it, and leaves the group when told to or when failing over. Group messages of other topics are ignored.
+ * <p>
+ * All methods are thread safe.
+ */
+public class FastpussClient implements Closeable {
+
+    private static final Logger logger = Logger.getLogger("FastpussClient");
+    private static final int MAX_MSG_SIZE = 65507; // max UDP payload over IPv4
+    private static final int MAX_RECEIVES_PER_LOOP = 1024; // then serve the publishers
+    private static final long NACK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int MAX_NACKS = 5;
+    private static final String PING_TOPIC = "ping";
+    private static final byte[] NO_BODY = new byte[0];
+    private static final byte[] ALIAS_REQUEST = "alias".getBytes(StandardCharsets.US_ASCII); // SUB body
+    private static final int MAX_PUBLISH_ALIASES = 4096; // topics published to with an alias
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    public static class Config {
+        final List<InetSocketAddress> brokers;
+        int publishQueueCapacity = 1 << 14;
+        long lingerNanos; // 0 to send what has accumulated as soon as the loop gets to it
+        int maxDatagramSize = BatchEncoder.ETHERNET_DATAGRAM_SIZE;
+        long heartbeatNanos = TimeUnit.SECONDS.toNanos(1);
+        long failoverNanos = TimeUnit.SECONDS.toNanos(3);
+        int receiveBufferSize = BrokerConfig.RCV_BUF_SIZE;
+        boolean aliases;
+
+        /**
+         * @param brokers the broker nodes to connect to, in order of preference
+         */
+        public Config(@NotNull List<InetSocketAddress> brokers) {
+            if (brokers.isEmpty()) {
+                throw new IllegalArgumentException("no brokers");
+            }
+            this.brokers = List.copyOf(brokers);
+        }
+
+        /**
+         * @param lingerMicros    max time a published message waits for others to be batched with, 0 for no wait
+         * @param maxDatagramSize max size of the datagrams sent
+         */
+        public Config batch(long lingerMicros, int maxDatagramSize) {
+            if (lingerMicros < 0 || maxDatagramSize <= MessageCodec.BATCH_HEADER.length || maxDatagramSize > 65507) {
+                throw new IllegalArgumentException("invalid batch settings: " + lingerMicros + ", " + maxDatagramSize);
+            }
+            this.lingerNanos = lingerMicros * 1000;
+            this.maxDatagramSize = maxDatagramSize;
+            return this;
+        }
+
+        /**
+         * @param capacity max number of published messages waiting to be sent, beyond which {@link #publish} fails
+         */
+        public Config publishQueue(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("publish queue capacity must be positive: " + capacity);
+            }
+            this.publishQueueCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param heartbeatMillis how often the broker is pinged
+         * @param timeoutMillis   how long the broker may stay silent before the client fails over to the next one
+         */
+        public Config failover(long heartbeatMillis, long timeoutMillis) {
+            if (heartbeatMillis < 1 || timeoutMillis <= heartbeatMillis) {
+                throw new IllegalArgumentException("invalid failover settings: " + heartbeatMillis + ", "
+                        + timeoutMillis);
+            }
+            this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+            this.failoverNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            return this;
+        }
+
+        /**
+         * @param bytes kernel receive buffer size (SO_RCVBUF) requested for the client channel
+         */
+        public Config receiveBufferSize(int bytes) {
+            if (bytes < 1) {
+                throw new IllegalArgumentException("receive buffer size must be positive: " + bytes);
+            }
+            this.receiveBufferSize = bytes;
+            return this;
+        }
+
+        /**
+         * Use topic aliases, see {@link BrokerConfig#topicAliases}: messages of exact subscriptions are received as
+         * AMSGs, and messages are published as APUBs once the broker has told the alias of their topic. Disabled by
+         * default.
+         */
+        public Config aliases(boolean enabled) {
+            this.aliases = enabled;
+            return this;
+        }
+    }
+
+    /**
+     * A listener registered for a topic filter. The client subscribes to the filter with its first listener and
+     * unsubscribes with its last.
+     */
+    public final class Subscription implements Closeable {
+        private final String filter;
+        private final MessageListener listener;
+
+        private Subscription(String filter, MessageListener listener) {
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+        @NotNull
+        public String filter() {
+            return filter;
+        }
+
+        /**
+         * Remove the listener. It may still get the messages being dispatched.
+         */
+        @Override
+        public void close() {
+            execute(() -> removeListener(this));
+        }
+    }
+
+    private final Config config;
+    private final BoundedQueue<ByteBuffer> publishes;
+    private final BufferPool pool;
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder publishDrops = new LongAdder();
+    private final Map<String, String> publishAliases = new ConcurrentHashMap<>(); // topic to alias token
+    private final Map<String, Long> aliasRequests = new ConcurrentHashMap<>(); // topic to time of the last ALIAS sent
+    private volatile boolean awake = true;
+    private volatile boolean closed;
+    private Selector selector;
+    private DatagramChannel channel;
+    private DatagramChannel multicastChannel; // opened on the first JOIN
+    private Thread loop;
+
+    // event loop state
+    private final Map<String, List<Subscription>> exact = new HashMap<>();
+    private final Map<String, List<Subscription>> wildcards = new HashMap<>();
+    private final GapTracker gaps = new GapTracker(NACK_DELAY_NANOS, MAX_NACKS);
+    private final MessageCodec.Header header = new MessageCodec.Header();
+    private final LongFunction<String> resolver = this::aliasedTopic;
+    private long[] aliasIds = new long[0]; // by alias index, see TopicAliases
+    private String[] aliasTopics = new String[0];
+    private final Predicate<ByteBuffer> batched = this::dispatch;
+    private final BatchEncoder encoder;
+    private ByteBuffer body; // read-only view of the receive buffer, handed to the listeners
+    private SocketAddress source; // of the datagram being dispatched
+    private boolean fromGroup; // the datagram being dispatched was received from a multicast group
+    private final Map<String, InetSocketAddress> groupByTopic = new HashMap<>(); // topics multicast to us
+    private final Map<InetSocketAddress, MembershipKey> groups = new HashMap<>();
+    private ByteBuffer carry; // a message taken from the queue that didn't fit the last batch
+    private boolean blocked; // the last batch is waiting for room in the socket send buffer
+    private long firstBatched;
+    private int current; // index of the broker in use
+    private boolean up;
+    private boolean sequenced; // SEQ messages received, NACKs may be due
+    private long lastHeard;
+    private long lastPing;
+
+    public FastpussClient(@NotNull Config config) {
+        this.config = config;
+        this.publishes = new BoundedQueue<>(config.publishQueueCapacity);
+        this.pool = new BufferPool(config.publishQueueCapacity, config.maxDatagramSize);
+        this.encoder = new BatchEncoder(config.maxDatagramSize);
+    }
+
+    /**
+     * Open the channel and start the event loop.
+     */
+    public synchronized void start() throws IOException {
+        if (loop != null) {
+            throw new IllegalStateException("already started");
+        }
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize);
+        channel.bind(null);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        loop = new Thread(this::run, "fastpuss-client-" + instances.incrementAndGet());
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * Register a listener for the messages matching a topic filter, see the README for wildcards.
+     */
+    @NotNull
+    public Subscription subscribe(@NotNull String filter, @NotNull MessageListener listener) {
+        if (filter.isEmpty() || filter.codePoints().anyMatch(Character::isWhitespace)
+                || TopicFilter.isWildcard(filter) && !TopicFilter.isValid(filter)) {
+            throw new IllegalArgumentException("invalid topic filter: " + filter);
+        }
+        Subscription s = new Subscription(filter, listener);
+        execute(() -> addListener(s));
+        return s;
+    }
+
+    /**
+     * Ask the broker to replay the journaled messages matching a topic filter, from an offset on (0 for all those still
+     * kept), to the listeners of a subscription to the same filter. Replayed messages arrive at a rate set by the
+     * broker, mixed with the live ones. Has no effect if the broker doesn't journal, or if its broker is down.
+     */
+    public void replay(@NotNull String filter, long fromOffset) {
+        byte[] from = Long.toString(fromOffset).getBytes(StandardCharsets.US_ASCII);
+        execute(() -> {
+            if (up) {
+                send(Verb.REPLAY, filter, from);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #replay(String, long)}, from the messages journaled at or after a time.
+     */
+    public void replaySince(@NotNull String filter, long epochMillis) {
+        byte[] from = ("@" + epochMillis).getBytes(StandardCharsets.US_ASCII);
+        execute(() -> {
+            if (up) {
+                send(Verb.REPLAY, filter, from);
+            }
+        });
+    }
+
+    /**
+     * Queue a message for publication. Never blocks.
+     *
+     * @return {@code false} if the message was dropped because too many are waiting to be sent
+     */
+    public boolean publish(@NotNull String topic, byte @NotNull [] body) {
+        return publish(topic, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Queue a message for publication, with the bytes between position and limit of {@code body} (whose position is
+     * not modified) as its body. Never blocks.
+     *
+     * @return {@code false} if the message was dropped because too many are waiting to be sent
+     */
+    public boolean publish(@NotNull String topic, @NotNull ByteBuffer body) {
+        Verb verb = Verb.PUB;
+        String name = topic;
+        if (config.aliases) {
+            String alias = publishAliases.get(topic);
+            if (alias != null) {
+                verb = Verb.APUB;
+                name = alias;
+            } else {
+                requestAlias(topic);
+            }
+        }
+        ByteBuffer msg = pool.acquire();
+        if (!MessageCodec.encode(msg, verb, name, body)) { // larger than a batch, sent on its own
+            pool.release(msg);
+            msg = ByteBuffer.allocate(verb.token.length + 2 + name.length() * 3 + body.remaining());
+            MessageCodec.encode(msg, verb, name, body);
+            if (msg.position() > MAX_MSG_SIZE) {
+                throw new IllegalArgumentException("message too large: " + msg.position() + " bytes");
+            }
+        }
+        if (!publishes.offer(msg.flip())) {
+            pool.release(msg);
+            publishDrops.increment();
+            return false;
+        }
+        if (!awake) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    /**
+     * @return the broker the client is using
+     */
+    @NotNull
+    public InetSocketAddress broker() {
+        return config.brokers.get(current);
+    }
+
+    /**
+     * @return number of messages delivered to this client, each counted once whatever the number of listeners
+     */
+    public long messagesReceived() {
+        return received.sum();
+    }
+
+    /**
+     * @return number of messages {@link #publish} dropped because the publish queue was full
+     */
+    public long publishDrops() {
+        return publishDrops.sum();
+    }
+
+    /**
+     * Send what is queued, unsubscribe from everything and stop the event loop.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (loop == null) {
+                return;
+            }
+            selector.wakeup();
+            try {
+                loop.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                channel.close();
+                if (multicastChannel != null) {
+                    multicastChannel.close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                logger.log(FINE, "error closing client channel", e);
+            }
+        }
+    }
+
+    private void execute(Runnable command) {
+        commands.add(command);
+        if (!awake && selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        ByteBuffer in = ByteBuffer.allocateDirect(MAX_MSG_SIZE);
+        body = in.asReadOnlyBuffer();
+        lastHeard = System.nanoTime();
+        lastPing = lastHeard - config.heartbeatNanos; // ping right away
+        try {
+            while (!closed) {
+                awake = false;
+                if (publishes.isEmpty() && commands.isEmpty()) {
+                    selector.select(selectTimeoutMillis(System.nanoTime()));
+                } else {
+                    selector.selectNow();
+                }
+                awake = true;
+                selector.selectedKeys().clear();
+                runCommands();
+                receive(in);
+                if (multicastChannel != null) {
+                    receiveMulticast(in);
+                }
+                long now = System.nanoTime();
+                flush(now);
+                keepAlive(now);
+                if (sequenced) {
+                    gaps.nack(now, this::sendNack);
+                }
+            }
+            runCommands();
+            flush(System.nanoTime());
+            if (encoder.count() > 0) {
+                sendBatch();
+            }
+            if (up) {
+                exact.keySet().forEach(filter -> send(Verb.UNSUB, filter, NO_BODY));
+                wildcards.keySet().forEach(filter -> send(Verb.UNSUB, filter, NO_BODY));
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                logger.log(WARNING, "client event loop failed", e);
+            }
+        }
+    }
+
+    private long selectTimeoutMillis(long now) {
+        long next = lastPing + config.heartbeatNanos;
+        if (encoder.count() > 0 && !blocked) {
+            next = Math.min(next, firstBatched + config.lingerNanos);
+        }
+        if (sequenced) {
+            next = Math.min(next, now + NACK_DELAY_NANOS);
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now + 999_999));
+    }
+
+    private void runCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            command.run();
+        }
+    }
+
+    private void addListener(Subscription s) {
+        Map<String, List<Subscription>> map = TopicFilter.isWildcard(s.filter) ? wildcards : exact;
+        List<Subscription> listeners = map.computeIfAbsent(s.filter, f -> new ArrayList<>());
+        listeners.add(s);
+        if (listeners.size() == 1 && up) {
+            send(Verb.SUB, s.filter, subscribeBody(s.filter));
+        }
+    }
+
+    private void removeListener(Subscription s) {
+        Map<String, List<Subscription>> map = TopicFilter.isWildcard(s.filter) ? wildcards : exact;
+        List<Subscription> listeners = map.get(s.filter);
+        if (listeners == null || !listeners.remove(s) || !listeners.isEmpty()) {
+            return;
+        }
+        map.remove(s.filter);
+        if (up) {
+            send(Verb.UNSUB, s.filter, NO_BODY);
+        }
+    }
+
+    private void receive(ByteBuffer in) throws IOException {
+        for (int i = 0; i < MAX_RECEIVES_PER_LOOP; i++) {
+            in.clear();
+            source = channel.receive(in);
+            if (source == null) {
+                return;
+            }
+            in.flip();
+            if (source.equals(broker())) {
+                lastHeard = System.nanoTime();
+                if (!up) {
+                    up = true;
+                    logger.info("connected to " + source);
+                    forgetAliases(); // assigned by another broker, or before a restart
+                    gaps.reset(source); // its sequence numbers may have started over
+                    resubscribe();
+                }
+            }
+            if (MessageCodec.isBatch(in)) {
+                MessageCodec.forEachBatched(in, batched);
+            } else {
+                dispatch(in);
+            }
+        }
+    }
+
+    private void receiveMulticast(ByteBuffer in) throws IOException {
+        fromGroup = true;
+        try {
+            for (int i = 0; i < MAX_RECEIVES_PER_LOOP; i++) {
+                in.clear();
+                if (multicastChannel.receive(in) == null) {
+                    return;
+                }
+                in.flip();
+                if (MessageCodec.isBatch(in)) {
+                    MessageCodec.forEachBatched(in, batched);
+                } else {
+                    dispatch(in);
+                }
+            }
+        } finally {
+            fromGroup = false;
+        }
+    }
+
+    /**
+     * @return {@code false} if the message is malformed
+     */
+    private boolean dispatch(ByteBuffer msg) {
+        if (!MessageCodec.decodeHeader(msg, header, config.aliases ? resolver : null)) {
+            logger.log(FINE, "malformed message discarded");
+            return false;
+        }
+        if (fromGroup) {
+            if (!groupByTopic.containsKey(header.topic)) {
+                return true; // groups may carry other topics
+            }
+            source = broker(); // gaps are tracked and NACKed as if received from the broker
+        } else if (header.verb == Verb.ALIAS) {
+            onAlias(msg);
+            return true;
+        } else if (header.verb == Verb.JOIN || header.verb == Verb.LEAVE) {
+            if (source.equals(broker())) {
+                onMulticast(msg);
+            }
+            return true;
+        }
+        if (header.verb == Verb.SEQ) {
+            sequenced = true;
+            if (!gaps.onMessage(source, header.topic, header.seq, System.nanoTime())) {
+                return true; // duplicate
+            }
+        } else if (header.verb != Verb.MSG) {
+            return true; // PONG, or not for us
+        }
+        received.increment();
+        deliver(exact.get(header.topic), msg.limit());
+        if (!wildcards.isEmpty()) {
+            for (Map.Entry<String, List<Subscription>> e : wildcards.entrySet()) {
+                if (TopicFilter.matches(e.getKey(), header.topic)) {
+                    deliver(e.getValue(), msg.limit());
+                }
+            }
+        }
+        return true;
+    }
+
+    private void deliver(List<Subscription> listeners, int end) {
+        if (listeners == null) {
+            return;
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            body.limit(end).position(header.bodyStart);
+            try {
+                listeners.get(i).listener.onMessage(header.topic, body);
+            } catch (RuntimeException e) {
+                logger.log(WARNING, "listener failed on " + header.topic, e);
+            }
+        }
+    }
+
+    private void flush(long now) throws IOException {
+        if (blocked && !sendBatch()) {
+            return;
+        }
+        for (; ; ) {
+            ByteBuffer msg = carry != null ? carry : publishes.poll();
+            carry = null;
+            if (msg == null) {
+                break;
+            }
+            if (encoder.count() == 0) {
+                firstBatched = now;
+            }
+            if (encoder.add(msg)) {
+                pool.release(msg);
+                continue;
+            }
+            if (encoder.count() == 0) { // larger than a datagram, sent on its own
+                if (channel.send(msg, broker()) == 0) {
+                    publishDrops.increment();
+                }
+                pool.release(msg);
+                continue;
+            }
+            carry = msg;
+            if (!sendBatch()) {
+                return;
+            }
+        }
+        if (encoder.count() > 0 && now - firstBatched >= config.lingerNanos) {
+            sendBatch();
+        }
+    }
+
+    /**
+     * @return {@code false} if the socket send buffer is full: the batch is kept until the channel is writable
+     */
+    private boolean sendBatch() throws IOException {
+        if (channel.send(encoder.datagram(), broker()) == 0) {
+            blocked = true;
+            channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return false;
+        }
+        encoder.clear();
+        if (blocked) {
+            blocked = false;
+            channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+        }
+        return true;
+    }
+
+    private void keepAlive(long now) {
+        if (now - lastPing >= config.heartbeatNanos) {
+            lastPing = now;
+            send(Verb.PING, PING_TOPIC, NO_BODY);
+        }
+        if (now - lastHeard > config.failoverNanos) {
+            if (up) {
+                up = false;
+                logger.log(WARNING, "no answer from " + broker());
+            }
+            leaveGroups(); // the next broker tells which to join
+            current = (current + 1) % config.brokers.size();
+            lastHeard = now;
+            lastPing = now;
+            send(Verb.PING, PING_TOPIC, NO_BODY);
+        }
+    }
+
+    private void resubscribe() {
+        exact.keySet().forEach(filter -> send(Verb.SUB, filter, subscribeBody(filter)));
+        wildcards.keySet().forEach(filter -> send(Verb.SUB, filter, NO_BODY));
+    }
+
+    private byte[] subscribeBody(String filter) {
+        return config.aliases && !TopicFilter.isWildcard(filter) ? ALIAS_REQUEST : NO_BODY;
+    }
+
+    /**
+     * Ask the broker for the alias of a topic, unless it was asked within the last heartbeat.
+     */
+    private void requestAlias(String topic) {
+        long now = System.nanoTime();
+        Long last = aliasRequests.get(topic);
+        if (last == null ? aliasRequests.size() >= MAX_PUBLISH_ALIASES : now - last < config.heartbeatNanos) {
+            return;
+        }
+        aliasRequests.put(topic, now);
+        execute(() -> {
+            if (up) {
+                send(Verb.ALIAS, topic, NO_BODY);
+            }
+        });
+    }
+
+    /**
+     * Learn the alias in the body of an ALIAS, or forget the one in its topic if the body is empty.
+     */
+    private void onAlias(ByteBuffer msg) {
+        String token = StandardCharsets.US_ASCII.decode(msg.duplicate().position(header.bodyStart)).toString().trim();
+        if (token.isEmpty()) { // rejected by the broker
+            publishAliases.values().removeIf(header.topic::equals);
+            return;
+        }
+        long id;
+        try {
+            id = Long.parseLong(token, 16);
+        } catch (NumberFormatException e) {
+            logger.log(FINE, "invalid alias discarded: " + token);
+            return;
+        }
+        int index = TopicAliases.index(id);
+        if (index >= aliasIds.length) {
+            int length = Math.max(16, Integer.highestOneBit(index) << 1);
+            aliasIds = Arrays.copyOf(aliasIds, length);
+            aliasTopics = Arrays.copyOf(aliasTopics, length);
+        }
+        aliasIds[index] = id;
+        aliasTopics[index] = header.topic;
+        if (aliasRequests.remove(header.topic) != null) {
+            publishAliases.put(header.topic, token);
+        }
+    }
+
+    private String aliasedTopic(long id) {
+        int index = TopicAliases.index(id);
+        return index < aliasIds.length && aliasIds[index] == id ? aliasTopics[index] : null;
+    }
+
+    private void forgetAliases() {
+        publishAliases.clear();
+        aliasRequests.clear();
+        aliasIds = new long[0];
+        aliasTopics = new String[0];
+    }
+
+    /**
+     * Join or leave the multicast group of a topic, as told by the broker.
+     */
+    private void onMulticast(ByteBuffer msg) {
+        if (header.verb == Verb.LEAVE) {
+            leave(header.topic);
+            return;
+        }
+        String body = StandardCharsets.US_ASCII.decode(msg.duplicate().position(header.bodyStart)).toString().trim();
+        int colon = body.lastIndexOf(':');
+        try {
+            InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(body.substring(0, colon)),
+                    Integer.parseInt(body.substring(colon + 1)));
+            if (multicastChannel == null) {
+                multicastChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                        .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                        .setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize)
+                        .bind(new InetSocketAddress(group.getPort()));
+                multicastChannel.configureBlocking(false);
+                multicastChannel.register(selector, SelectionKey.OP_READ);
+            } else if (group.getPort() != ((InetSocketAddress) multicastChannel.getLocalAddress()).getPort()) {
+                logger.log(WARNING, "cannot join " + group + ", already receiving multicast on another port");
+                return;
+            }
+            if (!groups.containsKey(group)) {
+                groups.put(group, multicastChannel.join(group.getAddress(), interfaceTowards(broker())));
+            }
+            InetSocketAddress previous = groupByTopic.put(header.topic, group);
+            if (previous != null && !groupByTopic.containsValue(previous)) {
+                groups.remove(previous).drop(); // the topic moved to another group
+            }
+            send(Verb.JOIN, header.topic, body.getBytes(StandardCharsets.US_ASCII)); // joined, no more unicast
+        } catch (IOException | RuntimeException e) {
+            logger.log(WARNING, "cannot join the multicast group of " + header.topic + ": " + body, e);
+        }
+    }
+
+    private void leave(String topic) {
+        InetSocketAddress group = groupByTopic.remove(topic);
+        if (group != null && !groupByTopic.containsValue(group)) {
+            groups.remove(group).drop();
+        }
+    }
+
+    private void leaveGroups() {
+        groups.values().forEach(MembershipKey::drop);
+        groups.clear();
+        groupByTopic.clear();
+    }
+
+    /**
+     * @return the interface this host uses to reach the broker, whose network segment the groups are expected on
+     */
+    private static NetworkInterface interfaceTowards(InetSocketAddress broker) throws IOException {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(broker); // no packet sent, only a route lookup
+            return NetworkInterface.getByInetAddress(probe.getLocalAddress());
+        }
+    }
+
+    private void sendNack(Object node, String topic, byte[] ranges) {
+        send(MessageCodec.encode(Verb.NACK, topic, ranges), (SocketAddress) node);
+    }
+
+    private void send(Verb verb, String topic, byte[] body) {
+        send(MessageCodec.encode(verb, topic, body), broker());
+    }
+
+    private void send(ByteBuffer msg, SocketAddress to) {
+        try {
+            if (channel.send(msg, to) == 0) {
+                logger.log(FINE, "send buffer full, " + MessageCodec.toString(msg) + " dropped");
+            }
+        } catch (IOException e) {
+            logger.log(FINE, "cannot send to " + to, e);
+        }
+    }
+}
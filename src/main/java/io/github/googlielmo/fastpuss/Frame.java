@@ -0,0 +1,25 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A decoded message: verb, topic and the raw (undecoded) body bytes, plus the sequence number of a {@link Verb#SEQ}.
+ */
+final class Frame {
+
+    final @NotNull Verb verb;
+    final @NotNull String topic;
+    final byte @NotNull [] body;
+    final long seq; // -1 unless SEQ
+
+    Frame(@NotNull Verb verb, @NotNull String topic, byte @NotNull [] body) {
+        this(verb, topic, body, -1);
+    }
+
+    Frame(@NotNull Verb verb, @NotNull String topic, byte @NotNull [] body, long seq) {
+        this.verb = verb;
+        this.topic = topic;
+        this.body = body;
+        this.seq = seq;
+    }
+}
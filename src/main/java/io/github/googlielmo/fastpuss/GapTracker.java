@@ -0,0 +1,188 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Subscriber side of reliable mode: detects gaps in the {@link Verb#SEQ} messages of each stream and builds the
+ * {@link Verb#NACK}s that ask for them again.
+ * <p>
+ * A stream is a topic as sent by one broker node (sequence numbers are per topic and per node). The first message
+ * received on a stream sets its starting point; when the broker drops the ring of a topic, the numbers of the stream
+ * jump ahead to a new {@link RetransmitRing#INCARNATION_SHIFT incarnation}, and nothing below its base is missing.
+ * A stream that goes back, to a lower incarnation or by more than {@link #RESTART_DISTANCE} numbers, neither into one
+ * of its gaps nor to a late message of its previous incarnation, comes from a restarted broker and starts over, as
+ * it does after {@link #reset}. A
+ * gap is NACKed once it is older than the NACK delay, which absorbs reordering, and again every NACK delay until it is
+ * filled or the retries run out, at which point its messages are counted as lost. Duplicates (a retransmission
+ * racing with a reordered original) are detected and dropped.
+ * <p>
+ * A loss is only detected when a later message of the same stream arrives. Not thread safe: meant for the thread
+ * receiving from one subscriber socket.
+ */
+final class GapTracker {
+
+    private static final int MAX_NACK_BODY = 1024;
+    /**
+     * How far back a stream may go before it is taken as a new one: well beyond the numbers a broker can retransmit
+     * within the NACK retries.
+     */
+    static final long RESTART_DISTANCE = 1 << 20;
+
+    private static final class Gap {
+        long to;
+        long due; // when to NACK next
+        int nacks;
+
+        Gap(long to, long due) {
+            this.to = to;
+            this.due = due;
+        }
+    }
+
+    private static final class Stream {
+        long highest;
+        long previous; // the highest before the last new incarnation, whose late messages are not a restart
+        final TreeMap<Long, Gap> gaps = new TreeMap<>(); // by first missing sequence number
+    }
+
+    interface NackSender {
+        void send(@NotNull Object source, @NotNull String topic, byte @NotNull [] ranges);
+    }
+
+    private final long nackDelayNanos;
+    private final int maxNacks;
+    private final Map<Object, Map<String, Stream>> streams = new HashMap<>();
+    private long lost;
+    private long repaired;
+
+    /**
+     * @param nackDelayNanos how long a gap may wait for reordered messages before being NACKed, and between NACKs
+     * @param maxNacks       how many times a gap is NACKed before its messages are given up
+     */
+    GapTracker(long nackDelayNanos, int maxNacks) {
+        this.nackDelayNanos = nackDelayNanos;
+        this.maxNacks = maxNacks;
+    }
+
+    /**
+     * @param source the broker node the message comes from
+     * @return {@code false} if the message is a duplicate and must be dropped
+     */
+    boolean onMessage(@NotNull Object source, @NotNull String topic, long seq, long now) {
+        Stream s = streams.computeIfAbsent(source, k -> new HashMap<>()).computeIfAbsent(topic, k -> new Stream());
+        if (s.highest == 0) {
+            s.highest = seq;
+            return true;
+        }
+        if (seq > s.highest) {
+            long base = seq >>> RetransmitRing.INCARNATION_SHIFT << RetransmitRing.INCARNATION_SHIFT;
+            if (base > s.highest) {
+                s.previous = s.highest;
+            }
+            s.highest = Math.max(s.highest, base - 1); // a new incarnation: nothing below its base is missing
+            if (seq > s.highest + 1) {
+                s.gaps.put(s.highest + 1, new Gap(seq - 1, now + nackDelayNanos));
+            }
+            s.highest = seq;
+            return true;
+        }
+        Map.Entry<Long, Gap> e = s.gaps.floorEntry(seq);
+        if (e == null || e.getValue().to < seq) {
+            if (!isLate(seq, s.previous) && (s.highest - seq > RESTART_DISTANCE
+                    || seq >>> RetransmitRing.INCARNATION_SHIFT < s.highest >>> RetransmitRing.INCARNATION_SHIFT)) {
+                s.gaps.clear(); // the broker restarted, what it missed will not be retransmitted
+                s.highest = seq;
+                s.previous = 0;
+                return true;
+            }
+            return false; // already received
+        }
+        long from = e.getKey();
+        Gap gap = e.getValue();
+        s.gaps.remove(from);
+        if (from < seq) {
+            Gap before = new Gap(seq - 1, gap.due);
+            before.nacks = gap.nacks;
+            s.gaps.put(from, before);
+        }
+        if (seq < gap.to) {
+            s.gaps.put(seq + 1, gap); // keeps its schedule
+        }
+        repaired++;
+        return true;
+    }
+
+    private static boolean isLate(long seq, long previous) {
+        return seq <= previous && previous - seq <= RESTART_DISTANCE
+                && seq >>> RetransmitRing.INCARNATION_SHIFT == previous >>> RetransmitRing.INCARNATION_SHIFT;
+    }
+
+    /**
+     * Forget the streams of a source, e.g. a broker that restarted: its next messages start new streams.
+     */
+    void reset(@NotNull Object source) {
+        streams.remove(source);
+    }
+
+    /**
+     * Send a NACK for each stream with gaps that are due, giving up on the gaps NACKed too many times.
+     */
+    void nack(long now, @NotNull NackSender sender) {
+        StringBuilder ranges = new StringBuilder();
+        for (Map.Entry<Object, Map<String, Stream>> bySource : streams.entrySet()) {
+            for (Map.Entry<String, Stream> byTopic : bySource.getValue().entrySet()) {
+                Iterator<Map.Entry<Long, Gap>> it = byTopic.getValue().gaps.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Long, Gap> e = it.next();
+                    Gap gap = e.getValue();
+                    if (gap.due - now > 0) {
+                        continue;
+                    }
+                    if (gap.nacks == maxNacks) {
+                        lost += gap.to - e.getKey() + 1;
+                        it.remove();
+                        continue;
+                    }
+                    gap.nacks++;
+                    gap.due = now + nackDelayNanos;
+                    ranges.append(e.getKey());
+                    if (gap.to > e.getKey()) {
+                        ranges.append('-').append(gap.to);
+                    }
+                    ranges.append(' ');
+                    if (ranges.length() > MAX_NACK_BODY) {
+                        flush(bySource.getKey(), byTopic.getKey(), ranges, sender);
+                    }
+                }
+                flush(bySource.getKey(), byTopic.getKey(), ranges, sender);
+            }
+        }
+    }
+
+    private static void flush(Object source, String topic, StringBuilder ranges, NackSender sender) {
+        if (ranges.length() > 0) {
+            sender.send(source, topic, ranges.toString().trim().getBytes(StandardCharsets.US_ASCII));
+            ranges.setLength(0);
+        }
+    }
+
+    /**
+     * @return number of messages given up after too many NACKs
+     */
+    long lost() {
+        return lost;
+    }
+
+    /**
+     * @return number of missing messages received late, retransmitted or reordered
+     */
+    long repaired() {
+        return repaired;
+    }
+}
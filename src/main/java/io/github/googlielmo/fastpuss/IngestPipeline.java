@@ -0,0 +1,166 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * The stages between the receive loops and the subscribers.
+ * <p>
+ * Receive loops decode each datagram and {@link #submit} the frame to a {@link BoundedQueue}; a fixed number of
+ * workers take frames off the queue, match them and send them (large fan-outs are further handed to the
+ * {@link FanOutEngine} senders). The queue bounds both the memory and the number of threads the broker uses under a
+ * burst: when it is full, the {@link OverloadPolicy} decides what is dropped, and drops are counted in
+ * {@link BrokerMetrics}.
+ * <p>
+ * Idle workers spin briefly, then park until a receive loop wakes them up.
+ */
+class IngestPipeline {
+
+    interface Handler {
+        void handle(Frame frame, int client, long received);
+    }
+
+    private static final class Task {
+        final Frame frame;
+        final int client;
+        final long received;
+
+        Task(Frame frame, int client, long received) {
+            this.frame = frame;
+            this.client = client;
+            this.received = received;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger("IngestPipeline");
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 1_000_000; // safety net only, workers are unparked on submit
+
+    private final BoundedQueue<Task> queue;
+    private final OverloadPolicy policy;
+    private final int publishWatermark;
+    private final Handler handler;
+    private final BrokerMetrics metrics;
+    private final int workers;
+    private final AtomicReferenceArray<Thread> idle;
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger nextToWake = new AtomicInteger();
+
+    /**
+     * @param workers  number of worker loops
+     * @param capacity max number of queued frames
+     * @param policy   what to drop when the queue is full
+     * @param handler  invoked by the workers for each frame
+     * @param metrics  where drops are counted
+     */
+    IngestPipeline(int workers, int capacity, @NotNull OverloadPolicy policy, @NotNull Handler handler,
+                   @NotNull BrokerMetrics metrics) {
+        this.queue = new BoundedQueue<>(capacity);
+        this.policy = policy;
+        this.publishWatermark = queue.capacity() - queue.capacity() / 4;
+        this.handler = handler;
+        this.metrics = metrics;
+        this.workers = workers;
+        this.idle = new AtomicReferenceArray<>(workers);
+    }
+
+    /**
+     * Start the worker loops, each as a long-running task of {@code executor}.
+     */
+    void start(@NotNull ExecutorService executor) {
+        for (int i = 0; i < workers; i++) {
+            int slot = i;
+            executor.execute(() -> work(slot));
+        }
+    }
+
+    /**
+     * Queue a frame for the workers, or drop it according to the overload policy. Never blocks.
+     *
+     * @return {@code false} if the frame was dropped
+     */
+    boolean submit(@NotNull Frame frame, int client, long received) {
+        Task task = new Task(frame, client, received);
+        boolean queued;
+        switch (policy) {
+            case DROP_OLDEST:
+                queued = queue.offer(task);
+                while (!queued) {
+                    if (queue.poll() != null) {
+                        metrics.overloadDrops.increment();
+                    }
+                    queued = queue.offer(task);
+                }
+                break;
+            case PREFER_SUBSCRIPTIONS:
+                boolean control = frame.verb == Verb.SUB || frame.verb == Verb.UNSUB;
+                queued = (control || queue.size() < publishWatermark) && queue.offer(task);
+                break;
+            default:
+                queued = queue.offer(task);
+        }
+        if (!queued) {
+            metrics.overloadDrops.increment();
+            return false;
+        }
+        if (idleCount.get() > 0) {
+            wakeOne();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of frames waiting for a worker
+     */
+    int depth() {
+        return queue.size();
+    }
+
+    private void wakeOne() {
+        int start = nextToWake.getAndIncrement();
+        for (int i = 0; i < workers; i++) {
+            Thread t = idle.getAndSet(Math.floorMod(start + i, workers), null);
+            if (t != null) {
+                idleCount.decrementAndGet();
+                LockSupport.unpark(t);
+                return;
+            }
+        }
+    }
+
+    private void work(int slot) {
+        Thread self = Thread.currentThread();
+        int spins = 0;
+        while (!self.isInterrupted()) {
+            Task task = queue.poll();
+            if (task != null) {
+                spins = 0;
+                try {
+                    handler.handle(task.frame, task.client, task.received);
+                } catch (RuntimeException e) {
+                    logger.log(SEVERE, "error handling " + task.frame.verb + " " + task.frame.topic, e);
+                }
+            } else if (spins < SPINS) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                idle.set(slot, self);
+                idleCount.incrementAndGet();
+                if (queue.isEmpty()) { // re-check, a submit may have missed us
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                if (idle.getAndSet(slot, null) != null) {
+                    idleCount.decrementAndGet();
+                }
+                spins = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Streams the journaled messages of a topic filter to the subscribers that asked for them with a REPLAY, see
+ * {@link PublishJournal}.
+ * <p>
+ * One thread serves all the replays in ticks of {@value #TICK_MILLIS} ms, each replay sending its share of the rate
+ * as plain MSGs. A replay ends with the last message committed when it started, so that it doesn't run into the live
+ * messages the subscriber gets meanwhile. A new REPLAY from the same subscriber for the same filter replaces the
+ * previous one.
+ */
+final class JournalReplayer implements Closeable {
+
+    private static final Logger logger = Logger.getLogger("JournalReplayer");
+    private static final int TICK_MILLIS = 10;
+    private static final int MAX_SCANNED_PER_TICK = 16 * 1024; // bounds a tick when few messages match
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private final double perTick;
+    private final Supplier<DatagramEndpoint> channels;
+    private final BrokerMetrics metrics;
+    private final Map<String, Replay> replays = new ConcurrentHashMap<>(); // by subscriber and filter
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fastpuss-replay");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param perSecond max number of messages sent per second to each subscriber
+     * @param channels  the channel to send from
+     */
+    JournalReplayer(int perSecond, @NotNull Supplier<DatagramEndpoint> channels, @NotNull BrokerMetrics metrics) {
+        this.perTick = perSecond * TICK_MILLIS / 1000.0;
+        this.channels = channels;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start sending the messages matching {@code filter} from {@code cursor} up to the offset {@code until} included.
+     */
+    void start(@NotNull String filter, @NotNull PublishJournal.Cursor cursor, long until,
+               @NotNull InetSocketAddress subscriber) {
+        String key = subscriber + " " + filter;
+        Replay replay = new Replay(key, filter, cursor, until, subscriber);
+        Replay previous = replays.put(key, replay);
+        if (previous != null) {
+            previous.stop();
+        }
+        replay.future = timer.scheduleAtFixedRate(replay, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        if (replay.done) { // finished before its future was set
+            replay.future.cancel(false);
+        }
+    }
+
+    /**
+     * @return the number of replays in progress
+     */
+    int active() {
+        return replays.size();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private final class Replay implements Runnable {
+        private final String key;
+        private final String filter;
+        private final boolean wildcard;
+        private final PublishJournal.Cursor cursor;
+        private final long until;
+        private final InetSocketAddress subscriber;
+        private final ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean done;
+        private double credit;
+
+        Replay(String key, String filter, PublishJournal.Cursor cursor, long until, InetSocketAddress subscriber) {
+            this.key = key;
+            this.filter = filter;
+            this.wildcard = TopicFilter.isWildcard(filter);
+            this.cursor = cursor;
+            this.until = until;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void run() {
+            if (done) {
+                return;
+            }
+            credit = Math.min(credit + perTick, Math.max(perTick, 1));
+            DatagramEndpoint channel = channels.get();
+            for (int scanned = 0; credit >= 1 && scanned < MAX_SCANNED_PER_TICK; scanned++) {
+                PublishJournal.Entry e = cursor.next();
+                if (e == null || e.offset > until) {
+                    finish();
+                    return;
+                }
+                if (wildcard ? !TopicFilter.matches(filter, e.topic) : !filter.equals(e.topic)) {
+                    continue;
+                }
+                out.clear();
+                if (!MessageCodec.encode(out, Verb.MSG, e.topic, e.body)) {
+                    continue;
+                }
+                credit--;
+                try {
+                    channel.send(out.flip(), subscriber);
+                    metrics.replayed.increment();
+                    metrics.packetsOut.increment();
+                } catch (IOException ex) {
+                    metrics.sendErrors.increment();
+                    logger.log(FINE, "cannot replay to " + subscriber + ", replay stopped", ex);
+                    finish();
+                    return;
+                }
+            }
+        }
+
+        private void finish() {
+            stop();
+            replays.remove(key, this);
+        }
+
+        void stop() {
+            done = true;
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * HDR-style histogram of non-negative values, typically latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two is split into {@value #SUB_BUCKETS} sub-buckets, so
+ * that any value is reported with a relative error below 1/{@value #SUB_BUCKETS} across the whole range of
+ * {@code long}, with a fixed footprint of about 120 KB. Recording is O(1) and allocation-free. Instances are not
+ * thread-safe: record from one thread each and {@link #add(LatencyHistogram) merge} them to report.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final int subBucketBits;
+    private final long[] counts;
+    private long count;
+    private long sum;
+    private long max;
+
+    public LatencyHistogram() {
+        this(SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param subBucketBits log2 of the number of sub-buckets per power of two, trading precision for footprint
+     */
+    LatencyHistogram(int subBucketBits) {
+        this.subBucketBits = subBucketBits;
+        this.counts = new long[buckets(subBucketBits)];
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value: " + value);
+        }
+        counts[index(value, subBucketBits)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add the values recorded by {@code other}, which must have the same precision, to this histogram.
+     */
+    public void add(@NotNull LatencyHistogram other) {
+        if (other.subBucketBits != subBucketBits) {
+            throw new IllegalArgumentException("precision mismatch");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Add {@code n} values to a bucket, for histograms recorded elsewhere; {@code sum} and {@code max} are updated
+     * separately with {@link #addTotals(long, long)}.
+     */
+    void addBucket(int index, long n) {
+        counts[index] += n;
+        count += n;
+    }
+
+    void addTotals(long sum, long max) {
+        this.sum += sum;
+        this.max = Math.max(this.max, max);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the smallest recorded value such that {@code percentile}% of the values are not greater than it, within
+     * the precision of the histogram; 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestEquivalent(i, subBucketBits));
+            }
+        }
+        return max;
+    }
+
+    static int buckets(int subBucketBits) {
+        return (64 - subBucketBits + 1) << subBucketBits;
+    }
+
+    static int index(long value) {
+        return index(value, SUB_BUCKET_BITS);
+    }
+
+    static int index(long value, int subBucketBits) {
+        if (value < 1L << subBucketBits) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return (shift << subBucketBits) + (int) (value >>> shift);
+    }
+
+    static long highestEquivalent(int index) {
+        return highestEquivalent(index, SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return the highest value counted in the bucket
+     */
+    static long highestEquivalent(int index, int subBucketBits) {
+        int subBuckets = 1 << subBucketBits;
+        if (index < 2 * subBuckets) {
+            return index;
+        }
+        int shift = (index >>> subBucketBits) - 1;
+        long lowest = (long) (index & (subBuckets - 1) | subBuckets) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
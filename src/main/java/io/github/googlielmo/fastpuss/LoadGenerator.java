@@ -0,0 +1,561 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Open-loop load generator, measuring end-to-end delivery latency and loss through a running broker.
+ * <p>
+ * Thousands of simulated subscribers, each with its own {@link DatagramEndpoint}, are polled by a few receiver threads,
+ * over UDP or, with {@link Config#transport}, the {@link MemoryTransport} of a broker in the same JVM. Publisher
+ * threads send PUBs at a fixed aggregate rate whatever the broker does: each message carries the
+ * {@link System#nanoTime()} it was <em>scheduled</em> to be sent at, not the one it was actually sent at, so that a
+ * stalled sender can't hide the delay it caused (coordinated omission). Subscribers record the time from that schedule
+ * to reception, which is meaningful because publishers and subscribers share the JVM.
+ * <p>
+ * Loss is the share of expected deliveries, i.e. of (message, subscriber of its topic) pairs, that never arrived.
+ * Both are only measured after the warm-up.
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = Logger.getLogger("LoadGenerator");
+    static final String TOPIC_PREFIX = "load/";
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long NACK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long NACK_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(50); // when no endpoint had anything
+    private static final int MAX_NACKS = 5;
+
+    public static class Config {
+        InetSocketAddress broker = new InetSocketAddress(InetAddress.getLoopbackAddress(), 10000);
+        int rate = 10_000; // messages per second, all publishers together
+        int warmupSeconds = 5;
+        int seconds = 30;
+        int topics = 1000;
+        double zipfExponent; // 0 for uniform popularity
+        int clients = 1000;
+        int topicsPerClient = 10;
+        int publishers = 2;
+        int receivers = 2;
+        int bodySize = 64;
+        int subscribeRate = 5_000; // SUB and UNSUB per second, before and after the test
+        Transport transport = new SocketTransport();
+
+        public Config broker(@NotNull InetSocketAddress broker) {
+            this.broker = broker;
+            return this;
+        }
+
+        /**
+         * Where the clients and publishers get their endpoints from, UDP by default. A {@link MemoryTransport} only
+         * reaches a broker running on the same one, in this JVM.
+         */
+        public Config transport(@NotNull Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * @param messagesPerSecond aggregate publish rate, kept whatever the latency of the broker
+         */
+        public Config rate(int messagesPerSecond) {
+            check(messagesPerSecond > 0, "messagesPerSecond", messagesPerSecond);
+            this.rate = messagesPerSecond;
+            return this;
+        }
+
+        public Config duration(int warmupSeconds, int seconds) {
+            check(warmupSeconds >= 0, "warmupSeconds", warmupSeconds);
+            check(seconds > 0, "seconds", seconds);
+            this.warmupSeconds = warmupSeconds;
+            this.seconds = seconds;
+            return this;
+        }
+
+        /**
+         * @param zipfExponent 0 for uniform topic popularity, otherwise the exponent of a Zipf distribution
+         */
+        public Config topics(int topics, double zipfExponent) {
+            check(topics > 0, "topics", topics);
+            check(zipfExponent >= 0, "zipfExponent", zipfExponent);
+            this.topics = topics;
+            this.zipfExponent = zipfExponent;
+            return this;
+        }
+
+        /**
+         * @param clients         simulated subscribers, each with its own endpoint
+         * @param topicsPerClient topics each of them subscribes to, picked with the topic popularity distribution
+         */
+        public Config clients(int clients, int topicsPerClient) {
+            check(clients > 0, "clients", clients);
+            check(topicsPerClient > 0, "topicsPerClient", topicsPerClient);
+            this.clients = clients;
+            this.topicsPerClient = topicsPerClient;
+            return this;
+        }
+
+        public Config threads(int publishers, int receivers) {
+            check(publishers > 0, "publishers", publishers);
+            check(receivers > 0, "receivers", receivers);
+            this.publishers = publishers;
+            this.receivers = receivers;
+            return this;
+        }
+
+        public Config bodySize(int bodySize) {
+            check(bodySize >= 0, "bodySize", bodySize);
+            this.bodySize = bodySize;
+            return this;
+        }
+
+        /**
+         * @param perSecond how fast to send the SUB and UNSUB messages of all the clients, which are not retried
+         */
+        public Config subscribeRate(int perSecond) {
+            check(perSecond > 0, "perSecond", perSecond);
+            this.subscribeRate = perSecond;
+            return this;
+        }
+
+        private static void check(boolean valid, String name, Object value) {
+            if (!valid) {
+                throw new IllegalArgumentException(name + ": " + value);
+            }
+        }
+    }
+
+    public static class Report {
+        public final LatencyHistogram latency;
+        public final long published; // after the warm-up
+        public final long expected;
+        public final long delivered;
+        public final long repaired; // delivered after a NACK, in reliable mode
+        private final double[] clientLoss; // sorted
+
+        Report(LatencyHistogram latency, long published, long expected, long delivered, long repaired,
+               double[] clientLoss) {
+            this.latency = latency;
+            this.published = published;
+            this.expected = expected;
+            this.delivered = delivered;
+            this.repaired = repaired;
+            this.clientLoss = clientLoss;
+        }
+
+        public double loss() {
+            return expected == 0 ? 0 : 1 - (double) delivered / expected;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the loss rate of the subscriber at the given percentile, from the least to the most affected
+         */
+        public double clientLoss(double percentile) {
+            if (clientLoss.length == 0) {
+                return 0;
+            }
+            int i = (int) Math.ceil(percentile / 100 * clientLoss.length) - 1;
+            return clientLoss[Math.max(0, Math.min(clientLoss.length - 1, i))];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(String.format("published %d, expected deliveries %d, delivered %d, loss %.4f%%%n",
+                    published, expected, delivered, 100 * loss()));
+            if (repaired > 0) {
+                s.append(String.format("repaired by retransmission: %d%n", repaired));
+            }
+            s.append(String.format("subscriber loss: p50 %.4f%%, p99 %.4f%%, max %.4f%%%n",
+                    100 * clientLoss(50), 100 * clientLoss(99), 100 * clientLoss(100)));
+            s.append(String.format("latency (us): mean %.1f", latency.mean() / 1000));
+            for (String p : new String[]{"50", "90", "99", "99.9", "99.99"}) {
+                s.append(String.format(", p%s %.1f", p, latency.percentile(Double.parseDouble(p)) / 1000.0));
+            }
+            s.append(String.format(", max %.1f%n", latency.max() / 1000.0));
+            return s.toString();
+        }
+    }
+
+    private final Config config;
+    private final TopicDistribution distribution;
+
+    public LoadGenerator(@NotNull Config config) {
+        this.config = config;
+        this.distribution = config.zipfExponent > 0
+                ? TopicDistribution.zipf(config.topics, config.zipfExponent)
+                : TopicDistribution.uniform(config.topics);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.out.print(new LoadGenerator(parse(args)).run());
+    }
+
+    /**
+     * Parse options of the form {@code --name=value}, see {@link Config} for names and defaults.
+     */
+    @NotNull
+    static Config parse(@NotNull String[] args) {
+        Config config = new Config();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("expected --name=value: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "broker":
+                    int colon = value.lastIndexOf(':');
+                    config.broker(new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1))));
+                    break;
+                case "rate":
+                    config.rate(Integer.parseInt(value));
+                    break;
+                case "warmup":
+                    config.duration(Integer.parseInt(value), config.seconds);
+                    break;
+                case "seconds":
+                    config.duration(config.warmupSeconds, Integer.parseInt(value));
+                    break;
+                case "topics":
+                    config.topics(Integer.parseInt(value), config.zipfExponent);
+                    break;
+                case "zipf":
+                    config.topics(config.topics, Double.parseDouble(value));
+                    break;
+                case "clients":
+                    config.clients(Integer.parseInt(value), config.topicsPerClient);
+                    break;
+                case "topicsPerClient":
+                    config.clients(config.clients, Integer.parseInt(value));
+                    break;
+                case "publishers":
+                    config.threads(Integer.parseInt(value), config.receivers);
+                    break;
+                case "receivers":
+                    config.threads(config.publishers, Integer.parseInt(value));
+                    break;
+                case "subscribeRate":
+                    config.subscribeRate(Integer.parseInt(value));
+                    break;
+                case "bodySize":
+                    config.bodySize(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + name);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Subscribe the simulated clients, publish for the warm-up and the measured period, wait for late deliveries
+     * and unsubscribe.
+     */
+    @NotNull
+    public Report run() throws IOException, InterruptedException {
+        int[][] clientTopics = pickTopics();
+        DatagramEndpoint[] endpoints = new DatagramEndpoint[config.clients];
+        Receiver[] receivers = new Receiver[config.receivers];
+        try {
+            for (int c = 0; c < endpoints.length; c++) {
+                endpoints[c] = config.transport.bind(null, 0, false);
+            }
+            for (int r = 0; r < receivers.length; r++) {
+                receivers[r] = new Receiver(endpoints, r);
+            }
+
+            long start = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            long measureFrom = start + TimeUnit.SECONDS.toNanos(config.warmupSeconds);
+            long end = measureFrom + TimeUnit.SECONDS.toNanos(config.seconds);
+            List<Thread> threads = new ArrayList<>();
+            for (int r = 0; r < receivers.length; r++) {
+                receivers[r].origin = start;
+                receivers[r].measureFrom = measureFrom;
+                threads.add(start(receivers[r], "fastpuss-load-rx-" + r));
+            }
+            send(endpoints, clientTopics, Verb.SUB);
+
+            Publisher[] publishers = new Publisher[config.publishers];
+            List<Thread> publisherThreads = new ArrayList<>();
+            long interval = TimeUnit.SECONDS.toNanos(1) * config.publishers / config.rate;
+            for (int p = 0; p < publishers.length; p++) {
+                publishers[p] = new Publisher(start, p * interval / publishers.length, interval, measureFrom, end, p);
+                publisherThreads.add(start(publishers[p], "fastpuss-load-tx-" + p));
+            }
+            for (Thread t : publisherThreads) {
+                t.join();
+            }
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(DRAIN_NANOS));
+            for (Receiver r : receivers) {
+                r.stop();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            send(endpoints, clientTopics, Verb.UNSUB);
+            return report(clientTopics, publishers, receivers);
+        } finally {
+            for (DatagramEndpoint endpoint : endpoints) {
+                if (endpoint != null) {
+                    endpoint.close();
+                }
+            }
+        }
+    }
+
+    private int[][] pickTopics() {
+        SplittableRandom random = new SplittableRandom(42);
+        int perClient = Math.min(config.topicsPerClient, config.topics);
+        int[][] clientTopics = new int[config.clients][];
+        for (int c = 0; c < config.clients; c++) {
+            int[] topics = new int[perClient];
+            for (int i = 0, attempts = 0; i < perClient; attempts++) {
+                // popular topics get more subscribers; give up on the distribution if it keeps repeating itself
+                int t = attempts < 100 * perClient ? distribution.next(random) : random.nextInt(config.topics);
+                if (!contains(topics, i, t)) {
+                    topics[i++] = t;
+                }
+            }
+            clientTopics[c] = topics;
+        }
+        return clientTopics;
+    }
+
+    private static boolean contains(int[] a, int len, int value) {
+        for (int i = 0; i < len; i++) {
+            if (a[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send SUB or UNSUB for all the clients' topics, paced so as not to overflow the broker's receive buffer.
+     */
+    private void send(DatagramEndpoint[] endpoints, int[][] clientTopics, Verb verb)
+            throws IOException, InterruptedException {
+        long interval = TimeUnit.SECONDS.toNanos(1) / config.subscribeRate;
+        long next = System.nanoTime();
+        for (int c = 0; c < endpoints.length; c++) {
+            for (int t : clientTopics[c]) {
+                ByteBuffer packet = MessageCodec.encode(verb, TOPIC_PREFIX + t, new byte[0]);
+                while (endpoints[c].send(packet, config.broker) == 0) {
+                    LockSupport.parkNanos(interval); // polled, hence non-blocking, endpoint: send buffer full
+                }
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }
+        Thread.sleep(500); // let the broker apply them
+    }
+
+    private Report report(int[][] clientTopics, Publisher[] publishers, Receiver[] receivers) {
+        long[] published = new long[config.topics];
+        for (Publisher p : publishers) {
+            for (int t = 0; t < published.length; t++) {
+                published[t] += p.published[t];
+            }
+        }
+        long[] delivered = new long[config.clients];
+        LatencyHistogram latency = new LatencyHistogram();
+        long repaired = 0;
+        for (Receiver r : receivers) {
+            latency.add(r.latency);
+            repaired += r.gaps.repaired();
+            for (int c = 0; c < delivered.length; c++) {
+                delivered[c] += r.delivered[c];
+            }
+        }
+        long totalPublished = Arrays.stream(published).sum();
+        long totalExpected = 0;
+        long totalDelivered = 0;
+        double[] clientLoss = new double[config.clients];
+        for (int c = 0; c < config.clients; c++) {
+            long expected = 0;
+            for (int t : clientTopics[c]) {
+                expected += published[t];
+            }
+            totalExpected += expected;
+            totalDelivered += delivered[c];
+            clientLoss[c] = expected == 0 ? 0 : Math.max(0, 1 - (double) delivered[c] / expected);
+        }
+        Arrays.sort(clientLoss);
+        return new Report(latency, totalPublished, totalExpected, totalDelivered, repaired, clientLoss);
+    }
+
+    private static Thread start(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Sends at fixed intervals from {@code origin + offset}, catching up without skipping when it falls behind.
+     */
+    private class Publisher implements Runnable {
+        final long[] published = new long[config.topics]; // after the warm-up
+        private final long origin;
+        private final long first;
+        private final long interval;
+        private final long measureFrom;
+        private final long end;
+        private final SplittableRandom random;
+
+        Publisher(long origin, long offset, long interval, long measureFrom, long end, int seed) {
+            this.origin = origin;
+            this.first = origin + offset;
+            this.interval = interval;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.random = new SplittableRandom(seed);
+        }
+
+        @Override
+        public void run() {
+            byte[] padding = new byte[config.bodySize];
+            Arrays.fill(padding, (byte) 'x');
+            try (DatagramEndpoint endpoint = config.transport.bind(null, 0, false)) {
+                for (long scheduled = first; scheduled < end; scheduled += interval) {
+                    long wait = scheduled - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    int topic = distribution.next(random);
+                    byte[] stamp = (topic + " " + (scheduled - origin) + " ").getBytes(StandardCharsets.US_ASCII);
+                    byte[] body = Arrays.copyOf(stamp, stamp.length + padding.length);
+                    System.arraycopy(padding, 0, body, stamp.length, padding.length);
+                    endpoint.send(MessageCodec.encode(Verb.PUB, TOPIC_PREFIX + topic, body), config.broker);
+                    if (scheduled >= measureFrom) {
+                        published[topic]++;
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(WARNING, "publisher failed", e);
+            }
+        }
+    }
+
+    /**
+     * Polls the endpoints of every {@code step}-th client from {@code first}, parking a little when none had anything.
+     */
+    private class Receiver implements Runnable {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final long[] delivered = new long[config.clients]; // only the entries of this receiver's clients are used
+        // in reliable mode: gaps of each client (the source), NACKed from its endpoint
+        final GapTracker gaps = new GapTracker(NACK_DELAY_NANOS, MAX_NACKS);
+        private final DatagramEndpoint[] endpoints;
+        private final int first;
+        private final int step;
+        long origin;
+        long measureFrom;
+        private volatile boolean stopped;
+
+        Receiver(DatagramEndpoint[] endpoints, int first) {
+            this.endpoints = endpoints;
+            this.first = first;
+            this.step = config.receivers;
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+            long nextNack = System.nanoTime();
+            try {
+                while (!stopped) {
+                    boolean idle = true;
+                    for (int client = first; client < endpoints.length; client += step) {
+                        while (endpoints[client].receive(buf.clear(), 0) != null) {
+                            onMessage(client, buf.flip(), System.nanoTime());
+                            idle = false;
+                        }
+                    }
+                    long now = System.nanoTime();
+                    if (now - nextNack >= 0) {
+                        gaps.nack(now, this::sendNack);
+                        nextNack = now + NACK_CHECK_NANOS;
+                    }
+                    if (idle) {
+                        LockSupport.parkNanos(IDLE_NANOS);
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(WARNING, "receiver failed", e);
+            }
+        }
+
+        private void onMessage(int client, ByteBuffer packet, long now) {
+            if (MessageCodec.isBatch(packet)) { // coalesced by the broker
+                List<Frame> frames = MessageCodec.decodeBatch(packet);
+                if (frames != null) {
+                    frames.forEach(frame -> onFrame(client, frame, now));
+                }
+                return;
+            }
+            Frame frame = MessageCodec.decode(packet);
+            if (frame != null) {
+                onFrame(client, frame, now);
+            }
+        }
+
+        private void sendNack(Object client, String topic, byte[] ranges) {
+            try {
+                endpoints[(Integer) client].send(MessageCodec.encode(Verb.NACK, topic, ranges), config.broker);
+            } catch (IOException e) {
+                logger.log(FINE, "cannot send NACK", e);
+            }
+        }
+
+        private void onFrame(int client, Frame frame, long now) {
+            if (frame.verb == Verb.SEQ) {
+                if (!gaps.onMessage(client, frame.topic, frame.seq, now)) {
+                    return; // duplicate
+                }
+            } else if (frame.verb != Verb.MSG) {
+                return;
+            }
+            // body: topic index, scheduled time since the origin, padding
+            byte[] body = frame.body;
+            int i = 0;
+            while (i < body.length && body[i] != ' ') {
+                i++;
+            }
+            long scheduled = 0;
+            for (i++; i < body.length && body[i] != ' '; i++) {
+                scheduled = scheduled * 10 + (body[i] - '0');
+            }
+            scheduled += origin;
+            if (scheduled >= measureFrom) {
+                latency.record(Math.max(0, now - scheduled));
+                delivered[client]++;
+            }
+        }
+    }
+}
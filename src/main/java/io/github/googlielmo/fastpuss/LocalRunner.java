@@ -1,42 +1,54 @@
 package io.github.googlielmo.fastpuss;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.INFO;
 
+/**
+ * Runs a broker and a {@link LoadGenerator} against it in the same JVM, then prints the latency and loss report.
+ * Arguments are passed to the load generator, see {@link LoadGenerator#parse(String[])}, except for
+ * {@code --memory=<seed>}, which runs both on a {@link MemoryTransport} instead of UDP.
+ */
 public class LocalRunner {
 
-    public static final int NUM_PUBS = 20;
-    public static final int NUM_SUBS = 200;
-
     private static final Logger logger = Logger.getLogger("LocalRunner");
 
-    public static void main(String[] args) {
-        new LocalRunner().simulate();
+    public static void main(String[] args) throws IOException, InterruptedException {
+        new LocalRunner().simulate(args);
+        System.exit(0); // the broker threads never end
     }
 
-    private void simulate() {
+    private void simulate(String[] args) throws IOException, InterruptedException {
+        List<String> loadArgs = new ArrayList<>();
+        BrokerConfig brokerConfig = new BrokerConfig();
+        MemoryTransport memory = null;
+        for (String arg : args) {
+            if (arg.startsWith("--memory=")) {
+                memory = new MemoryTransport(Long.parseLong(arg.substring("--memory=".length())));
+                brokerConfig.transport(memory);
+            } else {
+                loadArgs.add(arg);
+            }
+        }
+        LoadGenerator.Config config = LoadGenerator.parse(loadArgs.toArray(new String[0]));
+        if (memory != null) {
+            config.transport(memory);
+        }
         ExecutorService executorService = Executors.newCachedThreadPool();
 
         executorService.execute(() -> {
-            MessageBroker messageBroker = new MessageBroker();
+            MessageBroker messageBroker = new MessageBroker(config.broker.getPort(), Executors.newCachedThreadPool(),
+                    new ThreadSafeSubscriberManager(), brokerConfig);
             messageBroker.broker();
         });
+        Thread.sleep(500); // let the broker bind its port
 
-
-        for (int i = 0; i < NUM_SUBS; i++) {
-            int port = 10001 + i;
-            logger.log(INFO, "starting subscriber on port " + port);
-            executorService.execute(new MessageSubscriber(port));
-        }
-
-        for (int i = 0; i < NUM_PUBS; i++) {
-            int port = 11000 + i;
-            logger.log(INFO, "starting publisher on port " + port);
-            executorService.execute(new MessagePublisher(port));
-        }
+        logger.log(INFO, "starting load generator");
+        System.out.print(new LoadGenerator(config).run());
     }
-
 }
@@ -0,0 +1,661 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A network inside the JVM, to run brokers, clusters and any number of simulated clients in one process without
+ * going through the kernel or taking real ports.
+ * <p>
+ * Datagrams are copied into the lock-free inbox of the receiving endpoint, and the receiver is unparked if it waits.
+ * The inbox holds up to the receive buffer size, beyond which datagrams are dropped, like a full socket buffer.
+ * Endpoints bound to the wildcard address get the datagrams sent to any host at their port, unless another endpoint
+ * is bound to that exact address; ephemeral endpoints get addresses of their own in 127.0.0.0/8, so that millions of
+ * them can coexist.
+ * <p>
+ * Each datagram may be lost, delayed by the latency plus a random jitter, and, with the reordering probability,
+ * delayed further so that later ones overtake it. Its fate only depends on the seed, the address of its sender and how
+ * many datagrams the sender sent before, so runs that send the same datagrams see the same losses and delays, though
+ * datagrams due at nearly the same time may still arrive in either order. Streams are lossless in-memory pipes.
+ * <p>
+ * Conditions can be changed at any time, e.g. to simulate a degraded network in the middle of a run.
+ */
+public final class MemoryTransport implements Transport {
+
+    private static final int DEFAULT_RECEIVE_BUFFER = 4 * 1024 * 1024;
+    private static final int FIRST_EPHEMERAL_PORT = 1024;
+    private static final int EPHEMERAL_PORTS = 65536 - FIRST_EPHEMERAL_PORT;
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    private final long seed;
+    private volatile double loss;
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private volatile double reorder;
+    private volatile long reorderNanos;
+
+    private final Map<InetSocketAddress, Endpoint[]> exact = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Endpoint[]> wildcard = new AtomicReferenceArray<>(65536); // by port
+    private final Map<InetSocketAddress, Listener> listeners = new ConcurrentHashMap<>();
+    private final AtomicLong ephemeral = new AtomicLong();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder unreachable = new LongAdder();
+
+    /**
+     * A perfect network: no loss, no latency, no reordering.
+     *
+     * @param seed seed of the simulated conditions
+     */
+    public MemoryTransport(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param probability probability that a datagram is lost
+     */
+    public MemoryTransport loss(double probability) {
+        if (!(probability >= 0 && probability <= 1)) {
+            throw new IllegalArgumentException("invalid loss probability: " + probability);
+        }
+        this.loss = probability;
+        return this;
+    }
+
+    /**
+     * @param latencyNanos time a datagram takes to arrive
+     * @param jitterNanos  max random time added to the latency of each datagram, which reorders close datagrams
+     */
+    public MemoryTransport latency(long latencyNanos, long jitterNanos) {
+        if (latencyNanos < 0 || jitterNanos < 0) {
+            throw new IllegalArgumentException("invalid latency: " + latencyNanos + ", jitter " + jitterNanos);
+        }
+        this.latencyNanos = latencyNanos;
+        this.jitterNanos = jitterNanos;
+        return this;
+    }
+
+    /**
+     * @param probability probability that a datagram is held back
+     * @param delayNanos  time a datagram is held back for, on top of its latency
+     */
+    public MemoryTransport reorder(double probability, long delayNanos) {
+        if (!(probability >= 0 && probability <= 1) || delayNanos < 0) {
+            throw new IllegalArgumentException("invalid reordering: " + probability + ", " + delayNanos);
+        }
+        this.reorder = probability;
+        this.reorderNanos = delayNanos;
+        return this;
+    }
+
+    /**
+     * @return the number of datagrams sent, whatever their fate
+     */
+    public long sent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return the number of datagrams received
+     */
+    public long delivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of datagrams lost on purpose, see {@link #loss(double)}
+     */
+    public long lost() {
+        return lost.sum();
+    }
+
+    /**
+     * @return the number of datagrams dropped because the receive buffer of their endpoint was full
+     */
+    public long overflowed() {
+        return overflowed.sum();
+    }
+
+    /**
+     * @return the number of datagrams sent to an address nothing was bound to
+     */
+    public long unreachable() {
+        return unreachable.sum();
+    }
+
+    @NotNull
+    @Override
+    public DatagramEndpoint bind(@Nullable InetSocketAddress local, int receiveBufferSize, boolean shared)
+            throws IOException {
+        int capacity = receiveBufferSize > 0 ? receiveBufferSize : DEFAULT_RECEIVE_BUFFER;
+        if (local == null || local.getPort() == 0) {
+            while (true) {
+                Endpoint e = new Endpoint(nextEphemeral(), capacity, false);
+                if (wildcard.get(e.address.getPort()) == null
+                        && exact.putIfAbsent(e.address, new Endpoint[]{e}) == null) {
+                    return e;
+                }
+            }
+        }
+        if (local.isUnresolved()) {
+            throw new UnknownHostException(local.getHostString());
+        }
+        boolean any = local.getAddress().isAnyLocalAddress();
+        InetSocketAddress address = any ? new InetSocketAddress(InetAddress.getLoopbackAddress(), local.getPort()) : local;
+        Endpoint e = new Endpoint(address, capacity, shared);
+        e.wildcard = any;
+        Endpoint[] current;
+        Endpoint[] grown;
+        do {
+            current = any ? wildcard.get(local.getPort()) : exact.get(local);
+            if (current != null && !(shared && current[0].shared)) {
+                throw new BindException("Address already in use: " + local);
+            }
+            grown = current == null ? new Endpoint[]{e} : append(current, e);
+        } while (!(any ? wildcard.compareAndSet(local.getPort(), current, grown) : replace(local, current, grown)));
+        return e;
+    }
+
+    @Override
+    public boolean supportsSharedPorts() {
+        return true;
+    }
+
+    @NotNull
+    @Override
+    public StreamListener listen(@NotNull InetSocketAddress local) throws IOException {
+        InetSocketAddress address = local.getPort() == 0 ? nextEphemeral() : local;
+        Listener l = new Listener(address);
+        if (listeners.putIfAbsent(address, l) != null) {
+            throw new BindException("Address already in use: " + local);
+        }
+        return l;
+    }
+
+    @NotNull
+    @Override
+    public Stream connect(@NotNull InetSocketAddress remote) throws IOException {
+        Listener l = listeners.get(remote);
+        if (l == null) {
+            l = listeners.get(new InetSocketAddress(remote.getPort()));
+        }
+        if (l == null) {
+            throw new ConnectException("Connection refused: " + remote);
+        }
+        Pipe up = new Pipe();
+        Pipe down = new Pipe();
+        if (!l.connections.offer(new PipeStream(up, down, nextEphemeral())) || l.closed) {
+            throw new ConnectException("Connection refused: " + remote);
+        }
+        return new PipeStream(down, up, remote);
+    }
+
+    private InetSocketAddress nextEphemeral() throws UnknownHostException {
+        long n = ephemeral.getAndIncrement();
+        long host = n / EPHEMERAL_PORTS + 1;
+        if (host >= 1 << 24) {
+            throw new IllegalStateException("out of simulated addresses");
+        }
+        InetAddress address = InetAddress.getByAddress(new byte[]{127, (byte) (host >>> 16), (byte) (host >>> 8),
+                (byte) host});
+        return new InetSocketAddress(address, FIRST_EPHEMERAL_PORT + (int) (n % EPHEMERAL_PORTS));
+    }
+
+    private boolean replace(InetSocketAddress key, Endpoint[] current, Endpoint[] next) {
+        if (current == null) {
+            return next == null || exact.putIfAbsent(key, next) == null;
+        }
+        return next == null ? exact.remove(key, current) : exact.replace(key, current, next);
+    }
+
+    private static Endpoint[] append(Endpoint[] a, Endpoint e) {
+        Endpoint[] grown = Arrays.copyOf(a, a.length + 1);
+        grown[a.length] = e;
+        return grown;
+    }
+
+    private void unbind(Endpoint e) {
+        InetSocketAddress key = e.wildcard ? new InetSocketAddress(e.address.getPort()) : e.address;
+        Endpoint[] current;
+        Endpoint[] shrunk;
+        do {
+            current = e.wildcard ? wildcard.get(key.getPort()) : exact.get(key);
+            int i = current == null ? -1 : Arrays.asList(current).indexOf(e);
+            if (i < 0) {
+                return;
+            }
+            if (current.length == 1) {
+                shrunk = null;
+            } else {
+                shrunk = new Endpoint[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+            }
+        } while (e.wildcard ? !wildcard.compareAndSet(key.getPort(), current, shrunk)
+                : !replace(key, current, shrunk));
+    }
+
+    /**
+     * @return the endpoint {@code from} sends to at {@code to}, or {@code null}
+     */
+    private Endpoint route(InetSocketAddress to, InetSocketAddress from) {
+        Endpoint[] a = exact.get(to);
+        if (a == null) {
+            a = wildcard.get(to.getPort());
+            if (a == null) {
+                return null;
+            }
+        }
+        return a.length == 1 ? a[0] : a[Math.floorMod(from.hashCode(), a.length)];
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return a double in [0, 1)
+     */
+    private static double unit(long random) {
+        return (random >>> 11) * 0x1.0p-53;
+    }
+
+    private static final class Packet {
+        final byte[] data;
+        final InetSocketAddress from;
+        final long due; // nanoTime it can be received at
+        final boolean delayed;
+        long order; // arrival order, set by the receiver
+
+        Packet(byte[] data, InetSocketAddress from, long due, boolean delayed) {
+            this.data = data;
+            this.from = from;
+            this.due = due;
+            this.delayed = delayed;
+        }
+    }
+
+    private final class Endpoint implements DatagramEndpoint {
+        final InetSocketAddress address;
+        final int capacity;
+        final boolean shared;
+        boolean wildcard; // set before publication
+        private final long stream; // per-sender random stream
+        private final AtomicLong sequence = new AtomicLong();
+        private final Queue<Packet> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedBytes = new AtomicInteger();
+        private final Object receiveLock = new Object();
+        private final PriorityQueue<Packet> pending = new PriorityQueue<>((a, b) -> // guarded by receiveLock
+                a.due != b.due ? Long.signum(a.due - b.due) : Long.compare(a.order, b.order));
+        private long arrivals; // guarded by receiveLock
+        private volatile Thread waiter;
+        private volatile boolean closed;
+
+        Endpoint(InetSocketAddress address, int capacity, boolean shared) {
+            this.address = address;
+            this.capacity = capacity;
+            this.shared = shared;
+            this.stream = mix(seed ^ mix(address.hashCode()));
+        }
+
+        @Override
+        public int send(@NotNull ByteBuffer src, @NotNull InetSocketAddress target) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            sent.increment();
+            int length = src.remaining();
+            long r = mix(stream + sequence.getAndIncrement() * 0x9e3779b97f4a7c15L);
+            double p = loss;
+            if (p > 0 && unit(r) < p) {
+                lost.increment();
+                src.position(src.limit());
+                return length;
+            }
+            long delay = latencyNanos;
+            long jitter = jitterNanos;
+            if (jitter > 0) {
+                delay += (long) (unit(mix(r + 1)) * (jitter + 1));
+            }
+            double q = reorder;
+            if (q > 0 && unit(mix(r + 2)) < q) {
+                delay += reorderNanos;
+            }
+            Endpoint to = route(target, address);
+            if (to == null) {
+                unreachable.increment();
+                src.position(src.limit());
+                return length;
+            }
+            byte[] data = new byte[length];
+            src.get(data);
+            to.deliver(new Packet(data, address, System.nanoTime() + delay, delay > 0));
+            return length;
+        }
+
+        private void deliver(Packet p) {
+            if (queuedBytes.addAndGet(p.data.length) > capacity) {
+                queuedBytes.addAndGet(-p.data.length);
+                overflowed.increment();
+                return;
+            }
+            inbox.offer(p);
+            Thread w = waiter;
+            if (w != null) {
+                LockSupport.unpark(w);
+            }
+        }
+
+        @NotNull
+        @Override
+        public InetSocketAddress receive(@NotNull ByteBuffer dst) throws IOException {
+            InetSocketAddress from = receive(dst, -1);
+            assert from != null;
+            return from;
+        }
+
+        @Nullable
+        @Override
+        public InetSocketAddress receive(@NotNull ByteBuffer dst, long timeoutMillis) throws IOException {
+            synchronized (receiveLock) {
+                long deadline = timeoutMillis < 0 ? 0
+                        : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (true) {
+                    if (closed) {
+                        throw new ClosedChannelException();
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        close();
+                        throw new ClosedByInterruptException();
+                    }
+                    long now = System.nanoTime();
+                    Packet p = next(now);
+                    if (p != null) {
+                        queuedBytes.addAndGet(-p.data.length);
+                        delivered.increment();
+                        dst.put(p.data, 0, Math.min(p.data.length, dst.remaining())); // truncated like UDP
+                        return p.from;
+                    }
+                    Packet head = pending.peek();
+                    long wait = head == null ? Long.MAX_VALUE : head.due - now;
+                    if (timeoutMillis >= 0) {
+                        if (deadline - now <= 0) {
+                            return null;
+                        }
+                        wait = Math.min(wait, deadline - now);
+                    }
+                    waiter = Thread.currentThread();
+                    if (inbox.isEmpty() && !closed) { // checked after publishing the waiter: no lost wakeup
+                        if (wait == Long.MAX_VALUE) {
+                            LockSupport.park(this);
+                        } else {
+                            LockSupport.parkNanos(this, wait);
+                        }
+                    }
+                    waiter = null;
+                }
+            }
+        }
+
+        /**
+         * @return the next datagram due, if any
+         */
+        private Packet next(long now) {
+            if (pending.isEmpty()) {
+                Packet p = inbox.peek();
+                if (p == null) {
+                    return null;
+                }
+                if (!p.delayed) {
+                    return inbox.poll(); // the only consumer: the same packet
+                }
+            }
+            for (Packet p; (p = inbox.poll()) != null; ) {
+                p.order = arrivals++;
+                pending.add(p);
+            }
+            Packet head = pending.peek();
+            return head != null && head.due - now <= 0 ? pending.poll() : null;
+        }
+
+        @NotNull
+        @Override
+        public InetSocketAddress localAddress() {
+            return wildcard ? new InetSocketAddress(address.getPort()) : address;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            unbind(this);
+            Thread w = waiter;
+            if (w != null) {
+                LockSupport.unpark(w);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "memory endpoint " + address;
+        }
+    }
+
+    private final class Listener implements StreamListener {
+        final InetSocketAddress address;
+        final BlockingQueue<Stream> connections = new LinkedBlockingQueue<>();
+        volatile boolean closed;
+
+        Listener(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        @NotNull
+        @Override
+        public Stream accept() throws IOException {
+            try {
+                Stream s = connections.take();
+                if (s == CLOSED) {
+                    connections.offer(CLOSED); // for the other threads accepting
+                    throw new SocketException("Socket closed");
+                }
+                return s;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("accept interrupted");
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            listeners.remove(address, this);
+            connections.offer(CLOSED);
+        }
+    }
+
+    private static final Stream CLOSED = new PipeStream(new Pipe(), new Pipe(), new InetSocketAddress(0));
+
+    private static final class PipeStream implements Stream {
+        private final Pipe.In in;
+        private final Pipe.Out out;
+        private final InetSocketAddress remote;
+
+        PipeStream(Pipe in, Pipe out, InetSocketAddress remote) {
+            this.in = in.new In();
+            this.out = out.new Out();
+            this.remote = remote;
+        }
+
+        @NotNull
+        @Override
+        public InputStream in() {
+            return in;
+        }
+
+        @NotNull
+        @Override
+        public OutputStream out() {
+            return out;
+        }
+
+        @NotNull
+        @Override
+        public InetSocketAddress remoteAddress() {
+            return remote;
+        }
+
+        @Override
+        public void close() {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * One direction of a stream: a bounded ring of bytes.
+     */
+    private static final class Pipe {
+        private final byte[] ring = new byte[PIPE_CAPACITY];
+        private int head; // guarded by this
+        private int count; // guarded by this
+        private boolean readerClosed; // guarded by this
+        private boolean writerClosed; // guarded by this
+
+        final class In extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte @NotNull [] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                synchronized (Pipe.this) {
+                    while (count == 0 && !writerClosed) {
+                        if (readerClosed) {
+                            throw new IOException("Stream closed");
+                        }
+                        await();
+                    }
+                    if (readerClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    if (count == 0) {
+                        return -1;
+                    }
+                    int n = Math.min(len, count);
+                    int first = Math.min(n, ring.length - head);
+                    System.arraycopy(ring, head, b, off, first);
+                    System.arraycopy(ring, 0, b, off + first, n - first);
+                    head = (head + n) % ring.length;
+                    count -= n;
+                    Pipe.this.notifyAll();
+                    return n;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return count;
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (Pipe.this) {
+                    readerClosed = true;
+                    Pipe.this.notifyAll();
+                }
+            }
+        }
+
+        final class Out extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte @NotNull [] b, int off, int len) throws IOException {
+                synchronized (Pipe.this) {
+                    while (len > 0) {
+                        while (count == ring.length && !readerClosed && !writerClosed) {
+                            await();
+                        }
+                        if (readerClosed || writerClosed) {
+                            throw new IOException(writerClosed ? "Stream closed" : "Broken pipe");
+                        }
+                        int n = Math.min(len, ring.length - count);
+                        int tail = (head + count) % ring.length;
+                        int first = Math.min(n, ring.length - tail);
+                        System.arraycopy(b, off, ring, tail, first);
+                        System.arraycopy(b, off + first, ring, 0, n - first);
+                        count += n;
+                        off += n;
+                        len -= n;
+                        Pipe.this.notifyAll();
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (Pipe.this) {
+                    writerClosed = true;
+                    Pipe.this.notifyAll();
+                }
+            }
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -1,28 +1,56 @@
 package io.github.googlielmo.fastpuss;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
 
-public class MessageBroker {
+public class MessageBroker implements AutoCloseable {
 
     private static final Logger logger = Logger.getLogger("MessageBroker");
     private static final int PORT = 10000;
-    private static final int RCV_BUF_SIZE = 1024 * 64;
     private static final int MAX_MSG_SIZE = 1024 * 4;
-    private static final Pattern SEPARATOR_PATTERN = Pattern.compile("\\s+");
+    private static final int MAX_RETRANSMITS_PER_NACK = 1024; // bounds the amplification of a single NACK
+    private static final int JOURNAL_QUEUE_CAPACITY = 64 * 1024;
+    private static final byte[] ALIAS_REQUEST = "alias".getBytes(StandardCharsets.US_ASCII); // SUB body
     private final ExecutorService executorService;
+    protected final ExecutionMode executionMode;
     private final int port;
-    private DatagramSocket socket;
+    private final BrokerConfig config;
+    private volatile DatagramEndpoint[] channels;
     protected final ThreadSafeSubscriberManager subscriberManager;
+    private final FanOutEngine fanOut;
+    private final BrokerMetrics metrics;
+    private final IngestPipeline pipeline;
+    private final RateLimiter rateLimiter; // null if not limited
+    private final RetransmitRings rings; // null unless reliable
+    private final RetentionCache retained; // null unless retaining
+    private final MulticastFanOut multicast; // null if unicast only
+    private SubscriptionStore store; // null unless persisted
+    private final PublishJournal journal; // null unless journaled
+    private final JournalReplayer replayer; // null unless journaled
+    private final TopicAliases aliases; // null if disabled
+    private final LongFunction<String> resolver; // null if aliases are disabled
+    private final SubscriptionLeases leases; // null unless leased
+    private ScheduledExecutorService dumper; // null unless dumping metrics
+    private boolean closed;
 
     /**
      * Create a default broker listening on the default port
@@ -44,87 +72,701 @@ public class MessageBroker {
      * @param subscriberManager {@link ThreadSafeSubscriberManager}
      */
     public MessageBroker(int port, ExecutorService executorService, ThreadSafeSubscriberManager subscriberManager) {
+        this(port, executorService, subscriberManager, new BrokerConfig());
+    }
+
+    /**
+     * @param port              UDP port number for listening
+     * @param executorService   {@link ExecutorService} running the ingest workers, see {@link BrokerConfig#ingest}, shut
+     *                          down by {@link #close()}
+     * @param subscriberManager {@link ThreadSafeSubscriberManager}
+     * @param config            {@link BrokerConfig}
+     */
+    public MessageBroker(int port, ExecutorService executorService, ThreadSafeSubscriberManager subscriberManager,
+                         BrokerConfig config) {
+        this(port, executorService, ExecutionMode.PLATFORM, subscriberManager, config);
+    }
+
+    /**
+     * @param port              UDP port number for listening
+     * @param executionMode     whether the ingest workers, and the replication I/O of a {@link DistributedBroker}, run
+     *                          on platform or virtual threads
+     * @param subscriberManager {@link ThreadSafeSubscriberManager}
+     * @param config            {@link BrokerConfig}
+     */
+    public MessageBroker(int port, ExecutionMode executionMode, ThreadSafeSubscriberManager subscriberManager,
+                         BrokerConfig config) {
+        this(port, executionMode.newExecutor("fastpuss-worker-"), executionMode, subscriberManager, config);
+    }
+
+    private MessageBroker(int port, ExecutorService executorService, ExecutionMode executionMode,
+                          ThreadSafeSubscriberManager subscriberManager, BrokerConfig config) {
         this.port = port;
         this.executorService = executorService;
+        this.executionMode = executionMode;
         this.subscriberManager = subscriberManager;
+        this.config = config;
+        this.metrics = new BrokerMetrics(config.traceSampling);
+        MessageCoalescer coalescer = config.coalesceLingerNanos > 0
+                ? new MessageCoalescer(config.coalesceLingerNanos, config.maxDatagramSize, metrics)
+                : null;
+        this.fanOut = new FanOutEngine(subscriberManager.clients(), config.fanOutThreads, config.fanOutInlineBudgetNanos,
+                metrics, coalescer);
+        this.pipeline = new IngestPipeline(config.ingestWorkers, config.ingestQueueCapacity, config.overloadPolicy,
+                this::handleMessage, metrics);
+        this.rateLimiter = config.rateLimitPerSecond > 0
+                ? new RateLimiter(config.rateLimitPerSecond, config.rateLimitBurst)
+                : null;
+        this.rings = config.retransmitSlots > 0
+                ? new RetransmitRings(config.retransmitSlots, config.retransmitBytes, config.retransmitBudget, metrics)
+                : null;
+        this.retained = config.retainedPerTopic > 0
+                ? new RetentionCache(config.retainedPerTopic, config.retentionBytes, metrics)
+                : null;
+        // multicast needs the network
+        this.multicast = config.multicastThreshold > 0 && config.transport instanceof SocketTransport
+                ? new MulticastFanOut(config.multicastThreshold, config.multicastFirstGroup, config.multicastGroups,
+                        config.multicastPort, config.multicastInterface, subscriberManager.clients(), metrics)
+                : null;
+        this.journal = config.journalDirectory != null
+                ? new PublishJournal(config.journalDirectory, config.journalSegmentBytes, config.journalRetentionBytes,
+                        config.journalRetentionMillis, JOURNAL_QUEUE_CAPACITY, metrics)
+                : null;
+        this.replayer = journal != null ? new JournalReplayer(config.replayPerSecond, this::sendChannel, metrics) : null;
+        this.aliases = config.topicAliases > 0 ? new TopicAliases(config.topicAliases) : null;
+        this.resolver = aliases != null ? aliases::topic : null;
+        this.leases = config.leaseMillis > 0
+                ? new SubscriptionLeases(config.leaseMillis, metrics, new SubscriptionLeases.Expiry() {
+                    @Override
+                    public void expired(int client, @NotNull List<String> filters) {
+                        expire(client, filters);
+                    }
+
+                    @Override
+                    public void released(int client) {
+                        release(client);
+                    }
+                })
+                : null;
     }
 
     public void broker() {
+        restoreSubscriptions();
+        startMetrics();
+        pipeline.start(executorService);
+        if (leases != null) {
+            leases.start();
+        }
+        if (multicast != null) {
+            try {
+                multicast.open();
+            } catch (IOException e) {
+                logger.log(SEVERE, "cannot open the multicast channel, all topics stay unicast", e);
+            }
+        }
+        if (journal != null) {
+            try {
+                journal.open();
+            } catch (IOException e) {
+                logger.log(SEVERE, "cannot open the journal in " + config.journalDirectory
+                        + ", messages are not journaled", e);
+            }
+        }
         try {
-            socket = createBrokerSocket(port);
-            logger.info("receiving on port " + port);
+            if (config.nio) {
+                brokerNio();
+            } else {
+                brokerClassic();
+            }
+        } finally {
+            close();
+        }
+    }
 
-            byte[] buf = new byte[MAX_MSG_SIZE];
-            DatagramPacket packet = new DatagramPacket(buf, MAX_MSG_SIZE);
+    /**
+     * Stop the broker: stop handling messages, send what the fan-out still holds, stop the receive loops, then close
+     * the journal and the subscription store. {@link #broker()} returns once its receive loop is stopped.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executorService.shutdownNow(); // the ingest workers
+        try {
+            if (!executorService.awaitTermination(1, TimeUnit.SECONDS)) {
+                logger.log(WARNING, "ingest workers still running on port " + port);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (leases != null) {
+            leases.close();
+        }
+        if (replayer != null) {
+            replayer.close();
+        }
+        fanOut.shutdown(); // still sending on the broker channels
+        if (multicast != null) {
+            multicast.close();
+        }
+        closeChannels();
+        if (journal != null) {
+            journal.close();
+        }
+        synchronized (this) {
+            if (store != null) {
+                store.close();
+            }
+        }
+        if (dumper != null) {
+            dumper.shutdownNow();
+        }
+        metrics.unregister(port);
+        logger.info("stopped on port " + port);
+    }
 
+    private void closeChannels() {
+        DatagramEndpoint[] chans = channels;
+        if (chans == null) {
+            return;
+        }
+        for (DatagramEndpoint channel : chans) {
+            try {
+                channel.close(); // the receive loops get a ClosedChannelException
+            } catch (IOException e) {
+                logger.log(FINE, "cannot close " + channel, e);
+            }
+        }
+    }
+
+    /**
+     * Receive on a single endpoint, on the calling thread.
+     */
+    private void brokerClassic() {
+        try {
+            DatagramEndpoint endpoint = config.transport.bind(new InetSocketAddress(port), config.receiveBufferSize,
+                    false); // UDP *:10000
+            setChannels(new DatagramEndpoint[]{endpoint});
+            logger.info("receiving on port " + port);
+
+            ByteBuffer buf = ByteBuffer.allocate(MAX_MSG_SIZE);
             while (!Thread.currentThread().isInterrupted()) {
-                socket.receive(packet);
-                String msg = new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
-                String clientId = packet.getSocketAddress().toString();
-                executorService.execute(() -> handleMessage(msg, clientId));
+                buf.clear();
+                SocketAddress sender = endpoint.receive(buf);
+                onPacket(buf.flip(), sender);
             }
+        } catch (ClosedChannelException e) {
+            // closed by close() or interrupted: normal shutdown
         } catch (IOException e) {
             logger.log(SEVERE, "error receiving on port " + port, e);
         }
     }
 
-    private DatagramSocket createBrokerSocket(int port) throws SocketException {
-        DatagramSocket socket = new DatagramSocket(null);
-        socket.setReceiveBufferSize(RCV_BUF_SIZE);
-        socket.bind(new InetSocketAddress(port)); // UDP *:10000
-        return socket;
+    /**
+     * Run {@link BrokerConfig#receivers} receive loops, each on its own endpoint bound to the broker port.
+     * The calling thread runs the first loop, so this method blocks just like {@link #brokerClassic()}.
+     */
+    private void brokerNio() {
+        int n = config.receivers;
+        DatagramEndpoint[] chans = new DatagramEndpoint[n];
+        try {
+            boolean reusePort = config.transport.supportsSharedPorts();
+            if (!reusePort && n > 1) {
+                logger.log(WARNING, "SO_REUSEPORT not supported, " + n + " receive loops will share one channel");
+            }
+            for (int i = 0; i < n; i++) {
+                chans[i] = reusePort || i == 0
+                        ? config.transport.bind(new InetSocketAddress(port), config.receiveBufferSize, reusePort)
+                        : chans[0]; // UDP *:10000, shared by all loops
+            }
+        } catch (IOException e) {
+            logger.log(SEVERE, "cannot bind port " + port, e);
+            return;
+        }
+        setChannels(chans);
+        logger.info("receiving on port " + port + " with " + n + " NIO receive loops");
+
+        for (int i = 1; i < n; i++) {
+            Thread t = new Thread(new ReceiveLoop(chans[i], MAX_MSG_SIZE, this::onPacket), "fastpuss-rx-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        new ReceiveLoop(chans[0], MAX_MSG_SIZE, this::onPacket).run();
+    }
+
+    /**
+     * Load the subscriptions persisted by the previous run and persist the later changes, if so configured, see
+     * {@link BrokerConfig#persist}. Done once, before the broker receives anything.
+     */
+    protected synchronized void restoreSubscriptions() {
+        if (config.storeDirectory == null || store != null) {
+            return;
+        }
+        store = new SubscriptionStore(config.storeDirectory, config.storeCompactAfterBytes);
+        try {
+            store.recover(subscriberManager, Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            logger.log(SEVERE, "cannot restore subscriptions from " + config.storeDirectory
+                    + ", running without persistence", e);
+        }
+        leaseRestored();
     }
 
-    private void handleMessage(String msg, String clientId) {
-        String[] parts = SEPARATOR_PATTERN.split(msg, 3);
-        if (parts.length < 3) {
-            logger.log(WARNING, "malformed message discarded: " + msg);
+    /**
+     * Lease all the subscriptions held, from now on, if leases are enabled: those of clients gone while the broker was
+     * down expire after a lease period without news, see {@link SubscriptionLeases#restored}.
+     */
+    protected void leaseRestored() {
+        if (leases == null) {
             return;
         }
+        long now = System.nanoTime();
+        boolean provisional = !hearsFromAllClients();
+        for (Map.Entry<String, SubscriberSet> entry : subscriberManager.topicMap.entrySet()) {
+            String filter = entry.getKey();
+            entry.getValue().forEach(client -> leases.restored(filter, client, now, provisional));
+        }
+    }
+
+    /**
+     * Lease a subscription that was not received from its client, if leases are enabled.
+     *
+     * @param client client handle, see {@link ClientRegistry}
+     */
+    protected void leaseRestored(String filter, int client) {
+        if (leases != null) {
+            leases.restored(filter, client, System.nanoTime(), !hearsFromAllClients());
+        }
+    }
+
+    /**
+     * Remove a subscription that was not removed by its client from its lease, if leases are enabled.
+     *
+     * @param client client handle, see {@link ClientRegistry}
+     */
+    protected void unlease(String filter, int client) {
+        if (leases != null) {
+            leases.unsubscribed(filter, client);
+        }
+    }
+
+    /**
+     * @return whether all the clients of the subscriptions held talk to this broker, so that a client never heard of is
+     * gone: only the leases of such clients may expire without news from them
+     */
+    protected boolean hearsFromAllClients() {
+        return true;
+    }
+
+    private void onPacket(ByteBuffer packet, SocketAddress sender) {
+        long received = System.nanoTime();
+        metrics.packetsIn.increment();
+        if (MessageCodec.isBatch(packet)) {
+            List<Frame> frames = MessageCodec.decodeBatch(packet, resolver);
+            if (frames == null) {
+                discardMalformed(packet);
+                rejectAliases(packet, sender);
+                return;
+            }
+            int client = subscriberManager.clients().intern((InetSocketAddress) sender);
+            if (leases != null) {
+                leases.renew(client, received);
+            }
+            for (Frame frame : frames) {
+                accept(frame, client, received);
+            }
+            return;
+        }
+        Frame frame = MessageCodec.decode(packet, resolver);
+        if (frame == null) {
+            discardMalformed(packet);
+            rejectAliases(packet, sender);
+            return;
+        }
+        int client = subscriberManager.clients().intern((InetSocketAddress) sender);
+        if (leases != null) {
+            leases.renew(client, received);
+        }
+        accept(frame, client, received);
+    }
+
+    private void accept(Frame frame, int client, long received) {
+        if (rateLimiter != null && !rateLimiter.tryAcquire(client, received)) {
+            metrics.rateLimitDrops.increment();
+            return;
+        }
+        pipeline.submit(frame, client, received);
+    }
+
+    private void discardMalformed(ByteBuffer packet) {
+        metrics.parseErrors.increment();
+        if (logger.isLoggable(FINE)) {
+            logger.log(FINE, "malformed message discarded: " + MessageCodec.toString(packet));
+        }
+    }
+
+    private void startMetrics() {
+        metrics.register(port);
+        int interval = config.metricsDumpSeconds;
+        if (interval > 0) {
+            dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "fastpuss-metrics-" + port);
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleAtFixedRate(() -> logger.info("metrics:\n" + metrics.getSnapshot()),
+                    interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    private void handleMessage(Frame frame, int client, long received) {
+        long start = System.nanoTime();
+        metrics.dispatchNanos.record(start - received);
+        switch (frame.verb) {
+            case SUB:
+                if (TopicFilter.isWildcard(frame.topic) && !TopicFilter.isValid(frame.topic)) {
+                    logger.log(WARNING, "invalid topic filter discarded: " + frame.topic);
+                    break;
+                }
+                addSubscription(frame.topic, client);
+                if (leases != null) {
+                    leases.subscribed(frame.topic, client, received);
+                }
+                if (retained != null && !TopicFilter.isWildcard(frame.topic)) {
+                    catchUp(frame.topic, client);
+                }
+                if (multicast != null) {
+                    multicast.onSubscribe(frame.topic, client, sendChannel());
+                }
+                if (aliases != null && isAliasRequest(frame.body) && !TopicFilter.isWildcard(frame.topic)) {
+                    alias(frame.topic, client, true);
+                }
+                break;
+
+            case UNSUB:
+                removeSubscription(frame.topic, client);
+                if (aliases != null) {
+                    aliases.removeClient(frame.topic, client);
+                }
+                if (leases != null) {
+                    leases.unsubscribed(frame.topic, client);
+                }
+                break;
+
+            case ALIAS:
+                if (aliases != null && !TopicFilter.isWildcard(frame.topic)) {
+                    alias(frame.topic, client, false);
+                }
+                break;
 
-        String verb = parts[0];
-        String topic = parts[1];
-        String body = parts[2];
+            case PUB:
+                publish(frame.topic, frame.body);
+                break;
 
-        switch (verb) {
-            case "SUB":
-                addSubscription(topic, clientId);
+            case NACK:
+                retransmit(frame.topic, frame.body, client);
                 break;
 
-            case "PUB":
-                publish(topic, body, subscriberManager.getMatchingSubscribers(topic));
+            case JOIN:
+                if (multicast != null) {
+                    multicast.joined(frame.topic, new String(frame.body, StandardCharsets.US_ASCII), client);
+                }
+                break;
+
+            case PING:
+                pong(frame, client);
+                break;
+
+            case REPLAY:
+                replay(frame.topic, frame.body, client);
                 break;
 
             default:
-                logger.log(WARNING, "unknown verb " + verb);
+                logger.log(WARNING, "unexpected verb " + frame.verb);
         }
+        if (metrics.trace.sample()) {
+            metrics.trace.add(String.format("%tT.%<tL %s %s from %s: dispatched in %d us, handled in %d us",
+                    System.currentTimeMillis(), frame.verb, frame.topic, subscriberManager.clients().id(client),
+                    (start - received) / 1000, (System.nanoTime() - start) / 1000));
+        }
+    }
+
+    /**
+     * @param client client handle, see {@link ClientRegistry}
+     */
+    protected boolean addSubscription(String topic, int client) {
+        return subscriberManager.addSubscription(topic, client);
     }
 
-    protected void addSubscription(String topic, String clientId) {
-        subscriberManager.addSubscription(topic, clientId);
+    /**
+     * @param client client handle, see {@link ClientRegistry}
+     */
+    protected boolean removeSubscription(String topic, int client) {
+        return subscriberManager.removeSubscription(topic, client);
     }
 
-    private void publish(String topic, String body, Collection<String> matchingSubscribers) {
-        matchingSubscribers.forEach(
-                clientId -> {
-                    String outPacket = String.format("MSG %s\n%s", topic, body);
-                    InetSocketAddress clientSocket = clientId2SocketAddress(clientId);
-                    byte[] packetBytes = outPacket.getBytes();
-                    DatagramPacket datagramPacket = new DatagramPacket(packetBytes, 0, packetBytes.length, clientSocket);
-                    try {
-                        socket.send(datagramPacket);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+    /**
+     * Drop the subscriptions of a client whose lease expired, as if it had unsubscribed, so that a distributed broker
+     * replicates the removals.
+     */
+    private void expire(int client, List<String> filters) {
+        for (String filter : filters) {
+            removeSubscription(filter, client);
+            if (aliases != null) {
+                aliases.removeClient(filter, client);
+            }
+        }
+    }
+
+    /**
+     * Forget a client gone for good, see {@link SubscriptionLeases}, so that its handle may be reused.
+     */
+    private void release(int client) {
+        if (rateLimiter != null) {
+            rateLimiter.forget(client);
+        }
+        fanOut.forget(client);
+        if (multicast != null) {
+            multicast.forget(client);
+        }
+        subscriberManager.clients().release(client);
+    }
+
+    /**
+     * Deliver a message to the subscribers of its topic.
+     */
+    protected void publish(String topic, byte[] body) {
+        long start = System.nanoTime();
+        if (journal != null) {
+            journal.append(topic, body);
+        }
+        if (retained != null) {
+            retained.retain(topic, body);
+        }
+        Subscribers matchingSubscribers = subscriberManager.getSubscribers(topic);
+        long matched = System.nanoTime();
+        metrics.matchNanos.record(matched - start);
+        boolean multicastNow = multicast != null && multicast.update(topic, matchingSubscribers, sendChannel());
+        if (matchingSubscribers.isEmpty()) {
+            return;
+        }
+        metrics.fanOutSize.record(matchingSubscribers.size());
+        // encoded once and shared read-only by all the senders
+        ByteBuffer outPacket = rings == null
+                ? MessageCodec.encode(Verb.MSG, topic, body)
+                : rings.append(topic, body);
+        TopicAliases.Alias alias = aliases == null || rings != null || aliases.isEmpty() ? null : aliases.get(topic);
+        Subscribers unicast = matchingSubscribers;
+        if (multicastNow) {
+            multicast.send(topic, outPacket);
+            unicast = multicast.notJoined(topic, matchingSubscribers);
+        }
+        if (alias != null && alias.clients().length > 0) {
+            fanOut.fanOut(topic, outPacket, MessageCodec.encode(Verb.AMSG, alias.token, body), alias.clients(),
+                    unicast, sendChannel());
+        } else {
+            fanOut.fanOut(topic, outPacket, unicast, sendChannel());
+        }
+        metrics.fanOutNanos.record(System.nanoTime() - matched);
+    }
+
+    /**
+     * Resend to a subscriber the NACKed messages of a topic that are still kept.
+     */
+    private void retransmit(String topic, byte[] ranges, int client) {
+        RetransmitRing ring = rings == null ? null : rings.get(topic);
+        InetSocketAddress address = subscriberManager.clients().address(client);
+        long[] r = MessageCodec.decodeRanges(ranges);
+        if (ring == null || address == null || r == null) {
+            return;
+        }
+        DatagramEndpoint channel = sendChannel();
+        int budget = MAX_RETRANSMITS_PER_NACK;
+        for (int i = 0; i < r.length && budget > 0; i += 2) {
+            for (long seq = r[i]; seq <= r[i + 1] && budget > 0; seq++, budget--) {
+                ByteBuffer msg = ring.get(seq);
+                if (msg == null) {
+                    metrics.retransmitMisses.increment();
+                    continue;
+                }
+                try {
+                    channel.send(msg, address);
+                    metrics.retransmits.increment();
+                    metrics.packetsOut.increment();
+                } catch (IOException e) {
+                    metrics.sendErrors.increment();
+                    logger.log(FINE, "cannot retransmit to " + address, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a new subscriber the retained messages of a topic, as plain MSGs.
+     */
+    private void catchUp(String topic, int client) {
+        InetSocketAddress address = subscriberManager.clients().address(client);
+        if (address == null) {
+            return;
+        }
+        DatagramEndpoint channel = sendChannel();
+        for (byte[] body : retained.get(topic)) {
+            try {
+                channel.send(MessageCodec.encode(Verb.MSG, topic, body), address);
+                metrics.catchUps.increment();
+                metrics.packetsOut.increment();
+            } catch (IOException e) {
+                metrics.sendErrors.increment();
+                logger.log(FINE, "cannot send retained messages to " + address, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start replaying to a subscriber the journaled messages matching a topic filter, from the offset or the
+     * {@code @}time in the body.
+     */
+    private void replay(String filter, byte[] body, int client) {
+        InetSocketAddress address = subscriberManager.clients().address(client);
+        if (journal == null || !journal.isOpen() || address == null) {
+            return;
+        }
+        if (TopicFilter.isWildcard(filter) && !TopicFilter.isValid(filter)) {
+            logger.log(WARNING, "invalid topic filter in REPLAY discarded: " + filter);
+            return;
+        }
+        String from = new String(body, StandardCharsets.US_ASCII).trim();
+        PublishJournal.Cursor cursor;
+        try {
+            cursor = from.startsWith("@")
+                    ? journal.fromTime(Long.parseLong(from.substring(1)))
+                    : journal.fromOffset(Long.parseLong(from));
+        } catch (NumberFormatException e) {
+            logger.log(WARNING, "invalid REPLAY start discarded: " + from);
+            return;
+        }
+        replayer.start(filter, cursor, journal.lastOffset(), address);
+    }
+
+    /**
+     * Tell a client the alias of a topic, with an ALIAS carrying it in the body.
+     *
+     * @param deliver whether to send the client the topic's messages as AMSGs from now on
+     */
+    private void alias(String topic, int client, boolean deliver) {
+        InetSocketAddress address = subscriberManager.clients().address(client);
+        TopicAliases.Alias alias = aliases.assign(topic);
+        if (address == null || alias == null) {
+            return; // no more aliases: the client keeps using the topic name
+        }
+        if (deliver) {
+            aliases.addClient(alias, client);
+        }
+        try {
+            sendChannel().send(MessageCodec.encode(Verb.ALIAS, topic,
+                    alias.token.getBytes(StandardCharsets.US_ASCII)), address);
+            metrics.packetsOut.increment();
+        } catch (IOException e) {
+            metrics.sendErrors.increment();
+            logger.log(FINE, "cannot send alias to " + address, e);
+        }
+    }
+
+    /**
+     * Tell the sender of a malformed datagram about the aliases in it that this broker didn't assign, e.g. after a
+     * restart, with an ALIAS with the alias as topic and an empty body, so that it goes back to the topic name.
+     */
+    private void rejectAliases(ByteBuffer packet, SocketAddress sender) {
+        if (aliases == null) {
+            return;
+        }
+        Predicate<ByteBuffer> reject = msg -> {
+            String token = MessageCodec.aliasOf(msg);
+            if (token != null && MessageCodec.decode(msg, resolver) == null) {
+                try {
+                    sendChannel().send(MessageCodec.encode(Verb.ALIAS, token, new byte[0]), (InetSocketAddress) sender);
+                    metrics.packetsOut.increment();
+                } catch (IOException e) {
+                    metrics.sendErrors.increment();
                 }
-        );
+            }
+            return true;
+        };
+        if (MessageCodec.isBatch(packet)) {
+            MessageCodec.forEachBatched(packet, reject);
+        } else {
+            reject.test(packet);
+        }
     }
 
-    private InetSocketAddress clientId2SocketAddress(String clientId) {
-        // clientIds have the form "/127.0.0.1:10002"
-        int sep = clientId.indexOf(":");
-        String hostname = clientId.substring(1, sep);
-        int port = Integer.parseInt(clientId.substring(sep + 1));
-        return new InetSocketAddress(hostname, port);
+    /**
+     * @return whether a SUB body asks for aliased delivery
+     */
+    private static boolean isAliasRequest(byte[] body) {
+        return body.length >= ALIAS_REQUEST.length
+                && Arrays.equals(body, 0, ALIAS_REQUEST.length, ALIAS_REQUEST, 0, ALIAS_REQUEST.length);
+    }
+
+    private void pong(Frame ping, int client) {
+        InetSocketAddress address = subscriberManager.clients().address(client);
+        if (address == null) {
+            return;
+        }
+        try {
+            sendChannel().send(MessageCodec.encode(Verb.PONG, ping.topic, ping.body), address);
+            metrics.packetsOut.increment();
+        } catch (IOException e) {
+            metrics.sendErrors.increment();
+            logger.log(FINE, "cannot answer PING from " + address, e);
+        }
+    }
+
+    private synchronized void setChannels(DatagramEndpoint[] chans) {
+        channels = chans;
+        fanOut.setChannels(chans);
+        if (closed) {
+            closeChannels(); // closed while binding
+        }
+    }
+
+    /**
+     * @return the transport the broker and its sync links use, see {@link BrokerConfig#transport}
+     */
+    protected Transport transport() {
+        return config.transport;
+    }
+
+    /**
+     * @return the hot-path metrics of this broker, also registered as an MBean when the broker starts
+     */
+    public BrokerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of received messages waiting for a worker
+     */
+    public int ingestQueueDepth() {
+        return pipeline.depth();
+    }
+
+    /**
+     * @return fan-out statistics of the topics with many subscribers
+     */
+    public Map<String, FanOutStats> fanOutStats() {
+        return fanOut.topicStats();
+    }
+
+    /**
+     * Spread sends over the bound channels, so that concurrent publishers don't all contend on one channel's write lock.
+     */
+    private DatagramEndpoint sendChannel() {
+        DatagramEndpoint[] chans = channels;
+        return chans[(int) (Thread.currentThread().getId() % chans.length)];
     }
 }
@@ -0,0 +1,246 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Coalesces the MSGs going to the same subscriber into {@link BatchEncoder batch} datagrams.
+ * <p>
+ * Each subscriber has a pending batch. A MSG is appended to it; the batch is sent when the next MSG doesn't fit, or by
+ * a flusher thread once the first MSG in it has waited for the linger time. Deadlines are queued in the order batches
+ * are opened, which, the linger being the same for all, is also the order they expire in.
+ * <p>
+ * The flusher thread starts with the first {@link #setChannel} and stops with {@link #shutdown}.
+ * <p>
+ * A pending batch is locked while it is appended to or sent; fan-outs of different topics contend on it only when they
+ * go to the same subscriber at the same time.
+ */
+class MessageCoalescer {
+
+    private static final class Pending {
+        final BatchEncoder batch;
+        final InetSocketAddress address;
+        long generation; // incremented whenever the batch is sent
+
+        Pending(int maxDatagramSize, InetSocketAddress address) {
+            this.batch = new BatchEncoder(maxDatagramSize);
+            this.address = address;
+        }
+    }
+
+    private static final class Deadline {
+        final Pending pending;
+        final long generation;
+        final long nanos;
+
+        Deadline(Pending pending, long generation, long nanos) {
+            this.pending = pending;
+            this.generation = generation;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger("MessageCoalescer");
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final long lingerNanos;
+    private final int maxDatagramSize;
+    private final BrokerMetrics metrics;
+    private final Object lock = new Object();
+    private volatile AtomicReferenceArray<Pending> pending = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private final ConcurrentLinkedQueue<Deadline> deadlines = new ConcurrentLinkedQueue<>();
+    private final Thread flusher;
+    private volatile boolean flusherIdle;
+    private volatile boolean stopped;
+    private volatile DatagramEndpoint channel;
+
+    /**
+     * @param lingerNanos     max time a MSG waits for others to the same subscriber
+     * @param maxDatagramSize max size of a coalesced datagram
+     * @param metrics         where datagrams sent and send errors are counted
+     */
+    MessageCoalescer(long lingerNanos, int maxDatagramSize, @NotNull BrokerMetrics metrics) {
+        this.lingerNanos = lingerNanos;
+        this.maxDatagramSize = maxDatagramSize;
+        this.metrics = metrics;
+        this.flusher = new Thread(this::flushExpired, "fastpuss-coalescer");
+        flusher.setDaemon(true);
+    }
+
+    /**
+     * @param channel the channel the flusher thread sends from
+     */
+    synchronized void setChannel(@NotNull DatagramEndpoint channel) {
+        this.channel = channel;
+        if (flusher.getState() == Thread.State.NEW) {
+            flusher.start();
+        }
+    }
+
+    /**
+     * Stop the flusher thread and send the pending batches. MSGs added afterwards wait until a batch fills up.
+     */
+    synchronized void shutdown() {
+        if (flusher.getState() == Thread.State.NEW) {
+            return;
+        }
+        stopped = true; // not an interrupt, which would close the channel if it came during a send
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Deadline d; (d = deadlines.poll()) != null; ) {
+            flush(d, channel);
+        }
+    }
+
+    /**
+     * Queue a MSG for a subscriber, sending its pending batch first if the MSG doesn't fit.
+     *
+     * @param message an encoded MSG, between position and limit; its position is left unchanged
+     * @param channel the channel to send from if a batch fills up
+     */
+    void add(int client, @NotNull InetSocketAddress address, @NotNull ByteBuffer message,
+             @NotNull DatagramEndpoint channel) {
+        Pending p = pending(client, address);
+        synchronized (p) {
+            if (p.batch.add(message)) {
+                if (p.batch.count() == 1) {
+                    schedule(p);
+                }
+                return;
+            }
+            send(p, channel);
+            if (p.batch.add(message)) {
+                schedule(p);
+                return;
+            }
+        }
+        send(message, address, channel); // larger than a batch can hold
+    }
+
+    private void schedule(Pending p) {
+        deadlines.add(new Deadline(p, p.generation, System.nanoTime() + lingerNanos));
+        if (flusherIdle) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    private void flushExpired() {
+        while (!stopped) {
+            Deadline d = deadlines.peek();
+            if (d == null) {
+                flusherIdle = true;
+                if (deadlines.isEmpty()) {
+                    LockSupport.parkNanos(this, lingerNanos);
+                }
+                flusherIdle = false;
+                continue;
+            }
+            long wait = d.nanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            deadlines.poll();
+            flush(d, channel);
+        }
+    }
+
+    private void flush(Deadline d, DatagramEndpoint channel) {
+        if (channel == null) {
+            return;
+        }
+        synchronized (d.pending) {
+            if (d.pending.generation == d.generation) { // not already sent because it filled up
+                send(d.pending, channel);
+            }
+        }
+    }
+
+    /**
+     * Send and clear a pending batch; the caller holds its lock.
+     */
+    private void send(Pending p, DatagramEndpoint channel) {
+        if (p.batch.count() > 0) {
+            send(p.batch.datagram(), p.address, channel);
+        }
+        p.batch.clear();
+        p.generation++;
+    }
+
+    private void send(ByteBuffer datagram, InetSocketAddress address, DatagramEndpoint channel) {
+        try {
+            channel.send(datagram.duplicate(), address);
+            metrics.packetsOut.increment();
+        } catch (IOException e) {
+            metrics.sendErrors.increment();
+            logger.log(FINE, "cannot send to " + address, e);
+        }
+    }
+
+    /**
+     * Drop the pending batch of a client, whose handle may be reused, with the MSGs still in it.
+     */
+    void forget(int client) {
+        Pending p;
+        synchronized (lock) {
+            AtomicReferenceArray<Pending> a = pending;
+            if (client >= a.length() || (p = a.getAndSet(client, null)) == null) {
+                return;
+            }
+        }
+        synchronized (p) {
+            p.batch.clear();
+            p.generation++; // its deadline no longer applies
+        }
+    }
+
+    private Pending pending(int client, InetSocketAddress address) {
+        AtomicReferenceArray<Pending> a = pending;
+        if (client >= a.length()) {
+            a = grow(client);
+        }
+        Pending p = a.get(client);
+        if (p == null) {
+            synchronized (lock) {
+                a = pending; // may have grown meanwhile
+                p = a.get(client);
+                if (p == null) {
+                    p = new Pending(maxDatagramSize, address);
+                    a.set(client, p);
+                }
+            }
+        }
+        return p;
+    }
+
+    private AtomicReferenceArray<Pending> grow(int client) {
+        synchronized (lock) {
+            AtomicReferenceArray<Pending> a = pending;
+            if (client >= a.length()) {
+                int length = a.length();
+                while (length <= client) {
+                    length *= 2;
+                }
+                AtomicReferenceArray<Pending> grown = new AtomicReferenceArray<>(length);
+                for (int i = 0; i < a.length(); i++) {
+                    grown.set(i, a.get(i));
+                }
+                pending = a = grown;
+            }
+            return a;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+/**
+ * Byte-level codec for the message format described in the README.
+ * <p>
+ * Decoding works directly on the receive buffer: the verb is matched byte by byte, only the topic is decoded to a
+ * {@link String} (it is needed as a map key) and the body is copied as raw bytes. Encoding produces a heap buffer
+ * positioned at zero that can be shared read-only by any number of senders, each through its own
+ * {@link ByteBuffer#duplicate() duplicate}.
+ * <p>
+ * A batch datagram ({@code BAT}) carries several messages, each prefixed by its length, see {@link BatchEncoder}.
+ */
+final class MessageCodec {
+
+    static final byte[] BATCH_HEADER = "BAT\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_TOPIC_SIZE = 1024 * 4;
+    private static final int MAX_LENGTH_DIGITS = 5; // a datagram is at most 64K
+    private static final int MAX_SEQ_DIGITS = 18; // fits a positive long
+    private static final int MAX_ALIAS_DIGITS = 15; // hex, fits a positive long
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_TOPIC_SIZE]);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * The fields of a message decoded in place: the body is left in the buffer, between {@link #bodyStart} and the
+     * buffer limit. Meant to be reused, so that decoding allocates nothing but the topic.
+     */
+    static final class Header {
+        Verb verb;
+        String topic;
+        long seq; // -1 unless SEQ
+        int bodyStart;
+    }
+
+    /**
+     * Decode the bytes between position and limit of {@code buf}. The buffer position is not modified.
+     *
+     * @return the decoded frame or {@code null} if the message is malformed or the verb unknown
+     */
+    @Nullable
+    static Frame decode(@NotNull ByteBuffer buf) {
+        return decode(buf, null);
+    }
+
+    /**
+     * Like {@link #decode(ByteBuffer)}, resolving the topic aliases of APUB and AMSG, which are decoded as PUB and MSG.
+     *
+     * @param aliases topic of each alias, {@code null} or a {@code null} result if unknown
+     */
+    @Nullable
+    static Frame decode(@NotNull ByteBuffer buf, @Nullable LongFunction<String> aliases) {
+        Header h = new Header();
+        if (!decodeHeader(buf, h, aliases)) {
+            return null;
+        }
+        byte[] body = new byte[buf.limit() - h.bodyStart];
+        copy(buf, h.bodyStart, body, body.length);
+        return new Frame(h.verb, h.topic, body, h.seq);
+    }
+
+    /**
+     * Decode verb, topic and sequence number of the message between position and limit of {@code buf}, without copying
+     * its body. The buffer position is not modified.
+     *
+     * @return {@code false} if the message is malformed or the verb unknown
+     */
+    static boolean decodeHeader(@NotNull ByteBuffer buf, @NotNull Header h) {
+        return decodeHeader(buf, h, null);
+    }
+
+    /**
+     * Like {@link #decodeHeader(ByteBuffer, Header)}, resolving the topic aliases of APUB and AMSG, which are decoded
+     * as PUB and MSG. An unknown alias makes the message malformed.
+     *
+     * @param aliases topic of each alias, {@code null} or a {@code null} result if unknown
+     */
+    static boolean decodeHeader(@NotNull ByteBuffer buf, @NotNull Header h, @Nullable LongFunction<String> aliases) {
+        int end = buf.limit();
+        int verbStart = buf.position();
+        int verbEnd = skipToken(buf, verbStart, end);
+        int topicStart = skipWhitespace(buf, verbEnd, end);
+        int topicEnd = skipToken(buf, topicStart, end);
+        if (topicStart == verbEnd || topicEnd == topicStart || topicEnd == end) {
+            return false; // missing separator, topic, or separator after topic
+        }
+        Verb verb = Verb.match(buf, verbStart, verbEnd);
+        if (verb == null) {
+            return false;
+        }
+        int bodyStart = skipWhitespace(buf, topicEnd, end);
+        long seq = -1;
+        if (verb == Verb.SEQ) { // body: sequence number, one space, payload
+            int i = bodyStart;
+            long n = 0;
+            for (byte b; i < end && (b = buf.get(i)) >= '0' && b <= '9'; i++) {
+                n = n * 10 + (b - '0');
+            }
+            if (i == bodyStart || i - bodyStart > MAX_SEQ_DIGITS || i == end || buf.get(i) != ' ') {
+                return false;
+            }
+            seq = n;
+            bodyStart = i + 1;
+        }
+        String topic;
+        if (verb == Verb.APUB || verb == Verb.AMSG) { // topic: the alias, in hex
+            long alias = aliases == null ? -1 : parseAlias(buf, topicStart, topicEnd);
+            topic = alias < 0 ? null : aliases.apply(alias);
+            if (topic == null) {
+                return false;
+            }
+            verb = verb == Verb.APUB ? Verb.PUB : Verb.MSG;
+        } else {
+            topic = topic(buf, topicStart, topicEnd);
+        }
+        h.verb = verb;
+        h.topic = topic;
+        h.seq = seq;
+        h.bodyStart = bodyStart;
+        return true;
+    }
+
+    /**
+     * @return whether the bytes between position and limit of {@code buf} are a batch of messages
+     */
+    static boolean isBatch(@NotNull ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.limit() - start < BATCH_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < BATCH_HEADER.length; i++) {
+            if (buf.get(start + i) != BATCH_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode all the messages of a batch. The buffer position is not modified.
+     *
+     * @return the decoded frames, in order, or {@code null} if the batch or any of its messages is malformed
+     */
+    @Nullable
+    static List<Frame> decodeBatch(@NotNull ByteBuffer buf) {
+        return decodeBatch(buf, null);
+    }
+
+    /**
+     * Like {@link #decodeBatch(ByteBuffer)}, resolving topic aliases as {@link #decode(ByteBuffer, LongFunction)} does.
+     */
+    @Nullable
+    static List<Frame> decodeBatch(@NotNull ByteBuffer buf, @Nullable LongFunction<String> aliases) {
+        List<Frame> frames = new ArrayList<>();
+        boolean valid = forEachBatched(buf, message -> {
+            Frame frame = decode(message, aliases);
+            return frame != null && frames.add(frame);
+        });
+        return valid ? frames : null;
+    }
+
+    /**
+     * Walk the messages of a batch, each passed as a view of {@code buf} (reused across calls) between its position and
+     * limit. The buffer position is not modified.
+     *
+     * @param message returns {@code false} to stop at a malformed message
+     * @return {@code false} if the batch is malformed or the walk was stopped
+     */
+    static boolean forEachBatched(@NotNull ByteBuffer buf, @NotNull Predicate<ByteBuffer> message) {
+        int end = buf.limit();
+        int i = buf.position() + BATCH_HEADER.length;
+        ByteBuffer view = buf.duplicate();
+        while (i < end) {
+            int length = 0;
+            int digits = 0;
+            for (byte b; i < end && (b = buf.get(i)) != '\n'; i++) {
+                if (b < '0' || b > '9' || ++digits > MAX_LENGTH_DIGITS) {
+                    return false;
+                }
+                length = length * 10 + (b - '0');
+            }
+            i++; // the newline
+            if (digits == 0 || i > end || length > end - i) {
+                return false;
+            }
+            view.limit(i + length).position(i);
+            if (!message.test(view)) {
+                return false;
+            }
+            i += length;
+        }
+        return true;
+    }
+
+    /**
+     * Encode a message into a new heap buffer, positioned at zero.
+     */
+    @NotNull
+    static ByteBuffer encode(@NotNull Verb verb, @NotNull String topic, byte @NotNull [] body) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(verb.token.length + 1 + topicBytes.length + 1 + body.length);
+        out.put(verb.token).put((byte) ' ').put(topicBytes).put((byte) '\n').put(body);
+        return out.flip();
+    }
+
+    /**
+     * Encode a message into {@code out}, from its position; the body is the bytes between position and limit of
+     * {@code body}, whose position is not modified.
+     *
+     * @return {@code false}, leaving {@code out} unchanged, if the message doesn't fit
+     */
+    static boolean encode(@NotNull ByteBuffer out, @NotNull Verb verb, @NotNull String topic,
+                          @NotNull ByteBuffer body) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        if (verb.token.length + 1 + topicBytes.length + 1 + body.remaining() > out.remaining()) {
+            return false;
+        }
+        out.put(verb.token).put((byte) ' ').put(topicBytes).put((byte) '\n').put(body.duplicate());
+        return true;
+    }
+
+    /**
+     * Encode a {@link Verb#SEQ} message: {@code SEQ topic\nseq body}.
+     */
+    @NotNull
+    static ByteBuffer encodeSequenced(@NotNull String topic, long seq, byte @NotNull [] body) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] seqBytes = Long.toString(seq).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer out = ByteBuffer.allocate(Verb.SEQ.token.length + 1 + topicBytes.length + 1 + seqBytes.length + 1
+                + body.length);
+        out.put(Verb.SEQ.token).put((byte) ' ').put(topicBytes).put((byte) '\n').put(seqBytes).put((byte) ' ').put(body);
+        return out.flip();
+    }
+
+    /**
+     * Parse the body of a {@link Verb#NACK}: space-separated ranges of sequence numbers, either {@code from-to}
+     * (inclusive) or a single number.
+     *
+     * @return the ranges as {@code from, to} pairs, or {@code null} if the body is malformed
+     */
+    static long @Nullable [] decodeRanges(byte @NotNull [] body) {
+        long[] ranges = new long[8];
+        int n = 0;
+        int i = 0;
+        while (i < body.length) {
+            if (isWhitespace(body[i])) {
+                i++;
+                continue;
+            }
+            long from = 0, to;
+            int start = i;
+            for (; i < body.length && body[i] >= '0' && body[i] <= '9'; i++) {
+                from = from * 10 + (body[i] - '0');
+            }
+            if (i == start || i - start > MAX_SEQ_DIGITS) {
+                return null;
+            }
+            to = from;
+            if (i < body.length && body[i] == '-') {
+                to = 0;
+                start = ++i;
+                for (; i < body.length && body[i] >= '0' && body[i] <= '9'; i++) {
+                    to = to * 10 + (body[i] - '0');
+                }
+                if (i == start || i - start > MAX_SEQ_DIGITS || to < from) {
+                    return null;
+                }
+            }
+            if (i < body.length && !isWhitespace(body[i])) {
+                return null;
+            }
+            if (n == ranges.length) {
+                ranges = Arrays.copyOf(ranges, n * 2);
+            }
+            ranges[n++] = from;
+            ranges[n++] = to;
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    /**
+     * Decode the whole message to a string, for diagnostics only.
+     */
+    @NotNull
+    static String toString(@NotNull ByteBuffer buf) {
+        return StandardCharsets.UTF_8.decode(buf.duplicate()).toString();
+    }
+
+    /**
+     * @return the alias token of an APUB, or {@code null} if {@code msg}, between position and limit, is not an APUB
+     */
+    @Nullable
+    static String aliasOf(@NotNull ByteBuffer msg) {
+        int end = msg.limit();
+        int verbEnd = skipToken(msg, msg.position(), end);
+        if (Verb.match(msg, msg.position(), verbEnd) != Verb.APUB) {
+            return null;
+        }
+        int tokenStart = skipWhitespace(msg, verbEnd, end);
+        int tokenEnd = skipToken(msg, tokenStart, end);
+        return tokenEnd == tokenStart ? null : topic(msg, tokenStart, tokenEnd);
+    }
+
+    /**
+     * @return the alias written in hex between {@code from} and {@code to}, or -1 if invalid
+     */
+    private static long parseAlias(ByteBuffer buf, int from, int to) {
+        if (to - from > MAX_ALIAS_DIGITS) {
+            return -1;
+        }
+        long alias = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(buf.get(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            alias = alias << 4 | digit;
+        }
+        return alias;
+    }
+
+    private static String topic(ByteBuffer buf, int from, int to) {
+        int len = to - from;
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + from, len, StandardCharsets.UTF_8);
+        }
+        byte[] scratch = len <= MAX_TOPIC_SIZE ? SCRATCH.get() : new byte[len];
+        copy(buf, from, scratch, len);
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Bulk copy {@code len} bytes from {@code buf} at {@code from}, leaving the buffer position unchanged.
+     */
+    private static void copy(ByteBuffer buf, int from, byte[] dst, int len) {
+        int pos = buf.position();
+        buf.position(from);
+        buf.get(dst, 0, len);
+        buf.position(pos);
+    }
+
+    private static int skipToken(ByteBuffer buf, int i, int end) {
+        while (i < end && !isWhitespace(buf.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipWhitespace(ByteBuffer buf, int i, int end) {
+        while (i < end && isWhitespace(buf.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * White space as per regexp {@code /\s/}
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == 0x0B || b == '\f';
+    }
+}
@@ -0,0 +1,21 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the messages of a {@link FastpussClient} subscription.
+ */
+@FunctionalInterface
+public interface MessageListener {
+
+    /**
+     * Called on the client's event loop thread, so it must not block.
+     *
+     * @param topic the topic the message was published to
+     * @param body  a read-only view of the body in the client's receive buffer, between its position and limit: it is
+     *              only valid during the call and must be copied to be kept
+     */
+    void onMessage(@NotNull String topic, @NotNull ByteBuffer body);
+}
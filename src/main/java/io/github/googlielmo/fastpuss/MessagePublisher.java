@@ -1,14 +1,15 @@
 package io.github.googlielmo.fastpuss;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.FINE;
 
 public class MessagePublisher implements Runnable {
 
@@ -17,6 +18,8 @@ public class MessagePublisher implements Runnable {
     public static final int PORT = 11000;
     private final int port;
     private final InetSocketAddress brokerSocket;
+    private final int batch;
+    private final Transport transport;
 
     public MessagePublisher() {
         this(PORT);
@@ -27,15 +30,36 @@ public class MessagePublisher implements Runnable {
     }
 
     public MessagePublisher(int port, InetSocketAddress brokerSocket) {
+        this(port, brokerSocket, 1);
+    }
+
+    /**
+     * @param batch number of messages published at a time, packed into as few datagrams as fit the Ethernet MTU
+     */
+    public MessagePublisher(int port, InetSocketAddress brokerSocket, int batch) {
+        this(port, brokerSocket, batch, new SocketTransport());
+    }
+
+    /**
+     * @param transport where the socket comes from, the network by default
+     */
+    public MessagePublisher(int port, InetSocketAddress brokerSocket, int batch, Transport transport) {
+        if (batch < 1) {
+            throw new IllegalArgumentException("batch must be positive: " + batch);
+        }
         this.port = port;
         this.brokerSocket = brokerSocket;
+        this.batch = batch;
+        this.transport = transport;
     }
 
     @Override
     public void run() {
 
-        try (DatagramSocket socket = new DatagramSocket(port, InetAddress.getLoopbackAddress())) {
+        try (DatagramEndpoint socket = transport.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0,
+                false)) {
             Random rand = new Random();
+            BatchEncoder batcher = new BatchEncoder(BatchEncoder.ETHERNET_DATAGRAM_SIZE);
             while (!Thread.currentThread().isInterrupted()) {
                 try {
                     Thread.sleep(rand.nextInt(150));
@@ -44,18 +68,30 @@ public class MessagePublisher implements Runnable {
                     Thread.currentThread().interrupt(); // restore interrupt state
                     throw e;
                 }
-                String topic = "topic" + rand.nextInt(NUM_TOPICS);
-                String body = Double.toString(rand.nextDouble());
-                String msg = String.format("PUB %s\n%d %s", topic, System.currentTimeMillis(), body);
+                for (int i = 0; i < batch; i++) {
+                    String topic = "topic" + rand.nextInt(NUM_TOPICS);
+                    String body = Double.toString(rand.nextDouble());
+                    byte[] bodyBytes = (System.currentTimeMillis() + " " + body).getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer msg = MessageCodec.encode(Verb.PUB, topic, bodyBytes);
 
-                logger.log(INFO, "publishing to topic "+ topic);
+                    if (logger.isLoggable(FINE)) {
+                        logger.log(FINE, "publishing to topic " + topic);
+                    }
 
-                byte[] bytes = msg.getBytes();
-                DatagramPacket p = new DatagramPacket(bytes, 0, bytes.length, brokerSocket);
-                socket.send(p);
+                    if (!batcher.add(msg)) {
+                        send(socket, batcher);
+                        batcher.add(msg);
+                    }
+                }
+                send(socket, batcher);
             }
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
     }
+
+    private void send(DatagramEndpoint socket, BatchEncoder batcher) throws IOException {
+        socket.send(batcher.datagram(), brokerSocket);
+        batcher.clear();
+    }
 }
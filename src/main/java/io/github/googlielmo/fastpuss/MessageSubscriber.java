@@ -1,16 +1,26 @@
 package io.github.googlielmo.fastpuss;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
-import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.WARNING;
 
 public class MessageSubscriber implements Runnable {
@@ -19,11 +29,20 @@ public class MessageSubscriber implements Runnable {
     private static final int NUM_TOPICS = 100;
     private static final int MAX_SUBS = 25;
     private static final int MAX_MSG_SIZE = 1024 * 4;
-    private static final Pattern SEPARATOR_PATTERN = Pattern.compile("\\s+");
     private static final int PORT = 10001;
+    private static final int NACK_DELAY_MILLIS = 20;
+    private static final int MAX_NACKS = 5;
     private final int port;
     private final InetSocketAddress brokerSocket;
-    private DatagramSocket socket;
+    private final Transport transport;
+    private DatagramEndpoint socket;
+    // in reliable mode: gaps in the SEQ messages of each broker node
+    private final GapTracker gaps = new GapTracker(TimeUnit.MILLISECONDS.toNanos(NACK_DELAY_MILLIS), MAX_NACKS);
+    // topics the broker multicasts to us, with the broker that told us to join
+    private final Map<String, SocketAddress> multicastTopics = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, MembershipKey> groups = new HashMap<>();
+    private final Map<String, InetSocketAddress> groupByTopic = new HashMap<>();
+    private DatagramChannel multicastChannel; // opened on the first JOIN
 
     public MessageSubscriber() {
         this(PORT);
@@ -34,41 +53,161 @@ public class MessageSubscriber implements Runnable {
     }
 
     public MessageSubscriber(int port, InetSocketAddress brokerSocket) {
+        this(port, brokerSocket, new SocketTransport());
+    }
+
+    /**
+     * @param transport where the socket comes from, the network by default; multicast groups always need the network
+     */
+    public MessageSubscriber(int port, InetSocketAddress brokerSocket, Transport transport) {
         this.port = port;
         this.brokerSocket = brokerSocket;
+        this.transport = transport;
     }
 
     @Override
     public void run() {
         try {
-            socket = new DatagramSocket(port);
+            socket = transport.bind(new InetSocketAddress(port), 0, false);
             subscribeAll();
 
-            byte[] buf = new byte[MAX_MSG_SIZE];
-            DatagramPacket packet = new DatagramPacket(buf, MAX_MSG_SIZE);
+            ByteBuffer buf = ByteBuffer.allocate(MAX_MSG_SIZE);
 
             while (!Thread.currentThread().isInterrupted()) {
-                socket.receive(packet);
-                String msg = new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
-                handleMessage(msg);
+                buf.clear();
+                // wake up to NACK gaps even when nothing arrives
+                SocketAddress sender = socket.receive(buf, NACK_DELAY_MILLIS);
+                if (sender != null) {
+                    handleMessage(buf.flip(), sender);
+                }
+                synchronized (gaps) {
+                    gaps.nack(System.nanoTime(), this::sendNack);
+                }
             }
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
     }
 
-    private void handleMessage(String msg) {
-        String[] parts = SEPARATOR_PATTERN.split(msg, 3);
-        if (parts.length < 3) {
-            logger.log(WARNING, "malformed message discarded: " + msg);
+    private void handleMessage(ByteBuffer msg, SocketAddress source) {
+        if (MessageCodec.isBatch(msg)) { // MSGs coalesced by the broker
+            List<Frame> frames = MessageCodec.decodeBatch(msg);
+            if (frames == null) {
+                logger.log(WARNING, "malformed batch discarded: " + MessageCodec.toString(msg));
+                return;
+            }
+            frames.forEach(frame -> handleFrame(frame, source));
+            return;
+        }
+        Frame frame = MessageCodec.decode(msg);
+        if (frame == null) {
+            logger.log(WARNING, "malformed message discarded: " + MessageCodec.toString(msg));
             return;
         }
+        handleFrame(frame, source);
+    }
 
-        String verb = parts[0];
-        if (verb.equals("MSG")) {
-            logger.log(INFO, "message received; topic=" + parts[1] + " body=" + parts[2]);
+    private void handleFrame(Frame frame, SocketAddress source) {
+        if (frame.verb == Verb.JOIN || frame.verb == Verb.LEAVE) {
+            onMulticast(frame, source);
+            return;
+        }
+        if (frame.verb == Verb.SEQ) {
+            synchronized (gaps) {
+                if (!gaps.onMessage(source, frame.topic, frame.seq, System.nanoTime())) {
+                    return; // duplicate
+                }
+            }
+        }
+        if (frame.verb == Verb.MSG || frame.verb == Verb.SEQ) {
+            if (logger.isLoggable(FINE)) {
+                logger.log(FINE, "message received; topic=" + frame.topic
+                        + " body=" + new String(frame.body, StandardCharsets.UTF_8));
+            }
         } else {
-            logger.log(WARNING, "unknown message type " + verb);
+            logger.log(WARNING, "unknown message type " + frame.verb);
+        }
+    }
+
+    /**
+     * Join or leave the multicast group of a topic, as told by the broker.
+     */
+    private synchronized void onMulticast(Frame frame, SocketAddress broker) {
+        if (frame.verb == Verb.LEAVE) {
+            multicastTopics.remove(frame.topic);
+            InetSocketAddress group = groupByTopic.remove(frame.topic);
+            if (group != null && !groupByTopic.containsValue(group)) {
+                groups.remove(group).drop();
+            }
+            return;
+        }
+        String body = new String(frame.body, StandardCharsets.US_ASCII);
+        int colon = body.lastIndexOf(':');
+        try {
+            InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(body.substring(0, colon)),
+                    Integer.parseInt(body.substring(colon + 1)));
+            if (multicastChannel == null) {
+                openMulticast(group.getPort());
+            } else if (group.getPort() != multicastChannel.socket().getLocalPort()) {
+                logger.log(WARNING, "cannot join " + group + ", already receiving multicast on another port");
+                return;
+            }
+            if (!groups.containsKey(group)) {
+                groups.put(group, multicastChannel.join(group.getAddress(), interfaceTowards(brokerSocket)));
+            }
+            groupByTopic.put(frame.topic, group);
+            multicastTopics.put(frame.topic, broker);
+            socket.send(MessageCodec.encode(Verb.JOIN, frame.topic, frame.body), (InetSocketAddress) broker);
+        } catch (IOException | RuntimeException e) {
+            logger.log(WARNING, "cannot join the multicast group of " + frame.topic + ": " + body, e);
+        }
+    }
+
+    private void openMulticast(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                .bind(new InetSocketAddress(port));
+        Thread t = new Thread(() -> receiveMulticast(channel), "fastpuss-multicast-" + port);
+        t.setDaemon(true);
+        t.start();
+        multicastChannel = channel;
+    }
+
+    private void receiveMulticast(DatagramChannel channel) {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_MSG_SIZE);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                buf.clear();
+                channel.receive(buf);
+                buf.flip();
+                // groups may carry other topics; gaps are tracked per broker, as if received from it
+                Frame frame = MessageCodec.decode(buf);
+                SocketAddress broker = frame == null ? null : multicastTopics.get(frame.topic);
+                if (broker != null) {
+                    handleFrame(frame, broker);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(WARNING, "multicast receive failed", e);
+        }
+    }
+
+    /**
+     * @return the interface this host uses to reach the broker, whose network segment the groups are expected on
+     */
+    private static NetworkInterface interfaceTowards(InetSocketAddress broker) throws IOException {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(broker); // no packet sent, only a route lookup
+            return NetworkInterface.getByInetAddress(probe.getLocalAddress());
+        }
+    }
+
+    private void sendNack(Object broker, String topic, byte[] ranges) {
+        ByteBuffer msg = MessageCodec.encode(Verb.NACK, topic, ranges);
+        try {
+            socket.send(msg, (InetSocketAddress) broker);
+        } catch (IOException e) {
+            logger.log(WARNING, "cannot send NACK to " + broker, e);
         }
     }
 
@@ -82,10 +221,11 @@ public class MessageSubscriber implements Runnable {
     }
 
     private void subscribe(String topic) throws IOException {
-        logger.log(INFO, "subscribing to " + topic);
-        String msg = String.format("SUB %s\n%d", topic, System.currentTimeMillis());
-        byte[] bytes = msg.getBytes();
-        DatagramPacket packet = new DatagramPacket(bytes, 0, bytes.length, brokerSocket);
-        socket.send(packet);
+        if (logger.isLoggable(FINE)) {
+            logger.log(FINE, "subscribing to " + topic);
+        }
+        byte[] body = Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer msg = MessageCodec.encode(Verb.SUB, topic, body);
+        socket.send(msg, brokerSocket);
     }
 }
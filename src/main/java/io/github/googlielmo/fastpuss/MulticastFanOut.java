@@ -0,0 +1,280 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Delivers the messages of hot topics through IP multicast: one datagram per message instead of one per subscriber.
+ * <p>
+ * When a topic is published to with at least the configured number of subscribers, it is assigned one of the
+ * configured groups (by topic hash, so a group may carry several topics) and its subscribers are sent a
+ * {@link Verb#JOIN} from the broker port; later subscribers are sent the JOIN as they subscribe. A subscriber that
+ * joined the group sends the JOIN back: from then on the messages of the topic are sent once to the group, and unicast
+ * only to the subscribers that did not answer, e.g. because the JOIN was lost or they do not support multicast. When
+ * the number of subscribers falls below half the threshold the topic goes back to unicast and the remaining
+ * subscribers are sent a {@link Verb#LEAVE}. Subscribers must filter what they receive from a group by topic.
+ * <p>
+ * All the subscribers of a multicast topic are assumed to be able to join its group, e.g. on the same network segment:
+ * the datagrams are sent with a TTL of 1.
+ */
+final class MulticastFanOut {
+
+    private static final Logger logger = Logger.getLogger("MulticastFanOut");
+
+    private static final class Group {
+        final InetSocketAddress address;
+        final Set<Integer> members = ConcurrentHashMap.newKeySet(); // the subscribers that joined
+
+        Group(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * The subscribers of a topic that did not join its group.
+     */
+    private static final class NotJoined implements Subscribers {
+        private final Subscribers subscribers;
+        private final Set<Integer> members;
+
+        NotJoined(Subscribers subscribers, Set<Integer> members) {
+            this.subscribers = subscribers;
+            this.members = members;
+        }
+
+        @Override
+        public int size() {
+            return subscribers.size(); // an upper bound
+        }
+
+        @Override
+        public int partitions() {
+            return subscribers.partitions();
+        }
+
+        @Override
+        public void forEach(int partition, IntConsumer action) {
+            subscribers.forEach(partition, client -> {
+                if (!members.contains(client)) {
+                    action.accept(client);
+                }
+            });
+        }
+    }
+
+    private final int threshold;
+    private final InetSocketAddress[] groups;
+    private final NetworkInterface networkInterface; // null for the system default
+    private final ClientRegistry clients;
+    private final BrokerMetrics metrics;
+    private final Map<String, Group> hot = new ConcurrentHashMap<>();
+    private DatagramChannel channel;
+
+    /**
+     * @param threshold        number of subscribers from which a topic is multicast
+     * @param firstGroup       first of the IPv4 multicast groups topics are assigned to
+     * @param groups           number of consecutive groups
+     * @param port             UDP port of all the groups
+     * @param networkInterface interface to send from, {@code null} for the system default
+     */
+    MulticastFanOut(int threshold, @NotNull InetAddress firstGroup, int groups, int port,
+                    @Nullable NetworkInterface networkInterface, @NotNull ClientRegistry clients,
+                    @NotNull BrokerMetrics metrics) {
+        this.threshold = threshold;
+        this.groups = new InetSocketAddress[groups];
+        int first = ByteBuffer.wrap(firstGroup.getAddress()).getInt();
+        for (int i = 0; i < groups; i++) {
+            this.groups[i] = new InetSocketAddress(toAddress(first + i), port);
+        }
+        this.networkInterface = networkInterface;
+        this.clients = clients;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Open the channel multicast datagrams are sent from.
+     */
+    void open() throws IOException {
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true); // subscribers may run on the broker host
+        if (networkInterface != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        }
+    }
+
+    /**
+     * Close the channel multicast datagrams are sent from.
+     */
+    void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(FINE, "cannot close the multicast channel", e);
+        }
+    }
+
+    /**
+     * Promote or demote a topic about to be published to, according to its number of subscribers, sending the JOINs or
+     * LEAVEs through {@code unicast}.
+     *
+     * @return {@code true} if the message must be sent to the group with {@link #send}, and unicast only to the
+     * subscribers given by {@link #notJoined}
+     */
+    boolean update(@NotNull String topic, @NotNull Subscribers subscribers, @NotNull DatagramEndpoint unicast) {
+        int size = subscribers.size();
+        Group group = hot.get(topic);
+        if (group == null) {
+            if (size < threshold || channel == null) {
+                return false;
+            }
+            group = new Group(groups[Math.floorMod(topic.hashCode(), groups.length)]);
+            if (hot.putIfAbsent(topic, group) == null) {
+                logger.info("multicasting " + topic + " to " + group.address + ": " + size + " subscribers");
+                tell(Verb.JOIN, topic, group, subscribers, unicast);
+            }
+            return false;
+        }
+        if (size < threshold / 2) {
+            if (hot.remove(topic, group)) {
+                logger.info("back to unicast for " + topic + ": " + size + " subscribers");
+                tell(Verb.LEAVE, topic, group, subscribers, unicast);
+            }
+            return false;
+        }
+        return !group.members.isEmpty();
+    }
+
+    /**
+     * @return the subscribers of a multicast topic that must still be sent its messages by unicast
+     */
+    @NotNull
+    Subscribers notJoined(@NotNull String topic, @NotNull Subscribers subscribers) {
+        Group group = hot.get(topic);
+        return group == null ? subscribers : new NotJoined(subscribers, group.members);
+    }
+
+    /**
+     * Take note that a subscriber joined the group of a topic, as it answered the JOIN.
+     *
+     * @param address the group it joined, as in the JOIN
+     */
+    void joined(@NotNull String topic, @NotNull String address, int client) {
+        Group group = hot.get(topic);
+        if (group != null && address.equals(toString(group.address))) {
+            group.members.add(client);
+        }
+    }
+
+    /**
+     * Send a message to the group of its topic.
+     */
+    void send(@NotNull String topic, @NotNull ByteBuffer msg) {
+        Group group = hot.get(topic);
+        if (group == null) {
+            return; // demoted meanwhile, missed like a lost datagram
+        }
+        try {
+            channel.send(msg.duplicate(), group.address);
+            metrics.multicastSends.increment();
+            metrics.packetsOut.increment();
+        } catch (IOException e) {
+            metrics.sendErrors.increment();
+            logger.log(FINE, "cannot send to " + group.address, e);
+        }
+    }
+
+    /**
+     * Forget a client, whose handle may be reused.
+     */
+    void forget(int client) {
+        hot.values().forEach(group -> group.members.remove(client));
+    }
+
+    /**
+     * Send a JOIN to a new subscriber for each multicast topic matching its filter.
+     */
+    void onSubscribe(@NotNull String filter, int client, @NotNull DatagramEndpoint unicast) {
+        InetSocketAddress address = clients.address(client);
+        if (address == null) {
+            return;
+        }
+        if (!TopicFilter.isWildcard(filter)) {
+            Group group = hot.get(filter);
+            if (group != null) {
+                group.members.remove(client); // unicast until it answers, e.g. a new client on the same address
+                send(unicast, join(Verb.JOIN, filter, group), address);
+            }
+            return;
+        }
+        hot.forEach((topic, group) -> {
+            if (TopicFilter.matches(filter, topic)) {
+                group.members.remove(client);
+                send(unicast, join(Verb.JOIN, topic, group), address);
+            }
+        });
+    }
+
+    /**
+     * @return the number of topics currently multicast
+     */
+    int topics() {
+        return hot.size();
+    }
+
+    private void tell(Verb verb, String topic, Group group, Subscribers subscribers, DatagramEndpoint unicast) {
+        ByteBuffer msg = join(verb, topic, group);
+        subscribers.forEach(client -> {
+            InetSocketAddress address = clients.address(client);
+            if (address != null) {
+                send(unicast, msg, address);
+            }
+        });
+    }
+
+    private void send(DatagramEndpoint unicast, ByteBuffer msg, InetSocketAddress to) {
+        try {
+            unicast.send(msg.duplicate(), to);
+            metrics.packetsOut.increment();
+        } catch (IOException e) {
+            metrics.sendErrors.increment();
+            logger.log(FINE, "cannot send " + MessageCodec.toString(msg) + " to " + to, e);
+        }
+    }
+
+    private static ByteBuffer join(Verb verb, String topic, Group group) {
+        return MessageCodec.encode(verb, topic, toString(group.address).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String toString(InetSocketAddress group) {
+        return group.getAddress().getHostAddress() + ":" + group.getPort();
+    }
+
+    private static InetAddress toAddress(int ipv4) {
+        try {
+            return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(ipv4).array());
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // 4 bytes are always a valid address
+        }
+    }
+}
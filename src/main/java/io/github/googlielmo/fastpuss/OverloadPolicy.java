@@ -0,0 +1,20 @@
+package io.github.googlielmo.fastpuss;
+
+/**
+ * What the broker drops when its ingest queue is full, see {@link BrokerConfig#ingest}.
+ */
+public enum OverloadPolicy {
+    /**
+     * Drop the incoming message: what is already queued is handled in order.
+     */
+    DROP_NEWEST,
+    /**
+     * Make room by discarding the oldest queued message: under sustained overload the broker favours fresh data.
+     */
+    DROP_OLDEST,
+    /**
+     * Shed publications (and retransmission requests) early, once the queue is three quarters full, so that the
+     * remaining room is kept for SUB and UNSUB: subscription state stays correct while data is being lost.
+     */
+    PREFER_SUBSCRIPTIONS
+}
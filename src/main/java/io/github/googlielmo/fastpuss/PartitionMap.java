@@ -0,0 +1,96 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Assignment of the {@link TopicHash topic ranges} to the nodes of a cluster, by consistent hashing.
+ * <p>
+ * Each node is placed on a hash ring at {@value #TOKENS_PER_NODE} points derived from its address. A range is owned by
+ * the node of the first point following it on the ring, its primary, and backed up by the next distinct node, its
+ * secondary. Every node computes the same map from the same node list, and adding or removing a node only moves the
+ * ranges next to its own points.
+ */
+final class PartitionMap {
+
+    static final int TOKENS_PER_NODE = 128;
+
+    private final int[] primary = new int[TopicHash.RANGES];
+    private final int[] secondary = new int[TopicHash.RANGES];
+
+    /**
+     * @param nodes the nodes of the cluster, identified by their index in this list
+     */
+    PartitionMap(@NotNull List<InetSocketAddress> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("no nodes");
+        }
+        // each point is its position on the ring, in the high half, and its node; the sign bit of the position is
+        // flipped so that signed order is ring order
+        long[] ring = new long[nodes.size() * TOKENS_PER_NODE];
+        int k = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            InetSocketAddress address = nodes.get(node);
+            int seed = (address.getHostString() + ":" + address.getPort()).hashCode();
+            for (int t = 0; t < TOKENS_PER_NODE; t++) {
+                ring[k++] = point(TopicHash.mix32(seed + t * 0x9e3779b9), node);
+            }
+        }
+        Arrays.sort(ring);
+        for (int range = 0; range < TopicHash.RANGES; range++) {
+            int i = Arrays.binarySearch(ring, point(range << (32 - TopicHash.RANGE_BITS), 0));
+            i = i < 0 ? -i - 1 : i;
+            int first = nodeOf(ring[i % ring.length]);
+            int second = -1;
+            for (int j = 1; j < ring.length && second < 0; j++) {
+                int node = nodeOf(ring[(i + j) % ring.length]);
+                if (node != first) {
+                    second = node;
+                }
+            }
+            primary[range] = first;
+            secondary[range] = second;
+        }
+    }
+
+    int primary(int range) {
+        return primary[range];
+    }
+
+    /**
+     * @return the backup node of the range, or -1 if the cluster has a single node
+     */
+    int secondary(int range) {
+        return secondary[range];
+    }
+
+    boolean owns(int node, int range) {
+        return primary[range] == node || secondary[range] == node;
+    }
+
+    /**
+     * @return the ranges that both nodes own, as primary or secondary
+     */
+    @NotNull
+    BitSet shared(int node, int other) {
+        BitSet ranges = new BitSet(TopicHash.RANGES);
+        for (int range = 0; range < TopicHash.RANGES; range++) {
+            if (owns(node, range) && owns(other, range)) {
+                ranges.set(range);
+            }
+        }
+        return ranges;
+    }
+
+    private static long point(int position, int node) {
+        return (long) (position ^ Integer.MIN_VALUE) << 32 | node;
+    }
+
+    private static int nodeOf(long point) {
+        return (int) point;
+    }
+}
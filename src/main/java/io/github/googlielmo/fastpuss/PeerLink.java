@@ -0,0 +1,177 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Long-lived replication connection to one peer broker.
+ * <p>
+ * Updates are queued without blocking the caller. A dedicated writer thread drains whatever has accumulated,
+ * coalesces it and writes it as a single batch frame, so that under load many updates share one write. If the
+ * connection drops, the writer reconnects with exponential backoff and re-sends the pending batch: updates are
+ * idempotent, so a batch received twice is harmless. When the queue is full (e.g. the peer is down for long) new
+ * updates are dropped and counted; anti-entropy will repair the peer later.
+ * <p>
+ * The writer uses blocking {@link Transport.Stream} I/O rather than a selector: a cluster has few peers, so one
+ * thread per link (virtual with {@link ExecutionMode#VIRTUAL}) costs little, callers never wait on it, and the link
+ * works on any {@link Transport}.
+ */
+class PeerLink implements Runnable {
+
+    static final String COMMAND = "LINK";
+    private static final Logger logger = Logger.getLogger("PeerLink");
+    private static final int MAX_BATCH = 4096;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final InetSocketAddress peer;
+    private final Transport transport;
+    private final BrokerMetrics metrics;
+    private final ExecutionMode executionMode;
+    private final BlockingQueue<SyncUpdate> queue;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private Transport.Stream stream;
+    private OutputStream out;
+    private volatile boolean closed;
+    private volatile boolean up = true;
+    private Thread writer;
+
+    /**
+     * @param metrics       where the time updates spend queued is recorded
+     * @param executionMode the kind of thread the writer runs on
+     */
+    PeerLink(@NotNull InetSocketAddress peer, int capacity, @NotNull Transport transport,
+             @NotNull BrokerMetrics metrics, @NotNull ExecutionMode executionMode) {
+        this.peer = peer;
+        this.transport = transport;
+        this.metrics = metrics;
+        this.executionMode = executionMode;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    synchronized void start() {
+        writer = executionMode.newThread("fastpuss-peer-" + peer.getHostString() + ":" + peer.getPort(), this);
+        writer.start();
+    }
+
+    /**
+     * Queue an update for replication. Never blocks.
+     *
+     * @return {@code false} if the queue is full and the update was dropped
+     */
+    boolean enqueue(@NotNull SyncUpdate update) {
+        if (queue.offer(update)) {
+            return true;
+        }
+        dropped.increment();
+        metrics.replicationDrops.increment();
+        return false;
+    }
+
+    @Override
+    public void run() {
+        List<SyncUpdate> batch = new ArrayList<>(MAX_BATCH);
+        long backoff = MIN_BACKOFF_MILLIS;
+        try {
+            while (!closed) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                ByteBuffer frame = SyncUpdate.encodeBatch(SyncUpdate.coalesce(batch));
+                for (; ; ) {
+                    try {
+                        write(frame);
+                        batches.increment();
+                        metrics.replicationLagNanos.record(System.nanoTime() - batch.get(0).createdNanos);
+                        up = true;
+                        backoff = MIN_BACKOFF_MILLIS;
+                        break;
+                    } catch (IOException e) {
+                        logger.log(backoff == MIN_BACKOFF_MILLIS ? WARNING : FINE, "sync link to " + peer + " failed", e);
+                        up = false;
+                        disconnect();
+                        Thread.sleep(backoff);
+                        backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+                        frame.rewind();
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.log(WARNING, "cannot encode sync batch for " + peer, e); // not expected for in-memory streams
+        } finally {
+            disconnect();
+        }
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        if (stream == null) {
+            stream = transport.connect(peer);
+            out = stream.out();
+            out.write((COMMAND + "\n").getBytes(US_ASCII));
+            logger.info("sync link to " + peer + " established");
+        }
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        out.flush();
+        frame.position(frame.limit());
+    }
+
+    private void disconnect() {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+                // nothing left to do
+            }
+            stream = null;
+            out = null;
+        }
+    }
+
+    @NotNull
+    InetSocketAddress peer() {
+        return peer;
+    }
+
+    /**
+     * @return {@code false} if the last attempt to write to the peer failed
+     */
+    boolean isUp() {
+        return up;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    long batches() {
+        return batches.sum();
+    }
+
+    int pending() {
+        return queue.size();
+    }
+
+    synchronized void close() {
+        closed = true;
+        if (writer != null) {
+            writer.interrupt();
+        }
+    }
+}
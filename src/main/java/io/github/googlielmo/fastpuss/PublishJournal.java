@@ -0,0 +1,625 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Append-only journal of the published messages, in memory-mapped segment files.
+ * <p>
+ * {@link #append} only queues the message, so publishing never waits for the disk. A single writer thread assigns
+ * each message the next offset and a timestamp, copies a batch of queued messages into the mapped segment and forces
+ * it to disk once for the whole batch (group commit); only then do readers see the batch. A segment is rolled when
+ * full and gets a sparse index of one entry every {@value #INDEX_INTERVAL} bytes, so that a {@link Cursor} can be
+ * positioned by offset or by time without scanning whole segments. Old segments are deleted when the journal exceeds
+ * its size, or when they are older than its age limit.
+ * <pre>
+ * segment = magic:int32 "FPSJ", version:int8, 3 * pad:int8, { entry } ;
+ * entry   = length:int32, crc32:int32, offset:int64, timestamp:int64, topic:utf, body ;  (length and crc of what follows)
+ * index   = { offset:int64, timestamp:int64, position:int32 } ;
+ * </pre>
+ * A segment is named after the offset of its first entry, {@code journal-<offset>.log}, and its index is written to
+ * {@code journal-<offset>.idx} when it is sealed. On restart a segment without index, i.e. the one being written when
+ * the broker stopped, is scanned up to its first torn entry, truncated and sealed; appends continue in a new segment.
+ */
+final class PublishJournal implements Closeable {
+
+    private static final Logger logger = Logger.getLogger("PublishJournal");
+    private static final int MAGIC = 0x4650534a; // "FPSJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_HEADER_SIZE = 4 + 4 + 8 + 8 + 2;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int INDEX_ENTRY_SIZE = 20;
+    private static final int MAX_BATCH = 1024; // messages per group commit
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long EXPIRY_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final BrokerMetrics metrics;
+    private final BoundedQueue<Pending> queue;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Thread writer;
+    private volatile boolean open;
+    private volatile boolean closed;
+
+    // writer state
+    private final CRC32 crc = new CRC32();
+    private Segment active;
+    private long nextOffset;
+    private long lastTimestamp;
+    private long lastExpiry;
+
+    /**
+     * @param segmentBytes    size of a segment file, at least {@value #MIN_SEGMENT_BYTES}
+     * @param retentionBytes  max total size of the segments
+     * @param retentionMillis max age of the messages in the sealed segments, 0 for no limit
+     * @param queueCapacity   max number of messages waiting for the writer; more are not journaled
+     */
+    PublishJournal(@NotNull Path directory, int segmentBytes, long retentionBytes, long retentionMillis,
+                   int queueCapacity, @NotNull BrokerMetrics metrics) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.queue = new BoundedQueue<>(queueCapacity);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Seal the segments left by the previous run and start the writer.
+     */
+    synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        for (long base : bases()) {
+            Segment s = Segment.load(directory, base);
+            if (s != null) {
+                segments.put(base, s);
+            }
+        }
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        nextOffset = last == null ? 0 : last.getValue().lastOffset + 1;
+        lastTimestamp = last == null ? 0 : last.getValue().lastTimestamp;
+        active = Segment.create(directory, nextOffset, segmentBytes);
+        segments.put(nextOffset, active);
+        logger.info(String.format("journal %s opened at offset %d, %d sealed segments", directory, nextOffset,
+                segments.size() - 1));
+        writer = new Thread(this::write, "fastpuss-journal");
+        writer.setDaemon(true);
+        writer.start();
+        open = true;
+    }
+
+    /**
+     * Queue a message for the journal. Never blocks.
+     *
+     * @return {@code false} if the message was dropped because too many are waiting to be written, or the journal is
+     * not open
+     */
+    boolean append(@NotNull String topic, byte @NotNull [] body) {
+        if (!open || !queue.offer(new Pending(topic, body))) {
+            metrics.journalDrops.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the journal is open and writing
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return the offset of the last committed message, -1 if none
+     */
+    long lastOffset() {
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        if (last == null) {
+            return -1;
+        }
+        Segment s = last.getValue();
+        long committed = s.committedOffset;
+        if (committed < s.base) { // nothing committed in the active segment yet
+            Map.Entry<Long, Segment> previous = segments.lowerEntry(s.base);
+            return previous == null ? -1 : previous.getValue().committedOffset;
+        }
+        return committed;
+    }
+
+    /**
+     * @return a cursor on the first committed message with an offset at least {@code offset}; the oldest message if
+     * it is no longer kept
+     */
+    @NotNull
+    Cursor fromOffset(long offset) {
+        Map.Entry<Long, Segment> e = segments.floorEntry(offset);
+        if (e == null) {
+            e = segments.firstEntry();
+        }
+        Segment s = e.getValue();
+        Cursor c = new Cursor(s, s.floorPosition(offset, false));
+        c.skipWhile(entry -> entry.offset < offset);
+        return c;
+    }
+
+    /**
+     * @return a cursor on the first committed message journaled at or after {@code timestampMillis}
+     */
+    @NotNull
+    Cursor fromTime(long timestampMillis) {
+        Segment s = segments.lastEntry().getValue();
+        for (Segment candidate : segments.values()) {
+            if (candidate.committedOffset >= candidate.base && candidate.committedTimestamp >= timestampMillis) {
+                s = candidate;
+                break;
+            }
+        }
+        Cursor c = new Cursor(s, s.floorPosition(timestampMillis, true));
+        c.skipWhile(entry -> entry.timestamp < timestampMillis);
+        return c;
+    }
+
+    /**
+     * Write what is queued, then stop the writer and seal the active segment.
+     */
+    @Override
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Pending p = queue.poll();
+                if (p == null) {
+                    expire(false);
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                int n = 0;
+                do {
+                    write(p);
+                } while (++n < MAX_BATCH && (p = queue.poll()) != null);
+                active.commit();
+                metrics.journalCommits.increment();
+            }
+            if (active.lastOffset < active.base) {
+                segments.remove(active.base);
+                active.delete();
+            } else {
+                active.seal();
+            }
+        } catch (IOException e) {
+            open = false;
+            logger.log(SEVERE, "cannot write to the journal, messages are no longer journaled", e);
+        }
+    }
+
+    private void write(Pending p) throws IOException {
+        byte[] topic = p.topic.getBytes(StandardCharsets.UTF_8);
+        int length = ENTRY_HEADER_SIZE - 8 + topic.length + p.body.length;
+        if (8 + length > segmentBytes - HEADER_SIZE) {
+            metrics.journalDrops.increment();
+            logger.log(WARNING, "message too large for the journal, not journaled: " + p.topic);
+            return;
+        }
+        if (active.written + 8 + length > segmentBytes) {
+            active.commit();
+            active.seal();
+            active = Segment.create(directory, nextOffset, segmentBytes);
+            segments.put(nextOffset, active);
+            expire(true);
+        }
+        long timestamp = Math.max(lastTimestamp, System.currentTimeMillis()); // never goes back
+        int at = active.written;
+        ByteBuffer buf = active.buf;
+        buf.duplicate().position(at + 8)
+                .putLong(nextOffset).putLong(timestamp).putShort((short) topic.length).put(topic).put(p.body);
+        crc.reset();
+        crc.update(buf.duplicate().limit(at + 8 + length).position(at + 8));
+        buf.putInt(at + 4, (int) crc.getValue());
+        buf.putInt(at, length);
+        active.append(nextOffset, timestamp, at, 8 + length);
+        nextOffset++;
+        lastTimestamp = timestamp;
+        metrics.journalAppends.increment();
+    }
+
+    /**
+     * Delete the oldest sealed segments while the journal is too large or they are too old.
+     */
+    private void expire(boolean now) {
+        long t = System.nanoTime();
+        if (!now && t - lastExpiry < EXPIRY_PERIOD_NANOS) {
+            return;
+        }
+        lastExpiry = t;
+        long total = 0;
+        for (Segment s : segments.values()) {
+            total += s.written;
+        }
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        for (Segment s : segments.values()) {
+            if (s == active || total <= retentionBytes && (retentionMillis == 0 || s.lastTimestamp >= oldest)) {
+                break;
+            }
+            segments.remove(s.base);
+            total -= s.written;
+            try {
+                s.delete();
+            } catch (IOException e) {
+                logger.log(WARNING, "cannot delete expired journal segment " + s.file, e);
+            }
+        }
+    }
+
+    private List<Long> bases() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith(Segment.PREFIX) && name.endsWith(Segment.LOG))
+                    .forEach(name -> {
+                        try {
+                            bases.add(Long.parseUnsignedLong(
+                                    name.substring(Segment.PREFIX.length(), name.length() - Segment.LOG.length()), 16));
+                        } catch (NumberFormatException e) {
+                            // not ours
+                        }
+                    });
+        }
+        bases.sort(null);
+        return bases;
+    }
+
+    private static final class Pending {
+        final String topic;
+        final byte[] body;
+
+        Pending(String topic, byte[] body) {
+            this.topic = topic;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A journaled message, valid until the next call to {@link Cursor#next}.
+     */
+    static final class Entry {
+        long offset;
+        long timestamp;
+        String topic;
+        ByteBuffer body; // read-only view of the mapped segment
+    }
+
+    /**
+     * Reads the committed messages in offset order, across segments. A cursor is used by one thread at a time, and
+     * keeps reading a segment deleted meanwhile.
+     */
+    final class Cursor {
+        private final Entry entry = new Entry();
+        private Segment segment;
+        private int position;
+
+        private Cursor(Segment segment, int position) {
+            this.segment = segment;
+            this.position = position;
+        }
+
+        /**
+         * @return the next message, or {@code null} if all the committed messages were read
+         */
+        @Nullable
+        Entry next() {
+            while (position >= segment.end) {
+                if (!segment.sealed) {
+                    return null;
+                }
+                Map.Entry<Long, Segment> e = segments.higherEntry(segment.base);
+                if (e == null) {
+                    return null;
+                }
+                segment = e.getValue();
+                position = HEADER_SIZE;
+            }
+            ByteBuffer buf = segment.buf;
+            int length = buf.getInt(position);
+            entry.offset = buf.getLong(position + 8);
+            entry.timestamp = buf.getLong(position + 16);
+            int topicLength = buf.getShort(position + 24) & 0xffff;
+            byte[] topic = new byte[topicLength];
+            buf.duplicate().position(position + ENTRY_HEADER_SIZE).get(topic);
+            entry.topic = new String(topic, StandardCharsets.UTF_8);
+            entry.body = buf.asReadOnlyBuffer()
+                    .limit(position + 8 + length).position(position + ENTRY_HEADER_SIZE + topicLength);
+            position += 8 + length;
+            return entry;
+        }
+
+        private void skipWhile(Predicate<Entry> before) {
+            int at = position;
+            Segment s = segment;
+            for (Entry e = next(); e != null && before.test(e); e = next()) {
+                at = position;
+                s = segment;
+            }
+            segment = s;
+            position = at;
+        }
+    }
+
+    /**
+     * A segment file, mapped as a whole. Only the writer appends; readers see what was committed.
+     */
+    private static final class Segment {
+        static final String PREFIX = "journal-";
+        static final String LOG = ".log";
+        static final String INDEX = ".idx";
+
+        final long base;
+        final Path file;
+        final Path indexFile;
+        MappedByteBuffer buf;
+        FileChannel channel; // null once sealed
+        volatile int end = HEADER_SIZE; // committed
+        volatile long committedOffset;
+        volatile long committedTimestamp;
+        volatile boolean sealed;
+        // writer state, also read by expire() on the writer thread
+        int written = HEADER_SIZE;
+        long lastOffset;
+        long lastTimestamp;
+        private int lastIndexed = -INDEX_INTERVAL;
+        // sparse index: offset, timestamp and position of one entry every INDEX_INTERVAL bytes
+        private volatile long[] index = new long[3 * 64];
+        private volatile int indexed;
+
+        private Segment(Path directory, long base) {
+            this.base = base;
+            this.file = directory.resolve(String.format("%s%016x%s", PREFIX, base, LOG));
+            this.indexFile = directory.resolve(String.format("%s%016x%s", PREFIX, base, INDEX));
+            this.lastOffset = base - 1;
+            this.committedOffset = base - 1;
+        }
+
+        static Segment create(Path directory, long base, int size) throws IOException {
+            Segment s = new Segment(directory, base);
+            s.channel = FileChannel.open(s.file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            s.buf = s.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            s.buf.putInt(0, MAGIC).put(4, (byte) VERSION);
+            return s;
+        }
+
+        /**
+         * @return the sealed segment, or {@code null} if the file holds no entries or is not a segment
+         */
+        @Nullable
+        static Segment load(Path directory, long base) throws IOException {
+            Segment s = new Segment(directory, base);
+            try (FileChannel ch = FileChannel.open(s.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.get(4) != VERSION) {
+                    logger.log(WARNING, "not a journal segment, skipped: " + s.file);
+                    return null;
+                }
+                s.buf = buf;
+                if (!s.readIndex(buf.limit())) {
+                    s.scan(buf);
+                    if (s.lastOffset < base) {
+                        s.delete();
+                        return null;
+                    }
+                    ch.truncate(s.written);
+                    s.writeIndex();
+                }
+            }
+            s.end = s.written;
+            s.committedOffset = s.lastOffset;
+            s.committedTimestamp = s.lastTimestamp;
+            s.sealed = true;
+            return s;
+        }
+
+        void append(long offset, long timestamp, int at, int size) {
+            if (at - lastIndexed >= INDEX_INTERVAL) {
+                addIndex(offset, timestamp, at);
+            }
+            written = at + size;
+            lastOffset = offset;
+            lastTimestamp = timestamp;
+        }
+
+        /**
+         * Make the appended entries durable, then visible to the readers.
+         */
+        void commit() {
+            if (end == written) {
+                return;
+            }
+            buf.force();
+            committedOffset = lastOffset;
+            committedTimestamp = lastTimestamp;
+            end = written;
+        }
+
+        void seal() throws IOException {
+            long[] idx = index;
+            if (idx[3 * (indexed - 1)] != lastOffset) { // the last entry is always indexed, see readIndex
+                addIndex(lastOffset, lastTimestamp, lastIndexPosition());
+            }
+            channel.truncate(written); // first: an index file means that its segment was truncated
+            writeIndex();
+            channel.close();
+            channel = null;
+            sealed = true;
+        }
+
+        void delete() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(indexFile);
+            Files.deleteIfExists(file);
+        }
+
+        /**
+         * @param byTime whether {@code key} is a timestamp rather than an offset
+         * @return the position of the last indexed entry before {@code key}, or of the first entry
+         */
+        int floorPosition(long key, boolean byTime) {
+            int n = indexed;
+            long[] idx = index;
+            int lo = 0;
+            int hi = n - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (idx[3 * mid + (byTime ? 1 : 0)] < key) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            int position = found < 0 ? HEADER_SIZE : (int) idx[3 * found + 2];
+            return Math.min(position, end);
+        }
+
+        private int lastIndexPosition() {
+            // the last entry starts where the scan of the entries from the last indexed one ends
+            int at = (int) index[3 * (indexed - 1) + 2];
+            while (true) {
+                int next = at + 8 + buf.getInt(at);
+                if (next >= written) {
+                    return at;
+                }
+                at = next;
+            }
+        }
+
+        private void addIndex(long offset, long timestamp, int at) {
+            long[] idx = index;
+            int n = indexed;
+            if (3 * n + 3 > idx.length) {
+                idx = Arrays.copyOf(idx, idx.length * 2);
+            }
+            idx[3 * n] = offset;
+            idx[3 * n + 1] = timestamp;
+            idx[3 * n + 2] = at;
+            index = idx;
+            indexed = n + 1;
+            lastIndexed = at;
+        }
+
+        /**
+         * Walk the entries up to the first torn or out of sequence one, indexing them.
+         */
+        private void scan(ByteBuffer buf) {
+            CRC32 check = new CRC32();
+            int at = HEADER_SIZE;
+            while (at + ENTRY_HEADER_SIZE <= buf.limit()) {
+                int length = buf.getInt(at);
+                if (length < ENTRY_HEADER_SIZE - 8 || length > buf.limit() - at - 8
+                        || buf.getLong(at + 8) != lastOffset + 1) {
+                    break;
+                }
+                check.reset();
+                check.update(buf.duplicate().limit(at + 8 + length).position(at + 8));
+                if ((int) check.getValue() != buf.getInt(at + 4)) {
+                    break;
+                }
+                append(lastOffset + 1, buf.getLong(at + 16), at, 8 + length);
+                at += 8 + length;
+            }
+            if (lastOffset >= base && index[3 * (indexed - 1)] != lastOffset) {
+                addIndex(lastOffset, lastTimestamp, lastIndexPosition());
+            }
+        }
+
+        /**
+         * @return {@code false} if there is no valid index file
+         */
+        private boolean readIndex(int size) throws IOException {
+            if (!Files.exists(indexFile)) {
+                return false;
+            }
+            byte[] bytes = Files.readAllBytes(indexFile);
+            int n = bytes.length / INDEX_ENTRY_SIZE;
+            if (n == 0 || bytes.length % INDEX_ENTRY_SIZE != 0) {
+                return false;
+            }
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            long[] idx = new long[3 * n];
+            for (int i = 0; i < n; i++) {
+                idx[3 * i] = in.getLong();
+                idx[3 * i + 1] = in.getLong();
+                idx[3 * i + 2] = in.getInt();
+            }
+            if (idx[3 * n - 1] >= size) {
+                return false;
+            }
+            index = idx;
+            indexed = n;
+            lastOffset = idx[3 * n - 3];
+            lastTimestamp = idx[3 * n - 2];
+            written = size;
+            return true;
+        }
+
+        private void writeIndex() throws IOException {
+            int n = indexed;
+            long[] idx = index;
+            ByteBuffer out = ByteBuffer.allocate(n * INDEX_ENTRY_SIZE);
+            for (int i = 0; i < n; i++) {
+                out.putLong(idx[3 * i]).putLong(idx[3 * i + 1]).putInt((int) idx[3 * i + 2]);
+            }
+            out.flip();
+            try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (out.hasRemaining()) {
+                    ch.write(out);
+                }
+                ch.force(true);
+            }
+        }
+    }
+}
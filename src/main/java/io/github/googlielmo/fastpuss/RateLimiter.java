@@ -0,0 +1,85 @@
+package io.github.googlielmo.fastpuss;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A token bucket per client handle (see {@link ClientRegistry}), in the form of the generic cell rate algorithm: each
+ * client has a theoretical arrival time, pushed forward by one emission interval for every message let through and
+ * never behind the current time. A message is rejected when it would push the theoretical arrival time further than
+ * the burst allows.
+ * <p>
+ * The state of a client is a single {@code long} updated by CAS, so checking a message neither locks nor allocates.
+ * The table grows with the handles; a message racing with a resize may be counted against the old table, which only
+ * gives its client a spare token.
+ */
+class RateLimiter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final Object lock = new Object();
+    private volatile AtomicLongArray arrivals = new AtomicLongArray(INITIAL_CAPACITY);
+
+    /**
+     * @param perSecond sustained number of messages allowed per client per second
+     * @param burst     number of messages a client may send at once after being idle
+     */
+    RateLimiter(int perSecond, int burst) {
+        if (perSecond < 1 || burst < 1) {
+            throw new IllegalArgumentException("invalid rate limit: " + perSecond + "/s, burst " + burst);
+        }
+        this.intervalNanos = 1_000_000_000L / perSecond;
+        this.toleranceNanos = intervalNanos * (burst - 1);
+    }
+
+    /**
+     * @return {@code true} if the client may send one more message now
+     */
+    boolean tryAcquire(int client, long nowNanos) {
+        AtomicLongArray a = table(client);
+        while (true) {
+            long tat = a.get(client);
+            // a fresh slot (0) or an idle client: the bucket is full
+            long start = tat == 0 || tat - nowNanos < 0 ? nowNanos : tat;
+            if (start - nowNanos > toleranceNanos) {
+                return false;
+            }
+            if (a.compareAndSet(client, tat, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Forget a client, whose handle may be reused: its bucket is full again.
+     */
+    void forget(int client) {
+        AtomicLongArray a = arrivals;
+        if (client < a.length()) {
+            a.set(client, 0);
+        }
+    }
+
+    private AtomicLongArray table(int client) {
+        AtomicLongArray a = arrivals;
+        if (client < a.length()) {
+            return a;
+        }
+        synchronized (lock) {
+            a = arrivals;
+            if (client >= a.length()) {
+                int length = a.length();
+                while (length <= client) {
+                    length *= 2;
+                }
+                AtomicLongArray grown = new AtomicLongArray(length);
+                for (int i = 0; i < a.length(); i++) {
+                    grown.set(i, a.get(i));
+                }
+                arrivals = a = grown;
+            }
+            return a;
+        }
+    }
+}
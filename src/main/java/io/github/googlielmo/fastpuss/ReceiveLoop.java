@@ -0,0 +1,54 @@
+package io.github.googlielmo.fastpuss;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * One receive loop of the NIO receive path.
+ * <p>
+ * Each loop blocks on its own {@link DatagramEndpoint} and reuses a single direct {@link ByteBuffer} for every
+ * datagram, so the loop itself does not allocate. The handler is invoked on the loop thread and must copy whatever it
+ * needs out of the buffer before returning.
+ */
+class ReceiveLoop implements Runnable {
+
+    interface PacketHandler {
+        void onPacket(ByteBuffer packet, SocketAddress sender);
+    }
+
+    private static final Logger logger = Logger.getLogger("ReceiveLoop");
+
+    private final DatagramEndpoint channel;
+    private final ByteBuffer buf;
+    private final PacketHandler handler;
+
+    ReceiveLoop(DatagramEndpoint channel, int maxMessageSize, PacketHandler handler) {
+        this.channel = channel;
+        this.buf = ByteBuffer.allocateDirect(maxMessageSize);
+        this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                buf.clear();
+                SocketAddress sender = channel.receive(buf);
+                if (sender == null) {
+                    continue;
+                }
+                buf.flip();
+                handler.onPacket(buf, sender);
+            }
+        } catch (ClosedChannelException e) {
+            // closed by the broker or interrupted: normal shutdown
+        } catch (IOException e) {
+            logger.log(SEVERE, "error receiving on " + channel, e);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last messages published to each topic, sent to a client as soon as it subscribes.
+ * <p>
+ * Each topic keeps up to N message bodies in a slot array allocated once, used as a ring; with N = 1 this is a
+ * last-value cache. The cache is split into stripes by topic hash, each an LRU map with an equal share of the memory
+ * budget: when a stripe is over budget its least recently published or subscribed topics are evicted, so millions of
+ * short-lived topics cannot make retention grow without bound. Memory is accounted as the size of the bodies plus a
+ * fixed estimate per topic.
+ */
+final class RetentionCache {
+
+    private static final int STRIPES = 16;
+    private static final int TOPIC_OVERHEAD = 96; // map entry, ring, array and string headers; plus a word per slot
+
+    private static final class Retained {
+        final byte[][] bodies;
+        int next; // slot of the next body
+        int count;
+        long bytes;
+
+        Retained(int capacity) {
+            this.bodies = new byte[capacity][];
+        }
+    }
+
+    private final int perTopic;
+    private final long stripeBudget;
+    private final BrokerMetrics metrics;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final LinkedHashMap<String, Retained>[] stripes = new LinkedHashMap[STRIPES];
+    private final long[] stripeBytes = new long[STRIPES]; // guarded by the stripe
+
+    /**
+     * @param messagesPerTopic number of messages kept per topic
+     * @param maxBytes         memory budget of the whole cache
+     * @param metrics          where evictions are counted
+     */
+    RetentionCache(int messagesPerTopic, long maxBytes, @NotNull BrokerMetrics metrics) {
+        this.perTopic = messagesPerTopic;
+        this.stripeBudget = Math.max(1, maxBytes / STRIPES);
+        this.metrics = metrics;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LinkedHashMap<>(16, 0.75f, true);
+        }
+    }
+
+    /**
+     * Keep a published message, evicting the oldest message of the topic and, if over budget, the coldest topics.
+     * The body is kept by reference and must not be modified afterwards.
+     */
+    void retain(@NotNull String topic, byte @NotNull [] body) {
+        long cost = body.length;
+        if (cost + topicCost(topic) > stripeBudget) {
+            return; // would evict everything else
+        }
+        int s = stripe(topic);
+        LinkedHashMap<String, Retained> map = stripes[s];
+        synchronized (map) {
+            Retained r = map.get(topic);
+            if (r == null) {
+                r = new Retained(perTopic);
+                map.put(topic, r);
+                stripeBytes[s] += topicCost(topic);
+            }
+            byte[] old = r.bodies[r.next];
+            if (old != null) {
+                r.bytes -= old.length;
+                stripeBytes[s] -= old.length;
+            } else {
+                r.count++;
+            }
+            r.bodies[r.next] = body;
+            r.next = (r.next + 1) % r.bodies.length;
+            r.bytes += cost;
+            stripeBytes[s] += cost;
+            evict(s, map, topic);
+        }
+    }
+
+    /**
+     * @return the retained bodies of a topic, oldest first, possibly empty
+     */
+    @NotNull
+    List<byte[]> get(@NotNull String topic) {
+        LinkedHashMap<String, Retained> map = stripes[stripe(topic)];
+        synchronized (map) {
+            Retained r = map.get(topic);
+            if (r == null) {
+                return List.of();
+            }
+            List<byte[]> bodies = new ArrayList<>(r.count);
+            int first = r.count < r.bodies.length ? 0 : r.next;
+            for (int i = 0; i < r.count; i++) {
+                bodies.add(r.bodies[(first + i) % r.bodies.length]);
+            }
+            return bodies;
+        }
+    }
+
+    /**
+     * @return the memory accounted to the cache, in bytes
+     */
+    long bytes() {
+        long bytes = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            synchronized (stripes[i]) {
+                bytes += stripeBytes[i];
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of topics with retained messages
+     */
+    int topics() {
+        int topics = 0;
+        for (LinkedHashMap<String, Retained> map : stripes) {
+            synchronized (map) {
+                topics += map.size();
+            }
+        }
+        return topics;
+    }
+
+    private void evict(int s, LinkedHashMap<String, Retained> map, String keep) {
+        Iterator<Map.Entry<String, Retained>> it = map.entrySet().iterator();
+        while (stripeBytes[s] > stripeBudget && it.hasNext()) {
+            Map.Entry<String, Retained> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue; // the topic just published to is the most recently used anyway
+            }
+            stripeBytes[s] -= eldest.getValue().bytes + topicCost(eldest.getKey());
+            it.remove();
+            metrics.retentionEvictions.increment();
+        }
+    }
+
+    private long topicCost(String topic) {
+        return TOPIC_OVERHEAD + topic.length() + 8L * perTopic;
+    }
+
+    private static int stripe(String topic) {
+        int h = topic.hashCode();
+        return (h ^ h >>> 16) & (STRIPES - 1);
+    }
+}
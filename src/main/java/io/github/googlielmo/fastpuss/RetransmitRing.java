@@ -0,0 +1,125 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The recent {@link Verb#SEQ} messages of one topic, kept for retransmission in reliable mode.
+ * <p>
+ * Encoded messages are appended to a fixed-size off-heap byte ring; a slot per sequence number (modulo the number of
+ * slots) records where each message starts. A message can be retransmitted as long as neither its slot nor its bytes
+ * have been reused by a later one.
+ * <p>
+ * Sequence numbers start from the {@link #INCARNATION_SHIFT incarnation} of the ring (from 1 for incarnation 0), so
+ * that a topic whose ring was dropped, or a restarted broker, starts a new stream above its old numbers, see
+ * {@link RetransmitRings}.
+ * <p>
+ * Appends and reads lock the ring: they are serialized per topic only.
+ */
+final class RetransmitRing {
+
+    /**
+     * A ring of incarnation {@code i} numbers its messages from {@code i << INCARNATION_SHIFT}; one that sends more
+     * messages than that just runs into the numbers of the next incarnations.
+     */
+    static final int INCARNATION_SHIFT = 24;
+
+    private final ByteBuffer data;
+    private final long[] starts; // absolute offset in the stream of bytes written
+    private final int[] lengths;
+    private final long[] seqs;
+    private final int mask;
+    private long nextSeq;
+    private long written;
+
+    RetransmitRing(int slots, int bytes) {
+        this(slots, bytes, 0);
+    }
+
+    /**
+     * @param slots       max number of messages kept, rounded up to a power of two
+     * @param bytes       size of the off-heap ring holding their bytes
+     * @param incarnation above the incarnations of any ring the topic may have had before
+     */
+    RetransmitRing(int slots, int bytes, long incarnation) {
+        int n = Integer.highestOneBit(Math.max(1, slots));
+        n = n < slots ? n << 1 : n;
+        this.data = ByteBuffer.allocateDirect(bytes);
+        this.starts = new long[n];
+        this.lengths = new int[n];
+        this.seqs = new long[n];
+        this.mask = n - 1;
+        this.nextSeq = Math.max(1, incarnation << INCARNATION_SHIFT);
+    }
+
+    /**
+     * Stamp a message with the next sequence number of the topic and keep a copy of it.
+     *
+     * @return the encoded SEQ message, positioned at zero
+     */
+    @NotNull
+    synchronized ByteBuffer append(@NotNull String topic, byte @NotNull [] body) {
+        long seq = nextSeq++;
+        ByteBuffer msg = MessageCodec.encodeSequenced(topic, seq, body);
+        int length = msg.remaining();
+        if (length <= data.capacity()) { // otherwise it cannot be retransmitted
+            int i = (int) seq & mask;
+            copyIn(msg.duplicate(), written);
+            starts[i] = written;
+            lengths[i] = length;
+            seqs[i] = seq;
+            written += length;
+        }
+        return msg;
+    }
+
+    /**
+     * @return a copy of the message with sequence number {@code seq}, or {@code null} if it is no longer kept
+     */
+    @Nullable
+    synchronized ByteBuffer get(long seq) {
+        int i = (int) seq & mask;
+        if (seqs[i] != seq || written - starts[i] > data.capacity()) {
+            return null;
+        }
+        ByteBuffer out = ByteBuffer.allocate(lengths[i]);
+        copyOut(starts[i], out);
+        return out.flip();
+    }
+
+    /**
+     * @return the last sequence number given out, the one before the first if none
+     */
+    synchronized long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    private void copyIn(ByteBuffer src, long at) {
+        int capacity = data.capacity();
+        int pos = (int) (at % capacity);
+        int first = Math.min(src.remaining(), capacity - pos);
+        ByteBuffer dst = data.duplicate();
+        dst.position(pos);
+        dst.put(src.duplicate().limit(src.position() + first));
+        src.position(src.position() + first);
+        if (src.hasRemaining()) {
+            dst.position(0);
+            dst.put(src);
+        }
+    }
+
+    private void copyOut(long at, ByteBuffer dst) {
+        int capacity = data.capacity();
+        int pos = (int) (at % capacity);
+        int first = Math.min(dst.remaining(), capacity - pos);
+        ByteBuffer src = data.duplicate();
+        src.limit(pos + first).position(pos);
+        dst.put(src);
+        if (dst.hasRemaining()) {
+            src.limit(dst.remaining()).position(0);
+            dst.put(src);
+        }
+    }
+}
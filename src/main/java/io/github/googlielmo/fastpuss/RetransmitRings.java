@@ -0,0 +1,120 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link RetransmitRing}s of all the topics, within a memory budget.
+ * <p>
+ * Like the {@link RetentionCache}, the rings are split into stripes by topic hash, each an LRU map with an equal share
+ * of the budget: when a stripe is full, the rings of its topics least recently published to are dropped, so that
+ * millions of short-lived topics cannot make the off-heap memory grow without bound.
+ * <p>
+ * A topic whose ring was dropped gets a new one with a higher incarnation, numbering its messages above any number
+ * given out by a dropped ring: the subscribers see the stream jump ahead to a new incarnation, rather than old
+ * numbers they would drop as duplicates. Incarnations start from the wall clock time in seconds, so that a restarted
+ * broker also numbers above the previous run, as long as its topics were not recreated faster than once a second on
+ * average; {@link GapTracker} takes a stream going back to a lower incarnation as a new one anyway.
+ */
+final class RetransmitRings {
+
+    private static final int STRIPES = 16;
+    private static final int RING_OVERHEAD = 160; // map entry, ring, buffer and array headers
+
+    private final int slots;
+    private final int bytes;
+    private final int ringsPerStripe;
+    private final BrokerMetrics metrics;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final LinkedHashMap<String, RetransmitRing>[] stripes = new LinkedHashMap[STRIPES];
+    private final AtomicLong incarnation; // above the numbers of all the dropped rings
+
+    /**
+     * @param slots    max number of messages kept per topic
+     * @param bytes    size of the ring of each topic
+     * @param maxBytes memory budget of all the rings
+     * @param metrics  where evictions are counted
+     */
+    RetransmitRings(int slots, int bytes, long maxBytes, @NotNull BrokerMetrics metrics) {
+        this(slots, bytes, maxBytes, metrics, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * @param firstIncarnation incarnation of the first rings
+     */
+    RetransmitRings(int slots, int bytes, long maxBytes, @NotNull BrokerMetrics metrics, long firstIncarnation) {
+        this.incarnation = new AtomicLong(firstIncarnation);
+        this.slots = slots;
+        this.bytes = bytes;
+        this.metrics = metrics;
+        long ringCost = bytes + 20L * slots + RING_OVERHEAD; // a long, an int and a long per slot
+        this.ringsPerStripe = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / STRIPES / ringCost));
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LinkedHashMap<>(16, 0.75f, true);
+        }
+    }
+
+    /**
+     * Stamp a message with the next sequence number of the topic and keep a copy of it, see
+     * {@link RetransmitRing#append}.
+     */
+    @NotNull
+    ByteBuffer append(@NotNull String topic, byte @NotNull [] body) {
+        LinkedHashMap<String, RetransmitRing> map = stripes[stripe(topic)];
+        RetransmitRing ring;
+        synchronized (map) {
+            ring = map.get(topic);
+            if (ring == null) {
+                ring = new RetransmitRing(slots, bytes, incarnation.get());
+                map.put(topic, ring);
+                evict(map);
+            }
+        }
+        return ring.append(topic, body); // locks the ring only
+    }
+
+    /**
+     * @return the ring of a topic, {@code null} if nothing was published to it since its ring was last dropped
+     */
+    @Nullable
+    RetransmitRing get(@NotNull String topic) {
+        LinkedHashMap<String, RetransmitRing> map = stripes[stripe(topic)];
+        synchronized (map) {
+            return map.get(topic);
+        }
+    }
+
+    /**
+     * @return the number of topics with a ring
+     */
+    int topics() {
+        int topics = 0;
+        for (LinkedHashMap<String, RetransmitRing> map : stripes) {
+            synchronized (map) {
+                topics += map.size();
+            }
+        }
+        return topics;
+    }
+
+    private void evict(LinkedHashMap<String, RetransmitRing> map) {
+        Iterator<Map.Entry<String, RetransmitRing>> it = map.entrySet().iterator();
+        while (map.size() > ringsPerStripe && it.hasNext()) {
+            RetransmitRing ring = it.next().getValue();
+            it.remove(); // the buffer is freed once the last in-flight append or NACK is done with it
+            incarnation.accumulateAndGet((ring.lastSeq() >>> RetransmitRing.INCARNATION_SHIFT) + 1, Math::max);
+            metrics.retransmitEvictions.increment();
+        }
+    }
+
+    private static int stripe(String topic) {
+        int h = topic.hashCode();
+        return (h ^ h >>> 16) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,192 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The network: UDP datagram channels and TCP sockets.
+ */
+public final class SocketTransport implements Transport {
+
+    private volatile Boolean reusePort; // probed on first use
+
+    @NotNull
+    @Override
+    public DatagramEndpoint bind(@Nullable InetSocketAddress local, int receiveBufferSize, boolean shared)
+            throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+            if (shared) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(local);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return endpoint(channel);
+    }
+
+    @Override
+    public boolean supportsSharedPorts() {
+        Boolean supported = reusePort;
+        if (supported == null) {
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                supported = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } catch (IOException e) {
+                supported = false;
+            }
+            reusePort = supported;
+        }
+        return supported;
+    }
+
+    @NotNull
+    @Override
+    public StreamListener listen(@NotNull InetSocketAddress local) throws IOException {
+        ServerSocket server = new ServerSocket();
+        try {
+            server.bind(local);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return new StreamListener() {
+            @NotNull
+            @Override
+            public Stream accept() throws IOException {
+                return stream(server.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public Stream connect(@NotNull InetSocketAddress remote) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(remote);
+            socket.setTcpNoDelay(true); // writers flush whole frames
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return stream(socket);
+    }
+
+    /**
+     * @return an endpoint sending and receiving through a channel, bound or not, which is blocking unless polled
+     */
+    @NotNull
+    static DatagramEndpoint endpoint(@NotNull DatagramChannel channel) {
+        return new DatagramEndpoint() {
+            @Override
+            public int send(@NotNull ByteBuffer src, @NotNull InetSocketAddress target) throws IOException {
+                return channel.send(src, target);
+            }
+
+            @NotNull
+            @Override
+            public InetSocketAddress receive(@NotNull ByteBuffer dst) throws IOException {
+                blocking(true);
+                return (InetSocketAddress) channel.receive(dst);
+            }
+
+            @Nullable
+            @Override
+            public InetSocketAddress receive(@NotNull ByteBuffer dst, long timeoutMillis) throws IOException {
+                if (timeoutMillis == 0) { // polled: the channel stays non-blocking until a blocking receive
+                    blocking(false);
+                    return (InetSocketAddress) channel.receive(dst);
+                }
+                blocking(true);
+                // blocking channels ignore SO_TIMEOUT, go through the socket adapter
+                boolean heap = dst.hasArray();
+                byte[] buf = heap ? dst.array() : new byte[dst.remaining()];
+                int offset = heap ? dst.arrayOffset() + dst.position() : 0;
+                DatagramPacket packet = new DatagramPacket(buf, offset, dst.remaining());
+                try {
+                    channel.socket().setSoTimeout((int) Math.max(1, Math.min(Integer.MAX_VALUE, timeoutMillis)));
+                    channel.socket().receive(packet);
+                } catch (SocketTimeoutException e) {
+                    return null;
+                }
+                if (heap) {
+                    dst.position(dst.position() + packet.getLength());
+                } else {
+                    dst.put(buf, 0, packet.getLength());
+                }
+                return (InetSocketAddress) packet.getSocketAddress();
+            }
+
+            private void blocking(boolean block) throws IOException {
+                if (channel.isBlocking() != block) {
+                    channel.configureBlocking(block);
+                }
+            }
+
+            @NotNull
+            @Override
+            public InetSocketAddress localAddress() throws IOException {
+                return (InetSocketAddress) channel.getLocalAddress();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+
+            @Override
+            public String toString() {
+                return channel.toString();
+            }
+        };
+    }
+
+    private static Stream stream(Socket socket) {
+        return new Stream() {
+            @NotNull
+            @Override
+            public InputStream in() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @NotNull
+            @Override
+            public OutputStream out() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @NotNull
+            @Override
+            public InetSocketAddress remoteAddress() {
+                return (InetSocketAddress) socket.getRemoteSocketAddress();
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,56 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram for the hot path: values are counted in {@link LatencyHistogram} buckets, with a lower
+ * precision (about 3%), on one of several stripes chosen by thread, so that concurrent recorders rarely contend on
+ * the same cache line. Recording is lock-free and allocation-free; {@link #snapshot()} merges the stripes.
+ */
+final class StripedHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    StripedHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(LatencyHistogram.buckets(SUB_BUCKET_BITS));
+        }
+    }
+
+    /**
+     * @param value negative values, e.g. from clocks of different hosts, are counted as 0
+     */
+    void record(long value) {
+        long v = Math.max(0, value);
+        stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(LatencyHistogram.index(v, SUB_BUCKET_BITS));
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * @return a copy of the values recorded so far; concurrent recordings may be partially included
+     */
+    @NotNull
+    LatencyHistogram snapshot() {
+        LatencyHistogram h = new LatencyHistogram(SUB_BUCKET_BITS);
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < stripe.length(); i++) {
+                long n = stripe.get(i);
+                if (n != 0) {
+                    h.addBucket(i, n);
+                }
+            }
+        }
+        h.addTotals(sum.sum(), max.get());
+        return h;
+    }
+}
@@ -0,0 +1,392 @@
+package io.github.googlielmo.fastpuss;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.IntConsumer;
+
+/**
+ * Concurrent set of client handles subscribed to one topic filter.
+ * <p>
+ * Small sets are immutable {@code int[]} snapshots replaced by compare-and-set on every change (copy-on-write), so that
+ * readers iterate an exact snapshot with no locking at all. Once a set grows beyond {@link #SMALL_MAX} elements it is
+ * promoted to a striped hash set: each stripe has its own lock, a dense array of handles for iteration and an
+ * open-addressing index from handle to position in that array, so that add, remove and contains are O(1). Iteration of
+ * a large set is lock-free and <em>weakly consistent</em>, like the iterators of the concurrent collections: a reader
+ * may or may not see changes made during its walk, in particular an element moved by a concurrent removal may be
+ * visited twice or, if the vacated slot is immediately reused, skipped by that one walk.
+ * <p>
+ * {@link #size()} is exact and constant time in both modes.
+ * <p>
+ * An empty set can be {@link #retireIfEmpty() retired}: from then on it rejects additions with {@link #RETIRED}, so that
+ * a topic can be removed from the topic map atomically with respect to concurrent subscriptions.
+ */
+class SubscriberSet implements Subscribers {
+
+    static final int ADDED = 1;
+    static final int PRESENT = 0;
+    static final int RETIRED = -1;
+
+    static final int SMALL_MAX = 32;
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    private static final int[] EMPTY_SNAPSHOT = new int[0];
+    private static final int[] RETIRED_SNAPSHOT = new int[0];
+
+    static final SubscriberSet EMPTY = new SubscriberSet();
+
+    private static final AtomicReferenceFieldUpdater<SubscriberSet, Object> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(SubscriberSet.class, Object.class, "state");
+
+    // an int[] snapshot (small set), a Striped instance (large set) or RETIRED_SNAPSHOT
+    private volatile Object state = EMPTY_SNAPSHOT;
+
+    /**
+     * @return {@link #ADDED}, {@link #PRESENT} if the client was already in the set, or {@link #RETIRED}
+     */
+    int add(int client) {
+        for (; ; ) {
+            Object s = state;
+            if (s instanceof Striped) {
+                return ((Striped) s).add(client);
+            }
+            int[] snapshot = (int[]) s;
+            if (snapshot == RETIRED_SNAPSHOT) {
+                return RETIRED;
+            }
+            if (indexOf(snapshot, client) >= 0) {
+                return PRESENT;
+            }
+            if (snapshot.length == SMALL_MAX) {
+                STATE.compareAndSet(this, s, new Striped(snapshot)); // promote, then retry
+                continue;
+            }
+            int[] copy = Arrays.copyOf(snapshot, snapshot.length + 1);
+            copy[snapshot.length] = client;
+            if (STATE.compareAndSet(this, s, copy)) {
+                return ADDED;
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the client was in the set
+     */
+    boolean remove(int client) {
+        for (; ; ) {
+            Object s = state;
+            if (s instanceof Striped) {
+                return ((Striped) s).remove(client);
+            }
+            int[] snapshot = (int[]) s;
+            int i = indexOf(snapshot, client);
+            if (i < 0) {
+                return false;
+            }
+            int[] copy = snapshot.length == 1 ? EMPTY_SNAPSHOT : new int[snapshot.length - 1];
+            System.arraycopy(snapshot, 0, copy, 0, i);
+            System.arraycopy(snapshot, i + 1, copy, i, copy.length - i);
+            if (STATE.compareAndSet(this, s, copy)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Retire the set if it is empty: after this, additions fail with {@link #RETIRED}.
+     *
+     * @return {@code true} if the set is (now) retired
+     */
+    boolean retireIfEmpty() {
+        for (; ; ) {
+            Object s = state;
+            if (s == RETIRED_SNAPSHOT) {
+                return true;
+            }
+            if (s instanceof Striped) {
+                if (!((Striped) s).retireIfEmpty()) {
+                    return false;
+                }
+                state = RETIRED_SNAPSHOT; // large sets are never demoted, so nothing else can have replaced s
+                return true;
+            }
+            if (((int[]) s).length > 0) {
+                return false;
+            }
+            if (STATE.compareAndSet(this, s, RETIRED_SNAPSHOT)) {
+                return true;
+            }
+        }
+    }
+
+    boolean isRetired() {
+        return state == RETIRED_SNAPSHOT;
+    }
+
+    boolean contains(int client) {
+        Object s = state;
+        return s instanceof Striped ? ((Striped) s).contains(client) : indexOf((int[]) s, client) >= 0;
+    }
+
+    @Override
+    public int size() {
+        Object s = state;
+        return s instanceof Striped ? ((Striped) s).size : ((int[]) s).length;
+    }
+
+    /**
+     * @return the number of partitions that can be iterated independently with {@link #forEach(int, IntConsumer)}
+     */
+    @Override
+    public int partitions() {
+        return state instanceof Striped ? STRIPES : 1;
+    }
+
+    /**
+     * Iterate one partition. Partitions beyond the current {@link #partitions()} are empty.
+     */
+    @Override
+    public void forEach(int partition, IntConsumer action) {
+        Object s = state;
+        if (s instanceof Striped) {
+            ((Striped) s).stripes[partition].forEach(action);
+        } else if (partition == 0) {
+            for (int client : (int[]) s) {
+                action.accept(client);
+            }
+        }
+    }
+
+    @Override
+    public void forEach(IntConsumer action) {
+        Object s = state;
+        if (s instanceof Striped) {
+            for (Stripe stripe : ((Striped) s).stripes) {
+                stripe.forEach(action);
+            }
+        } else {
+            for (int client : (int[]) s) {
+                action.accept(client);
+            }
+        }
+    }
+
+    int[] toArray() {
+        Object s = state;
+        if (!(s instanceof Striped)) {
+            return ((int[]) s).clone();
+        }
+        int[] out = new int[Math.max(16, ((Striped) s).size)];
+        int n = 0;
+        for (Stripe stripe : ((Striped) s).stripes) {
+            int count = stripe.count;
+            int[] elements = stripe.elements;
+            if (n + count > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, n + count));
+            }
+            System.arraycopy(elements, 0, out, n, count);
+            n += count;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int indexOf(int[] snapshot, int client) {
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i] == client) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int hash(int client) {
+        return client * 0x9E3779B9;
+    }
+
+    /**
+     * The large representation: a fixed number of independently locked stripes.
+     */
+    private static final class Striped {
+
+        private static final AtomicIntegerFieldUpdater<Striped> SIZE =
+                AtomicIntegerFieldUpdater.newUpdater(Striped.class, "size");
+
+        final Stripe[] stripes = new Stripe[STRIPES];
+        volatile int size;
+        boolean retired; // guarded by all stripe locks
+
+        Striped(int[] initial) {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe();
+            }
+            for (int client : initial) {
+                stripeOf(client).add(client);
+            }
+            size = initial.length;
+        }
+
+        private Stripe stripeOf(int client) {
+            return stripes[hash(client) >>> (32 - STRIPE_BITS)];
+        }
+
+        int add(int client) {
+            Stripe stripe = stripeOf(client);
+            synchronized (stripe) {
+                if (retired) {
+                    return RETIRED;
+                }
+                if (!stripe.add(client)) {
+                    return PRESENT;
+                }
+                // size changes under the stripe lock, so that retireIfEmpty never sees a stale value
+                SIZE.incrementAndGet(this);
+            }
+            return ADDED;
+        }
+
+        boolean remove(int client) {
+            Stripe stripe = stripeOf(client);
+            synchronized (stripe) {
+                if (!stripe.remove(client)) {
+                    return false;
+                }
+                SIZE.decrementAndGet(this);
+            }
+            return true;
+        }
+
+        boolean contains(int client) {
+            Stripe stripe = stripeOf(client);
+            synchronized (stripe) {
+                return stripe.indexOf(client) >= 0;
+            }
+        }
+
+        boolean retireIfEmpty() {
+            return lockAndRetire(0);
+        }
+
+        private boolean lockAndRetire(int i) {
+            if (i == STRIPES) {
+                if (size == 0) {
+                    retired = true;
+                }
+                return retired;
+            }
+            synchronized (stripes[i]) {
+                return lockAndRetire(i + 1);
+            }
+        }
+    }
+
+    /**
+     * One stripe of a large set: a dense array of handles, for iteration, indexed by an open-addressing hash table
+     * mapping each handle to its position. Mutations are guarded by the stripe's monitor.
+     */
+    private static final class Stripe {
+
+        volatile int[] elements = new int[8];
+        volatile int count;
+        private int[] slots = new int[16]; // handle + 1, zero when free
+        private int[] positions = new int[16];
+
+        int indexOf(int client) {
+            int mask = slots.length - 1;
+            for (int i = hash(client) & mask; ; i = (i + 1) & mask) {
+                int key = slots[i];
+                if (key == 0) {
+                    return -1;
+                }
+                if (key == client + 1) {
+                    return i;
+                }
+            }
+        }
+
+        boolean add(int client) {
+            if (indexOf(client) >= 0) {
+                return false;
+            }
+            int n = count;
+            int[] e = elements;
+            if (n == e.length) {
+                e = Arrays.copyOf(e, n * 2);
+                elements = e;
+            }
+            e[n] = client;
+            if ((n + 1) * 2 > slots.length) {
+                rehash(slots.length * 2);
+            }
+            put(client, n);
+            count = n + 1;
+            return true;
+        }
+
+        boolean remove(int client) {
+            int slot = indexOf(client);
+            if (slot < 0) {
+                return false;
+            }
+            int pos = positions[slot];
+            int last = count - 1;
+            int[] e = elements;
+            if (pos != last) {
+                int moved = e[last];
+                e[pos] = moved;
+                positions[indexOf(moved)] = pos;
+            }
+            deleteSlot(slot);
+            count = last;
+            return true;
+        }
+
+        void forEach(IntConsumer action) {
+            int n = count;
+            int[] e = elements;
+            for (int i = 0; i < n; i++) {
+                action.accept(e[i]);
+            }
+        }
+
+        private void put(int client, int pos) {
+            int mask = slots.length - 1;
+            int i = hash(client) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = client + 1;
+            positions[i] = pos;
+        }
+
+        /**
+         * Linear probing deletion with backward shift, so that no tombstones are needed.
+         */
+        private void deleteSlot(int slot) {
+            int mask = slots.length - 1;
+            int hole = slot;
+            for (int i = (hole + 1) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                int home = hash(slots[i] - 1) & mask;
+                // move the entry at i into the hole unless its home lies cyclically in (hole, i]
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    slots[hole] = slots[i];
+                    positions[hole] = positions[i];
+                    hole = i;
+                }
+            }
+            slots[hole] = 0;
+        }
+
+        private void rehash(int capacity) {
+            int[] oldSlots = slots;
+            int[] oldPositions = positions;
+            slots = new int[capacity];
+            positions = new int[capacity];
+            for (int i = 0; i < oldSlots.length; i++) {
+                if (oldSlots[i] != 0) {
+                    put(oldSlots[i] - 1, oldPositions[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.googlielmo.fastpuss;
+
+import java.util.function.IntConsumer;
+
+/**
+ * The subscribers matching a topic through more than one topic filter, e.g. {@code a/b}, {@code a/+} and {@code a/#}.
+ * <p>
+ * The union is a live view over the underlying sets, so it stays valid while clients subscribe to or unsubscribe from
+ * those filters. A client subscribed through several filters is visited once: it is skipped in every set but the first
+ * one containing it.
+ */
+final class SubscriberUnion implements Subscribers {
+
+    private final SubscriberSet[] sets;
+
+    SubscriberUnion(SubscriberSet[] sets) {
+        this.sets = sets;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (SubscriberSet set : sets) {
+            size += set.size();
+        }
+        return size;
+    }
+
+    @Override
+    public int partitions() {
+        int n = 0;
+        for (SubscriberSet set : sets) {
+            n += set.partitions();
+        }
+        return n;
+    }
+
+    @Override
+    public void forEach(int partition, IntConsumer action) {
+        for (int i = 0; i < sets.length; i++) {
+            int n = sets[i].partitions();
+            if (partition < n) {
+                int set = i;
+                sets[i].forEach(partition, i == 0 ? action : client -> {
+                    if (!containedBefore(client, set)) {
+                        action.accept(client);
+                    }
+                });
+                return;
+            }
+            partition -= n;
+        }
+    }
+
+    private boolean containedBefore(int client, int i) {
+        for (int j = 0; j < i; j++) {
+            if (sets[j].contains(client)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,38 @@
+package io.github.googlielmo.fastpuss;
+
+import java.util.function.IntConsumer;
+
+/**
+ * The client handles matching a topic, as seen by a publisher.
+ * <p>
+ * Iteration may be split into independent partitions, e.g. to send to a large number of subscribers in parallel.
+ */
+interface Subscribers {
+
+    /**
+     * @return the number of subscribers; for matches spanning several topic filters this is an upper bound, as a client
+     * subscribed through more than one filter is counted once per filter
+     */
+    int size();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of partitions that can be iterated independently with {@link #forEach(int, IntConsumer)}
+     */
+    int partitions();
+
+    /**
+     * Iterate one partition. Partitions beyond the current {@link #partitions()} are empty.
+     */
+    void forEach(int partition, IntConsumer action);
+
+    default void forEach(IntConsumer action) {
+        int n = partitions();
+        for (int p = 0; p < n; p++) {
+            forEach(p, action);
+        }
+    }
+}
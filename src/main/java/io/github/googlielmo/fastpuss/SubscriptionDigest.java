@@ -0,0 +1,53 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Merkle-style digest of the subscription state, one leaf per {@link TopicHash topic range}.
+ * <p>
+ * Each subscription contributes a 64-bit hash of its topic and client ID, added to its leaf when the subscription is
+ * created and subtracted when it is removed, so leaves are maintained incrementally in O(1) and two nodes holding
+ * the same subscriptions in a range have the same leaf, whatever order they were applied in. Inner nodes, with a
+ * fan-out of {@value #FANOUT}, are computed on demand as the sum of their children.
+ */
+final class SubscriptionDigest {
+
+    static final int FANOUT = 16;
+    /**
+     * Levels from the root (a single node) down to the leaves
+     */
+    static final int LEVELS = TopicHash.RANGE_BITS / 4 + 1;
+
+    private final AtomicLongArray leaves = new AtomicLongArray(TopicHash.RANGES);
+
+    void add(@NotNull String topic, int clientIdHash) {
+        leaves.getAndAdd(TopicHash.range(topic), hash(topic, clientIdHash));
+    }
+
+    void remove(@NotNull String topic, int clientIdHash) {
+        leaves.getAndAdd(TopicHash.range(topic), -hash(topic, clientIdHash));
+    }
+
+    /**
+     * @param level 0 for the root, {@code LEVELS - 1} for the leaves
+     * @param index index of the node within its level
+     */
+    long node(int level, int index) {
+        int width = 1 << (4 * (LEVELS - 1 - level)); // leaves under each node of this level
+        long sum = 0;
+        for (int i = index * width, end = i + width; i < end; i++) {
+            sum += leaves.get(i);
+        }
+        return sum;
+    }
+
+    static int levelSize(int level) {
+        return 1 << (4 * level);
+    }
+
+    private static long hash(String topic, int clientIdHash) {
+        return TopicHash.mix64(((long) topic.hashCode() << 32) ^ (clientIdHash & 0xffffffffL));
+    }
+}
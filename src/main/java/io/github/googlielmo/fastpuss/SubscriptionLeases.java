@@ -0,0 +1,288 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Leases on the subscriptions of each client, renewed by any datagram from the client, so that the subscriptions of
+ * clients that went away without unsubscribing are dropped once their lease runs out.
+ * <p>
+ * Renewing is a single write of the receive time in a table by client handle (see {@link ClientRegistry}), done on
+ * every packet without locking or touching the timers. Each lease has one timer in a {@link TimerWheel}, run by a
+ * single thread: when the timer fires, a lease renewed meanwhile is scheduled again at its new deadline, and only a
+ * lease with no news from its client for the whole lease expires. Live clients thus cost a timer move per lease
+ * period, however often they send, and no tick scans the leases.
+ * <p>
+ * Subscriptions that were not received from their client, restored from a store or replicated by a peer, are leased
+ * from the time they are {@link #restored}: a client gone meanwhile has a whole lease period to be heard of again. A
+ * provisional lease, taken out by a node of a cluster for a client that may be talking to another node, lapses
+ * without dropping anything if the client is never heard of.
+ * <p>
+ * The timer of an expired lease fires once more a lease period later: if the client has neither been heard of nor
+ * subscribed meanwhile, it is gone for good, nothing is in flight from or to it any more, and it is
+ * {@link Expiry#released released}, so that its handle and the state kept for it can be reused.
+ * <p>
+ * As in {@link RateLimiter}, the table grows with the handles, and a renewal racing with a resize may be lost: the
+ * lease then counts from the client's previous datagram.
+ */
+final class SubscriptionLeases implements Closeable {
+
+    private static final Logger logger = Logger.getLogger("SubscriptionLeases");
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Drops the subscriptions of an expired lease.
+     */
+    interface Expiry {
+        /**
+         * @param client  client handle, see {@link ClientRegistry}
+         * @param filters the topic filters the client was subscribed to
+         */
+        void expired(int client, @NotNull List<String> filters);
+
+        /**
+         * @param client client handle with no subscriptions left and no news for two lease periods, to be forgotten
+         */
+        void released(int client);
+    }
+
+    private static final class Lease {
+        final int client;
+        final long since; // time of the first subscription
+        final Set<String> filters = new HashSet<>(); // guarded by this
+        boolean expired; // guarded by this
+        boolean provisional; // guarded by this
+        long seenAtExpiry; // the last time the client was seen, when the lease expired
+
+        Lease(int client, long since, boolean provisional) {
+            this.client = client;
+            this.since = since;
+            this.provisional = provisional;
+        }
+    }
+
+    private final long leaseNanos;
+    private final long tickNanos;
+    private final BrokerMetrics metrics;
+    private final Expiry expiry;
+    private final Map<Integer, Lease> leases = new ConcurrentHashMap<>();
+    private final Queue<Lease> created = new ConcurrentLinkedQueue<>(); // to be scheduled by the lease thread
+    private final TimerWheel<Lease> wheel;
+    private final Object lock = new Object();
+    private volatile AtomicLongArray lastSeen = new AtomicLongArray(INITIAL_CAPACITY); // 0 if never seen
+    private ScheduledExecutorService timer;
+
+    /**
+     * @param leaseMillis time without news from a client after which its subscriptions are dropped
+     * @param expiry      drops the subscriptions of expired leases and releases the clients, called by the lease thread
+     */
+    SubscriptionLeases(long leaseMillis, @NotNull BrokerMetrics metrics, @NotNull Expiry expiry) {
+        if (leaseMillis < 1) {
+            throw new IllegalArgumentException("invalid lease: " + leaseMillis + " ms");
+        }
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        this.tickNanos = Math.max(MIN_TICK_NANOS, Math.min(MAX_TICK_NANOS, leaseNanos / 32));
+        this.metrics = metrics;
+        this.expiry = expiry;
+        this.wheel = new TimerWheel<>(tickNanos, System.nanoTime());
+    }
+
+    /**
+     * Run the timers on a thread of their own.
+     */
+    synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fastpuss-leases");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                tick(System.nanoTime());
+            } catch (RuntimeException e) {
+                logger.log(WARNING, "lease expiry failed", e);
+            }
+        }, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Renew the lease of {@code client}, if it has one.
+     *
+     * @param nowNanos receive time of a datagram from the client
+     */
+    void renew(int client, long nowNanos) {
+        table(client).lazySet(client, nowNanos == 0 ? 1 : nowNanos);
+    }
+
+    /**
+     * Add a topic filter to the lease of {@code client}, taking out a lease if it had none.
+     */
+    void subscribed(@NotNull String filter, int client, long nowNanos) {
+        add(filter, client, nowNanos, false);
+    }
+
+    /**
+     * Add a topic filter that was not subscribed to by {@code client} itself, but restored or received from a peer, to
+     * its lease, taking out a lease from {@code nowNanos} if it had none.
+     *
+     * @param provisional whether the lease lapses without dropping anything if the client is never heard of, because
+     *                    it may be talking to another broker
+     */
+    void restored(@NotNull String filter, int client, long nowNanos, boolean provisional) {
+        add(filter, client, nowNanos, provisional);
+    }
+
+    private void add(String filter, int client, long nowNanos, boolean provisional) {
+        while (true) {
+            Lease lease = leases.computeIfAbsent(client, c -> {
+                Lease l = new Lease(c, nowNanos, provisional);
+                created.add(l);
+                return l;
+            });
+            synchronized (lease) {
+                if (!lease.expired) {
+                    lease.filters.add(filter);
+                    lease.provisional &= provisional;
+                    return;
+                }
+            }
+            leases.remove(client, lease); // expiring right now: take out a new one
+        }
+    }
+
+    /**
+     * Remove a topic filter from the lease of {@code client}. The lease itself runs out with its timer.
+     */
+    void unsubscribed(@NotNull String filter, int client) {
+        Lease lease = leases.get(client);
+        if (lease != null) {
+            synchronized (lease) {
+                lease.filters.remove(filter);
+            }
+        }
+    }
+
+    /**
+     * @return the number of clients with a lease
+     */
+    int size() {
+        return leases.size();
+    }
+
+    /**
+     * Schedule the new leases and expire those due at {@code nowNanos}. Called by the lease thread only.
+     */
+    void tick(long nowNanos) {
+        for (Lease lease; (lease = created.poll()) != null; ) {
+            wheel.schedule(lease, lease.since + leaseNanos);
+        }
+        wheel.advance(nowNanos, t -> onTimer(t, nowNanos));
+    }
+
+    private void onTimer(TimerWheel.Timer<Lease> t, long nowNanos) {
+        Lease lease = t.item;
+        if (lease.expired) {
+            release(lease);
+            return;
+        }
+        long seen = lastSeen(lease.client);
+        boolean heard = seen != 0;
+        if (!heard || seen - lease.since < 0) {
+            seen = lease.since;
+        }
+        if (nowNanos - seen < leaseNanos) {
+            wheel.reschedule(t, seen + leaseNanos);
+            return;
+        }
+        List<String> filters;
+        boolean lapsed;
+        synchronized (lease) {
+            lease.expired = true;
+            filters = new ArrayList<>(lease.filters);
+            lapsed = lease.provisional && !heard;
+        }
+        leases.remove(lease.client, lease);
+        if (lapsed) {
+            return; // the client of another broker, whose subscriptions stay
+        }
+        if (!filters.isEmpty()) { // unless unsubscribed from everything meanwhile
+            metrics.leaseExpiries.increment();
+            metrics.expiredSubscriptions.add(filters.size());
+            if (logger.isLoggable(FINE)) {
+                logger.log(FINE, "lease of client " + lease.client + " expired, dropping " + filters);
+            }
+            expiry.expired(lease.client, filters);
+        }
+        lease.seenAtExpiry = lastSeen(lease.client);
+        wheel.reschedule(t, nowNanos + leaseNanos);
+    }
+
+    private void release(Lease lease) {
+        int client = lease.client;
+        if (leases.containsKey(client)) {
+            return; // subscribed again
+        }
+        AtomicLongArray a = lastSeen;
+        if (client < a.length() && !a.compareAndSet(client, lease.seenAtExpiry, 0)) {
+            return; // heard of again
+        }
+        metrics.releasedClients.increment();
+        expiry.released(client);
+    }
+
+    private long lastSeen(int client) {
+        AtomicLongArray a = lastSeen;
+        return client < a.length() ? a.get(client) : 0;
+    }
+
+    private AtomicLongArray table(int client) {
+        AtomicLongArray a = lastSeen;
+        if (client < a.length()) {
+            return a;
+        }
+        synchronized (lock) {
+            a = lastSeen;
+            if (client >= a.length()) {
+                int length = a.length();
+                while (length <= client) {
+                    length *= 2;
+                }
+                AtomicLongArray grown = new AtomicLongArray(length);
+                for (int i = 0; i < a.length(); i++) {
+                    grown.set(i, a.get(i));
+                }
+                lastSeen = a = grown;
+            }
+            return a;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Versioned binary snapshot of the subscription state, streamed in independent chunks.
+ * <pre>
+ * snapshot = header, { chunk }, end ;
+ * header   = magic:int32 "FPSS", version:int8, flags:int8 ;       (flags bit 0: topic chunks are deflated)
+ * chunk    = dict | topics ;
+ * dict     = 1:int8, count:varint, { handle:varint, client-id:utf } ;
+ * topics   = 2:int8, raw-length:varint, stored-length:varint, stored-bytes ;
+ * raw      = count:varint, { topic:utf, n:varint, { handle:varint } } ;
+ * end      = 0:int8 ;
+ * </pre>
+ * Client IDs are sent once, in dictionary chunks, and referenced by the sender's handle everywhere else. A dictionary
+ * chunk always precedes the first topic chunk referring to its entries. Each topic chunk is compressed on its own and
+ * can be decoded independently of the others once the dictionary entries before it are known, so the reader interns
+ * the dictionary on the receiving thread and hands topic chunks to worker threads while the rest of the stream is
+ * still arriving. Topics with many subscribers are split over several chunks.
+ */
+final class SubscriptionSnapshot {
+
+    static final int MAGIC = 0x46505353; // "FPSS"
+    static final int VERSION = 1;
+    static final int FLAG_DEFLATE = 1;
+
+    private static final int END = 0;
+    private static final int DICT = 1;
+    private static final int TOPICS = 2;
+    private static final int CHUNK_SIZE = 64 * 1024; // raw bytes per topic chunk, approximately
+    private static final int MAX_CLIENTS_PER_RUN = 8 * 1024;
+
+    private SubscriptionSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of the topics accepted by {@code topics}.
+     */
+    static void write(@NotNull ThreadSafeSubscriberManager manager, @NotNull OutputStream os, boolean compress,
+                      @NotNull Predicate<String> topics) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, CHUNK_SIZE));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(compress ? FLAG_DEFLATE : 0);
+
+        ClientRegistry clients = manager.clients();
+        ChunkWriter writer = new ChunkWriter(out, clients, compress);
+        for (Map.Entry<String, SubscriberSet> entry : manager.topicMap.entrySet()) {
+            if (!topics.test(entry.getKey())) {
+                continue;
+            }
+            int[] handles = entry.getValue().toArray();
+            for (int from = 0; from < handles.length; from += MAX_CLIENTS_PER_RUN) {
+                writer.add(entry.getKey(), handles, from, Math.min(handles.length, from + MAX_CLIENTS_PER_RUN));
+            }
+        }
+        writer.finish();
+        out.writeByte(END);
+        out.flush();
+    }
+
+    /**
+     * Read a snapshot, adding its subscriptions to {@code manager}. Topic chunks are decoded and applied by
+     * {@code workers} while the stream is being read; this method returns when all of them have been applied.
+     */
+    static void read(@NotNull ThreadSafeSubscriberManager manager, @NotNull InputStream is,
+                     @NotNull ExecutorService workers, int parallelism) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is, CHUNK_SIZE));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a subscription snapshot");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        boolean compressed = (in.readUnsignedByte() & FLAG_DEFLATE) != 0;
+
+        ClientRegistry clients = manager.clients();
+        int[] localOf = new int[1024]; // sender handle -> local handle, grown (copied) by this thread only
+        List<Future<?>> pending = new ArrayList<>();
+        Semaphore inFlight = new Semaphore(Math.max(1, parallelism) * 2); // bounds buffered chunks
+        try {
+            for (int type = in.readUnsignedByte(); type != END; type = in.readUnsignedByte()) {
+                if (type == DICT) {
+                    int count = readVarint(in);
+                    for (int i = 0; i < count; i++) {
+                        int handle = readVarint(in);
+                        if (handle >= localOf.length) {
+                            localOf = Arrays.copyOf(localOf, Math.max(handle + 1, localOf.length * 2));
+                        }
+                        localOf[handle] = clients.intern(in.readUTF());
+                    }
+                } else if (type == TOPICS) {
+                    int rawLength = readVarint(in);
+                    byte[] stored = new byte[readVarint(in)];
+                    in.readFully(stored);
+                    int[] map = localOf; // holds every entry this chunk can refer to
+                    inFlight.acquire();
+                    pending.add(workers.submit(() -> {
+                        try {
+                            applyChunk(manager, compressed ? inflate(stored, rawLength) : stored, map);
+                        } finally {
+                            inFlight.release();
+                        }
+                        return null;
+                    }));
+                } else {
+                    throw new IOException("unknown snapshot chunk type " + type);
+                }
+            }
+            for (Future<?> f : pending) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("snapshot read interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("cannot apply snapshot chunk", e.getCause());
+        }
+    }
+
+    private static void applyChunk(ThreadSafeSubscriberManager manager, byte[] raw, int[] localOf) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        int count = readVarint(in);
+        for (int i = 0; i < count; i++) {
+            String topic = in.readUTF();
+            int[] handles = new int[readVarint(in)];
+            for (int j = 0; j < handles.length; j++) {
+                handles[j] = localOf[readVarint(in)];
+            }
+            manager.addSubscriptions(topic, handles);
+        }
+    }
+
+    private static byte[] inflate(byte[] stored, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] raw = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int k = inflater.inflate(raw, n, rawLength - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != rawLength) {
+                throw new IOException("corrupt snapshot chunk");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt snapshot chunk", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static void writeVarint(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * Accumulates topic runs into a chunk, emitting the dictionary entries they need right before it.
+     */
+    private static final class ChunkWriter {
+
+        private final DataOutputStream out;
+        private final ClientRegistry clients;
+        private final Deflater deflater;
+        private final BitSet sent = new BitSet();
+        private final ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream(CHUNK_SIZE + 1024);
+        private final DataOutputStream chunk = new DataOutputStream(chunkBytes);
+        private final List<Integer> newHandles = new ArrayList<>();
+        private int topicCount;
+
+        ChunkWriter(DataOutputStream out, ClientRegistry clients, boolean compress) {
+            this.out = out;
+            this.clients = clients;
+            this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        }
+
+        void add(String topic, int[] handles, int from, int to) throws IOException {
+            chunk.writeUTF(topic);
+            writeVarint(chunk, to - from);
+            for (int i = from; i < to; i++) {
+                int h = handles[i];
+                if (!sent.get(h)) {
+                    sent.set(h);
+                    newHandles.add(h);
+                }
+                writeVarint(chunk, h);
+            }
+            topicCount++;
+            if (chunkBytes.size() >= CHUNK_SIZE) {
+                flushChunk();
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (topicCount == 0) {
+                return;
+            }
+            if (!newHandles.isEmpty()) {
+                out.writeByte(DICT);
+                writeVarint(out, newHandles.size());
+                for (int h : newHandles) {
+                    writeVarint(out, h);
+                    out.writeUTF(clients.id(h));
+                }
+                newHandles.clear();
+            }
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(chunkBytes.size() + 5);
+            writeVarint(new DataOutputStream(raw), topicCount);
+            chunkBytes.writeTo(raw);
+            byte[] rawBytes = raw.toByteArray();
+            byte[] stored = deflater != null ? deflate(rawBytes) : rawBytes;
+
+            out.writeByte(TOPICS);
+            writeVarint(out, rawBytes.length);
+            writeVarint(out, stored.length);
+            out.write(stored);
+            chunkBytes.reset();
+            topicCount = 0;
+        }
+
+        void finish() throws IOException {
+            flushChunk();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        private byte[] deflate(byte[] raw) {
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream stored = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buf = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                stored.write(buf, 0, deflater.deflate(buf));
+            }
+            return stored.toByteArray();
+        }
+    }
+}
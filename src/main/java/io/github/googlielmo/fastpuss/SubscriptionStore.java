@@ -0,0 +1,364 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Durable copy of the subscription state, so that a broker restarts with the subscriptions it had.
+ * <p>
+ * Every change is appended to a memory-mapped log; when the log grows past a threshold it is compacted in the
+ * background into a {@link SubscriptionSnapshot}. Each compaction starts a new generation: appends switch to a new log
+ * first, then the snapshot of the whole state is written and the files of older generations are deleted. On restart the
+ * latest complete snapshot is mapped and loaded in parallel, then the logs from its generation on are replayed in
+ * order. A snapshot taken while changes are logged may already contain some of them: replaying them again is harmless,
+ * since the last change to each subscription wins.
+ * <pre>
+ * log    = magic:int32 "FPSL", version:int8, 3 * pad:int8, { record }, 0:int32 ;
+ * record = length:int32, crc32:int32, op:int8, client-id:utf, topic-filter:utf ;   (length and crc of what follows)
+ * </pre>
+ * Replay stops at the first record that is incomplete or corrupt, i.e. torn by a crash. The mapped pages survive a
+ * crash of the process; they are forced to disk every second and at each compaction, which bounds what a crash of the
+ * host can lose.
+ */
+final class SubscriptionStore implements Closeable {
+
+    private static final Logger logger = Logger.getLogger("SubscriptionStore");
+    private static final int MAGIC = 0x4650534c; // "FPSL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024; // mapped at a time for appending
+    private static final String SNAPSHOT = "snapshot-";
+    private static final String LOG = "log-";
+
+    private final Path directory;
+    private final long compactAfterBytes;
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fastpuss-store");
+        t.setDaemon(true);
+        return t;
+    });
+    private final CRC32 crc = new CRC32(); // guarded by this
+    private ThreadSafeSubscriberManager manager;
+    private long generation;
+    private FileChannel log; // guarded by this
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long logSize; // bytes appended to the current log, header included
+    private boolean compacting;
+    private boolean failed; // an I/O error stopped the log, the state is no longer persisted
+
+    /**
+     * @param directory         where the snapshot and log files are kept, created if needed
+     * @param compactAfterBytes size of the log that triggers a compaction
+     */
+    SubscriptionStore(@NotNull Path directory, long compactAfterBytes) {
+        this.directory = directory;
+        this.compactAfterBytes = compactAfterBytes;
+    }
+
+    /**
+     * Load the persisted subscriptions into {@code manager}, then start logging its changes, see
+     * {@link ThreadSafeSubscriberManager#persistTo}.
+     *
+     * @param parallelism number of threads loading the snapshot
+     */
+    void recover(@NotNull ThreadSafeSubscriberManager manager, int parallelism) throws IOException {
+        this.manager = manager;
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        long snapshot = latest(SNAPSHOT);
+        if (snapshot >= 0) {
+            ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+            try (FileChannel ch = FileChannel.open(file(SNAPSHOT, snapshot), StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                SubscriptionSnapshot.read(manager, new ByteBufferInputStream(mapped), workers, parallelism);
+            } finally {
+                workers.shutdown();
+            }
+        }
+        long records = 0;
+        long last = Math.max(0, snapshot);
+        for (long gen : generations(LOG)) {
+            if (gen >= last) {
+                records += replay(file(LOG, gen));
+                last = gen;
+            }
+        }
+        logger.info(String.format("restored %d topic filters from %s in %d ms (%d log records)", manager.topicCount(),
+                directory, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), records));
+
+        // a fresh generation, so that a torn tail is never appended to
+        generation = last + 1;
+        synchronized (this) {
+            openLog();
+        }
+        if (snapshot >= 0 || records > 0) {
+            compacting = true;
+            background.execute(this::compact); // so that the next restart only maps one snapshot
+        }
+        background.scheduleWithFixedDelay(this::force, 1, 1, TimeUnit.SECONDS);
+        manager.persistTo(this);
+    }
+
+    void added(@NotNull String topicFilter, @NotNull String clientId) {
+        append(ADD, topicFilter, clientId);
+    }
+
+    void removed(@NotNull String topicFilter, @NotNull String clientId) {
+        append(REMOVE, topicFilter, clientId);
+    }
+
+    @Override
+    public void close() {
+        background.shutdown(); // lets a running compaction complete
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (log == null) {
+                return;
+            }
+            force();
+            try {
+                log.close();
+            } catch (IOException e) {
+                logger.log(WARNING, "cannot close subscription log", e);
+            }
+            failed = true;
+        }
+    }
+
+    private synchronized void append(byte op, String topicFilter, String clientId) {
+        if (failed) {
+            return;
+        }
+        byte[] client = clientId.getBytes(StandardCharsets.UTF_8);
+        byte[] topic = topicFilter.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + client.length + 2 + topic.length;
+        try {
+            if (logSize + RECORD_HEADER_SIZE + length + 4 > windowStart + window.capacity()) {
+                map(logSize, RECORD_HEADER_SIZE + length + 4);
+            }
+            int at = (int) (logSize - windowStart);
+            ByteBuffer record = window.duplicate().position(at + RECORD_HEADER_SIZE);
+            record.put(op).putShort((short) client.length).put(client).putShort((short) topic.length).put(topic);
+            crc.reset();
+            crc.update(window.duplicate().limit(at + RECORD_HEADER_SIZE + length).position(at + RECORD_HEADER_SIZE));
+            window.putInt(at + 4, (int) crc.getValue());
+            window.putInt(at, length); // last: a record is visible to replay only once complete
+            logSize += RECORD_HEADER_SIZE + length;
+        } catch (IOException e) {
+            failed = true;
+            logger.log(SEVERE, "cannot append to the subscription log, subscriptions are no longer persisted", e);
+            return;
+        }
+        if (logSize >= compactAfterBytes && !compacting) {
+            compacting = true;
+            background.execute(this::compact);
+        }
+    }
+
+    /**
+     * Write a snapshot of the current state and drop the files it makes obsolete.
+     */
+    private void compact() {
+        long gen;
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            try {
+                force();
+                gen = ++generation;
+                log.close();
+                openLog();
+            } catch (IOException e) {
+                failed = true;
+                logger.log(SEVERE, "cannot start a new subscription log, subscriptions are no longer persisted", e);
+                return;
+            }
+        }
+        try {
+            Path tmp = directory.resolve(SNAPSHOT + "tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream out = Channels.newOutputStream(ch);
+                SubscriptionSnapshot.write(manager, out, false, topic -> true);
+                ch.force(true);
+            }
+            Files.move(tmp, file(SNAPSHOT, gen), StandardCopyOption.ATOMIC_MOVE);
+            for (String prefix : List.of(SNAPSHOT, LOG)) {
+                for (long old : generations(prefix)) {
+                    if (old < gen) {
+                        Files.delete(file(prefix, old));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.log(WARNING, "cannot compact the subscription log, will retry", e);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private synchronized void force() {
+        if (window != null && !failed) {
+            window.force();
+        }
+    }
+
+    private void openLog() throws IOException {
+        log = FileChannel.open(file(LOG, generation), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        map(0, HEADER_SIZE);
+        window.putInt(0, MAGIC).put(4, (byte) VERSION);
+        logSize = HEADER_SIZE;
+    }
+
+    private void map(long from, int atLeast) throws IOException {
+        if (window != null) {
+            window.force();
+        }
+        window = log.map(FileChannel.MapMode.READ_WRITE, from, Math.max(WINDOW_SIZE, atLeast));
+        windowStart = from;
+    }
+
+    /**
+     * @return number of records applied
+     */
+    private long replay(Path file) throws IOException {
+        long records = 0;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (in.remaining() < HEADER_SIZE || in.getInt(0) != MAGIC || in.get(4) != VERSION) {
+                logger.log(WARNING, "not a subscription log, skipped: " + file);
+                return 0;
+            }
+            CRC32 check = new CRC32();
+            int at = HEADER_SIZE;
+            while (at + RECORD_HEADER_SIZE <= in.limit()) {
+                int length = in.getInt(at);
+                if (length <= 0 || length > in.limit() - at - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                ByteBuffer record = in.duplicate().limit(at + RECORD_HEADER_SIZE + length)
+                        .position(at + RECORD_HEADER_SIZE);
+                check.reset();
+                check.update(record.duplicate());
+                if ((int) check.getValue() != in.getInt(at + 4)) {
+                    logger.log(WARNING, "corrupt record at " + at + " of " + file + ", rest of the log ignored");
+                    break;
+                }
+                byte op = record.get();
+                String client = readUtf(record);
+                String topic = readUtf(record);
+                if (op == ADD) {
+                    manager.addSubscription(topic, client);
+                } else {
+                    manager.removeSubscription(topic, client);
+                }
+                records++;
+                at += RECORD_HEADER_SIZE + length;
+            }
+        }
+        return records;
+    }
+
+    private static String readUtf(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort() & 0xffff];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Path file(String prefix, long gen) {
+        return directory.resolve(String.format("%s%016x", prefix, gen));
+    }
+
+    private long latest(String prefix) throws IOException {
+        List<Long> gens = generations(prefix);
+        return gens.isEmpty() ? -1 : gens.get(gens.size() - 1);
+    }
+
+    /**
+     * @return the generations of the files with the given prefix, in increasing order
+     */
+    private List<Long> generations(String prefix) throws IOException {
+        List<Long> gens = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.length() == prefix.length() + 16)
+                    .forEach(name -> {
+                        try {
+                            gens.add(Long.parseUnsignedLong(name.substring(prefix.length()), 16));
+                        } catch (NumberFormatException e) {
+                            // not ours
+                        }
+                    });
+        }
+        gens.sort(null);
+        return gens;
+    }
+
+    /**
+     * Streams a mapped file without copying it on the heap first.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte @NotNull [] b, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return len == 0 ? 0 : -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
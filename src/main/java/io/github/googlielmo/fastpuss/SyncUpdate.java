@@ -0,0 +1,149 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * One replicated change to the subscription state, or a message forwarded to the node owning its topic, and the batch
+ * frame format used on peer links:
+ * <pre>
+ * frame  = length:int32, count:int32, { update } ;
+ * update = op:int8, topic:utf, ( client-id:utf | body-length:int32, body ) ;
+ * </pre>
+ * where {@code utf} is the modified UTF-8 of {@link DataOutputStream#writeUTF(String)}, and only {@link #PUBLISH}
+ * carries a body.
+ */
+final class SyncUpdate {
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte PUBLISH = 3;
+
+    final byte op;
+    final @NotNull String topic;
+    final @NotNull String clientId;
+    final byte @Nullable [] body;
+    final long createdNanos = System.nanoTime(); // not sent, for replication lag
+
+    SyncUpdate(byte op, @NotNull String topic, @NotNull String clientId) {
+        this(op, topic, clientId, null);
+    }
+
+    private SyncUpdate(byte op, @NotNull String topic, @NotNull String clientId, byte @Nullable [] body) {
+        this.op = op;
+        this.topic = topic;
+        this.clientId = clientId;
+        this.body = body;
+    }
+
+    static SyncUpdate publish(@NotNull String topic, byte @NotNull [] body) {
+        return new SyncUpdate(PUBLISH, topic, "", body);
+    }
+
+    /**
+     * Keep only the last update for each topic/client pair: add and remove are idempotent, so earlier ones are moot,
+     * unless a forwarded message the filter matches sits between them, since it must be delivered according to the
+     * state at its own position. Forwarded messages are all kept. The survivor keeps the position of the last update,
+     * so that forwarded messages are not moved across a subscription change.
+     */
+    @NotNull
+    static Collection<SyncUpdate> coalesce(@NotNull List<SyncUpdate> updates) {
+        if (updates.size() < 2) {
+            return updates;
+        }
+        List<SyncUpdate> kept = new ArrayList<>(updates.size());
+        Map<String, Integer> lastUpdate = new HashMap<>(); // topic/client pair to its position in kept
+        Map<String, Integer> lastPublish = new HashMap<>(); // topic to the position of its last message in kept
+        List<Integer> publishes = new ArrayList<>(); // positions of all the messages, for wildcard filters
+        for (SyncUpdate u : updates) {
+            if (u.op == PUBLISH) {
+                lastPublish.put(u.topic, kept.size());
+                publishes.add(kept.size());
+            } else {
+                String key = u.topic + '\0' + u.clientId;
+                Integer previous = lastUpdate.get(key);
+                if (previous != null && !publishedSince(u.topic, previous, kept, lastPublish, publishes)) {
+                    kept.set(previous, null);
+                }
+                lastUpdate.put(key, kept.size());
+            }
+            kept.add(u);
+        }
+        kept.removeIf(Objects::isNull);
+        return kept;
+    }
+
+    private static boolean publishedSince(String filter, int position, List<SyncUpdate> kept,
+                                          Map<String, Integer> lastPublish, List<Integer> publishes) {
+        if (!TopicFilter.isWildcard(filter)) {
+            Integer last = lastPublish.get(filter);
+            return last != null && last > position;
+        }
+        for (int i = publishes.size() - 1; i >= 0 && publishes.get(i) > position; i--) {
+            if (TopicFilter.matches(filter, kept.get(publishes.get(i)).topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    static ByteBuffer encodeBatch(@NotNull Collection<SyncUpdate> updates) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * updates.size() + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length, patched below
+        out.writeInt(updates.size());
+        for (SyncUpdate u : updates) {
+            out.writeByte(u.op);
+            out.writeUTF(u.topic);
+            if (u.op == PUBLISH) {
+                out.writeInt(u.body.length);
+                out.write(u.body);
+            } else {
+                out.writeUTF(u.clientId);
+            }
+        }
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(0, frame.remaining() - 4);
+        return frame;
+    }
+
+    /**
+     * @return the next batch, or {@code null} at the end of the stream
+     */
+    @Nullable
+    static List<SyncUpdate> decodeBatch(@NotNull DataInputStream in) throws IOException {
+        try {
+            in.readInt(); // length: not needed when reading from a stream
+        } catch (EOFException e) {
+            return null;
+        }
+        int count = in.readInt();
+        List<SyncUpdate> updates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            String topic = in.readUTF();
+            if (op == PUBLISH) {
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                updates.add(publish(topic, body));
+            } else {
+                updates.add(new SyncUpdate(op, topic, in.readUTF()));
+            }
+        }
+        return updates;
+    }
+}
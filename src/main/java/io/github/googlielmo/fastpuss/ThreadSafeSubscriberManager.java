@@ -4,71 +4,333 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.logging.Logger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadSafeSubscriberManager {
 
-    private static final Logger logger = Logger.getLogger("ThreadSafeSubscriberManager");
+    static final int MATCH_CACHE_SIZE = 64 * 1024;
 
-    final Map<String, Collection<String>> topicMap = new ConcurrentHashMap<>();
+    final Map<String, SubscriberSet> topicMap = new ConcurrentHashMap<>();
+    private final ClientRegistry clients;
+    private final TopicTrie wildcards = new TopicTrie();
+    // topic -> resolved subscribers, only used while there are wildcard filters
+    private final Map<String, Subscribers> matchCache = new ConcurrentHashMap<>();
+    private final TopicIndex cachedTopics = new TopicIndex(); // the keys of matchCache, guarded by itself
+    private final AtomicLong matchCacheEpoch = new AtomicLong();
+    private final int matchCacheSize;
+    private final SubscriptionDigest digest = new SubscriptionDigest();
+    private volatile SubscriptionStore store; // null unless persisted
 
-    public void addSubscription(final @NotNull String topicFilter, final @NotNull String clientId) {
-        final Collection<String> oneElement = new ConcurrentLinkedDeque<>(List.of(clientId));
-        topicMap.merge(topicFilter, oneElement,
-                (list, singleton) -> {
-                    list.add(singleton.iterator().next());
-                    return list;
-                });
+    public ThreadSafeSubscriberManager() {
+        this(new ClientRegistry());
     }
 
+    public ThreadSafeSubscriberManager(final @NotNull ClientRegistry clients) {
+        this(clients, MATCH_CACHE_SIZE);
+    }
+
+    /**
+     * @param clients        the registry used to intern client IDs into handles
+     * @param matchCacheSize max number of topics whose matching subscribers are cached, when wildcard filters are used
+     */
+    public ThreadSafeSubscriberManager(final @NotNull ClientRegistry clients, final int matchCacheSize) {
+        this.clients = clients;
+        this.matchCacheSize = matchCacheSize;
+    }
+
+    /**
+     * @return the registry used to intern client IDs into handles
+     */
     @NotNull
-    public Collection<String> getMatchingSubscribers(final @NotNull String topic) {
-        Collection<String> subs = topicMap.getOrDefault(topic, Collections.emptyList());
-        if (subs.isEmpty()) {
-            logger.info("no subscription for " + topic);
+    public ClientRegistry clients() {
+        return clients;
+    }
+
+    public boolean addSubscription(final @NotNull String topicFilter, final @NotNull String clientId) {
+        return addSubscription(topicFilter, clients.intern(clientId));
+    }
+
+    /**
+     * Subscribe a client to a topic filter. Subscribing twice has no further effect.
+     *
+     * @return {@code true} if the subscription is new
+     */
+    public boolean addSubscription(final @NotNull String topicFilter, final int client) {
+        for (; ; ) {
+            SubscriberSet set = filterSet(topicFilter);
+            int result = set.add(client);
+            if (result == SubscriberSet.ADDED) {
+                digest.add(topicFilter, clients.idHash(client));
+                persistAdded(topicFilter, client);
+                return true;
+            }
+            if (result == SubscriberSet.PRESENT) {
+                return false;
+            }
+            // the topic is being reclaimed concurrently: help remove the retired set and retry with a new one
+            reclaim(topicFilter, set);
+        }
+    }
+
+    public boolean removeSubscription(final @NotNull String topicFilter, final @NotNull String clientId) {
+        int client = clients.lookup(clientId);
+        return client >= 0 && removeSubscription(topicFilter, client);
+    }
+
+    /**
+     * Unsubscribe a client from a topic filter. When the last subscriber leaves, the topic is removed, since topics
+     * exist only as long as they are in use.
+     *
+     * @return {@code true} if the client was subscribed
+     */
+    public boolean removeSubscription(final @NotNull String topicFilter, final int client) {
+        SubscriberSet set = topicMap.get(topicFilter);
+        if (set == null || !set.remove(client)) {
+            return false;
+        }
+        digest.remove(topicFilter, clients.idHash(client));
+        SubscriptionStore s = store;
+        if (s != null) {
+            s.removed(topicFilter, clients.id(client));
+        }
+        if (set.isEmpty() && set.retireIfEmpty()) {
+            reclaim(topicFilter, set);
+        }
+        return true;
+    }
+
+    /**
+     * Subscribe several clients to a topic filter at once, e.g. when loading a snapshot.
+     */
+    public void addSubscriptions(final @NotNull String topicFilter, final int @NotNull [] clients) {
+        if (clients.length == 0) {
+            return;
+        }
+        SubscriberSet set = filterSet(topicFilter);
+        for (int client : clients) {
+            int result = set.add(client);
+            if (result == SubscriberSet.ADDED) {
+                digest.add(topicFilter, this.clients.idHash(client));
+                persistAdded(topicFilter, client);
+            } else if (result == SubscriberSet.RETIRED) {
+                addSubscription(topicFilter, client);
+            }
+        }
+    }
+
+    /**
+     * Remove every subscription to the topic filters accepted by {@code ranges}, see {@link TopicHash#range(String)}.
+     */
+    void clearRanges(final @NotNull BitSet ranges) {
+        for (Map.Entry<String, SubscriberSet> entry : topicMap.entrySet()) {
+            String topicFilter = entry.getKey();
+            if (ranges.get(TopicHash.range(topicFilter))) {
+                for (int client : entry.getValue().toArray()) {
+                    removeSubscription(topicFilter, client);
+                }
+            }
+        }
+    }
+
+    /**
+     * Log every later change of the subscriptions to {@code store}.
+     */
+    void persistTo(final @NotNull SubscriptionStore store) {
+        this.store = store;
+    }
+
+    private void persistAdded(String topicFilter, int client) {
+        SubscriptionStore s = store;
+        if (s != null) {
+            s.added(topicFilter, clients.id(client));
+        }
+    }
+
+    /**
+     * @return the digest of the subscription state, maintained incrementally
+     */
+    SubscriptionDigest digest() {
+        return digest;
+    }
+
+    /**
+     * @return the live subscriber set of a filter, created if needed
+     */
+    private SubscriberSet filterSet(String topicFilter) {
+        SubscriberSet set = topicMap.get(topicFilter);
+        if (set == null) {
+            set = topicMap.computeIfAbsent(topicFilter, this::newFilter);
+            // only once the set is visible, or a concurrent match could cache a result without it
+            invalidateMatches(topicFilter);
+        }
+        return set;
+    }
+
+    /**
+     * Called within {@code computeIfAbsent} when a filter gets its first subscriber.
+     */
+    private SubscriberSet newFilter(String topicFilter) {
+        SubscriberSet set = new SubscriberSet();
+        if (TopicFilter.isWildcard(topicFilter)) {
+            if (!TopicFilter.isValid(topicFilter)) {
+                throw new IllegalArgumentException("invalid topic filter " + topicFilter);
+            }
+            wildcards.insert(topicFilter, set);
+        }
+        return set;
+    }
+
+    private void reclaim(String topicFilter, SubscriberSet set) {
+        if (topicMap.remove(topicFilter, set)) {
+            if (TopicFilter.isWildcard(topicFilter)) {
+                wildcards.remove(topicFilter, set);
+            }
+            invalidateMatches(topicFilter);
         }
-        else {
-            logger.info(String.format("msg for %s, subscriptions: %s", topic, subs));
+    }
+
+    /**
+     * Drop the cached matches affected by a filter being created or removed. Subscribing to or unsubscribing from an
+     * existing filter needs no invalidation, since cached matches refer to the live subscriber sets.
+     * <p>
+     * The epoch is bumped even when the cache is empty: a match resolved before the change may be about to be cached.
+     * A wildcard filter only drops the topics it matches, found through the {@link TopicIndex} of the cached topics
+     * rather than by scanning the cache.
+     */
+    private void invalidateMatches(String topicFilter) {
+        matchCacheEpoch.incrementAndGet();
+        synchronized (cachedTopics) {
+            if (wildcards.size() == 0) {
+                matchCache.clear();
+                cachedTopics.clear();
+            } else if (TopicFilter.isWildcard(topicFilter)) {
+                List<String> affected = new ArrayList<>();
+                cachedTopics.forEachMatch(topicFilter, affected::add);
+                for (String topic : affected) {
+                    matchCache.remove(topic);
+                    cachedTopics.remove(topic);
+                }
+            } else if (matchCache.remove(topicFilter) != null) {
+                cachedTopics.remove(topicFilter);
+            }
         }
-        return subs;
     }
 
-    protected void marshal(Writer w) throws IOException {
-        for (Map.Entry<String, Collection<String>> entry : topicMap.entrySet()) {
-            String key = entry.getKey();
-            Collection<String> collection = entry.getValue();
+    /**
+     * @return the number of topic filters with at least one subscriber
+     */
+    public int topicCount() {
+        return topicMap.size();
+    }
 
-            w.write(key);
-            w.write("\n");
+    /**
+     * Hot path lookup: the returned handles can be resolved to addresses with {@link #clients()}.
+     */
+    @NotNull
+    Subscribers getSubscribers(final @NotNull String topic) {
+        return wildcards.size() == 0 ? topicMap.getOrDefault(topic, SubscriberSet.EMPTY) : match(topic);
+    }
 
-            for (String id : collection) {
-                w.write(id);
-                w.write("\n");
+    private Subscribers match(String topic) {
+        Subscribers cached = matchCache.get(topic);
+        if (cached != null) {
+            return cached;
+        }
+        long epoch = matchCacheEpoch.get();
+        Subscribers resolved = resolve(topic);
+        synchronized (cachedTopics) { // only on misses: hits stay lock-free
+            // unless a filter was created or removed meanwhile, and the result may be stale
+            if (matchCacheEpoch.get() == epoch) {
+                if (matchCache.size() >= matchCacheSize) {
+                    evictMatches();
+                }
+                if (matchCache.put(topic, resolved) == null) {
+                    cachedTopics.add(topic);
+                }
             }
+        }
+        return resolved;
+    }
+
+    private Subscribers resolve(String topic) {
+        List<SubscriberSet> sets = new ArrayList<>(4);
+        SubscriberSet exact = topicMap.get(topic);
+        if (exact != null) {
+            sets.add(exact);
+        }
+        wildcards.match(topic, sets);
+        switch (sets.size()) {
+            case 0:
+                return SubscriberSet.EMPTY;
+            case 1:
+                return sets.get(0);
+            default:
+                return new SubscriberUnion(sets.toArray(new SubscriberSet[0]));
+        }
+    }
 
-            w.write("\n");
+    /**
+     * Make room by dropping an arbitrary eighth of the cache.
+     */
+    private void evictMatches() {
+        int toEvict = Math.max(1, matchCacheSize / 8);
+        Iterator<String> it = matchCache.keySet().iterator();
+        while (toEvict-- > 0 && it.hasNext()) {
+            cachedTopics.remove(it.next());
+            it.remove();
         }
     }
 
+    /**
+     * @return the client IDs subscribed to the topic, directly or through a wildcard filter
+     */
+    @NotNull
+    public Collection<String> getMatchingSubscribers(final @NotNull String topic) {
+        Subscribers subs = getSubscribers(topic);
+        List<String> ids = new ArrayList<>(subs.size());
+        subs.forEach(client -> ids.add(clients.id(client)));
+        return ids;
+    }
+
+    /**
+     * Write the whole state as a binary snapshot, see {@link SubscriptionSnapshot}.
+     */
+    protected void marshal(OutputStream out, boolean compress) throws IOException {
+        SubscriptionSnapshot.write(this, out, compress, topic -> true);
+    }
+
+    /**
+     * Read a binary snapshot, applying its chunks in parallel on {@code workers} while it is being received.
+     */
+    protected void unmarshal(InputStream in, ExecutorService workers, int parallelism) throws IOException {
+        SubscriptionSnapshot.read(this, in, workers, parallelism);
+    }
+
+    /**
+     * Read subscriptions in the line-based text format of the legacy PUSH sync command.
+     */
     protected void unmarshal(BufferedReader r) throws IOException {
-        String s, id = null;
-        boolean readId = true;
+        String s, topic = null;
+        boolean readTopic = true;
         while ((s = r.readLine()) != null) {
             if (s.isEmpty()) {
-                readId = true;
+                readTopic = true;
             } else {
-                if (readId) {
-                    id = s;
-                    readId = false;
+                if (readTopic) {
+                    topic = s;
+                    readTopic = false;
                 } else {
-                    addSubscription(s, id);
+                    addSubscription(topic, s);
                 }
             }
         }
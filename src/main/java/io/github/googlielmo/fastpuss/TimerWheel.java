@@ -0,0 +1,167 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel (Varghese and Lauck): {@value #LEVELS} wheels of {@value #SLOTS} slots, each slot of a
+ * wheel spanning a whole turn of the wheel below. A timer goes into the lowest wheel whose span covers its deadline and
+ * moves down one wheel each time the slot holding it comes up, until it fires from the lowest wheel.
+ * <p>
+ * Scheduling and cancelling are O(1), and advancing the time by one tick is O(1) plus the timers that fire or move
+ * down, however many timers are pending. Deadlines are rounded up to the next tick, so a timer never fires early.
+ * Not thread safe.
+ */
+final class TimerWheel<T> {
+
+    private static final int LEVELS = 4;
+    private static final int BITS = 8;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+
+    /**
+     * A scheduled item, linked in the slot it waits in.
+     */
+    static final class Timer<T> {
+        final T item;
+        private long tick;
+        private Timer<T> prev;
+        private Timer<T> next;
+        private int slot = -1; // index in slots, -1 if not scheduled
+
+        private Timer(T item) {
+            this.item = item;
+        }
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tickNanos;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Timer<T>[] slots = new Timer[LEVELS * SLOTS]; // head of the list of each slot
+    private long current; // the last tick advanced to
+    private int size;
+
+    /**
+     * @param tickNanos resolution of the wheel
+     * @param nowNanos  the current time, as given by {@link System#nanoTime()}
+     */
+    TimerWheel(long tickNanos, long nowNanos) {
+        if (tickNanos < 1) {
+            throw new IllegalArgumentException("invalid tick: " + tickNanos);
+        }
+        this.tickNanos = tickNanos;
+        this.current = Math.floorDiv(nowNanos, tickNanos);
+    }
+
+    /**
+     * @return a new timer for {@code item}, firing at {@code deadlineNanos} or at the next tick if that is past
+     */
+    @NotNull
+    Timer<T> schedule(@NotNull T item, long deadlineNanos) {
+        Timer<T> t = new Timer<>(item);
+        reschedule(t, deadlineNanos);
+        return t;
+    }
+
+    /**
+     * Move a timer, scheduled or not, to a new deadline.
+     */
+    void reschedule(@NotNull Timer<T> t, long deadlineNanos) {
+        cancel(t);
+        t.tick = Math.max(current + 1, -Math.floorDiv(-deadlineNanos, tickNanos)); // rounded up
+        insert(t);
+    }
+
+    void cancel(@NotNull Timer<T> t) {
+        if (t.slot < 0) {
+            return;
+        }
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            slots[t.slot] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = t.next = null;
+        t.slot = -1;
+        size--;
+    }
+
+    /**
+     * Advance to {@code nowNanos}, one tick at a time, passing the timers that fire to {@code expired}, which may
+     * schedule timers again.
+     */
+    void advance(long nowNanos, @NotNull Consumer<Timer<T>> expired) {
+        long target = Math.floorDiv(nowNanos, tickNanos);
+        while (current < target) {
+            current++;
+            // higher wheels first: their timers may move down to a slot that comes up on this tick too
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((current & (1L << BITS * level) - 1) == 0) {
+                    for (Timer<T> t = detach(level, (int) (current >>> BITS * level) & MASK); t != null; ) {
+                        Timer<T> next = t.next;
+                        t.prev = t.next = null;
+                        insert(t);
+                        t = next;
+                    }
+                }
+            }
+            for (Timer<T> t = detach(0, (int) current & MASK); t != null; ) {
+                Timer<T> next = t.next;
+                t.prev = t.next = null;
+                if (t.tick <= current) {
+                    expired.accept(t);
+                } else {
+                    insert(t); // beyond the span of the wheels when scheduled
+                }
+                t = next;
+            }
+        }
+    }
+
+    /**
+     * @return the number of scheduled timers
+     */
+    int size() {
+        return size;
+    }
+
+    private void insert(Timer<T> t) {
+        long delta = t.tick - current;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << BITS * (level + 1)) {
+            level++;
+        }
+        int slot = level * SLOTS + ((int) (t.tick >>> BITS * level) & MASK);
+        Timer<T> head = slots[slot];
+        t.next = head;
+        if (head != null) {
+            head.prev = t;
+        }
+        slots[slot] = t;
+        t.slot = slot;
+        size++;
+    }
+
+    /**
+     * Empty a slot.
+     *
+     * @return the head of the list of its timers, which are no longer counted as scheduled
+     */
+    private Timer<T> detach(int level, int index) {
+        int slot = level * SLOTS + index;
+        Timer<T> head = slots[slot];
+        slots[slot] = null;
+        for (Timer<T> t = head; t != null; t = t.next) {
+            t.slot = -1;
+            size--;
+        }
+        return head;
+    }
+}
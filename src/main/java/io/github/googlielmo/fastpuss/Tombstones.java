@@ -0,0 +1,138 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Recently removed subscriptions, so that {@link AntiEntropy} repairs removals as well as additions: a node that
+ * missed a REMOVE still holds the subscription, and merging from it would otherwise bring it back everywhere.
+ * <p>
+ * Removals are exchanged along with the divergent ranges, as:
+ * <pre>
+ * tombstones = count:int32, { topic:utf, client-id:utf, removed-at:int64 } ;
+ * </pre>
+ * A received tombstone removes the subscription unless it was added again after the removal. Adding a subscription
+ * revives it, and the revival is remembered like a tombstone, so that an older removal still in flight doesn't undo it.
+ * Entries expire after a time long enough for every peer to have been compared a few times. Removal times are wall
+ * clock times, so clocks skewed by more than the time between an UNSUB and a new SUB may keep the older of the two.
+ */
+final class Tombstones {
+
+    static final int MAX_ENTRIES = 1 << 20;
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final String topic;
+        final String clientId;
+        final long millis;
+        final boolean removed; // false for a revival
+
+        Entry(String topic, String clientId, long millis, boolean removed) {
+            this.topic = topic;
+            this.clientId = clientId;
+            this.millis = millis;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * @param ttlMillis how long removals and revivals are remembered
+     */
+    Tombstones(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis: " + ttlMillis);
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Remember that a subscription was removed on this node, or by a peer.
+     */
+    void removed(@NotNull String topic, @NotNull String clientId, long nowMillis) {
+        if (entries.size() >= MAX_ENTRIES) {
+            expire(nowMillis);
+            if (entries.size() >= MAX_ENTRIES) {
+                return; // anti-entropy may bring this one back, as it would without tombstones
+            }
+        }
+        entries.put(key(topic, clientId), new Entry(topic, clientId, nowMillis, true));
+    }
+
+    /**
+     * Note that a subscription was added: a pending tombstone becomes a revival.
+     */
+    void added(@NotNull String topic, @NotNull String clientId, long nowMillis) {
+        if (entries.isEmpty()) {
+            return; // the common case, without allocating a key
+        }
+        entries.computeIfPresent(key(topic, clientId), (k, e) -> new Entry(topic, clientId, nowMillis, false));
+    }
+
+    /**
+     * Write the live tombstones of the topics accepted by {@code topics}.
+     */
+    void write(@NotNull DataOutputStream out, @NotNull Predicate<String> topics, long nowMillis) throws IOException {
+        expire(nowMillis);
+        List<Entry> selected = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            if (e.removed && topics.test(e.topic)) {
+                selected.add(e);
+            }
+        }
+        out.writeInt(selected.size());
+        for (Entry e : selected) {
+            out.writeUTF(e.topic);
+            out.writeUTF(e.clientId);
+            out.writeLong(e.millis);
+        }
+    }
+
+    /**
+     * Read tombstones written by a peer and remove the subscriptions they refer to, unless added again since.
+     *
+     * @return the number of subscriptions removed
+     */
+    int apply(@NotNull DataInputStream in, @NotNull ThreadSafeSubscriberManager manager) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("malformed tombstones");
+        }
+        int removed = 0;
+        for (int i = 0; i < count; i++) {
+            String topic = in.readUTF();
+            String clientId = in.readUTF();
+            long millis = in.readLong();
+            Entry local = entries.get(key(topic, clientId));
+            if (local != null && local.millis >= millis) {
+                continue; // revived since, or already known
+            }
+            removed(topic, clientId, millis);
+            if (manager.removeSubscription(topic, clientId)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private void expire(long nowMillis) {
+        entries.values().removeIf(e -> nowMillis - e.millis > ttlMillis);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static String key(String topic, String clientId) {
+        return topic + '\0' + clientId;
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Numeric aliases of topics, assigned by the broker on demand, so that clients can publish and receive messages
+ * without the topic name: an APUB or AMSG carries the alias, in hex, in place of the topic.
+ * <p>
+ * An alias is the index of the topic in an array, resolved without hashing, with a random epoch of the broker
+ * instance in its high bits, so that the aliases of another broker, or of a previous run, are rejected rather than
+ * resolved to another topic. Aliases are never reassigned; once {@code capacity} topics have one, no more are assigned
+ * and clients keep using topic names.
+ * <p>
+ * Each alias also holds the clients that want the messages of its topic as AMSGs, in a sorted array replaced on
+ * every change: subscriptions change far less often than messages are sent.
+ */
+final class TopicAliases {
+
+    private static final int INDEX_BITS = 24;
+    private static final int[] NO_CLIENTS = new int[0];
+
+    static final class Alias {
+        final long id;
+        final String topic;
+        final String token; // the id in hex, as written in messages
+        private volatile int[] clients = NO_CLIENTS;
+
+        private Alias(long id, String topic) {
+            this.id = id;
+            this.topic = topic;
+            this.token = Long.toHexString(id);
+        }
+
+        /**
+         * @return the clients that want AMSGs, sorted; not to be modified
+         */
+        int @NotNull [] clients() {
+            return clients;
+        }
+    }
+
+    private final long epoch = ThreadLocalRandom.current().nextInt(1, 1 << 24);
+    private final int capacity;
+    private final Map<String, Alias> byTopic = new ConcurrentHashMap<>();
+    private volatile Alias[] byIndex = new Alias[64];
+    private int count; // guarded by this
+
+    /**
+     * @param capacity max number of aliases, at most 2^24
+     */
+    TopicAliases(int capacity) {
+        if (capacity < 1 || capacity > 1 << INDEX_BITS) {
+            throw new IllegalArgumentException("invalid alias capacity: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the alias of {@code topic}, assigned now if it had none, or {@code null} if all the aliases are taken
+     */
+    @Nullable
+    Alias assign(@NotNull String topic) {
+        Alias a = byTopic.get(topic);
+        if (a != null) {
+            return a;
+        }
+        synchronized (this) {
+            a = byTopic.get(topic);
+            if (a != null || count == capacity) {
+                return a;
+            }
+            Alias[] table = byIndex;
+            if (count == table.length) {
+                table = Arrays.copyOf(table, Math.min(capacity, table.length * 2));
+            }
+            a = new Alias(epoch << INDEX_BITS | count, topic);
+            table[count++] = a;
+            byIndex = table;
+            byTopic.put(topic, a);
+            return a;
+        }
+    }
+
+    /**
+     * @return the alias of {@code topic}, or {@code null} if it has none
+     */
+    @Nullable
+    Alias get(@NotNull String topic) {
+        return byTopic.get(topic);
+    }
+
+    /**
+     * @return the topic of an alias, or {@code null} if this broker instance didn't assign it
+     */
+    @Nullable
+    String topic(long id) {
+        if (id >>> INDEX_BITS != epoch) {
+            return null;
+        }
+        Alias[] table = byIndex;
+        int index = index(id);
+        Alias a = index < table.length ? table[index] : null;
+        return a == null ? null : a.topic;
+    }
+
+    /**
+     * @return the index of an alias in the table of the broker that assigned it
+     */
+    static int index(long id) {
+        return (int) (id & (1 << INDEX_BITS) - 1);
+    }
+
+    boolean isEmpty() {
+        return byTopic.isEmpty();
+    }
+
+    /**
+     * Send the messages of the alias's topic to {@code client} as AMSGs.
+     */
+    void addClient(@NotNull Alias a, int client) {
+        synchronized (a) {
+            int[] c = a.clients;
+            int i = Arrays.binarySearch(c, client);
+            if (i < 0) {
+                int[] grown = new int[c.length + 1];
+                int at = -i - 1;
+                System.arraycopy(c, 0, grown, 0, at);
+                grown[at] = client;
+                System.arraycopy(c, at, grown, at + 1, c.length - at);
+                a.clients = grown;
+            }
+        }
+    }
+
+    /**
+     * Send the messages of {@code topic} to {@code client} as MSGs again.
+     */
+    void removeClient(@NotNull String topic, int client) {
+        Alias a = byTopic.get(topic);
+        if (a == null) {
+            return;
+        }
+        synchronized (a) {
+            int[] c = a.clients;
+            int i = Arrays.binarySearch(c, client);
+            if (i >= 0) {
+                int[] shrunk = new int[c.length - 1];
+                System.arraycopy(c, 0, shrunk, 0, i);
+                System.arraycopy(c, i + 1, shrunk, i, c.length - i - 1);
+                a.clients = shrunk.length == 0 ? NO_CLIENTS : shrunk;
+            }
+        }
+    }
+}
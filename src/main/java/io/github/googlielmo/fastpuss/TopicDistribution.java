@@ -0,0 +1,59 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Popularity of the topics of a load test: picks topic indices {@code 0..topics - 1} at random, either uniformly or
+ * following a Zipf distribution, where topic {@code k} is picked with probability proportional to
+ * {@code 1 / (k + 1)^exponent}.
+ */
+final class TopicDistribution {
+
+    private final int topics;
+    private final double[] cdf; // null for uniform
+
+    private TopicDistribution(int topics, double[] cdf) {
+        this.topics = topics;
+        this.cdf = cdf;
+    }
+
+    @NotNull
+    static TopicDistribution uniform(int topics) {
+        if (topics < 1) {
+            throw new IllegalArgumentException("topics: " + topics);
+        }
+        return new TopicDistribution(topics, null);
+    }
+
+    @NotNull
+    static TopicDistribution zipf(int topics, double exponent) {
+        if (topics < 1 || exponent <= 0) {
+            throw new IllegalArgumentException("topics: " + topics + ", exponent: " + exponent);
+        }
+        double[] cdf = new double[topics];
+        double sum = 0;
+        for (int k = 0; k < topics; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < topics; k++) {
+            cdf[k] /= sum;
+        }
+        return new TopicDistribution(topics, cdf);
+    }
+
+    int next(@NotNull SplittableRandom random) {
+        if (cdf == null) {
+            return random.nextInt(topics);
+        }
+        int k = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(topics - 1, k < 0 ? -k - 1 : k);
+    }
+
+    int topics() {
+        return topics;
+    }
+}
@@ -0,0 +1,88 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Hierarchical topic filters.
+ * <p>
+ * Topic levels are separated by {@code /}. In a filter, {@code +} matches exactly one level and {@code #}, which must
+ * be the last level, matches any number of levels, including none: {@code sensors/#} matches {@code sensors},
+ * {@code sensors/kitchen} and {@code sensors/kitchen/temp}. Wildcards must occupy a whole level. As in MQTT, wildcards
+ * at the first level do not match topics starting with {@code $}.
+ */
+final class TopicFilter {
+
+    static final char SEPARATOR = '/';
+    static final String SINGLE_LEVEL = "+";
+    static final String MULTI_LEVEL = "#";
+
+    private TopicFilter() {
+    }
+
+    static boolean isWildcard(@NotNull String filter) {
+        return filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0;
+    }
+
+    /**
+     * @return {@code true} unless wildcards are used within a level, or {@code #} is not the last level
+     */
+    static boolean isValid(@NotNull String filter) {
+        int start = 0;
+        for (; ; ) {
+            int end = filter.indexOf(SEPARATOR, start);
+            int levelEnd = end < 0 ? filter.length() : end;
+            for (int i = start; i < levelEnd; i++) {
+                char c = filter.charAt(i);
+                if ((c == '+' || c == '#') && levelEnd - start != 1) {
+                    return false;
+                }
+                if (c == '#' && end >= 0) {
+                    return false;
+                }
+            }
+            if (end < 0) {
+                return true;
+            }
+            start = end + 1;
+        }
+    }
+
+    static boolean matches(@NotNull String filter, @NotNull String topic) {
+        if (!topic.isEmpty() && topic.charAt(0) == '$' && !filter.isEmpty()
+                && (filter.charAt(0) == '+' || filter.charAt(0) == '#')) {
+            return false;
+        }
+        int f = 0;
+        int t = 0;
+        for (; ; ) {
+            int fEnd = levelEnd(filter, f);
+            if (fEnd - f == 1 && filter.charAt(f) == '#') {
+                return true;
+            }
+            if (t > topic.length()) {
+                // topic exhausted: only a trailing "#" level can still match the parent level
+                return false;
+            }
+            int tEnd = levelEnd(topic, t);
+            boolean plus = fEnd - f == 1 && filter.charAt(f) == '+';
+            if (!plus && (fEnd - f != tEnd - t || !topic.regionMatches(t, filter, f, fEnd - f))) {
+                return false;
+            }
+            boolean fDone = fEnd == filter.length();
+            boolean tDone = tEnd == topic.length();
+            if (fDone) {
+                return tDone;
+            }
+            f = fEnd + 1;
+            t = tDone ? topic.length() + 1 : tEnd + 1;
+        }
+    }
+
+    private static int levelEnd(String s, int start) {
+        if (start > s.length()) {
+            return start;
+        }
+        int end = s.indexOf(SEPARATOR, start);
+        return end < 0 ? s.length() : end;
+    }
+}
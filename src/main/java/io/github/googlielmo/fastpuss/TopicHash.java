@@ -0,0 +1,47 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Stable hashing of topic names into a fixed number of ranges.
+ * <p>
+ * The hash only depends on {@link String#hashCode()}, whose value is specified by the language, so all the nodes of a
+ * cluster agree on the range of every topic.
+ */
+final class TopicHash {
+
+    static final int RANGE_BITS = 12;
+    static final int RANGES = 1 << RANGE_BITS;
+
+    private TopicHash() {
+    }
+
+    static int hash(@NotNull String topic) {
+        return mix32(topic.hashCode());
+    }
+
+    /**
+     * @return the range of the topic, between 0 and {@link #RANGES} - 1
+     */
+    static int range(@NotNull String topic) {
+        return hash(topic) >>> (32 - RANGE_BITS);
+    }
+
+    static int mix32(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
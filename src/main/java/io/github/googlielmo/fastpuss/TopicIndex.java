@@ -0,0 +1,157 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Index of topic names, one trie level per topic level, to find the topics matching a wildcard filter.
+ * <p>
+ * The reverse of {@link TopicTrie}: finding the matches of a filter visits the nodes along its literal levels, all the
+ * children at its {@code +} levels and the subtree under its {@code #}, so it costs in proportion to the topics that
+ * match rather than to the number indexed. Not thread safe.
+ */
+final class TopicIndex {
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>(4);
+        boolean present; // a topic ends here
+    }
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * @return the number of indexed topics
+     */
+    int size() {
+        return size;
+    }
+
+    void add(@NotNull String topic) {
+        Node node = root;
+        int start = 0;
+        for (; ; ) {
+            int end = topic.indexOf(TopicFilter.SEPARATOR, start);
+            String level = end < 0 ? topic.substring(start) : topic.substring(start, end);
+            node = node.children.computeIfAbsent(level, l -> new Node());
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (!node.present) {
+            node.present = true;
+            size++;
+        }
+    }
+
+    /**
+     * Remove the topic and prune the nodes left empty.
+     */
+    void remove(@NotNull String topic) {
+        remove(root, topic, 0);
+    }
+
+    private boolean remove(Node node, String topic, int start) {
+        int end = topic.indexOf(TopicFilter.SEPARATOR, start);
+        String level = end < 0 ? topic.substring(start) : topic.substring(start, end);
+        Node child = node.children.get(level);
+        if (child == null) {
+            return false;
+        }
+        if (end < 0) {
+            if (!child.present) {
+                return false;
+            }
+            child.present = false;
+            size--;
+        } else if (!remove(child, topic, end + 1)) {
+            return false;
+        }
+        if (!child.present && child.children.isEmpty()) {
+            node.children.remove(level);
+        }
+        return true;
+    }
+
+    void clear() {
+        root.children.clear();
+        size = 0;
+    }
+
+    /**
+     * Pass the indexed topics matching a filter to {@code action}, which must not modify the index.
+     */
+    void forEachMatch(@NotNull String filter, @NotNull Consumer<String> action) {
+        StringBuilder path = new StringBuilder();
+        match(root, filter, 0, path, action);
+    }
+
+    private static void match(Node node, String filter, int start, StringBuilder path, Consumer<String> action) {
+        int end = filter.indexOf(TopicFilter.SEPARATOR, start);
+        String level = end < 0 ? filter.substring(start) : filter.substring(start, end);
+        if (level.equals(TopicFilter.MULTI_LEVEL)) {
+            if (node.present && start > 0) { // "a/#" also matches "a"
+                accept(filter, path.substring(0, path.length() - 1), action);
+            }
+            forEachChild(node, path, (child, p) -> forEachBelow(child, filter, p, action));
+            return;
+        }
+        if (level.equals(TopicFilter.SINGLE_LEVEL)) {
+            forEachChild(node, path, (child, p) -> matchLevel(child, filter, end, p, action));
+            return;
+        }
+        Node child = node.children.get(level);
+        if (child != null) {
+            int length = path.length();
+            path.append(level);
+            matchLevel(child, filter, end, path, action);
+            path.setLength(length);
+        }
+    }
+
+    private static void matchLevel(Node child, String filter, int end, StringBuilder path, Consumer<String> action) {
+        if (end < 0) {
+            if (child.present) {
+                accept(filter, path.toString(), action);
+            }
+        } else {
+            path.append(TopicFilter.SEPARATOR);
+            match(child, filter, end + 1, path, action);
+        }
+    }
+
+    private static void forEachBelow(Node node, String filter, StringBuilder path, Consumer<String> action) {
+        if (node.present) {
+            accept(filter, path.toString(), action);
+        }
+        path.append(TopicFilter.SEPARATOR);
+        forEachChild(node, path, (child, p) -> forEachBelow(child, filter, p, action));
+        path.setLength(path.length() - 1);
+    }
+
+    private interface ChildVisitor {
+        void visit(Node child, StringBuilder path);
+    }
+
+    private static void forEachChild(Node node, StringBuilder path, ChildVisitor visitor) {
+        int length = path.length();
+        for (Map.Entry<String, Node> e : node.children.entrySet()) {
+            path.append(e.getKey());
+            visitor.visit(e.getValue(), path);
+            path.setLength(length);
+        }
+    }
+
+    /**
+     * The trie matches by level only; {@link TopicFilter#matches} also keeps wildcards off the "$" topics.
+     */
+    private static void accept(String filter, String topic, Consumer<String> action) {
+        if (TopicFilter.matches(filter, topic)) {
+            action.accept(topic);
+        }
+    }
+}
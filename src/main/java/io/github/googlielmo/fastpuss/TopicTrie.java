@@ -0,0 +1,120 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of wildcard topic filters, one trie level per topic level.
+ * <p>
+ * Matching a topic visits at most the nodes along its own levels plus their {@code +} and {@code #} siblings, so it
+ * costs roughly O(topic depth) regardless of how many filters are indexed. Lookups are lock-free; insertions and
+ * removals, which only happen when a filter gains its first subscriber or loses its last one, are serialized.
+ */
+class TopicTrie {
+
+    private static final class Node {
+        final Map<String, Node> children = new ConcurrentHashMap<>(4);
+        volatile SubscriberSet subscribers;
+    }
+
+    private final Node root = new Node();
+    private volatile int size;
+
+    /**
+     * @return the number of indexed filters
+     */
+    int size() {
+        return size;
+    }
+
+    synchronized void insert(@NotNull String filter, @NotNull SubscriberSet subscribers) {
+        Node node = root;
+        int start = 0;
+        for (; ; ) {
+            int end = filter.indexOf(TopicFilter.SEPARATOR, start);
+            String level = end < 0 ? filter.substring(start) : filter.substring(start, end);
+            node = node.children.computeIfAbsent(level, l -> new Node());
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (node.subscribers == null) {
+            size++;
+        }
+        node.subscribers = subscribers;
+    }
+
+    /**
+     * Remove the filter, if it is still mapped to the given set, and prune the nodes left empty.
+     */
+    synchronized void remove(@NotNull String filter, @NotNull SubscriberSet subscribers) {
+        remove(root, filter, 0, subscribers);
+    }
+
+    private boolean remove(Node node, String filter, int start, SubscriberSet subscribers) {
+        int end = filter.indexOf(TopicFilter.SEPARATOR, start);
+        String level = end < 0 ? filter.substring(start) : filter.substring(start, end);
+        Node child = node.children.get(level);
+        if (child == null) {
+            return false;
+        }
+        if (end < 0) {
+            if (child.subscribers != subscribers) {
+                return false;
+            }
+            child.subscribers = null;
+            size--;
+        } else if (!remove(child, filter, end + 1, subscribers)) {
+            return false;
+        }
+        if (child.subscribers == null && child.children.isEmpty()) {
+            node.children.remove(level);
+        }
+        return true;
+    }
+
+    /**
+     * Collect the subscriber sets of all filters matching the topic.
+     */
+    void match(@NotNull String topic, @NotNull List<SubscriberSet> out) {
+        boolean system = !topic.isEmpty() && topic.charAt(0) == '$';
+        match(root, topic, 0, !system, out);
+    }
+
+    private static void match(Node node, String topic, int start, boolean wildcards, List<SubscriberSet> out) {
+        if (wildcards) {
+            add(node.children.get(TopicFilter.MULTI_LEVEL), out);
+        }
+        int end = topic.indexOf(TopicFilter.SEPARATOR, start);
+        String level = end < 0 ? topic.substring(start) : topic.substring(start, end);
+        matchLevel(node.children.get(level), topic, end, out);
+        if (wildcards) {
+            matchLevel(node.children.get(TopicFilter.SINGLE_LEVEL), topic, end, out);
+        }
+    }
+
+    private static void matchLevel(Node child, String topic, int end, List<SubscriberSet> out) {
+        if (child == null) {
+            return;
+        }
+        if (end < 0) {
+            add(child, out);
+            add(child.children.get(TopicFilter.MULTI_LEVEL), out); // "a/#" also matches "a"
+        } else {
+            match(child, topic, end + 1, true, out);
+        }
+    }
+
+    private static void add(Node node, List<SubscriberSet> out) {
+        if (node != null) {
+            SubscriberSet subscribers = node.subscribers;
+            if (subscribers != null) {
+                out.add(subscribers);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size ring of recent trace events, for debugging a live broker without logging every message.
+ * <p>
+ * Callers first ask whether to {@link #sample()} the current message and only build the event if so, so that
+ * unsampled messages cost one random number. Writers claim slots with a single atomic increment and overwrite the
+ * oldest events.
+ */
+final class TraceRing {
+
+    private final AtomicReferenceArray<String> events;
+    private final int mask;
+    private final int sampling;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     * @param sampling one message in {@code sampling} is traced on average, 0 to disable tracing
+     */
+    TraceRing(int capacity, int sampling) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1) * 2);
+        this.events = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.sampling = sampling;
+    }
+
+    boolean sample() {
+        return sampling > 0 && ThreadLocalRandom.current().nextInt(sampling) == 0;
+    }
+
+    void add(@NotNull String event) {
+        events.set((int) (next.getAndIncrement() & mask), event);
+    }
+
+    /**
+     * @return the events still in the ring, most recent first
+     */
+    @NotNull
+    List<String> recent() {
+        long last = next.get();
+        List<String> recent = new ArrayList<>();
+        for (long seq = last - 1; seq >= 0 && seq >= last - events.length(); seq--) {
+            String event = events.get((int) (seq & mask));
+            if (event != null) {
+                recent.add(event);
+            }
+        }
+        return recent;
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * Where brokers and clients get their sockets from: datagram endpoints for the pub/sub protocol, and streams for the
+ * sync protocol between the nodes of a {@link DistributedBroker}.
+ * <p>
+ * {@link SocketTransport} is the network, over UDP and TCP. {@link MemoryTransport} connects the brokers and clients
+ * of one JVM without the kernel, with simulated loss, latency and reordering.
+ */
+public interface Transport {
+
+    /**
+     * A connected byte stream, like a TCP socket.
+     */
+    interface Stream extends Closeable {
+        @NotNull
+        InputStream in() throws IOException;
+
+        @NotNull
+        OutputStream out() throws IOException;
+
+        @NotNull
+        InetSocketAddress remoteAddress();
+    }
+
+    /**
+     * Accepts streams, like a listening TCP socket.
+     */
+    interface StreamListener extends Closeable {
+        /**
+         * Wait for the next connection.
+         */
+        @NotNull
+        Stream accept() throws IOException;
+    }
+
+    /**
+     * @param local             address to bind, {@code null} or port 0 for an ephemeral one
+     * @param receiveBufferSize bytes of datagrams that may wait to be received before new ones are dropped, 0 for the
+     *                          transport default
+     * @param shared            whether more endpoints may bind the same address, the datagrams from each sender all
+     *                          going to one of them, like with SO_REUSEPORT; see {@link #supportsSharedPorts()}
+     */
+    @NotNull
+    DatagramEndpoint bind(@Nullable InetSocketAddress local, int receiveBufferSize, boolean shared) throws IOException;
+
+    /**
+     * @return whether {@link #bind} supports shared addresses
+     */
+    boolean supportsSharedPorts();
+
+    @NotNull
+    StreamListener listen(@NotNull InetSocketAddress local) throws IOException;
+
+    @NotNull
+    Stream connect(@NotNull InetSocketAddress remote) throws IOException;
+}
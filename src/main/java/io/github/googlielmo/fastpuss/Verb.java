@@ -0,0 +1,75 @@
+package io.github.googlielmo.fastpuss;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message verbs, see the message format in the README.
+ */
+enum Verb {
+    PUB, SUB, UNSUB, MSG,
+    /**
+     * A MSG stamped with its per-topic sequence number, sent in reliable mode.
+     */
+    SEQ,
+    /**
+     * Sent by a subscriber to ask for the retransmission of ranges of SEQ messages it missed.
+     */
+    NACK,
+    /**
+     * Sent by the broker to tell a subscriber that a topic is now delivered to a multicast group, given in the body as
+     * {@code address:port}, and sent back by the subscriber once it joined the group.
+     */
+    JOIN,
+    /**
+     * Sent by the broker to tell a subscriber that a topic is back to unicast delivery.
+     */
+    LEAVE,
+    /**
+     * Sent by a client to check that the broker is alive; the broker answers with a PONG with the same topic and body.
+     */
+    PING,
+    PONG,
+    /**
+     * Sent by a subscriber to get the journaled messages of a topic filter from an offset, or from a time given as
+     * {@code @<epoch millis>}.
+     */
+    REPLAY,
+    /**
+     * Sent by a client to get the alias of a topic, and by the broker with the alias in the body.
+     */
+    ALIAS,
+    /**
+     * A PUB whose topic is an alias, see {@link TopicAliases}.
+     */
+    APUB,
+    /**
+     * A MSG whose topic is an alias, see {@link TopicAliases}.
+     */
+    AMSG;
+
+    private static final Verb[] VALUES = values();
+
+    final byte[] token = name().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Match the bytes {@code [from, to)} of {@code buf} against the known verbs, without decoding them.
+     *
+     * @return the matching verb or {@code null}
+     */
+    static Verb match(java.nio.ByteBuffer buf, int from, int to) {
+        for (Verb verb : VALUES) {
+            byte[] t = verb.token;
+            if (t.length != to - from) {
+                continue;
+            }
+            int i = 0;
+            while (i < t.length && buf.get(from + i) == t[i]) {
+                i++;
+            }
+            if (i == t.length) {
+                return verb;
+            }
+        }
+        return null;
+    }
+}
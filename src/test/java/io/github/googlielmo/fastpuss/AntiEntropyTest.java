@@ -0,0 +1,151 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AntiEntropyTest {
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    public void tearDown() {
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void digest_isIndependentOfOrder() {
+        ThreadSafeSubscriberManager a = new ThreadSafeSubscriberManager();
+        ThreadSafeSubscriberManager b = new ThreadSafeSubscriberManager();
+        a.addSubscription("topic1", "client1");
+        a.addSubscription("topic2", "client2");
+        a.addSubscription("topic3", "client3");
+        a.removeSubscription("topic3", "client3");
+        b.addSubscription("topic2", "client2");
+        b.addSubscription("topic1", "client1");
+
+        assertEquals(a.digest().node(0, 0), b.digest().node(0, 0));
+        b.addSubscription("topic1", "client2");
+        assertNotEquals(a.digest().node(0, 0), b.digest().node(0, 0));
+    }
+
+    @Test
+    public void resync_replace_convergesOnPeerState() throws Exception {
+        ThreadSafeSubscriberManager peer = populated();
+        ThreadSafeSubscriberManager local = populated();
+        peer.addSubscription("missing/here", "client1");
+        local.addSubscription("topic7", "zombie");
+
+        int ranges = resync(peer, local, AntiEntropy.Mode.REPLACE);
+
+        assertEquals(2, ranges);
+        assertEquals(peer.digest().node(0, 0), local.digest().node(0, 0));
+        assertEquals(List.of("client1"), List.copyOf(local.getMatchingSubscribers("missing/here")));
+        assertFalse(local.getMatchingSubscribers("topic7").contains("zombie"));
+        assertEquals(peer.topicCount(), local.topicCount());
+    }
+
+    @Test
+    public void resync_merge_onlyAddsMissingSubscriptions() throws Exception {
+        ThreadSafeSubscriberManager peer = populated();
+        ThreadSafeSubscriberManager local = populated();
+        peer.addSubscription("missing/here", "client1");
+        local.addSubscription("topic7", "zombie");
+
+        resync(peer, local, AntiEntropy.Mode.MERGE);
+
+        assertEquals(List.of("client1"), List.copyOf(local.getMatchingSubscribers("missing/here")));
+        assertTrue(local.getMatchingSubscribers("topic7").contains("zombie"));
+        assertEquals(0, resync(peer, peer, AntiEntropy.Mode.MERGE));
+    }
+
+    @Test
+    public void resync_merge_repairsLostRemovals() throws Exception {
+        for (boolean fromRemover : new boolean[]{true, false}) {
+            ThreadSafeSubscriberManager remover = populated();
+            ThreadSafeSubscriberManager other = populated();
+            Tombstones removerTombstones = new Tombstones(60_000);
+            Tombstones otherTombstones = new Tombstones(60_000);
+            // UNSUB on one node, its REMOVE never reaches the other
+            assertTrue(remover.removeSubscription("topic7", "client7"));
+            removerTombstones.removed("topic7", "client7", System.currentTimeMillis());
+
+            if (fromRemover) {
+                resync(other, otherTombstones, remover, removerTombstones, AntiEntropy.Mode.MERGE);
+            } else {
+                resync(remover, removerTombstones, other, otherTombstones, AntiEntropy.Mode.MERGE);
+            }
+
+            assertTrue(remover.getMatchingSubscribers("topic7").isEmpty());
+            assertTrue(other.getMatchingSubscribers("topic7").isEmpty());
+            assertEquals(remover.digest().node(0, 0), other.digest().node(0, 0));
+            assertEquals(1, otherTombstones.size()); // passed on to the next nodes it compares with
+        }
+    }
+
+    @Test
+    public void resync_merge_keepsSubscriptionsAddedAfterTheRemoval() throws Exception {
+        ThreadSafeSubscriberManager remover = populated();
+        ThreadSafeSubscriberManager other = populated();
+        Tombstones removerTombstones = new Tombstones(60_000);
+        Tombstones otherTombstones = new Tombstones(60_000);
+        long now = System.currentTimeMillis();
+        remover.removeSubscription("topic7", "client7");
+        removerTombstones.removed("topic7", "client7", now - 1000);
+        // subscribed again, on this node: the old removal must not undo it
+        remover.addSubscription("topic7", "client7");
+        removerTombstones.added("topic7", "client7", now);
+        // the other node got the REMOVE but not the later ADD
+        other.removeSubscription("topic7", "client7");
+        otherTombstones.removed("topic7", "client7", now - 1000);
+
+        resync(other, otherTombstones, remover, removerTombstones, AntiEntropy.Mode.MERGE);
+        resync(remover, removerTombstones, other, otherTombstones, AntiEntropy.Mode.MERGE);
+
+        assertEquals(List.of("client7"), List.copyOf(remover.getMatchingSubscribers("topic7")));
+        assertEquals(List.of("client7"), List.copyOf(other.getMatchingSubscribers("topic7")));
+    }
+
+    private static ThreadSafeSubscriberManager populated() {
+        ThreadSafeSubscriberManager manager = new ThreadSafeSubscriberManager();
+        for (int t = 0; t < 1_000; t++) {
+            manager.addSubscription("topic" + t, "client" + (t % 10));
+        }
+        return manager;
+    }
+
+    private int resync(ThreadSafeSubscriberManager peer, ThreadSafeSubscriberManager local, AntiEntropy.Mode mode)
+            throws Exception {
+        return resync(peer, new Tombstones(60_000), local, new Tombstones(60_000), mode);
+    }
+
+    private int resync(ThreadSafeSubscriberManager peer, Tombstones peerTombstones, ThreadSafeSubscriberManager local,
+                       Tombstones localTombstones, AntiEntropy.Mode mode) throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Future<?> served = workers.submit(() -> {
+                try (Socket socket = server.accept()) {
+                    InputStream in = socket.getInputStream();
+                    in.readNBytes((AntiEntropy.COMMAND + "\n").length());
+                    AntiEntropy.serve(in, socket.getOutputStream(), peer, peerTombstones, true);
+                }
+                return null;
+            });
+            int ranges = AntiEntropy.resync(new SocketTransport(), (InetSocketAddress) server.getLocalSocketAddress(),
+                    local, localTombstones, mode, null, false, workers, 2);
+            served.get();
+            return ranges;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BrokerMetricsTest {
+
+    @Test
+    public void stripedHistogram_countsConcurrentRecords() throws InterruptedException {
+        StripedHistogram h = new StripedHistogram();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            pool.execute(() -> {
+                for (int i = 1; i <= 100_000; i++) {
+                    h.record(i);
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        LatencyHistogram snapshot = h.snapshot();
+        assertEquals(400_000, snapshot.count());
+        assertEquals(100_000, snapshot.max());
+        assertEquals(50_000, snapshot.percentile(50), 50_000 * 0.04);
+        assertEquals(50_000.5, snapshot.mean(), 0.01);
+    }
+
+    @Test
+    public void traceRing_keepsMostRecentEvents() {
+        TraceRing ring = new TraceRing(4, 1);
+        assertTrue(ring.sample());
+        for (int i = 0; i < 10; i++) {
+            ring.add("event" + i);
+        }
+        assertEquals(List.of("event9", "event8", "event7", "event6"), ring.recent());
+        assertFalse(new TraceRing(4, 0).sample());
+    }
+
+    @Test
+    public void register_exposesMBean() throws Exception {
+        BrokerMetrics metrics = new BrokerMetrics(0);
+        metrics.packetsIn.add(3);
+        metrics.register(65001);
+        ObjectName name = new ObjectName(BrokerMetrics.DOMAIN + ":type=Broker,port=65001");
+        try {
+            assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "PacketsIn"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+}
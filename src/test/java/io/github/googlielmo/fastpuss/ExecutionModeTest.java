@@ -0,0 +1,43 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExecutionModeTest {
+
+    @Test
+    public void bothModes_runTasksOnDaemonThreads() throws InterruptedException {
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            ExecutorService executor = mode.newExecutor("test-" + mode + "-");
+            CountDownLatch done = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                executor.execute(() -> {
+                    assertTrue(Thread.currentThread().isDaemon());
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS), mode.toString());
+            executor.shutdown();
+
+            Thread t = mode.newThread("test-thread", () -> {
+            });
+            assertEquals("test-thread", t.getName());
+            assertTrue(t.isDaemon());
+        }
+    }
+
+    @Test
+    public void virtual_usesVirtualThreadsWhenSupported() {
+        Thread t = ExecutionMode.VIRTUAL.newThread("v", () -> {
+        });
+        // Thread.isVirtual() is not in the Java 11 API
+        boolean virtual = t.getClass().getName().contains("Virtual");
+        assertEquals(ExecutionMode.virtualThreadsSupported(), virtual);
+        assertEquals(Runtime.version().feature() >= 21, ExecutionMode.virtualThreadsSupported());
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.github.googlielmo.fastpuss.TestBroker.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class FastpussClientTest {
+
+    @Test
+    public void client_batchesPublicationsAndDispatchesToListeners() throws Exception {
+        ThreadSafeSubscriberManager subscriptions = new ThreadSafeSubscriberManager();
+        try (TestBroker broker = TestBroker.start(TestBroker.networkPort(6000), subscriptions, TestBroker.config());
+             FastpussClient subscriber = new FastpussClient(new FastpussClient.Config(List.of(broker.address)));
+             FastpussClient publisher = new FastpussClient(new FastpussClient.Config(List.of(broker.address))
+                     .batch(5000, 1472))) {
+            subscriber.start();
+            publisher.start();
+            AtomicInteger first = new AtomicInteger();
+            AtomicInteger second = new AtomicInteger();
+            AtomicInteger wildcard = new AtomicInteger();
+            StringBuilder bodies = new StringBuilder();
+            FastpussClient.Subscription s1 = subscriber.subscribe("a/b", (topic, body) -> {
+                first.incrementAndGet();
+                bodies.append(StandardCharsets.UTF_8.decode(body)).append(' ');
+            });
+            FastpussClient.Subscription s2 = subscriber.subscribe("a/b", (topic, body) -> second.incrementAndGet());
+            subscriber.subscribe("x/#", (topic, body) -> {
+                assertEquals("x/y", topic);
+                assertTrue(body.isReadOnly());
+                wildcard.incrementAndGet();
+            });
+            await(() -> subscriptions.getMatchingSubscribers("x/y").size() == 1);
+
+            long packetsBefore = broker.metrics().getPacketsIn();
+            for (int i = 0; i < 50; i++) {
+                assertTrue(publisher.publish("a/b", ("m" + i).getBytes()));
+            }
+            for (int i = 0; i < 5; i++) {
+                publisher.publish("x/y", ByteBuffer.wrap("xy".getBytes()));
+            }
+            await(() -> first.get() == 50 && second.get() == 50 && wildcard.get() == 5);
+            assertTrue(bodies.toString().startsWith("m0 m1 m2 "), bodies.toString());
+            assertEquals(55, subscriber.messagesReceived());
+            assertTrue(broker.metrics().getPacketsIn() - packetsBefore < 10, "publications not batched");
+
+            s1.close();
+            Thread.sleep(100);
+            assertEquals(1, subscriptions.getMatchingSubscribers("a/b").size()); // still one listener
+            s2.close();
+            await(() -> subscriptions.getMatchingSubscribers("a/b").isEmpty());
+        }
+    }
+
+    @Test
+    public void client_failsOverToTheNextBroker() throws Exception {
+        ThreadSafeSubscriberManager subscriptions = new ThreadSafeSubscriberManager();
+        int deadPort;
+        try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            deadPort = probe.getLocalPort(); // nothing listens there once closed
+        }
+        try (TestBroker live = TestBroker.start(TestBroker.networkPort(6001), subscriptions, TestBroker.config());
+             FastpussClient client = new FastpussClient(new FastpussClient.Config(List.of(
+                     new InetSocketAddress(InetAddress.getLoopbackAddress(), deadPort), live.address))
+                     .failover(50, 150))) {
+            client.start();
+            AtomicInteger received = new AtomicInteger();
+            client.subscribe("f/t", (topic, body) -> received.incrementAndGet());
+            await(() -> subscriptions.getMatchingSubscribers("f/t").size() == 1);
+            assertEquals(live.address, client.broker());
+            client.publish("f/t", "hello".getBytes());
+            await(() -> received.get() == 1);
+        }
+    }
+
+    @Test
+    public void client_joinsAndLeavesMulticastGroups() throws Exception {
+        int port = TestBroker.networkPort(6002);
+        int groupPort = port + 1;
+        NetworkInterface lo = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        assumeTrue(lo != null && MulticastFanOutTest.multicastWorks(lo, groupPort), "no multicast on loopback");
+        ThreadSafeSubscriberManager subscriptions = new ThreadSafeSubscriberManager();
+        List<FastpussClient> clients = new ArrayList<>();
+        try (TestBroker broker = TestBroker.start(port, subscriptions, TestBroker.config()
+                .multicast(4, "239.255.77.3", 1, groupPort, lo.getName()));
+             FastpussClient publisher = new FastpussClient(new FastpussClient.Config(List.of(broker.address)))) {
+            List<InetSocketAddress> brokers = List.of(broker.address);
+            publisher.start();
+            List<AtomicInteger> received = new ArrayList<>();
+            List<FastpussClient.Subscription> hot = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                FastpussClient client = new FastpussClient(new FastpussClient.Config(brokers));
+                clients.add(client);
+                client.start();
+                AtomicInteger count = new AtomicInteger();
+                received.add(count);
+                hot.add(client.subscribe("hot", (topic, body) -> count.incrementAndGet()));
+            }
+            await(() -> subscriptions.getMatchingSubscribers("hot").size() == 4);
+
+            // every message reaches every subscriber, through unicast then through the group
+            int sent = 0;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (broker.metrics().getMulticastSends() < 5) {
+                assertTrue(System.currentTimeMillis() < deadline, "not multicast");
+                publisher.publish("hot", ("m" + sent++).getBytes());
+                Thread.sleep(20);
+            }
+            int total = sent;
+            await(() -> received.stream().allMatch(count -> count.get() == total));
+
+            // below half the threshold: the last subscriber leaves the group and gets unicast again
+            for (int i = 1; i < 4; i++) {
+                hot.get(i).close();
+            }
+            await(() -> subscriptions.getMatchingSubscribers("hot").size() == 1);
+            long multicastSends = broker.metrics().getMulticastSends();
+            for (int i = 0; i < 10; i++) {
+                publisher.publish("hot", ("u" + i).getBytes());
+            }
+            await(() -> received.get(0).get() == total + 10);
+            assertEquals(multicastSends, broker.metrics().getMulticastSends());
+        } finally {
+            clients.forEach(FastpussClient::close);
+        }
+    }
+}
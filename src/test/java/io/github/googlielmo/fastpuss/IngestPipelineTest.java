@@ -0,0 +1,121 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IngestPipelineTest {
+
+    @Test
+    public void boundedQueue_deliversEveryElementOnceAcrossThreads() throws InterruptedException {
+        BoundedQueue<Integer> queue = new BoundedQueue<>(100);
+        assertEquals(128, queue.capacity());
+        int producers = 4, perProducer = 10_000;
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+        AtomicLong consumed = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(producers * 2);
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            pool.execute(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!queue.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            pool.execute(() -> {
+                while (consumed.get() < (long) producers * perProducer) {
+                    Integer e = queue.poll();
+                    if (e != null) {
+                        assertTrue(seen.add(e));
+                        consumed.incrementAndGet();
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(producers * perProducer, seen.size());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void overloadPolicies_dropAndCount() {
+        Frame pub = new Frame(Verb.PUB, "t", new byte[0]);
+        Frame sub = new Frame(Verb.SUB, "t", new byte[0]);
+
+        BrokerMetrics metrics = new BrokerMetrics(0);
+        IngestPipeline newest = new IngestPipeline(1, 4, OverloadPolicy.DROP_NEWEST, (f, c, r) -> {
+        }, metrics);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(newest.submit(pub, i, 0));
+        }
+        assertFalse(newest.submit(pub, 4, 0));
+        assertEquals(1, metrics.getOverloadDrops());
+
+        metrics = new BrokerMetrics(0);
+        IngestPipeline oldest = new IngestPipeline(1, 4, OverloadPolicy.DROP_OLDEST, (f, c, r) -> {
+        }, metrics);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(oldest.submit(pub, i, 0));
+        }
+        assertEquals(4, oldest.depth());
+        assertEquals(2, metrics.getOverloadDrops());
+
+        metrics = new BrokerMetrics(0);
+        IngestPipeline prefer = new IngestPipeline(1, 8, OverloadPolicy.PREFER_SUBSCRIPTIONS, (f, c, r) -> {
+        }, metrics);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(prefer.submit(pub, i, 0));
+        }
+        assertFalse(prefer.submit(pub, 6, 0)); // above the watermark, publications are shed
+        assertTrue(prefer.submit(sub, 6, 0));
+        assertTrue(prefer.submit(sub, 7, 0));
+        assertFalse(prefer.submit(sub, 8, 0));
+        assertEquals(2, metrics.getOverloadDrops());
+    }
+
+    @Test
+    public void workers_handleSubmittedFrames() throws InterruptedException {
+        CountDownLatch handled = new CountDownLatch(1000);
+        IngestPipeline pipeline = new IngestPipeline(2, 64, OverloadPolicy.DROP_NEWEST, (f, c, r) -> handled.countDown(),
+                new BrokerMetrics(0));
+        ExecutorService pool = Executors.newCachedThreadPool();
+        pipeline.start(pool);
+        Frame pub = new Frame(Verb.PUB, "t", new byte[0]);
+        for (int i = 0; i < 1000; i++) {
+            while (!pipeline.submit(pub, 0, 0)) {
+                Thread.sleep(1);
+            }
+        }
+        try {
+            assertTrue(handled.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void rateLimiter_allowsBurstThenSustainedRate() {
+        RateLimiter limiter = new RateLimiter(1000, 10); // one message per ms
+        long now = 1_000_000_000L;
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire(2000, now));
+        }
+        assertFalse(limiter.tryAcquire(2000, now));
+        assertTrue(limiter.tryAcquire(1, now)); // other clients are not affected
+        assertTrue(limiter.tryAcquire(2000, now + 1_000_000));
+        assertFalse(limiter.tryAcquire(2000, now + 1_000_000));
+        assertTrue(limiter.tryAcquire(2000, now + 1_000_000_000L));
+    }
+}
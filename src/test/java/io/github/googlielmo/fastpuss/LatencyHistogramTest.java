@@ -0,0 +1,50 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentiles_withinPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 1_000_000; v++) {
+            h.record(v * 1000); // 1 us to 1 s
+        }
+        double precision = 1.0 / LatencyHistogram.SUB_BUCKETS;
+        assertEquals(500_000_000, h.percentile(50), 500_000_000 * precision);
+        assertEquals(990_000_000, h.percentile(99), 990_000_000 * precision);
+        assertEquals(999_990_000, h.percentile(99.999), 999_990_000 * precision);
+        assertEquals(1_000_000_000, h.percentile(100));
+        assertEquals(1_000_000_000, h.max());
+        assertEquals(500_000_500, h.mean(), 1);
+    }
+
+    @Test
+    public void smallValues_areExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 0; v < 2 * LatencyHistogram.SUB_BUCKETS; v++) {
+            assertEquals(v, LatencyHistogram.highestEquivalent(LatencyHistogram.index(v)));
+        }
+        h.record(3);
+        h.record(7);
+        assertEquals(3, h.percentile(50));
+        assertEquals(7, h.percentile(51));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestEquivalent(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void add_mergesCounts() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            a.record(1000);
+        }
+        b.record(1_000_000);
+        a.add(b);
+        assertEquals(100, a.count());
+        assertEquals(1000, a.percentile(99), 1000.0 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(1_000_000, a.percentile(100));
+    }
+}
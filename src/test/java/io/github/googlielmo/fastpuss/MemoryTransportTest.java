@@ -0,0 +1,246 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.ObjectName;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.googlielmo.fastpuss.TestBroker.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MemoryTransportTest {
+
+    @Test
+    public void conditions_areReproducible() throws Exception {
+        // the same datagrams are lost; the order they arrive in also depends on when they were sent
+        List<Integer> first = simulate(42);
+        assertEquals(first, simulate(42));
+        assertNotEquals(first, simulate(43));
+    }
+
+    private static List<Integer> simulate(long seed) throws Exception {
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        MemoryTransport transport = new MemoryTransport(seed).loss(0.1).latency(ms, ms).reorder(0.1, 5 * ms);
+        List<Integer> received = new ArrayList<>();
+        try (DatagramEndpoint receiver = transport.bind(null, 0, false);
+             DatagramEndpoint sender = transport.bind(null, 0, false)) {
+            for (int i = 0; i < 1000; i++) {
+                sender.send(ByteBuffer.allocate(4).putInt(0, i), receiver.localAddress());
+            }
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            while (receiver.receive(buf.clear(), 100) != null) {
+                received.add(buf.getInt(0));
+            }
+        }
+        assertEquals(1000, transport.sent());
+        assertEquals(transport.sent(), transport.lost() + transport.delivered());
+        assertTrue(transport.lost() > 50 && transport.lost() < 150, "lost " + transport.lost());
+        List<Integer> sorted = new ArrayList<>(received);
+        sorted.sort(null);
+        assertNotEquals(sorted, received, "not reordered");
+        return sorted;
+    }
+
+    @Test
+    public void endpoints_behaveLikeUdp() throws Exception {
+        MemoryTransport transport = new MemoryTransport(0);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramEndpoint any = transport.bind(new InetSocketAddress(20000), 100, false);
+             DatagramEndpoint sender = transport.bind(null, 0, false)) {
+            assertThrows(BindException.class, () -> transport.bind(new InetSocketAddress(20000), 0, false));
+            ByteBuffer buf = ByteBuffer.allocate(100);
+
+            // the wildcard address gets what is sent to any host at its port, up to its receive buffer
+            for (int i = 0; i < 3; i++) {
+                sender.send(ByteBuffer.wrap(new byte[60]), new InetSocketAddress("10.1.2.3", 20000));
+            }
+            assertEquals(sender.localAddress(), any.receive(buf));
+            assertEquals(60, buf.position());
+            assertNull(any.receive(buf.clear(), 10));
+            assertEquals(2, transport.overflowed());
+
+            // truncated to the buffer, like UDP
+            DatagramEndpoint exact = transport.bind(new InetSocketAddress(loopback, 20001), 0, false);
+            try (exact) {
+                sender.send(ByteBuffer.wrap("hello".getBytes(StandardCharsets.US_ASCII)), exact.localAddress());
+                assertEquals(sender.localAddress(), exact.receive(buf.clear().limit(4)));
+                assertEquals("hell", new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII));
+            }
+            assertThrows(ClosedChannelException.class, () -> exact.receive(ByteBuffer.allocate(1)));
+            sender.send(ByteBuffer.wrap(new byte[1]), new InetSocketAddress(loopback, 20001));
+            assertEquals(1, transport.unreachable(), "unbound on close");
+
+            sender.send(ByteBuffer.wrap(new byte[1]), new InetSocketAddress(loopback, 20002));
+            assertEquals(2, transport.unreachable());
+
+            // a shared port spreads the senders over its endpoints, each sender always going to the same one
+            try (DatagramEndpoint a = transport.bind(new InetSocketAddress(20003), 0, true);
+                 DatagramEndpoint b = transport.bind(new InetSocketAddress(20003), 0, true)) {
+                int toA = 0;
+                for (int i = 0; i < 20; i++) {
+                    try (DatagramEndpoint s = transport.bind(null, 0, false)) {
+                        s.send(ByteBuffer.wrap(new byte[1]), new InetSocketAddress(loopback, 20003));
+                        s.send(ByteBuffer.wrap(new byte[1]), new InetSocketAddress(loopback, 20003));
+                        if (a.receive(buf.clear(), 0) != null) {
+                            assertNotNull(a.receive(buf.clear(), 0));
+                            toA++;
+                        } else {
+                            assertNotNull(b.receive(buf.clear(), 0));
+                            assertNotNull(b.receive(buf.clear(), 0));
+                        }
+                    }
+                }
+                assertTrue(toA > 0 && toA < 20, "to a: " + toA);
+            }
+        }
+    }
+
+    @Test
+    public void streams_connectToListeners() throws Exception {
+        MemoryTransport transport = new MemoryTransport(0);
+        try (Transport.StreamListener listener = transport.listen(new InetSocketAddress(25000))) {
+            Transport.Stream client = transport.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), 25000));
+            Transport.Stream server = listener.accept();
+            byte[] big = new byte[200_000]; // more than a pipe holds
+            for (int i = 0; i < big.length; i++) {
+                big[i] = (byte) i;
+            }
+            Thread writer = new Thread(() -> {
+                try (OutputStream out = client.out()) {
+                    out.write(big);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            writer.start();
+            try (InputStream in = server.in()) {
+                assertArrayEquals(big, in.readAllBytes()); // up to the EOF of the closed stream
+            }
+            writer.join();
+            server.out().write(1);
+            assertEquals(1, client.in().read());
+            client.close();
+            server.close();
+        }
+        assertThrows(java.net.ConnectException.class, () -> transport.connect(new InetSocketAddress(25000)));
+    }
+
+    @Test
+    public void cluster_runsInMemory() throws Exception {
+        MemoryTransport transport = new MemoryTransport(7);
+        int[] ports = {30000, 30001};
+        List<InetSocketAddress> nodes = List.of(new InetSocketAddress(InetAddress.getLoopbackAddress(), 35000),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 35001));
+        ThreadSafeSubscriberManager[] subscriptions = new ThreadSafeSubscriberManager[2];
+        DistributedBroker[] nodeBrokers = new DistributedBroker[2];
+        for (int node = 0; node < 2; node++) {
+            subscriptions[node] = new ThreadSafeSubscriberManager();
+            BrokerConfig config = TestBroker.config().ingest(1, 1 << 16, OverloadPolicy.DROP_NEWEST)
+                    .receiveBufferSize(16 * 1024 * 1024).transport(transport);
+            nodeBrokers[node] = new DistributedBroker(ports[node], ExecutionMode.PLATFORM, subscriptions[node],
+                    config, new DistributedBroker.ClusterConfig(35000 + node, nodes).antiEntropy(0));
+        }
+        try (TestBroker node0 = TestBroker.start(nodeBrokers[0], ports[0]);
+             TestBroker node1 = TestBroker.start(nodeBrokers[1], ports[1])) {
+            InetSocketAddress[] brokers = {node0.address, node1.address};
+            DatagramEndpoint[] clients = new DatagramEndpoint[2000];
+            for (int c = 0; c < clients.length; c++) {
+                clients[c] = transport.bind(null, 0, false);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(1024);
+
+            // half of the clients subscribe through each node, the subscriptions are replicated to the other
+            for (int c = 0; c < clients.length; c++) {
+                clients[c].send(MessageCodec.encode(Verb.SUB, "t/" + c % 10, new byte[0]), brokers[c % 2]);
+            }
+            for (ThreadSafeSubscriberManager s : subscriptions) {
+                await(() -> {
+                    for (int topic = 0; topic < 10; topic++) {
+                        if (s.getMatchingSubscribers("t/" + topic).size() != clients.length / 10) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+            }
+
+            try (DatagramEndpoint publisher = transport.bind(null, 0, false)) {
+                for (int topic = 0; topic < 10; topic++) {
+                    publisher.send(MessageCodec.encode(Verb.PUB, "t/" + topic, ("m" + topic).getBytes()),
+                            brokers[topic % 2]);
+                }
+            }
+            for (int c = 0; c < clients.length; c++) {
+                assertNotNull(clients[c].receive(buf.clear(), 5000), "nothing for client " + c);
+                Frame msg = MessageCodec.decode(buf.flip());
+                assertNotNull(msg);
+                assertEquals(Verb.MSG, msg.verb);
+                assertEquals("t/" + c % 10, msg.topic);
+                assertEquals("m" + c % 10, new String(msg.body));
+                clients[c].close();
+            }
+            assertEquals(0, transport.lost() + transport.overflowed());
+        }
+    }
+
+    @Test
+    public void loadGenerator_runsInMemory() throws Exception {
+        MemoryTransport transport = new MemoryTransport(0);
+        BrokerConfig config = TestBroker.config().ingest(1, 1 << 16, OverloadPolicy.DROP_NEWEST).transport(transport);
+        try (TestBroker broker = TestBroker.start(31001, new ThreadSafeSubscriberManager(), config)) {
+            LoadGenerator.Report report = new LoadGenerator(new LoadGenerator.Config().broker(broker.address)
+                    .transport(transport).rate(2000).duration(0, 1).topics(20, 0).clients(100, 3).threads(1, 2))
+                    .run();
+            assertTrue(report.published > 1000, "published " + report.published);
+            assertEquals(report.expected, report.delivered);
+            assertEquals(0, transport.lost() + transport.overflowed());
+        }
+    }
+
+    @Test
+    public void broker_closesWhatItOpened(@TempDir Path dir) throws Exception {
+        MemoryTransport transport = new MemoryTransport(0);
+        int port = 31000;
+        BrokerConfig config = TestBroker.config().coalesce(1000, 1400).persist(dir.resolve("store"), 1 << 20)
+                .journal(dir.resolve("journal"), 1 << 20, 1 << 22, 0).leases(60_000).transport(transport);
+        ObjectName mbean = new ObjectName(BrokerMetrics.DOMAIN + ":type=Broker,port=" + port);
+
+        TestBroker broker = TestBroker.start(port, new ThreadSafeSubscriberManager(), config);
+        try (DatagramEndpoint client = transport.bind(null, 0, false)) {
+            ByteBuffer buf = ByteBuffer.allocate(1024);
+            client.send(MessageCodec.encode(Verb.SUB, "t", new byte[0]), broker.address);
+            client.send(MessageCodec.encode(Verb.PUB, "t", "m1".getBytes()), broker.address);
+            assertNotNull(client.receive(buf.clear(), 5000));
+            Frame msg = MessageCodec.decode(buf.flip());
+            assertNotNull(msg);
+            assertEquals("m1", new String(msg.body, StandardCharsets.UTF_8));
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(mbean));
+
+            broker.close(); // stops the thread
+            assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(mbean));
+            transport.bind(new InetSocketAddress(port), 0, false).close(); // the port is free again
+        } finally {
+            broker.close(); // a no-op once closed
+        }
+
+        // the subscription store was closed with everything written
+        ThreadSafeSubscriberManager restored = new ThreadSafeSubscriberManager();
+        try (SubscriptionStore store = new SubscriptionStore(dir.resolve("store"), 1 << 20)) {
+            store.recover(restored, 1);
+        }
+        assertEquals(1, restored.getMatchingSubscribers("t").size());
+    }
+}
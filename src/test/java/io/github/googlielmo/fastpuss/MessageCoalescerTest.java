@@ -0,0 +1,79 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageCoalescerTest {
+
+    @Test
+    public void coalesce_packsMessagesToTheSameSubscriberWithinLinger() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramChannel sender = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+             DatagramChannel subscriber = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0))) {
+            subscriber.socket().setSoTimeout(5000);
+            BrokerMetrics metrics = new BrokerMetrics(0);
+            MessageCoalescer coalescer = new MessageCoalescer(20_000_000, 100, metrics);
+            DatagramEndpoint endpoint = SocketTransport.endpoint(sender);
+            coalescer.setChannel(endpoint);
+            InetSocketAddress address = (InetSocketAddress) subscriber.getLocalAddress();
+
+            ByteBuffer msg = MessageCodec.encode(Verb.MSG, "t", "0123456789".getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < 6; i++) {
+                coalescer.add(0, address, msg, endpoint); // 16 + 3 bytes each: the sixth doesn't fit
+            }
+
+            List<Frame> first = MessageCodec.decodeBatch(receive(subscriber));
+            assertNotNull(first);
+            assertEquals(5, first.size());
+            assertEquals("0123456789", new String(first.get(4).body, StandardCharsets.UTF_8));
+            ByteBuffer second = receive(subscriber); // flushed after the linger, alone, so not a batch
+            assertFalse(MessageCodec.isBatch(second));
+            assertEquals("MSG t\n0123456789", MessageCodec.toString(second));
+            for (int i = 0; i < 100 && metrics.getPacketsOut() < 2; i++) {
+                Thread.sleep(10); // counted by the flusher right after sending
+            }
+            assertEquals(2, metrics.getPacketsOut());
+            coalescer.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdown_sendsThePendingBatches() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramChannel sender = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+             DatagramChannel subscriber = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0))) {
+            subscriber.socket().setSoTimeout(5000);
+            BrokerMetrics metrics = new BrokerMetrics(0);
+            new MessageCoalescer(1_000_000, 100, metrics).shutdown(); // never started
+            MessageCoalescer coalescer = new MessageCoalescer(60_000_000_000L, 100, metrics);
+            DatagramEndpoint endpoint = SocketTransport.endpoint(sender);
+            coalescer.setChannel(endpoint);
+            InetSocketAddress address = (InetSocketAddress) subscriber.getLocalAddress();
+            coalescer.add(0, address, MessageCodec.encode(Verb.MSG, "t", "m".getBytes(StandardCharsets.UTF_8)),
+                    endpoint);
+
+            coalescer.shutdown(); // well before the linger
+            assertEquals("MSG t\nm", MessageCodec.toString(receive(subscriber)));
+            assertEquals(1, metrics.getPacketsOut());
+            assertTrue(sender.isOpen());
+        }
+    }
+
+    private static ByteBuffer receive(DatagramChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        // blocking channels ignore SO_TIMEOUT, go through the socket adapter
+        DatagramPacket packet = new DatagramPacket(buf.array(), buf.capacity());
+        channel.socket().receive(packet);
+        return ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+    }
+}
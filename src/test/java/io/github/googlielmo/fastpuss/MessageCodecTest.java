@@ -0,0 +1,116 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageCodecTest {
+
+    @Test
+    public void decode_parsesVerbTopicAndBody() {
+        Frame frame = MessageCodec.decode(bytes("PUB topic1\n41.8874314503 12.4886930452"));
+        assertNotNull(frame);
+        assertEquals(Verb.PUB, frame.verb);
+        assertEquals("topic1", frame.topic);
+        assertEquals("41.8874314503 12.4886930452", new String(frame.body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void decode_acceptsEmptyBody() {
+        Frame frame = MessageCodec.decode(bytes("SUB topic1\n"));
+        assertNotNull(frame);
+        assertEquals(Verb.SUB, frame.verb);
+        assertEquals(0, frame.body.length);
+    }
+
+    @Test
+    public void decode_worksOnDirectBuffersAndKeepsPosition() {
+        byte[] msg = "MSG fastpuss/città \t\n body".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(msg.length).put(msg).flip();
+        Frame frame = MessageCodec.decode(direct);
+        assertNotNull(frame);
+        assertEquals("fastpuss/città", frame.topic);
+        assertEquals("body", new String(frame.body, StandardCharsets.UTF_8));
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void decode_rejectsMalformedAndUnknown() {
+        assertNull(MessageCodec.decode(bytes("SUB topic1")));
+        assertNull(MessageCodec.decode(bytes("SUB")));
+        assertNull(MessageCodec.decode(bytes("")));
+        assertNull(MessageCodec.decode(bytes("XYZ topic1\nbody")));
+    }
+
+    @Test
+    public void encode_roundTrips() {
+        ByteBuffer out = MessageCodec.encode(Verb.MSG, "topic1", "hello world".getBytes(StandardCharsets.UTF_8));
+        assertEquals("MSG topic1\nhello world", MessageCodec.toString(out));
+        Frame frame = MessageCodec.decode(out);
+        assertNotNull(frame);
+        assertEquals("topic1", frame.topic);
+        assertEquals("hello world", new String(frame.body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void batch_roundTripsAndFallsBackToPlainForOneMessage() {
+        BatchEncoder batch = new BatchEncoder(BatchEncoder.ETHERNET_DATAGRAM_SIZE);
+        assertTrue(batch.add(Verb.PUB, "topic1", "41.88 12.48".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("PUB topic1\n41.88 12.48", MessageCodec.toString(batch.datagram()));
+        assertFalse(MessageCodec.isBatch(batch.datagram()));
+
+        assertTrue(batch.add(Verb.PUB, "topic2", "line1\nline2 ".getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer datagram = batch.datagram();
+        assertEquals("BAT\n22\nPUB topic1\n41.88 12.4823\nPUB topic2\nline1\nline2 ",
+                MessageCodec.toString(datagram));
+        assertTrue(MessageCodec.isBatch(datagram));
+        List<Frame> frames = MessageCodec.decodeBatch(datagram);
+        assertNotNull(frames);
+        assertEquals(2, frames.size());
+        assertEquals("topic2", frames.get(1).topic);
+        assertEquals("line1\nline2 ", new String(frames.get(1).body, StandardCharsets.UTF_8));
+
+        batch.clear();
+        assertEquals(0, batch.count());
+        BatchEncoder small = new BatchEncoder(40);
+        assertTrue(small.add(Verb.PUB, "t", new byte[20]));
+        assertFalse(small.add(Verb.PUB, "t", new byte[20]));
+        assertEquals(1, small.count());
+    }
+
+    @Test
+    public void decodeBatch_rejectsMalformed() {
+        assertNull(MessageCodec.decodeBatch(bytes("BAT\n99\nPUB t\nbody")));
+        assertNull(MessageCodec.decodeBatch(bytes("BAT\nx\nPUB t\nbody")));
+        assertNull(MessageCodec.decodeBatch(bytes("BAT\n3\nPUB")));
+        assertNull(MessageCodec.decodeBatch(bytes("BAT\n10")));
+        assertEquals(List.of(), MessageCodec.decodeBatch(bytes("BAT\n")));
+        assertFalse(MessageCodec.isBatch(bytes("BAT topic\n")));
+    }
+
+    @Test
+    public void sequenced_roundTripsAndRangesParse() {
+        ByteBuffer out = MessageCodec.encodeSequenced("topic1", 42, "a b".getBytes(StandardCharsets.UTF_8));
+        assertEquals("SEQ topic1\n42 a b", MessageCodec.toString(out));
+        Frame frame = MessageCodec.decode(out);
+        assertNotNull(frame);
+        assertEquals(Verb.SEQ, frame.verb);
+        assertEquals(42, frame.seq);
+        assertEquals("a b", new String(frame.body, StandardCharsets.UTF_8));
+        assertNull(MessageCodec.decode(bytes("SEQ topic1\nx body")));
+        assertNull(MessageCodec.decode(bytes("SEQ topic1\n42")));
+
+        assertArrayEquals(new long[]{3, 3, 5, 9}, MessageCodec.decodeRanges("3 5-9".getBytes(StandardCharsets.US_ASCII)));
+        assertNull(MessageCodec.decodeRanges("5-3".getBytes(StandardCharsets.US_ASCII)));
+        assertNull(MessageCodec.decodeRanges("5-".getBytes(StandardCharsets.US_ASCII)));
+        assertNull(MessageCodec.decodeRanges("5x".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
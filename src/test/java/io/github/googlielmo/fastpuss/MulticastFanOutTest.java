@@ -0,0 +1,153 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class MulticastFanOutTest {
+
+    @Test
+    public void config_rejectsInvalidGroups() {
+        BrokerConfig config = new BrokerConfig();
+        assertThrows(IllegalArgumentException.class, () -> config.multicast(10, "10.0.0.1", 4, 20000, null));
+        assertThrows(IllegalArgumentException.class, () -> config.multicast(10, "239.255.255.254", 4, 20000, null));
+        assertThrows(IllegalArgumentException.class, () -> config.multicast(10, "239.255.0.1", 4, 20000, "nonexistent0"));
+        assertThrows(IllegalArgumentException.class, () -> config.multicast(10, "239.255.0.1", 0, 20000, null));
+        config.multicast(10, "239.255.0.1", 256, 20000, null);
+        assertEquals(256, config.multicastGroups);
+    }
+
+    @Test
+    public void broker_multicastsHotTopicsOnLoopback() throws Exception {
+        int port = TestBroker.networkPort(3000);
+        int groupPort = port + 1000;
+        NetworkInterface lo = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        assumeTrue(lo != null && multicastWorks(lo, groupPort), "no multicast on loopback");
+
+        BrokerConfig config = TestBroker.config().multicast(4, "239.255.77.1", 1, groupPort, lo.getName());
+        DatagramSocket[] subscribers = new DatagramSocket[4];
+        try (TestBroker broker = TestBroker.start(port, new ThreadSafeSubscriberManager(), config);
+             DatagramSocket publisher = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramChannel group = DatagramChannel.open(StandardProtocolFamily.INET)
+                     .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                     .bind(new InetSocketAddress(groupPort))) {
+            InetSocketAddress address = broker.address;
+            for (int i = 0; i < subscribers.length; i++) {
+                subscribers[i] = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+                subscribers[i].setSoTimeout(2000);
+                send(subscribers[i], MessageCodec.encode(Verb.SUB, "hot", new byte[0]), address);
+                sync(subscribers[i], address);
+            }
+
+            // the topic turns hot: JOIN, then unicast until subscribers answer
+            send(publisher, MessageCodec.encode(Verb.PUB, "hot", "m1".getBytes()), address);
+            for (DatagramSocket subscriber : subscribers) {
+                Frame join = receive(subscriber);
+                assertEquals(Verb.JOIN, join.verb);
+                assertEquals("239.255.77.1:" + groupPort, new String(join.body, StandardCharsets.US_ASCII));
+                assertEquals(Verb.MSG, receive(subscriber).verb);
+            }
+            group.join(InetAddress.getByName("239.255.77.1"), lo);
+            for (int i = 0; i < subscribers.length - 1; i++) { // the last one never joins
+                send(subscribers[i], MessageCodec.encode(Verb.JOIN, "hot",
+                        ("239.255.77.1:" + groupPort).getBytes(StandardCharsets.US_ASCII)), address);
+                sync(subscribers[i], address);
+            }
+
+            send(publisher, MessageCodec.encode(Verb.PUB, "hot", "m2".getBytes()), address);
+            ByteBuffer buf = ByteBuffer.allocate(4096);
+            group.receive(buf);
+            Frame frame = MessageCodec.decode(buf.flip());
+            assertNotNull(frame);
+            assertEquals("m2", new String(frame.body, StandardCharsets.UTF_8));
+            Frame unicast = receive(subscribers[3]);
+            assertEquals(Verb.MSG, unicast.verb);
+            assertEquals("m2", new String(unicast.body, StandardCharsets.UTF_8));
+            subscribers[0].setSoTimeout(200);
+            assertThrows(SocketTimeoutException.class, () -> receive(subscribers[0]));
+            assertEquals(1, broker.metrics().getMulticastSends());
+
+            // late subscribers are told to join right away
+            try (DatagramSocket late = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                late.setSoTimeout(2000);
+                send(late, MessageCodec.encode(Verb.SUB, "#", new byte[0]), address);
+                assertEquals(Verb.JOIN, receive(late).verb);
+                send(late, MessageCodec.encode(Verb.UNSUB, "#", new byte[0]), address);
+            }
+
+            // below half the threshold: back to unicast
+            for (int i = 1; i < subscribers.length; i++) {
+                send(subscribers[i], MessageCodec.encode(Verb.UNSUB, "hot", new byte[0]), address);
+                sync(subscribers[i], address);
+            }
+            send(publisher, MessageCodec.encode(Verb.PUB, "hot", "m3".getBytes()), address);
+            subscribers[0].setSoTimeout(2000);
+            assertEquals(Verb.LEAVE, receive(subscribers[0]).verb);
+            Frame m3 = receive(subscribers[0]);
+            assertEquals(Verb.MSG, m3.verb);
+            assertEquals("m3", new String(m3.body, StandardCharsets.UTF_8));
+        } finally {
+            for (DatagramSocket subscriber : subscribers) {
+                if (subscriber != null) {
+                    subscriber.close();
+                }
+            }
+        }
+    }
+
+    static boolean multicastWorks(NetworkInterface nif, int port) {
+        try (DatagramChannel in = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                .bind(new InetSocketAddress(port));
+             DatagramChannel out = DatagramChannel.open(StandardProtocolFamily.INET)
+                     .setOption(StandardSocketOptions.IP_MULTICAST_IF, nif)) {
+            InetAddress probe = InetAddress.getByName("239.255.77.2");
+            in.join(probe, nif);
+            out.send(ByteBuffer.wrap(new byte[1]), new InetSocketAddress(probe, port));
+            in.configureBlocking(false);
+            for (int i = 0; i < 50; i++) {
+                if (in.receive(ByteBuffer.allocate(1)) != null) {
+                    return true;
+                }
+                Thread.sleep(10);
+            }
+            return false;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static void send(DatagramSocket socket, ByteBuffer msg, InetSocketAddress to) throws IOException {
+        socket.send(new DatagramPacket(msg.array(), 0, msg.limit(), to));
+    }
+
+    /**
+     * Wait for the answer to a PING: with a single ingest worker, whatever the client sent before has been handled.
+     */
+    private static void sync(DatagramSocket client, InetSocketAddress broker) throws IOException {
+        send(client, MessageCodec.encode(Verb.PING, "sync", new byte[0]), broker);
+        assertEquals(Verb.PONG, receive(client).verb);
+    }
+
+    private static Frame receive(DatagramSocket socket) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+        socket.receive(packet);
+        Frame frame = MessageCodec.decode(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+        assertNotNull(frame);
+        return frame;
+    }
+}
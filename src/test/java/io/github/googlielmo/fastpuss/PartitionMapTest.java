@@ -0,0 +1,57 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartitionMapTest {
+
+    @Test
+    public void owners_areDistinctAndBalanced() {
+        int n = 5;
+        PartitionMap map = new PartitionMap(nodes(n));
+        int[] owned = new int[n];
+        for (int range = 0; range < TopicHash.RANGES; range++) {
+            assertNotEquals(map.primary(range), map.secondary(range));
+            owned[map.primary(range)]++;
+            owned[map.secondary(range)]++;
+        }
+        for (int node = 0; node < n; node++) {
+            // each node holds roughly 2/n of the ranges
+            assertEquals(2.0 / n, owned[node] / (double) TopicHash.RANGES, 0.1);
+        }
+    }
+
+    @Test
+    public void removingNode_onlyMovesItsRanges() {
+        List<InetSocketAddress> nodes = nodes(4);
+        PartitionMap before = new PartitionMap(nodes);
+        nodes.remove(3);
+        PartitionMap after = new PartitionMap(nodes);
+        for (int range = 0; range < TopicHash.RANGES; range++) {
+            if (before.primary(range) != 3) {
+                assertEquals(before.primary(range), after.primary(range));
+            }
+        }
+    }
+
+    @Test
+    public void singleNode_hasNoSecondary() {
+        PartitionMap map = new PartitionMap(nodes(1));
+        assertEquals(0, map.primary(42));
+        assertEquals(-1, map.secondary(42));
+        assertEquals(TopicHash.RANGES, map.shared(0, 0).cardinality());
+    }
+
+    private static List<InetSocketAddress> nodes(int n) {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            nodes.add(InetSocketAddress.createUnresolved("10.0.0." + (i + 1), DistributedBroker.SYNC_PORT));
+        }
+        return nodes;
+    }
+}
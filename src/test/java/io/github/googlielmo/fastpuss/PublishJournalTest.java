@@ -0,0 +1,145 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import static io.github.googlielmo.fastpuss.TestBroker.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PublishJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void journal_readsBackByOffsetAndTimeAcrossRestarts() throws Exception {
+        BrokerMetrics metrics = new BrokerMetrics(0);
+        PublishJournal journal = new PublishJournal(dir, 1 << 20, 1 << 24, 0, 4096, metrics);
+        journal.open();
+        long before = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(journal.append(i % 2 == 0 ? "a/b" : "c/d", ("m" + i).getBytes()));
+        }
+        await(() -> journal.lastOffset() == 999);
+        assertEquals(1000, metrics.getJournalAppends());
+        assertTrue(metrics.getJournalCommits() <= 1000);
+
+        PublishJournal.Cursor cursor = journal.fromOffset(500);
+        PublishJournal.Entry e = cursor.next();
+        assertEquals(500, e.offset);
+        assertEquals("a/b", e.topic);
+        assertEquals("m500", StandardCharsets.UTF_8.decode(e.body).toString());
+        assertTrue(e.timestamp >= before);
+        assertEquals(499, count(cursor));
+        assertEquals(0, journal.fromTime(before).next().offset);
+        assertNull(journal.fromTime(System.currentTimeMillis() + 60_000).next());
+        journal.close();
+
+        PublishJournal reopened = new PublishJournal(dir, 1 << 20, 1 << 24, 0, 4096, metrics);
+        reopened.open();
+        assertEquals(999, reopened.lastOffset());
+        reopened.append("a/b", "after".getBytes());
+        await(() -> reopened.lastOffset() == 1000);
+        assertEquals(1001, count(reopened.fromOffset(0)));
+        assertEquals(1000, reopened.fromOffset(1000).next().offset);
+        reopened.close();
+    }
+
+    @Test
+    public void journal_rollsSegmentsAndDeletesTheOldestBeyondItsSize() throws Exception {
+        int segment = PublishJournal.MIN_SEGMENT_BYTES;
+        PublishJournal journal = new PublishJournal(dir, segment, 2L * segment, 0, 1024, new BrokerMetrics(0));
+        journal.open();
+        byte[] body = new byte[1000];
+        for (int i = 0; i < 500; i++) {
+            assertTrue(journal.append("big", body));
+        }
+        await(() -> journal.lastOffset() == 499);
+        journal.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.filter(p -> p.toString().endsWith(".log")).count() <= 3);
+        }
+        PublishJournal.Cursor cursor = journal.fromOffset(0);
+        long first = cursor.next().offset;
+        assertTrue(first > 0, "nothing expired");
+        assertEquals(499 - first, count(cursor));
+    }
+
+    @Test
+    public void journal_recoversUpToATornEntry() throws Exception {
+        PublishJournal journal = new PublishJournal(dir, 1 << 20, 1 << 24, 0, 1024, new BrokerMetrics(0));
+        journal.open();
+        for (int i = 0; i < 10; i++) {
+            journal.append("t", ("m" + i).getBytes());
+        }
+        await(() -> journal.lastOffset() == 9);
+        journal.close();
+
+        // as if the broker crashed while writing the last entry: no index yet, and part of the entry missing
+        Files.delete(dir.resolve("journal-0000000000000000.idx"));
+        Path log = dir.resolve("journal-0000000000000000.log");
+        try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 1);
+        }
+        PublishJournal reopened = new PublishJournal(dir, 1 << 20, 1 << 24, 0, 1024, new BrokerMetrics(0));
+        reopened.open();
+        assertEquals(8, reopened.lastOffset());
+        reopened.append("t", "again".getBytes());
+        await(() -> reopened.lastOffset() == 9);
+        PublishJournal.Entry e = reopened.fromOffset(9).next();
+        assertEquals("again", StandardCharsets.UTF_8.decode(e.body).toString());
+        reopened.close();
+    }
+
+    @Test
+    public void broker_replaysTheJournalToASubscriber() throws Exception {
+        MemoryTransport transport = new MemoryTransport(0);
+        BrokerConfig config = TestBroker.config().journal(dir, 1 << 20, 1 << 24, 0).replayRate(1000)
+                .transport(transport);
+        try (TestBroker broker = TestBroker.start(21003, new ThreadSafeSubscriberManager(), config);
+             DatagramEndpoint socket = transport.bind(null, 0, false)) {
+            for (int i = 0; i < 20; i++) {
+                socket.send(MessageCodec.encode(Verb.PUB, i % 2 == 0 ? "r/even" : "r/odd", ("m" + i).getBytes()),
+                        broker.address);
+            }
+            await(() -> broker.metrics().getJournalAppends() == 20);
+            Thread.sleep(50); // committed
+
+            socket.send(MessageCodec.encode(Verb.REPLAY, "r/+", "5".getBytes()), broker.address);
+            for (int i = 5; i < 20; i++) {
+                Frame frame = receive(socket);
+                assertEquals(Verb.MSG, frame.verb);
+                assertEquals("m" + i, new String(frame.body));
+            }
+            socket.send(MessageCodec.encode(Verb.REPLAY, "r/odd", "@0".getBytes()), broker.address);
+            for (int i = 1; i < 20; i += 2) {
+                assertEquals("m" + i, new String(receive(socket).body));
+            }
+            await(() -> broker.metrics().getReplayed() == 25);
+        }
+    }
+
+    private static long count(PublishJournal.Cursor cursor) {
+        long n = 0;
+        while (cursor.next() != null) {
+            n++;
+        }
+        return n;
+    }
+
+    private static Frame receive(DatagramEndpoint endpoint) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        assertNotNull(endpoint.receive(buf, 5000), "nothing received");
+        Frame frame = MessageCodec.decode(buf.flip());
+        assertNotNull(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,187 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReliableDeliveryTest {
+
+    @Test
+    public void ring_keepsRecentMessagesWithinSlotsAndBytes() {
+        RetransmitRing ring = new RetransmitRing(4, 64);
+        for (int i = 1; i <= 6; i++) {
+            assertEquals("SEQ t\n" + i + " body" + i, MessageCodec.toString(ring.append("t", ("body" + i).getBytes())));
+        }
+        assertEquals(6, ring.lastSeq());
+        assertNull(ring.get(2)); // slot reused by 6
+        assertEquals("SEQ t\n6 body6", MessageCodec.toString(ring.get(6)));
+        // 13 bytes each: 64 bytes hold the last 4, the bytes of 5 wrap around the end of the ring
+        assertEquals("SEQ t\n3 body3", MessageCodec.toString(ring.get(3)));
+        assertEquals("SEQ t\n5 body5", MessageCodec.toString(ring.get(5)));
+
+        RetransmitRing small = new RetransmitRing(8, 30);
+        for (int i = 1; i <= 3; i++) {
+            small.append("t", ("body" + i).getBytes());
+        }
+        assertNull(small.get(1)); // overwritten bytes
+        assertEquals("SEQ t\n2 body2", MessageCodec.toString(small.get(2)));
+    }
+
+    @Test
+    public void gapTracker_nacksGapsSplitsRepairsAndGivesUp() {
+        GapTracker gaps = new GapTracker(10, 2);
+        List<String> nacks = new ArrayList<>();
+        GapTracker.NackSender sender = (source, topic, ranges) ->
+                nacks.add(source + " " + topic + " " + new String(ranges, StandardCharsets.US_ASCII));
+
+        assertTrue(gaps.onMessage("b1", "t", 5, 0));
+        assertTrue(gaps.onMessage("b1", "t", 10, 0)); // 6-9 missing
+        assertTrue(gaps.onMessage("b1", "u", 1, 0));
+        assertTrue(gaps.onMessage("b1", "u", 3, 0)); // 2 missing
+        gaps.nack(5, sender);
+        assertTrue(nacks.isEmpty()); // could still be reordering
+
+        gaps.nack(10, sender);
+        assertTrue(nacks.contains("b1 t 6-9"));
+        assertTrue(nacks.contains("b1 u 2"));
+
+        assertTrue(gaps.onMessage("b1", "t", 7, 11));
+        assertFalse(gaps.onMessage("b1", "t", 7, 11));
+        assertFalse(gaps.onMessage("b1", "t", 10, 11));
+        assertTrue(gaps.onMessage("b1", "u", 2, 11));
+        nacks.clear();
+        gaps.nack(20, sender);
+        assertEquals(List.of("b1 t 6 8-9"), nacks);
+        assertEquals(2, gaps.repaired());
+
+        gaps.nack(30, sender); // third time: given up
+        assertEquals(3, gaps.lost());
+    }
+
+    @Test
+    public void rings_stayWithinBudgetAndRenumberEvictedTopics() {
+        BrokerMetrics metrics = new BrokerMetrics(0);
+        RetransmitRings rings = new RetransmitRings(4, 64, 64, metrics, 0); // a single ring per stripe
+        long[] first = new long[100];
+        for (int t = 0; t < first.length; t++) {
+            first[t] = MessageCodec.decode(rings.append("t" + t, "a".getBytes())).seq;
+            assertEquals(first[t] + 1, MessageCodec.decode(rings.append("t" + t, "b".getBytes())).seq);
+        }
+        assertTrue(rings.topics() <= 16, "rings " + rings.topics());
+        assertEquals(100 - rings.topics(), metrics.getRetransmitEvictions());
+        assertNull(rings.get("t0"));
+
+        GapTracker gaps = new GapTracker(10, 2);
+        assertEquals(1, first[0]);
+        assertTrue(gaps.onMessage("b1", "t0", 2, 0));
+        long again = MessageCodec.decode(rings.append("t0", "c".getBytes())).seq;
+        assertTrue(again > 2, "renumbered from " + again);
+        assertEquals(0, again & ((1 << RetransmitRing.INCARNATION_SHIFT) - 1));
+        assertTrue(gaps.onMessage("b1", "t0", again, 1)); // a new incarnation, not a gap
+        assertFalse(gaps.onMessage("b1", "t0", 2, 1));
+        assertTrue(gaps.onMessage("b1", "t0", again + 2, 1));
+        List<String> nacks = new ArrayList<>();
+        gaps.nack(100, (source, topic, ranges) ->
+                nacks.add(topic + " " + new String(ranges, StandardCharsets.US_ASCII)));
+        assertEquals(List.of("t0 " + (again + 1)), nacks);
+    }
+
+    @Test
+    public void gaps_startOverAfterABrokerRestart() {
+        long now = System.currentTimeMillis() / 1000;
+        BrokerMetrics metrics = new BrokerMetrics(0);
+        RetransmitRings before = new RetransmitRings(4, 1024, 1 << 20, metrics);
+        GapTracker gaps = new GapTracker(10, 2);
+        long last = 0;
+        for (int i = 0; i < 5; i++) {
+            last = MessageCodec.decode(before.append("t", new byte[0])).seq;
+            assertTrue(gaps.onMessage("b1", "t", last, 0));
+        }
+        assertTrue(last >>> RetransmitRing.INCARNATION_SHIFT >= now, "numbered from the start time");
+
+        // restarted a second later: a new incarnation
+        RetransmitRings later = new RetransmitRings(4, 1024, 1 << 20, metrics, (last >>> 24) + 1);
+        long seq = MessageCodec.decode(later.append("t", new byte[0])).seq;
+        assertTrue(gaps.onMessage("b1", "t", seq, 1));
+        assertTrue(gaps.onMessage("b1", "t", seq + 1, 1));
+
+        // restarted with a lower incarnation, e.g. after recreating topics faster than once a second
+        assertTrue(gaps.onMessage("b1", "t", 1, 2));
+        assertTrue(gaps.onMessage("b1", "t", 2, 2));
+        assertFalse(gaps.onMessage("b1", "t", 2, 2));
+
+        // within the same second: numbers going back by far
+        long base = 5L << RetransmitRing.INCARNATION_SHIFT;
+        assertTrue(gaps.onMessage("b1", "u", base + GapTracker.RESTART_DISTANCE + 10, 3));
+        assertFalse(gaps.onMessage("b1", "u", base + 10, 3)); // could still be a late retransmission
+        assertTrue(gaps.onMessage("b1", "u", base + 1, 3));
+        assertTrue(gaps.onMessage("b1", "u", base + 2, 3));
+
+        // or not that far, for a client that noticed the restart
+        gaps.reset("b1");
+        assertTrue(gaps.onMessage("b1", "u", base + 1, 4));
+        List<String> nacks = new ArrayList<>();
+        gaps.nack(100, (source, topic, ranges) -> nacks.add(topic));
+        assertEquals(List.of(), nacks);
+        assertEquals(0, gaps.lost());
+    }
+
+    @Test
+    public void broker_retransmitsNackedMessages() throws Exception {
+        MemoryTransport transport = new MemoryTransport(0);
+        BrokerConfig config = TestBroker.config().reliable(1024, 1 << 16).transport(transport);
+        try (TestBroker broker = TestBroker.start(21000, new ThreadSafeSubscriberManager(), config); // in memory
+             DatagramEndpoint subscriber = transport.bind(null, 0, false);
+             DatagramEndpoint publisher = transport.bind(null, 0, false)) {
+            InetSocketAddress address = broker.address;
+            subscriber.send(MessageCodec.encode(Verb.SUB, "r/t", new byte[0]), address);
+            sync(subscriber, address);
+            for (int i = 1; i <= 3; i++) {
+                publisher.send(MessageCodec.encode(Verb.PUB, "r/t", ("m" + i).getBytes()), address);
+            }
+            long first = 0;
+            for (int i = 0; i < 3; i++) {
+                Frame frame = receive(subscriber);
+                assertEquals(Verb.SEQ, frame.verb);
+                first = i == 0 ? frame.seq : first;
+                assertEquals(first + i, frame.seq);
+            }
+            assertEquals(System.currentTimeMillis() / 1000, first >>> RetransmitRing.INCARNATION_SHIFT, 1);
+
+            String ranges = (first + 1) + "-" + (first + 2);
+            subscriber.send(MessageCodec.encode(Verb.NACK, "r/t", ranges.getBytes()), address);
+            Frame again = receive(subscriber);
+            assertEquals(first + 1, again.seq);
+            assertEquals("m2", new String(again.body, StandardCharsets.UTF_8));
+            assertEquals(first + 2, receive(subscriber).seq);
+            sync(subscriber, address);
+            assertEquals(2, broker.metrics().getRetransmits());
+        }
+    }
+
+    /**
+     * Wait for the answer to a PING: with a single ingest worker, whatever the client sent before has been handled.
+     */
+    private static void sync(DatagramEndpoint client, InetSocketAddress broker) throws IOException {
+        client.send(MessageCodec.encode(Verb.PING, "sync", new byte[0]), broker);
+        Frame frame;
+        do { // skipping the answers to earlier PINGs
+            frame = receive(client);
+        } while (frame.verb != Verb.PONG || !frame.topic.equals("sync"));
+    }
+
+    private static Frame receive(DatagramEndpoint endpoint) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        assertNotNull(endpoint.receive(buf, 5000), "nothing received");
+        Frame frame = MessageCodec.decode(buf.flip());
+        assertNotNull(frame);
+        return frame;
+    }
+}
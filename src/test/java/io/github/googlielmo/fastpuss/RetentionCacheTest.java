@@ -0,0 +1,110 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetentionCacheTest {
+
+    @Test
+    public void retain_keepsTheLastMessagesOldestFirst() {
+        RetentionCache cache = new RetentionCache(3, 1 << 20, new BrokerMetrics(0));
+        assertTrue(cache.get("t").isEmpty());
+        cache.retain("t", "m1".getBytes());
+        cache.retain("t", "m2".getBytes());
+        assertEquals(List.of("m1", "m2"), strings(cache.get("t")));
+        for (int i = 3; i <= 5; i++) {
+            cache.retain("t", ("m" + i).getBytes());
+        }
+        assertEquals(List.of("m3", "m4", "m5"), strings(cache.get("t")));
+
+        RetentionCache lastValue = new RetentionCache(1, 1 << 20, new BrokerMetrics(0));
+        lastValue.retain("t", "old".getBytes());
+        lastValue.retain("t", "new".getBytes());
+        assertEquals(List.of("new"), strings(lastValue.get("t")));
+    }
+
+    @Test
+    public void retain_evictsTheLeastRecentlyUsedTopicsOverBudget() {
+        BrokerMetrics metrics = new BrokerMetrics(0);
+        RetentionCache cache = new RetentionCache(1, 16 * 1024, metrics); // 1 KB per stripe
+        for (int i = 0; i < 10_000; i++) {
+            cache.retain("topic/" + i, new byte[100]);
+        }
+        assertTrue(cache.bytes() <= 16 * 1024, "over budget: " + cache.bytes());
+        assertTrue(cache.topics() > 16 && cache.topics() < 160, "topics: " + cache.topics());
+        assertEquals(10_000 - cache.topics(), metrics.getRetentionEvictions());
+        assertEquals(1, cache.get("topic/9999").size());
+        assertTrue(cache.get("topic/0").isEmpty());
+
+        // a topic subscribed to is used again: it outlives the topics published to before it
+        RetentionCache lru = new RetentionCache(1, 16 * 1024, new BrokerMetrics(0));
+        lru.retain("a", new byte[400]); // "a", "q" and "ab" share a stripe, only two fit
+        lru.retain("q", new byte[400]);
+        lru.get("a");
+        lru.retain("ab", new byte[400]);
+        assertEquals(1, lru.get("a").size());
+        assertTrue(lru.get("q").isEmpty());
+
+        lru.retain("d", new byte[2000]); // larger than a stripe, never retained
+        assertTrue(lru.get("d").isEmpty());
+        assertEquals(2, lru.topics());
+    }
+
+    @Test
+    public void broker_sendsRetainedMessagesOnSubscribe() throws Exception {
+        MemoryTransport transport = new MemoryTransport(0);
+        BrokerConfig config = TestBroker.config().retain(2, 1 << 20).transport(transport);
+        try (TestBroker broker = TestBroker.start(21004, new ThreadSafeSubscriberManager(), config); // in memory
+             DatagramEndpoint subscriber = transport.bind(null, 0, false);
+             DatagramEndpoint publisher = transport.bind(null, 0, false)) {
+            InetSocketAddress address = broker.address;
+            for (int i = 1; i <= 3; i++) {
+                send(publisher, MessageCodec.encode(Verb.PUB, "r/t", ("m" + i).getBytes()), address);
+            }
+            sync(publisher, address); // retained
+            send(subscriber, MessageCodec.encode(Verb.SUB, "r/t", new byte[0]), address);
+            assertEquals("m2", body(receive(subscriber)));
+            assertEquals("m3", body(receive(subscriber)));
+            send(publisher, MessageCodec.encode(Verb.PUB, "r/t", "m4".getBytes()), address);
+            assertEquals("m4", body(receive(subscriber)));
+            assertEquals(2, broker.metrics().getCatchUps());
+        }
+    }
+
+    private static List<String> strings(List<byte[]> bodies) {
+        return bodies.stream().map(b -> new String(b, StandardCharsets.UTF_8)).collect(Collectors.toList());
+    }
+
+    private static String body(Frame frame) {
+        assertEquals(Verb.MSG, frame.verb);
+        return new String(frame.body, StandardCharsets.UTF_8);
+    }
+
+    private static void send(DatagramEndpoint endpoint, ByteBuffer msg, InetSocketAddress to) throws IOException {
+        endpoint.send(msg, to);
+    }
+
+    /**
+     * Wait for the answer to a PING: with a single ingest worker, whatever the client sent before has been handled.
+     */
+    private static void sync(DatagramEndpoint client, InetSocketAddress broker) throws IOException {
+        send(client, MessageCodec.encode(Verb.PING, "sync", new byte[0]), broker);
+        assertEquals(Verb.PONG, receive(client).verb);
+    }
+
+    private static Frame receive(DatagramEndpoint endpoint) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        assertNotNull(endpoint.receive(buf, 5000), "nothing received");
+        Frame frame = MessageCodec.decode(buf.flip());
+        assertNotNull(frame);
+        return frame;
+    }
+}
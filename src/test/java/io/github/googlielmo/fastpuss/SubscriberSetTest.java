@@ -0,0 +1,67 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubscriberSetTest {
+
+    @Test
+    public void behavesLikeASetAcrossPromotion() {
+        SubscriberSet set = new SubscriberSet();
+        Set<Integer> expected = new HashSet<>();
+        Random rand = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            int client = rand.nextInt(5_000);
+            if (rand.nextInt(3) == 0) {
+                assertEquals(expected.remove(client), set.remove(client));
+            } else {
+                assertEquals(expected.add(client) ? SubscriberSet.ADDED : SubscriberSet.PRESENT, set.add(client));
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        assertTrue(set.partitions() > 1);
+        int[] snapshot = set.toArray();
+        assertEquals(expected.size(), snapshot.length);
+        assertEquals(expected, new HashSet<>(Arrays.asList(Arrays.stream(snapshot).boxed().toArray(Integer[]::new))));
+        expected.forEach(client -> assertTrue(set.contains(client)));
+    }
+
+    @Test
+    public void partitionsCoverTheWholeSet() {
+        SubscriberSet set = new SubscriberSet();
+        for (int i = 0; i < 1000; i++) {
+            set.add(i);
+        }
+        int[] count = {0};
+        for (int p = 0; p < set.partitions(); p++) {
+            set.forEach(p, client -> count[0]++);
+        }
+        assertEquals(1000, count[0]);
+    }
+
+    @Test
+    public void retiredSetRejectsAdditions() {
+        SubscriberSet small = new SubscriberSet();
+        small.add(1);
+        assertFalse(small.retireIfEmpty());
+        small.remove(1);
+        assertTrue(small.retireIfEmpty());
+        assertEquals(SubscriberSet.RETIRED, small.add(1));
+
+        SubscriberSet large = new SubscriberSet();
+        for (int i = 0; i <= SubscriberSet.SMALL_MAX; i++) {
+            large.add(i);
+        }
+        for (int i = 0; i <= SubscriberSet.SMALL_MAX; i++) {
+            large.remove(i);
+        }
+        assertTrue(large.retireIfEmpty());
+        assertEquals(SubscriberSet.RETIRED, large.add(1));
+    }
+}
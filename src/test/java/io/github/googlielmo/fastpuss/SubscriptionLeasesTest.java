@@ -0,0 +1,237 @@
+package io.github.googlielmo.fastpuss;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.googlielmo.fastpuss.TestBroker.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubscriptionLeasesTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void wheel_firesOnTimeAcrossLevels() {
+        long start = 1_000_000;
+        TimerWheel<Long> wheel = new TimerWheel<>(10, start);
+        List<Long> fired = new ArrayList<>();
+        long[] deadlines = {start - 5, start + 15, start + 30, start + 2545, start + 2560, start + 700_000,
+                start + 700_000_000};
+        for (long d : deadlines) {
+            wheel.schedule(d, d);
+        }
+        TimerWheel.Timer<Long> cancelled = wheel.schedule(start + 100L, start + 100);
+        wheel.cancel(cancelled);
+        assertFalse(cancelled.isScheduled());
+        assertEquals(deadlines.length, wheel.size());
+
+        for (long now = start; now <= start + 701_000_000; now += now < start + 1_000_000 ? 10 : 997_013) {
+            long time = now;
+            wheel.advance(now, t -> {
+                assertTrue(t.item <= time, "fired early: " + t.item + " at " + time);
+                assertTrue(time - Math.max(t.item, start) < 997_013 + 10, "fired late: " + t.item + " at " + time);
+                fired.add(t.item);
+            });
+        }
+        assertEquals(deadlines.length, fired.size());
+        assertEquals(0, wheel.size());
+        for (int i = 0; i < deadlines.length; i++) {
+            assertEquals(deadlines[i], fired.get(i));
+        }
+    }
+
+    @Test
+    public void leases_expireOnlyWithoutRenewals() {
+        BrokerMetrics metrics = new BrokerMetrics(0);
+        Map<Integer, List<String>> expired = new ConcurrentHashMap<>();
+        Set<Integer> released = new TreeSet<>();
+        SubscriptionLeases leases = new SubscriptionLeases(1000, metrics, expiry(expired, released));
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        long t0 = System.nanoTime();
+
+        leases.subscribed("a/b", 1, t0);
+        leases.subscribed("a/#", 1, t0);
+        leases.subscribed("c", 2, t0);
+        leases.subscribed("d", 3, t0);
+        leases.unsubscribed("d", 3);
+        for (long t = t0; t < t0 + 5000 * ms; t += 100 * ms) {
+            leases.renew(2, t);
+            leases.tick(t);
+        }
+        assertEquals(Map.of(1, List.of("a/#", "a/b")), sorted(expired));
+        assertEquals(1, leases.size(), "client 3 has no filters left and expires silently");
+        assertEquals(1, metrics.getLeaseExpiries());
+        assertEquals(2, metrics.getExpiredSubscriptions());
+        assertEquals(Set.of(1, 3), released, "released a lease period after expiring");
+        assertEquals(2, metrics.getReleasedClients());
+
+        // a new subscription takes out a new lease
+        leases.subscribed("a/b", 1, t0 + 5000 * ms);
+        leases.tick(t0 + 5500 * ms);
+        assertEquals(2, leases.size());
+        leases.renew(2, t0 + 6000 * ms);
+        leases.tick(t0 + 6100 * ms);
+        assertEquals(1, leases.size());
+        assertEquals(2, metrics.getLeaseExpiries());
+
+        // heard of again after expiring: not released
+        leases.renew(1, t0 + 6500 * ms);
+        leases.tick(t0 + 7500 * ms);
+        assertEquals(2, metrics.getReleasedClients());
+    }
+
+    @Test
+    public void leases_restoredSubscriptionsGetAWholeLease() {
+        BrokerMetrics metrics = new BrokerMetrics(0);
+        Map<Integer, List<String>> expired = new ConcurrentHashMap<>();
+        SubscriptionLeases leases = new SubscriptionLeases(1000, metrics, expiry(expired, new TreeSet<>()));
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        long t0 = System.nanoTime();
+
+        leases.restored("a", 1, t0, false); // gone while the broker was down
+        leases.restored("b", 2, t0, true); // talking to another node
+        leases.restored("c", 3, t0, true); // talking to this node, then gone
+        leases.restored("d", 4, t0, true);
+        leases.subscribed("e", 4, t0); // subscribed again to this node, then gone
+        for (long t = t0; t < t0 + 900 * ms; t += 100 * ms) {
+            leases.renew(3, t);
+            leases.tick(t);
+        }
+        assertTrue(expired.isEmpty(), "expired within the lease: " + expired);
+        for (long t = t0 + 900 * ms; t < t0 + 3000 * ms; t += 100 * ms) {
+            leases.tick(t);
+        }
+        assertEquals(Map.of(1, List.of("a"), 3, List.of("c"), 4, List.of("d", "e")), sorted(expired));
+        assertEquals(0, leases.size());
+        assertEquals(3, metrics.getLeaseExpiries());
+    }
+
+    @Test
+    public void broker_leasesTheSubscriptionsItRestores() throws Exception {
+        ThreadSafeSubscriberManager before = new ThreadSafeSubscriberManager();
+        SubscriptionStore store = new SubscriptionStore(dir, 1 << 20);
+        store.recover(before, 1);
+        before.addSubscription("gone/1", "/127.0.0.2:1234"); // a client that went away while the broker was down
+        before.addSubscription("gone/#", "/127.0.0.2:1234");
+        store.close();
+
+        BrokerConfig config = TestBroker.config().leases(300).persist(dir, 1 << 20).transport(new MemoryTransport(0));
+        ThreadSafeSubscriberManager subscriptions = new ThreadSafeSubscriberManager();
+        try (TestBroker broker = TestBroker.start(21001, subscriptions, config)) { // in memory
+            await(() -> broker.metrics().getLeaseExpiries() == 1);
+            assertEquals(2, broker.metrics().getExpiredSubscriptions());
+            assertTrue(subscriptions.getMatchingSubscribers("gone/1").isEmpty());
+        }
+    }
+
+    @Test
+    public void broker_dropsTheSubscriptionsOfSilentClients() throws Exception {
+        ThreadSafeSubscriberManager subscriptions = new ThreadSafeSubscriberManager();
+        try (TestBroker broker = TestBroker.start(TestBroker.networkPort(9000), subscriptions,
+                TestBroker.config().leases(300));
+             DatagramSocket raw = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             FastpussClient client = new FastpussClient(new FastpussClient.Config(List.of(broker.address))
+                     .failover(50, 1000))) {
+            InetSocketAddress address = broker.address;
+            client.start();
+            client.subscribe("sensors/#", (topic, body) -> {
+            });
+            // a raw subscriber subscribes once and never sends again
+            send(raw, address, MessageCodec.encode(Verb.SUB, "sensors/+/temp", new byte[0]));
+            send(raw, address, MessageCodec.encode(Verb.SUB, "alerts/1", new byte[0]));
+            await(() -> subscriptions.getMatchingSubscribers("sensors/1/temp").size() == 2
+                    && subscriptions.getMatchingSubscribers("alerts/1").size() == 1);
+
+            await(() -> subscriptions.getMatchingSubscribers("alerts/1").isEmpty()); // one filter after the other
+            assertEquals(1, subscriptions.getMatchingSubscribers("sensors/1/temp").size());
+            assertEquals(1, broker.metrics().getLeaseExpiries());
+            assertEquals(2, broker.metrics().getExpiredSubscriptions());
+
+            // the heartbeats of the client keep its lease
+            Thread.sleep(600);
+            assertEquals(1, subscriptions.getMatchingSubscribers("sensors/1/temp").size());
+            assertEquals(1, broker.metrics().getLeaseExpiries());
+        }
+    }
+
+    @Test
+    public void broker_releasesTheClientsThatAreGone() throws Exception {
+        MemoryTransport transport = new MemoryTransport(0);
+        BrokerConfig config = TestBroker.config().leases(100).rateLimit(1000, 100).coalesce(1000, 1400)
+                .transport(transport);
+        ThreadSafeSubscriberManager subscriptions = new ThreadSafeSubscriberManager();
+        int perRound = 50;
+        int rounds = 10;
+        try (TestBroker broker = TestBroker.start(21002, subscriptions, config); // in memory
+             DatagramEndpoint publisher = transport.bind(null, 0, false)) {
+            InetSocketAddress address = broker.address;
+            ByteBuffer buf = ByteBuffer.allocate(1024);
+            for (int round = 0; round < rounds; round++) {
+                // clients come, subscribe, get a message and go away without unsubscribing
+                String topic = "churn/" + round;
+                DatagramEndpoint[] clients = new DatagramEndpoint[perRound];
+                for (int c = 0; c < perRound; c++) {
+                    clients[c] = transport.bind(null, 0, false);
+                    clients[c].send(MessageCodec.encode(Verb.SUB, topic, new byte[0]), address);
+                }
+                await(() -> subscriptions.getMatchingSubscribers(topic).size() == perRound);
+                publisher.send(MessageCodec.encode(Verb.PUB, topic, "m".getBytes()), address);
+                for (DatagramEndpoint client : clients) {
+                    assertNotNull(client.receive(buf.clear(), 5000));
+                    client.close();
+                }
+                long gone = (long) round * perRound;
+                await(() -> broker.metrics().getReleasedClients() >= gone);
+            }
+            await(() -> broker.metrics().getReleasedClients() == (long) rounds * perRound);
+            // the handles, and the tables indexed by them, are reused
+            assertTrue(subscriptions.clients().size() <= 2 * perRound + 2, // with the publisher and the probe of start
+                    "handles: " + subscriptions.clients().size());
+            assertEquals(0, subscriptions.topicCount());
+        }
+    }
+
+    private static SubscriptionLeases.Expiry expiry(Map<Integer, List<String>> expired, Set<Integer> released) {
+        return new SubscriptionLeases.Expiry() {
+            @Override
+            public void expired(int client, @NotNull List<String> filters) {
+                expired.put(client, filters);
+            }
+
+            @Override
+            public void released(int client) {
+                released.add(client);
+            }
+        };
+    }
+
+    private static Map<Integer, List<String>> sorted(Map<Integer, List<String>> m) {
+        Map<Integer, List<String>> s = new ConcurrentHashMap<>();
+        m.forEach((k, v) -> {
+            List<String> l = new ArrayList<>(v);
+            l.sort(null);
+            s.put(k, l);
+        });
+        return s;
+    }
+
+    private static void send(DatagramSocket socket, InetSocketAddress to, ByteBuffer msg) throws Exception {
+        socket.send(new DatagramPacket(msg.array(), msg.arrayOffset() + msg.position(), msg.remaining(), to));
+    }
+}
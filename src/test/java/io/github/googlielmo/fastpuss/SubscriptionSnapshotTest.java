@@ -0,0 +1,65 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SubscriptionSnapshotTest {
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    public void tearDown() {
+        workers.shutdown();
+    }
+
+    @Test
+    public void roundTrip_compressed() throws IOException {
+        assertRoundTrip(true);
+    }
+
+    @Test
+    public void roundTrip_uncompressed() throws IOException {
+        assertRoundTrip(false);
+    }
+
+    @Test
+    public void read_rejectsOtherFormats() {
+        ThreadSafeSubscriberManager target = new ThreadSafeSubscriberManager();
+        byte[] text = "topic1\n/127.0.0.1:10002\n\n".getBytes();
+        assertThrows(IOException.class, () -> target.unmarshal(new ByteArrayInputStream(text), workers, 4));
+    }
+
+    private void assertRoundTrip(boolean compress) throws IOException {
+        ThreadSafeSubscriberManager source = new ThreadSafeSubscriberManager();
+        for (int i = 0; i < 20_000; i++) {
+            source.addSubscription("big/topic", "/10.0." + (i / 250) + "." + (i % 250) + ":10000");
+        }
+        for (int t = 0; t < 5_000; t++) {
+            for (int c = 0; c <= t % 5; c++) {
+                source.addSubscription("topic" + t, "client-" + (t + c));
+            }
+        }
+        source.addSubscription("sensors/+/temp", "client-1");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        source.marshal(bytes, compress);
+        ThreadSafeSubscriberManager target = new ThreadSafeSubscriberManager();
+        target.unmarshal(new ByteArrayInputStream(bytes.toByteArray()), workers, 4);
+
+        assertEquals(source.topicCount(), target.topicCount());
+        for (String topic : new String[]{"big/topic", "topic0", "topic4999", "sensors/x/temp"}) {
+            assertEquals(new HashSet<>(source.getMatchingSubscribers(topic)),
+                    new HashSet<>(target.getMatchingSubscribers(topic)));
+        }
+    }
+}
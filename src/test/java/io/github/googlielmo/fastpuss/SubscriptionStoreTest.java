@@ -0,0 +1,125 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubscriptionStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void store_replaysTheLogIntoAFreshManager() throws Exception {
+        ThreadSafeSubscriberManager before = new ThreadSafeSubscriberManager();
+        before.addSubscription("not/logged", "client0"); // before recovery, so not persisted
+        SubscriptionStore store = new SubscriptionStore(dir, 1 << 20);
+        store.recover(before, 2);
+        before.addSubscription("a/b", "client1");
+        before.addSubscription("a/b", "client2");
+        before.addSubscription("x/#", "client1");
+        before.removeSubscription("a/b", "client1");
+        store.close();
+
+        ThreadSafeSubscriberManager after = new ThreadSafeSubscriberManager();
+        SubscriptionStore restarted = new SubscriptionStore(dir, 1 << 20);
+        restarted.recover(after, 2);
+        restarted.close();
+        assertEquals(List.of("client2"), List.copyOf(after.getMatchingSubscribers("a/b")));
+        assertEquals(List.of("client1"), List.copyOf(after.getMatchingSubscribers("x/y")));
+        assertTrue(after.getMatchingSubscribers("not/logged").isEmpty());
+    }
+
+    @Test
+    public void store_compactsIntoASnapshotAndRestartsFromIt() throws Exception {
+        ThreadSafeSubscriberManager before = new ThreadSafeSubscriberManager();
+        SubscriptionStore store = new SubscriptionStore(dir, 256);
+        store.recover(before, 2);
+        for (int i = 0; i < 200; i++) {
+            before.addSubscription("topic/" + i, "client" + (i % 7));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (files("snapshot-").isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline, "no compaction");
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 100; i++) {
+            before.removeSubscription("topic/" + i, "client" + (i % 7));
+        }
+        store.close();
+
+        ThreadSafeSubscriberManager after = new ThreadSafeSubscriberManager();
+        SubscriptionStore restarted = new SubscriptionStore(dir, 1 << 20);
+        restarted.recover(after, 2);
+        assertEquals(100, after.topicCount());
+        for (int i = 100; i < 200; i++) {
+            assertEquals(List.of("client" + (i % 7)), List.copyOf(after.getMatchingSubscribers("topic/" + i)));
+        }
+        deadline = System.currentTimeMillis() + 5000;
+        while (files("snapshot-").size() != 1 || files("log-").size() != 1) { // startup compaction
+            assertTrue(System.currentTimeMillis() < deadline, "obsolete files kept: " + files(""));
+            Thread.sleep(10);
+        }
+        restarted.close();
+    }
+
+    @Test
+    public void store_ignoresATornTail() throws Exception {
+        ThreadSafeSubscriberManager before = new ThreadSafeSubscriberManager();
+        SubscriptionStore store = new SubscriptionStore(dir, 1 << 20);
+        store.recover(before, 1);
+        before.addSubscription("t/1", "c1");
+        before.addSubscription("t/2", "c2");
+        before.addSubscription("t/3", "c3");
+        store.close();
+
+        // header, then two complete records and part of the third
+        int record = 8 + 1 + 2 + 2 + 2 + 3;
+        Path log = dir.resolve("log-0000000000000001");
+        try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            ch.truncate(8 + 2 * record + 5);
+        }
+        ThreadSafeSubscriberManager after = new ThreadSafeSubscriberManager();
+        SubscriptionStore restarted = new SubscriptionStore(dir, 1 << 20);
+        restarted.recover(after, 1);
+        restarted.close();
+        assertEquals(2, after.topicCount());
+        assertTrue(after.getMatchingSubscribers("t/3").isEmpty());
+
+        // a corrupt record is not applied either
+        ThreadSafeSubscriberManager again = new ThreadSafeSubscriberManager();
+        for (Path p : files("")) {
+            Files.delete(p);
+        }
+        store = new SubscriptionStore(dir, 1 << 20);
+        store.recover(again, 1);
+        again.addSubscription("t/1", "c1");
+        again.addSubscription("t/2", "c2");
+        store.close();
+        try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            ch.write(StandardCharsets.UTF_8.encode("X"), 8 + record + 8 + 1 + 2 + 2 + 2 + 2);
+        }
+        ThreadSafeSubscriberManager last = new ThreadSafeSubscriberManager();
+        restarted = new SubscriptionStore(dir, 1 << 20);
+        restarted.recover(last, 1);
+        restarted.close();
+        assertEquals(List.of("c1"), List.copyOf(last.getMatchingSubscribers("t/1")));
+        assertTrue(last.getMatchingSubscribers("t/2").isEmpty());
+    }
+
+    private List<Path> files(String prefix) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith(prefix)).collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SyncUpdateTest {
+
+    @Test
+    public void coalesce_keepsTheLastUpdateInItsPlace() {
+        assertEquals(List.of("ADD u c", "PUBLISH x", "REMOVE t c"), ops(SyncUpdate.coalesce(List.of(
+                new SyncUpdate(SyncUpdate.ADD, "t", "c"),
+                new SyncUpdate(SyncUpdate.ADD, "u", "c"),
+                SyncUpdate.publish("x", new byte[0]),
+                new SyncUpdate(SyncUpdate.REMOVE, "t", "c")))));
+        assertEquals(List.of("ADD t d", "ADD t c"), ops(SyncUpdate.coalesce(List.of(
+                new SyncUpdate(SyncUpdate.ADD, "t", "c"),
+                new SyncUpdate(SyncUpdate.REMOVE, "t", "c"),
+                new SyncUpdate(SyncUpdate.ADD, "t", "d"),
+                new SyncUpdate(SyncUpdate.ADD, "t", "c")))));
+    }
+
+    @Test
+    public void coalesce_keepsTheStateEachMessageIsDeliveredWith() {
+        // the client subscribed before the message and unsubscribed after it: it must get it
+        assertEquals(List.of("ADD t c", "PUBLISH t", "REMOVE t c"), ops(SyncUpdate.coalesce(List.of(
+                new SyncUpdate(SyncUpdate.ADD, "t", "c"),
+                SyncUpdate.publish("t", new byte[0]),
+                new SyncUpdate(SyncUpdate.REMOVE, "t", "c")))));
+        // the other way round: it must not
+        assertEquals(List.of("REMOVE t c", "PUBLISH t", "ADD t c"), ops(SyncUpdate.coalesce(List.of(
+                new SyncUpdate(SyncUpdate.REMOVE, "t", "c"),
+                SyncUpdate.publish("t", new byte[0]),
+                new SyncUpdate(SyncUpdate.ADD, "t", "c")))));
+        // through a wildcard filter
+        assertEquals(List.of("ADD a/# c", "PUBLISH a/b", "PUBLISH x", "REMOVE a/# c"), ops(SyncUpdate.coalesce(List.of(
+                new SyncUpdate(SyncUpdate.ADD, "a/#", "c"),
+                SyncUpdate.publish("a/b", new byte[0]),
+                SyncUpdate.publish("x", new byte[0]),
+                new SyncUpdate(SyncUpdate.REMOVE, "a/#", "c")))));
+        assertEquals(List.of("PUBLISH x", "REMOVE a/+ c"), ops(SyncUpdate.coalesce(List.of(
+                new SyncUpdate(SyncUpdate.ADD, "a/+", "c"),
+                SyncUpdate.publish("x", new byte[0]),
+                new SyncUpdate(SyncUpdate.REMOVE, "a/+", "c")))));
+    }
+
+    @Test
+    public void batch_roundTrips() throws Exception {
+        ByteBuffer frame = SyncUpdate.encodeBatch(List.of(
+                new SyncUpdate(SyncUpdate.ADD, "a/b", "10.0.0.1:5000"),
+                SyncUpdate.publish("a/b", new byte[]{1, 2, 3}),
+                new SyncUpdate(SyncUpdate.REMOVE, "a/+", "10.0.0.2:5000")));
+        assertEquals(frame.remaining() - 4, frame.getInt(0));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.array()));
+        List<SyncUpdate> updates = SyncUpdate.decodeBatch(in);
+        assertNotNull(updates);
+        assertEquals(List.of("ADD a/b 10.0.0.1:5000", "PUBLISH a/b", "REMOVE a/+ 10.0.0.2:5000"), ops(updates));
+        assertArrayEquals(new byte[]{1, 2, 3}, updates.get(1).body);
+        assertNull(SyncUpdate.decodeBatch(in));
+    }
+
+    private static List<String> ops(Collection<SyncUpdate> updates) {
+        List<String> ops = new ArrayList<>();
+        for (SyncUpdate u : updates) {
+            switch (u.op) {
+                case SyncUpdate.ADD:
+                    ops.add("ADD " + u.topic + " " + u.clientId);
+                    break;
+                case SyncUpdate.REMOVE:
+                    ops.add("REMOVE " + u.topic + " " + u.clientId);
+                    break;
+                default:
+                    ops.add("PUBLISH " + u.topic);
+            }
+        }
+        return ops;
+    }
+}
@@ -0,0 +1,102 @@
+package io.github.googlielmo.fastpuss;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A broker running on a thread of its own for the length of a test: started by {@link #start}, which returns once the
+ * broker answers a PING, and stopped by {@link #close()}.
+ * <p>
+ * Brokers run on the {@link MemoryTransport} of their configuration when the test allows, and otherwise on a loopback
+ * port given by {@link #networkPort}.
+ */
+final class TestBroker implements AutoCloseable {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    final MessageBroker broker;
+    final InetSocketAddress address;
+    private final Thread thread;
+
+    private TestBroker(MessageBroker broker, int port) {
+        this.broker = broker;
+        this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        this.thread = new Thread(broker::broker, "test-broker-" + port);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * @return the settings test brokers start from: no metrics dump, and a single ingest worker, so that the answer to
+     * a PING means that whatever its client sent before has been handled
+     */
+    static BrokerConfig config() {
+        return new BrokerConfig().metrics(0, 0).ingest(1, 1024, OverloadPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * @param offset distinguishes the brokers of the tests from one another
+     * @return a port for a broker on the network, which differs between builds running at the same time
+     */
+    static int networkPort(int offset) {
+        return 10000 + (int) (ProcessHandle.current().pid() % 1000) + offset;
+    }
+
+    static TestBroker start(int port, ThreadSafeSubscriberManager subscriptions, BrokerConfig config)
+            throws IOException {
+        return start(new MessageBroker(port, ExecutionMode.PLATFORM, subscriptions, config), port);
+    }
+
+    /**
+     * Run a broker, e.g. a {@link DistributedBroker}, until it answers on {@code port}.
+     */
+    static TestBroker start(MessageBroker broker, int port) throws IOException {
+        TestBroker test = new TestBroker(broker, port);
+        test.thread.start();
+        try (DatagramEndpoint probe = broker.transport().bind(null, 0, false)) {
+            ByteBuffer buf = ByteBuffer.allocate(64);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            do {
+                assertTrue(System.currentTimeMillis() < deadline, "broker not up on port " + port);
+                probe.send(MessageCodec.encode(Verb.PING, "up", new byte[0]), test.address);
+            } while (probe.receive(buf.clear(), 10) == null);
+        } catch (IOException | RuntimeException | Error e) {
+            test.close();
+            throw e;
+        }
+        return test;
+    }
+
+    /**
+     * Wait for a condition, polling it.
+     */
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    BrokerMetrics metrics() {
+        return broker.metrics();
+    }
+
+    /**
+     * Stop the broker and wait for its thread.
+     */
+    @Override
+    public void close() {
+        broker.close();
+        try {
+            thread.join(TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assertFalse(thread.isAlive(), "broker still running on port " + address.getPort());
+    }
+}
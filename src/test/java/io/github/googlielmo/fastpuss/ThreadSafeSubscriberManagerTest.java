@@ -4,11 +4,20 @@ import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ThreadSafeSubscriberManagerTest {
@@ -54,6 +63,165 @@ public class ThreadSafeSubscriberManagerTest {
         assertSubscribersMatch("fastpuss/firstfloor/kitchen/temperature", "client-2");
     }
 
+    @Test
+    public void addSubscription_internsEndpointsOnce() {
+        subscriberManager.addSubscription("topic1", "/127.0.0.1:10002");
+        subscriberManager.addSubscription("topic2", "/127.0.0.1:10002");
+        ClientRegistry clients = subscriberManager.clients();
+        assertEquals(1, clients.size());
+        int handle = clients.lookup("/127.0.0.1:10002");
+        assertEquals(new InetSocketAddress(InetAddress.getLoopbackAddress(), 10002), clients.address(handle));
+        assertSubscribersMatch("topic2", "/127.0.0.1:10002");
+    }
+
+    @Test
+    public void topicIndex_findsTheTopicsMatchingAFilter() {
+        String[] levels = {"a", "b", "c", ""};
+        TopicIndex index = new TopicIndex();
+        Set<String> topics = new TreeSet<>(List.of("$SYS/a", "$SYS"));
+        Random rand = new Random(42);
+        for (int i = 0; i < 300; i++) {
+            StringBuilder topic = new StringBuilder(levels[rand.nextInt(levels.length)]);
+            for (int depth = rand.nextInt(4); depth > 0; depth--) {
+                topic.append('/').append(levels[rand.nextInt(levels.length)]);
+            }
+            topics.add(topic.toString());
+        }
+        topics.forEach(index::add);
+        index.remove("a");
+        topics.remove("a");
+        assertEquals(topics.size(), index.size());
+        for (String filter : new String[]{"#", "+", "a/#", "a/+", "+/b/#", "+/+", "a/b/c", "/#", "$SYS/#", "+/#"}) {
+            Set<String> expected = new TreeSet<>();
+            topics.stream().filter(topic -> TopicFilter.matches(filter, topic)).forEach(expected::add);
+            Set<String> found = new TreeSet<>();
+            index.forEachMatch(filter, topic -> assertTrue(found.add(topic), "twice: " + topic));
+            assertEquals(expected, found, filter);
+        }
+    }
+
+    @Test
+    public void clients_onlyResolveLiteralAddresses() {
+        ClientRegistry clients = subscriberManager.clients();
+        assertEquals(new InetSocketAddress(InetAddress.getLoopbackAddress(), 5),
+                clients.address(clients.intern("localhost/127.0.0.1:5")));
+        assertEquals(new InetSocketAddress("::1", 6), clients.address(clients.intern("/[0:0:0:0:0:0:0:1]:6")));
+        assertEquals(new InetSocketAddress("::1", 7), clients.address(clients.intern("/0:0:0:0:0:0:0:1:7")));
+        assertNull(clients.address(clients.intern("/fastpuss.invalid:8"))); // not looked up: an opaque ID
+        assertNull(clients.address(clients.intern("/1.2.3:9")));
+    }
+
+    @Test
+    public void addSubscription_isIdempotent() {
+        assertTrue(subscriberManager.addSubscription("topic1", "client-1"));
+        assertFalse(subscriberManager.addSubscription("topic1", "client-1"));
+        assertSubscribersMatch("topic1", "client-1");
+    }
+
+    @Test
+    public void removeSubscription_reclaimsEmptyTopics() {
+        subscriberManager.addSubscription("topic1", "client-1");
+        subscriberManager.addSubscription("topic1", "client-2");
+        assertTrue(subscriberManager.removeSubscription("topic1", "client-1"));
+        assertFalse(subscriberManager.removeSubscription("topic1", "client-1"));
+        assertSubscribersMatch("topic1", "client-2");
+        assertTrue(subscriberManager.removeSubscription("topic1", "client-2"));
+        assertEquals(0, subscriberManager.topicCount());
+        assertTrue(subscriberManager.addSubscription("topic1", "client-2"));
+        assertSubscribersMatch("topic1", "client-2");
+    }
+
+    @Test
+    public void concurrentSubscribeAndUnsubscribe_leavesNoEmptyTopics() throws InterruptedException {
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            String clientId = "client-" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    String topic = "topic" + (i % 7);
+                    subscriberManager.addSubscription(topic, clientId);
+                    subscriberManager.removeSubscription(topic, clientId);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, subscriberManager.topicCount());
+    }
+
+    @Test
+    public void getMatchingSubscribers_matchesWildcards() {
+        subscriberManager.addSubscription("fastpuss/+/livingroom/temperature", "client-1");
+        subscriberManager.addSubscription("fastpuss/#", "client-2");
+        subscriberManager.addSubscription("fastpuss/firstfloor/+/+", "client-3");
+        subscriberManager.addSubscription("fastpuss/firstfloor/kitchen/temperature", "client-3");
+        subscriberManager.addSubscription("#", "client-4");
+        assertSubscribersMatch("fastpuss/firstfloor/livingroom/temperature", "client-1", "client-2", "client-3", "client-4");
+        assertSubscribersMatch("fastpuss/firstfloor/kitchen/temperature", "client-2", "client-3", "client-4");
+        assertSubscribersMatch("fastpuss", "client-2", "client-4");
+        assertSubscribersMatch("other", "client-4");
+        assertSubscribersMatch("$SYS/uptime");
+    }
+
+    @Test
+    public void getMatchingSubscribers_followsWildcardChanges() {
+        subscriberManager.addSubscription("sensors/+/temp", "client-1");
+        assertSubscribersMatch("sensors/kitchen/temp", "client-1");
+        subscriberManager.addSubscription("sensors/+/temp", "client-2");
+        assertSubscribersMatch("sensors/kitchen/temp", "client-1", "client-2");
+        subscriberManager.addSubscription("sensors/#", "client-3");
+        assertSubscribersMatch("sensors/kitchen/temp", "client-1", "client-2", "client-3");
+        subscriberManager.removeSubscription("sensors/+/temp", "client-1");
+        subscriberManager.removeSubscription("sensors/+/temp", "client-2");
+        assertSubscribersMatch("sensors/kitchen/temp", "client-3");
+        subscriberManager.addSubscription("sensors/kitchen/temp", "client-1");
+        assertSubscribersMatch("sensors/kitchen/temp", "client-1", "client-3");
+        subscriberManager.removeSubscription("sensors/#", "client-3");
+        assertSubscribersMatch("sensors/kitchen/temp", "client-1");
+    }
+
+    @Test
+    public void concurrentMatch_seesNewExactFiltersOfWildcardTopics() throws InterruptedException {
+        subscriberManager.addSubscription("rooms/+", "wildcard");
+        int topics = 20_000;
+        AtomicInteger published = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread publisher = new Thread(() -> {
+            while (!done.get()) {
+                subscriberManager.getSubscribers("rooms/" + published.get()); // resolved and cached meanwhile
+            }
+        });
+        publisher.start();
+        try {
+            for (int i = 0; i < topics; i++) {
+                String topic = "rooms/" + i;
+                published.set(i);
+                Thread.yield();
+                subscriberManager.addSubscription(topic, "first-" + i);
+                subscriberManager.addSubscription(topic, "second-" + i);
+                assertSubscribersMatch(topic, "wildcard", "first-" + i, "second-" + i);
+            }
+        } finally {
+            done.set(true);
+            publisher.join();
+        }
+    }
+
+    @Test
+    public void topicFilter_matchesLikeTheTrie() {
+        assertTrue(TopicFilter.matches("a/+/c", "a/b/c"));
+        assertTrue(TopicFilter.matches("a/#", "a"));
+        assertTrue(TopicFilter.matches("a/+", "a/"));
+        assertFalse(TopicFilter.matches("a/+", "a"));
+        assertFalse(TopicFilter.matches("a/+/c", "a/b/c/d"));
+        assertFalse(TopicFilter.matches("+/x", "$SYS/x"));
+        assertFalse(TopicFilter.isValid("a/b#"));
+        assertFalse(TopicFilter.isValid("a/#/c"));
+        assertTrue(TopicFilter.isValid("+/+/#"));
+    }
+
     private void assertSubscribersMatch(final @NotNull String topic, final @NotNull String @NotNull ... clientIds) {
         final Collection<String> subscribers = subscriberManager.getMatchingSubscribers(topic);
         assertEquals(clientIds.length, subscribers.size());
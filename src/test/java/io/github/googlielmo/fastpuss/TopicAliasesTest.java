@@ -0,0 +1,124 @@
+package io.github.googlielmo.fastpuss;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static io.github.googlielmo.fastpuss.TestBroker.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TopicAliasesTest {
+
+    @Test
+    public void aliases_resolveOnlyTheirOwnTopics() {
+        TopicAliases aliases = new TopicAliases(2);
+        TopicAliases.Alias a = aliases.assign("plant/line-1/press/pressure");
+        assertSame(a, aliases.assign("plant/line-1/press/pressure"));
+        assertSame(a, aliases.get("plant/line-1/press/pressure"));
+        assertEquals("plant/line-1/press/pressure", aliases.topic(a.id));
+        assertEquals(a.id, Long.parseLong(a.token, 16));
+        TopicAliases.Alias b = aliases.assign("b");
+        assertNotEquals(a.id, b.id);
+        assertNull(aliases.assign("c"), "beyond capacity");
+        assertNull(aliases.get("c"));
+
+        assertNull(aliases.topic(b.id + 1), "not assigned");
+        assertNull(aliases.topic(TopicAliases.index(a.id)), "no epoch");
+        assertNull(new TopicAliases(2).topic(a.id), "another broker's");
+
+        aliases.addClient(a, 7);
+        aliases.addClient(a, 3);
+        aliases.addClient(a, 7);
+        assertArrayEquals(new int[]{3, 7}, a.clients());
+        aliases.removeClient("plant/line-1/press/pressure", 3);
+        assertArrayEquals(new int[]{7}, a.clients());
+    }
+
+    @Test
+    public void codec_resolvesAliasedFrames() {
+        TopicAliases aliases = new TopicAliases(16);
+        TopicAliases.Alias a = aliases.assign("a/long/topic");
+        Frame frame = MessageCodec.decode(MessageCodec.encode(Verb.APUB, a.token, "body".getBytes()), aliases::topic);
+        assertEquals(Verb.PUB, frame.verb);
+        assertSame(a.topic, frame.topic); // hash code already computed
+        assertEquals("body", new String(frame.body));
+
+        MessageCodec.Header h = new MessageCodec.Header();
+        assertTrue(MessageCodec.decodeHeader(MessageCodec.encode(Verb.AMSG, a.token, new byte[0]), h, aliases::topic));
+        assertEquals(Verb.MSG, h.verb);
+        assertEquals("a/long/topic", h.topic);
+
+        assertNull(MessageCodec.decode(MessageCodec.encode(Verb.APUB, "123", new byte[0]), aliases::topic));
+        assertNull(MessageCodec.decode(MessageCodec.encode(Verb.APUB, "xyz", new byte[0]), aliases::topic));
+        assertNull(MessageCodec.decode(MessageCodec.encode(Verb.APUB, a.token, new byte[0])), "no aliases");
+        assertEquals(a.token, MessageCodec.aliasOf(MessageCodec.encode(Verb.APUB, a.token, new byte[0])));
+    }
+
+    @Test
+    public void broker_negotiatesAliasesAlongsideTopicNames() throws Exception {
+        ThreadSafeSubscriberManager subscriptions = new ThreadSafeSubscriberManager();
+        String topic = "plant/line-1/press/pressure";
+        try (TestBroker broker = TestBroker.start(TestBroker.networkPort(8000), subscriptions, TestBroker.config());
+             DatagramSocket raw = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             FastpussClient client = new FastpussClient(new FastpussClient.Config(List.of(broker.address))
+                     .aliases(true))) {
+            InetSocketAddress address = broker.address;
+            raw.setSoTimeout(5000);
+            client.start();
+            AtomicReference<String> received = new AtomicReference<>();
+            client.subscribe(topic, (tp, body) -> received.set(tp + " " + StandardCharsets.UTF_8.decode(body)));
+            await(() -> subscriptions.getMatchingSubscribers(topic).size() == 1);
+
+            // a raw subscriber asking for aliased delivery gets the alias, then AMSGs
+            send(raw, address, MessageCodec.encode(Verb.SUB, topic, "alias".getBytes()));
+            Frame ack = receive(raw);
+            assertEquals(Verb.ALIAS, ack.verb);
+            assertEquals(topic, ack.topic);
+            String token = new String(ack.body, StandardCharsets.US_ASCII);
+
+            // the client publishes with the topic name until it knows the alias; both forms are delivered
+            for (int i = 0; received.get() == null || !received.get().endsWith(" m" + (i - 1)); i++) {
+                assertTrue(i < 500, "no aliased delivery");
+                client.publish(topic, ("m" + i).getBytes());
+                Frame msg = receive(raw);
+                assertEquals(Verb.MSG, msg.verb);
+                assertEquals(token, msg.topic, "not an AMSG");
+                assertEquals("m" + i, new String(msg.body));
+                Thread.sleep(10);
+            }
+            assertTrue(received.get().startsWith(topic + " m"));
+
+            // a raw publisher using the alias reaches the client, which gets the topic name
+            send(raw, address, MessageCodec.encode(Verb.APUB, token, "raw".getBytes()));
+            await(() -> (topic + " raw").equals(received.get()));
+            receive(raw); // its own AMSG
+
+            // an alias this broker didn't assign is rejected back to the sender
+            long parseErrors = broker.metrics().getParseErrors();
+            send(raw, address, MessageCodec.encode(Verb.APUB, "1", "lost".getBytes()));
+            Frame rejection = receive(raw);
+            assertEquals(Verb.ALIAS, rejection.verb);
+            assertEquals("1", rejection.topic);
+            assertEquals(0, rejection.body.length);
+            assertEquals(parseErrors + 1, broker.metrics().getParseErrors());
+        }
+    }
+
+    private static Frame receive(DatagramSocket socket) throws Exception {
+        DatagramPacket p = new DatagramPacket(new byte[1024], 1024);
+        socket.receive(p);
+        // AMSGs are decoded as MSGs with the alias as topic
+        return MessageCodec.decode(ByteBuffer.wrap(p.getData(), 0, p.getLength()), Long::toHexString);
+    }
+
+    private static void send(DatagramSocket socket, InetSocketAddress to, ByteBuffer msg) throws Exception {
+        socket.send(new DatagramPacket(msg.array(), msg.arrayOffset() + msg.position(), msg.remaining(), to));
+    }
+}